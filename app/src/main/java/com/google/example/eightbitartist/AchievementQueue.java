@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Achievement updates waiting to be sent to the games service. Updates are coalesced as they
+ * are queued: an achievement is unlocked or revealed at most once, and increments to the same
+ * achievement are summed, so a whole match of updates is sent in a few calls. Achievements that
+ * were unlocked are remembered and never sent again.
+ * <p>
+ * The queue is saved to a Store after every change, so updates made while signed out or just
+ * before the process dies are sent on a later flush.
+ */
+public class AchievementQueue {
+
+    /**
+     * The games service calls a flush is sent to.
+     */
+    public interface GamesClient {
+        void reveal(String achievementId);
+
+        void unlock(String achievementId);
+
+        void increment(String achievementId, int numSteps);
+    }
+
+    /**
+     * Persistent storage for the queue, such as SharedPreferences.
+     */
+    public interface Store {
+        /**
+         * @return the string last passed to save, or null if there is none.
+         */
+        String load();
+
+        void save(String queue);
+    }
+
+    // Record types in the saved queue, one record per line as type:achievementId[:steps]
+    private static final char RECORD_REVEAL = 'r';
+    private static final char RECORD_UNLOCK = 'u';
+    private static final char RECORD_INCREMENT = 'i';
+    private static final char RECORD_UNLOCKED = 'd';
+
+    private final Store mStore;
+
+    private LinkedHashSet<String> mReveals = new LinkedHashSet<>();
+    private LinkedHashSet<String> mUnlocks = new LinkedHashSet<>();
+    private LinkedHashMap<String, Integer> mIncrements = new LinkedHashMap<>();
+
+    // Achievements already unlocked on the games service
+    private LinkedHashSet<String> mUnlocked = new LinkedHashSet<>();
+
+    /**
+     * Create a queue, restoring the updates saved in the store.
+     */
+    public AchievementQueue(Store store) {
+        mStore = store;
+        restore(store.load());
+    }
+
+    public void reveal(String achievementId) {
+        if (mUnlocked.contains(achievementId) || mUnlocks.contains(achievementId)) {
+            // Unlocking an achievement reveals it
+            return;
+        }
+        if (mReveals.add(achievementId)) {
+            save();
+        }
+    }
+
+    public void unlock(String achievementId) {
+        if (mUnlocked.contains(achievementId)) {
+            return;
+        }
+        mReveals.remove(achievementId);
+        if (mUnlocks.add(achievementId)) {
+            save();
+        }
+    }
+
+    public void increment(String achievementId, int numSteps) {
+        Integer pending = mIncrements.get(achievementId);
+        mIncrements.put(achievementId, (pending == null) ? numSteps : pending + numSteps);
+        save();
+    }
+
+    /**
+     * @return true if there are updates waiting to be sent.
+     */
+    public boolean hasPending() {
+        return !mReveals.isEmpty() || !mUnlocks.isEmpty() || !mIncrements.isEmpty();
+    }
+
+    /**
+     * Send all waiting updates and empty the queue. Call only while signed in.
+     *
+     * @param client the games service.
+     * @return the number of calls made.
+     */
+    public int flush(GamesClient client) {
+        if (!hasPending()) {
+            return 0;
+        }
+
+        int calls = 0;
+        for (String achievementId : mReveals) {
+            client.reveal(achievementId);
+            calls++;
+        }
+        for (String achievementId : mUnlocks) {
+            client.unlock(achievementId);
+            mUnlocked.add(achievementId);
+            calls++;
+        }
+        for (Map.Entry<String, Integer> increment : mIncrements.entrySet()) {
+            client.increment(increment.getKey(), increment.getValue());
+            calls++;
+        }
+
+        mReveals.clear();
+        mUnlocks.clear();
+        mIncrements.clear();
+        save();
+        return calls;
+    }
+
+    /**
+     * Forget which achievements were unlocked, for example when a different player signs in.
+     * Waiting updates are kept.
+     */
+    public void clearUnlocked() {
+        mUnlocked.clear();
+        save();
+    }
+
+    private void save() {
+        StringBuilder queue = new StringBuilder();
+        for (String achievementId : mUnlocked) {
+            appendRecord(queue, RECORD_UNLOCKED, achievementId).append('\n');
+        }
+        for (String achievementId : mReveals) {
+            appendRecord(queue, RECORD_REVEAL, achievementId).append('\n');
+        }
+        for (String achievementId : mUnlocks) {
+            appendRecord(queue, RECORD_UNLOCK, achievementId).append('\n');
+        }
+        for (Map.Entry<String, Integer> increment : mIncrements.entrySet()) {
+            appendRecord(queue, RECORD_INCREMENT, increment.getKey())
+                    .append(':').append(increment.getValue()).append('\n');
+        }
+        mStore.save(queue.toString());
+    }
+
+    private static StringBuilder appendRecord(StringBuilder queue, char type, String id) {
+        return queue.append(type).append(':').append(id);
+    }
+
+    private void restore(String queue) {
+        if (queue == null) {
+            return;
+        }
+
+        for (String record : queue.split("\n")) {
+            if (record.length() < 3 || record.charAt(1) != ':') {
+                continue;
+            }
+            String achievementId = record.substring(2);
+            switch (record.charAt(0)) {
+                case RECORD_UNLOCKED:
+                    mUnlocked.add(achievementId);
+                    break;
+                case RECORD_REVEAL:
+                    mReveals.add(achievementId);
+                    break;
+                case RECORD_UNLOCK:
+                    mUnlocks.add(achievementId);
+                    break;
+                case RECORD_INCREMENT:
+                    int separator = achievementId.lastIndexOf(':');
+                    if (separator > 0) {
+                        try {
+                            mIncrements.put(achievementId.substring(0, separator),
+                                    Integer.parseInt(achievementId.substring(separator + 1)));
+                        } catch (NumberFormatException e) {
+                            // A damaged record, drop it
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.games.Games;
+
+/**
+ * Sends achievement updates to Play Games in batches through an AchievementQueue. Updates are
+ * kept in SharedPreferences until they are sent, so those made while signed out or before the
+ * app was killed are sent once the player signs in.
+ */
+public class AchievementReporter {
+
+    private static final String TAG = "AchievementReporter";
+
+    // How often queued achievement updates are sent while signed in
+    private static final long FLUSH_MS = 60 * 1000L;
+
+    // Where queued achievement updates are kept across restarts
+    private static final String PREFS = "achievements";
+    private static final String PREF_QUEUE = "queue";
+    private static final String PREF_PLAYER = "player";
+
+    private final Context mContext;
+    private final GoogleApiClient mGoogleApiClient;
+    private final SharedPreferences mPrefs;
+    private final AchievementQueue mQueue;
+
+    // False if res/values/ids.xml has not been filled in, in which case updates are ignored
+    private final boolean mEnabled;
+
+    private boolean mFlushScheduled = false;
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+    private Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flush();
+        }
+    };
+
+    private AchievementQueue.GamesClient mGamesClient = new AchievementQueue.GamesClient() {
+        @Override
+        public void reveal(String achievementId) {
+            Games.Achievements.reveal(mGoogleApiClient, achievementId);
+        }
+
+        @Override
+        public void unlock(String achievementId) {
+            Games.Achievements.unlock(mGoogleApiClient, achievementId);
+        }
+
+        @Override
+        public void increment(String achievementId, int numSteps) {
+            Games.Achievements.increment(mGoogleApiClient, achievementId, numSteps);
+        }
+    };
+
+    /**
+     * Create an AchievementReporter, restoring the updates not sent before the app last stopped.
+     *
+     * @param context         the context to get the achievement IDs and preferences from.
+     * @param googleApiClient the client updates are sent with, once connected.
+     * @param enabled         false to ignore all updates.
+     */
+    public AchievementReporter(Context context, GoogleApiClient googleApiClient,
+                               boolean enabled) {
+        mContext = context;
+        mGoogleApiClient = googleApiClient;
+        mEnabled = enabled;
+        mPrefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        mQueue = new AchievementQueue(new AchievementQueue.Store() {
+            @Override
+            public String load() {
+                return mPrefs.getString(PREF_QUEUE, null);
+            }
+
+            @Override
+            public void save(String queue) {
+                mPrefs.edit().putString(PREF_QUEUE, queue).apply();
+            }
+        });
+    }
+
+    /**
+     * Queue unlocking an achievement. Unlocks are sent in batches, and only once per
+     * achievement.
+     */
+    public void unlock(int achievementRes) {
+        if (mEnabled) {
+            mQueue.unlock(mContext.getString(achievementRes));
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Queue incrementing an achievement. Increments are summed until the next batch is sent.
+     */
+    public void increment(int achievementRes, int numSteps) {
+        if (mEnabled) {
+            mQueue.increment(mContext.getString(achievementRes), numSteps);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * The player signed in: send what is queued. Achievements another player unlocked here
+     * may still be locked for this one, so they are unlocked again.
+     */
+    public void onSignedIn() {
+        String playerId = Games.Players.getCurrentPlayerId(mGoogleApiClient);
+        if (playerId != null && !playerId.equals(mPrefs.getString(PREF_PLAYER, null))) {
+            mQueue.clearUnlocked();
+            mPrefs.edit().putString(PREF_PLAYER, playerId).apply();
+        }
+        flush();
+    }
+
+    /**
+     * Send the queued achievement updates, if signed in. Otherwise they stay queued, across
+     * restarts if need be, until the player signs in.
+     */
+    public void flush() {
+        if (mGoogleApiClient.isConnected() && mEnabled && mQueue.hasPending()) {
+            int calls = mQueue.flush(mGamesClient);
+            Log.d(TAG, "flush: " + calls + " calls");
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, FLUSH_MS);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.CanvasDeltaMessage;
+
+import java.util.HashMap;
+
+/**
+ * The Host's authoritative copy of the DrawView grid, used when the canvas is synchronized by
+ * state instead of by replicating every draw event. Every cell change bumps a version number and
+ * records that version on the cell. Each client acknowledges the latest version it has applied,
+ * and on every tick the Host sends that client only the cells changed since its acknowledged
+ * baseline. However fast the artist draws, a delta never holds more than one entry per cell.
+ */
+public class CanvasSync {
+
+    private static final int NUM_CELLS = DrawView.GRID_SIZE * DrawView.GRID_SIZE;
+
+    // Current color of each cell, indexed by (x * GRID_SIZE + y)
+    private short[] mCells = new short[NUM_CELLS];
+
+    // The version at which each cell last changed
+    private int[] mCellVersions = new int[NUM_CELLS];
+
+    // The version of the grid, incremented on every cell change
+    private int mVersion = 0;
+
+    // The latest version each client has acknowledged, keyed by endpoint ID
+    private HashMap<String, Integer> mAckedVersions = new HashMap<>();
+
+    // The latest version sent to each client, so an unchanged grid is not re-sent every tick
+    private HashMap<String, Integer> mSentVersions = new HashMap<>();
+
+    /**
+     * Record a cell change. Setting a cell to the color it already has is not a change.
+     */
+    public void setCell(int gridX, int gridY, short colorIndex) {
+        int index = gridX * DrawView.GRID_SIZE + gridY;
+        if (mCells[index] != colorIndex) {
+            mVersion++;
+            mCells[index] = colorIndex;
+            mCellVersions[index] = mVersion;
+        }
+    }
+
+    /**
+     * Record that every cell was cleared.
+     */
+    public void clear() {
+        for (int x = 0; x < DrawView.GRID_SIZE; x++) {
+            for (int y = 0; y < DrawView.GRID_SIZE; y++) {
+                setCell(x, y, (short) 0);
+            }
+        }
+    }
+
+    /**
+     * Start a new turn. Every client clears its own canvas when the turn begins, so the blank
+     * grid becomes every client's baseline without sending any cells.
+     */
+    public void onNewTurn() {
+        for (int i = 0; i < NUM_CELLS; i++) {
+            mCells[i] = 0;
+        }
+        for (String clientId : mAckedVersions.keySet()) {
+            mAckedVersions.put(clientId, mVersion);
+            mSentVersions.put(clientId, mVersion);
+        }
+    }
+
+    /**
+     * Start tracking a client whose canvas is blank.
+     */
+    public void addClient(String clientId) {
+        mAckedVersions.put(clientId, 0);
+        mSentVersions.put(clientId, 0);
+    }
+
+    /**
+     * Stop tracking a client that has disconnected.
+     */
+    public void removeClient(String clientId) {
+        mAckedVersions.remove(clientId);
+        mSentVersions.remove(clientId);
+    }
+
+    /**
+     * Move a client's baseline forward. Acknowledgements can arrive out of order, so an older
+     * version never replaces a newer one.
+     *
+     * @param clientId the endpoint ID of the client.
+     * @param version  the version the client has applied.
+     */
+    public void onAck(String clientId, int version) {
+        Integer acked = mAckedVersions.get(clientId);
+        if (acked != null && version > acked) {
+            mAckedVersions.put(clientId, version);
+        }
+    }
+
+    /**
+     * Build the delta a client needs to catch up with the authoritative grid.
+     *
+     * @param clientId the endpoint ID of the client.
+     * @return a message with every cell changed since the client's baseline, or null if the
+     * client already has (or has just been sent) the current version.
+     */
+    public CanvasDeltaMessage createDelta(String clientId) {
+        Integer acked = mAckedVersions.get(clientId);
+        Integer sent = mSentVersions.get(clientId);
+        if (acked == null || acked >= mVersion || sent >= mVersion) {
+            return null;
+        }
+
+        int count = 0;
+        for (int i = 0; i < NUM_CELLS; i++) {
+            if (mCellVersions[i] > acked) {
+                count++;
+            }
+        }
+
+        int[] cells = new int[count];
+        int next = 0;
+        for (int i = 0; i < NUM_CELLS; i++) {
+            if (mCellVersions[i] > acked) {
+                cells[next++] = CanvasDeltaMessage.packCell(i, mCells[i]);
+            }
+        }
+
+        mSentVersions.put(clientId, mVersion);
+        return new CanvasDeltaMessage(mVersion, cells);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+/**
+ * Estimates the offset between this device's clock and the Host's clock from request/response
+ * timestamps, the same way NTP does. For a request sent at t0 (local), received at t1 (host),
+ * answered at t2 (host) and received back at t3 (local):
+ * <pre>
+ *     round trip = (t3 - t0) - (t2 - t1)
+ *     offset     = ((t1 - t0) + (t2 - t3)) / 2
+ * </pre>
+ * Adding the offset to a local time gives the equivalent Host time. The error of a sample is at
+ * most half its round trip, so the estimate comes from the sample with the smallest round trip
+ * among the most recent ones.
+ */
+public class ClockSync {
+
+    private static final int MAX_SAMPLES = 8;
+
+    private long[] mOffsets = new long[MAX_SAMPLES];
+    private long[] mRoundTrips = new long[MAX_SAMPLES];
+    private int mNumSamples = 0;
+    private int mNextSample = 0;
+
+    private long mOffset = 0;
+    private long mRoundTrip = 0;
+
+    // The Host's own clock is the reference, so the Host always knows its offset
+    private boolean mIsReference = false;
+
+    /**
+     * Mark this device as the Host, whose clock the other devices synchronize to.
+     */
+    public void setIsReference(boolean isReference) {
+        mIsReference = isReference;
+        if (isReference) {
+            reset();
+        }
+    }
+
+    /**
+     * Record one request/response exchange with the Host.
+     *
+     * @param t0 local time the request was sent.
+     * @param t1 host time the request was received.
+     * @param t2 host time the response was sent.
+     * @param t3 local time the response was received.
+     */
+    public void onSample(long t0, long t1, long t2, long t3) {
+        mOffsets[mNextSample] = ((t1 - t0) + (t2 - t3)) / 2;
+        mRoundTrips[mNextSample] = (t3 - t0) - (t2 - t1);
+        mNextSample = (mNextSample + 1) % MAX_SAMPLES;
+        mNumSamples = Math.min(mNumSamples + 1, MAX_SAMPLES);
+
+        int best = 0;
+        for (int i = 1; i < mNumSamples; i++) {
+            if (mRoundTrips[i] < mRoundTrips[best]) {
+                best = i;
+            }
+        }
+        mOffset = mOffsets[best];
+        mRoundTrip = mRoundTrips[best];
+    }
+
+    /**
+     * Forget all samples, for example after connecting to a different Host.
+     */
+    public void reset() {
+        mNumSamples = 0;
+        mNextSample = 0;
+        mOffset = 0;
+        mRoundTrip = 0;
+    }
+
+    /**
+     * @return true if local times can be converted to Host time.
+     */
+    public boolean hasOffset() {
+        return mIsReference || mNumSamples > 0;
+    }
+
+    /**
+     * @return the Host clock minus the local clock, in milliseconds.
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return the round trip of the sample the offset was taken from, in milliseconds.
+     */
+    public long getRoundTrip() {
+        return mRoundTrip;
+    }
+
+    /**
+     * Convert a local time to Host time.
+     */
+    public long toHostTime(long localTime) {
+        return localTime + mOffset;
+    }
+}
@@ -22,20 +22,30 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
 
+import java.util.Locale;
+
 /**
  * This View is the canvas on which the user can paint. Every time the user touches this view,
  * the corresponding pixel's color will be changed to the currently active drawing color. This
  * View simulates a 10x10 array of 'macro pixels' that the user can color.
+ * <p>
+ * The view is only drawn when a cell or cursor changes. Changes mark their cells dirty, and
+ * the box around the dirty cells is invalidated once per frame, on the next vsync.
  */
-public class DrawView extends View implements OnTouchListener, ColorChooser.ColorChooserListener {
+public class DrawView extends View implements OnTouchListener, ColorChooser.ColorChooserListener,
+        StrokePlayer.Grid {
 
-    private static final int GRID_SIZE = 10;
+    public static final int GRID_SIZE = 10;
     private static final String TAG = "DrawView";
 
+    // How often a stroke in progress is handed to the listener in vector mode
+    private static final long STROKE_CHUNK_MS = 50;
+
     private short[][] grid;
     private double mHeightInPixels;
     private short mSelectedColor = 1;
@@ -43,21 +53,70 @@ public class DrawView extends View implements OnTouchListener, ColorChooser.Colo
     private int lastGridY = -1;
     private DrawViewListener mListener;
 
+    // Vector mode: the touch path of the stroke in progress, in grid units, as x, y pairs
+    private boolean mVectorMode = false;
+    private float[] mStrokePoints = new float[64];
+    private int mStrokePointCount = 0;
+    private long mStrokeChunkStart;
+
     // These are the four colors provided for painting.
     // If years of classic has taught me anything, these
     // are enough colors for anything. Anything at all.
     public static final int COLOR_MAP[] = {0xFF000000, 0xFF0000FF, 0xFFFF0000, 0xFF00FF00};
 
-    // Interface for the Activity to know when a square is drawn
+    // Interface for the Activity to know when a square is drawn and when a frame is rendered,
+    // which is only after something changed
     public interface DrawViewListener {
         void onDrawEvent(int gridX, int gridY, short colorIndex);
+
+        /**
+         * Called in vector mode with a piece of the stroke in progress. Each piece starts with
+         * the last point of the one before, so the pieces join up. Nothing is painted until the
+         * listener rasterizes the piece.
+         *
+         * @param points     the touch path as x, y pairs, in grid units.
+         * @param count      the number of points.
+         * @param colorIndex the index into the color array to paint with.
+         */
+        void onStrokeEvent(float[] points, int count, short colorIndex);
+
+        void onFrameRendered();
     }
 
     // Some temporary variables so we don't allocate while rendering
     private Rect mRect = new Rect();
     private Paint mPaint = new Paint();
 
-    private Boolean keepAnimating = false;
+    // Where the other artists of a team turn last drew, outlined in the color they drew with
+    private static final int MAX_CURSORS = 8;
+    private int[] mCursorArtists = new int[MAX_CURSORS];
+    private int[] mCursorCells = new int[MAX_CURSORS];
+    private short[] mCursorColors = new short[MAX_CURSORS];
+    private int mCursorCount = 0;
+    private static final int CURSOR_STROKE_WIDTH = 4;
+    private Paint mCursorPaint = new Paint();
+
+    // The box around the cells changed since the last frame, in grid units, empty when
+    // mDirtyLeft > mDirtyRight. The cells are invalidated on the next vsync.
+    private int mDirtyLeft = GRID_SIZE;
+    private int mDirtyTop = GRID_SIZE;
+    private int mDirtyRight = -1;
+    private int mDirtyBottom = -1;
+    private boolean mInvalidateScheduled = false;
+    private Rect mClipRect = new Rect();
+
+    private final Choreographer.FrameCallback mInvalidateCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    invalidateDirtyCells();
+                }
+            };
+
+    // Statistics for getSummary
+    private long mFramesRendered = 0;
+    private long mCellsRendered = 0;
+    private long mRenderNanos = 0;
 
     private boolean touchEnabled;
 
@@ -66,22 +125,16 @@ public class DrawView extends View implements OnTouchListener, ColorChooser.Colo
 
         grid = new short[GRID_SIZE][GRID_SIZE];
 
-        setOnTouchListener(this);
+        mCursorPaint.setStyle(Paint.Style.STROKE);
+        mCursorPaint.setStrokeWidth(CURSOR_STROKE_WIDTH);
 
-        setAnimating(true);
+        setOnTouchListener(this);
     }
 
     public void setListener(DrawViewListener listener) {
         mListener = listener;
     }
 
-    public void setAnimating(Boolean val) {
-        keepAnimating = val;
-        if (val) {
-            invalidate();
-        }
-    }
-
     /**
      * Convert from screen space.
      *
@@ -95,30 +148,124 @@ public class DrawView extends View implements OnTouchListener, ColorChooser.Colo
     @Override
     public void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        long start = System.nanoTime();
 
         // Assume this is a square (as we will make it so in onMeasure()
         // and figure out how many pixels there are.
         mHeightInPixels = this.getHeight();
 
-        // Now, draw with 0,0 in upper left and 9,9 in lower right
+        // Now, draw with 0,0 in upper left and 9,9 in lower right. Only the cells in the clip,
+        // which covers the invalidated cells unless the whole view is drawn, need painting.
+        if (!canvas.getClipBounds(mClipRect)) {
+            return;
+        }
         for (int x = 0; x < GRID_SIZE; x++) {
             for (int y = 0; y < GRID_SIZE; y++) {
-                mPaint.setColor(COLOR_MAP[grid[x][y]]);
-
                 mRect.top = sp(((float) y) / GRID_SIZE);
                 mRect.left = sp(((float) x) / GRID_SIZE);
                 mRect.right = sp(((float) (x + 1)) / GRID_SIZE);
                 mRect.bottom = sp(((float) (y + 1)) / GRID_SIZE);
+                if (!mClipRect.intersects(mRect.left, mRect.top, mRect.right, mRect.bottom)) {
+                    continue;
+                }
 
+                mPaint.setColor(COLOR_MAP[grid[x][y]]);
                 canvas.drawRect(mRect, mPaint);
+                mCellsRendered++;
             }
         }
 
-        if (keepAnimating) {
-            invalidate();
+        for (int i = 0; i < mCursorCount; i++) {
+            int x = mCursorCells[i] / GRID_SIZE;
+            int y = mCursorCells[i] % GRID_SIZE;
+            // The first color is the background, outline it in white instead
+            short color = mCursorColors[i];
+            mCursorPaint.setColor((color == 0) ? 0xFFFFFFFF : COLOR_MAP[color]);
+
+            mRect.top = sp(((float) y) / GRID_SIZE);
+            mRect.left = sp(((float) x) / GRID_SIZE);
+            mRect.right = sp(((float) (x + 1)) / GRID_SIZE);
+            mRect.bottom = sp(((float) (y + 1)) / GRID_SIZE);
+
+            canvas.drawRect(mRect, mCursorPaint);
+        }
+
+        mFramesRendered++;
+        mRenderNanos += System.nanoTime() - start;
+        if (mListener != null) {
+            mListener.onFrameRendered();
+        }
+    }
+
+    /**
+     * Mark a cell as changed, to be drawn on the next frame.
+     */
+    private void invalidateCell(int gridX, int gridY) {
+        mDirtyLeft = Math.min(mDirtyLeft, gridX);
+        mDirtyTop = Math.min(mDirtyTop, gridY);
+        mDirtyRight = Math.max(mDirtyRight, gridX);
+        mDirtyBottom = Math.max(mDirtyBottom, gridY);
+
+        // However many cells change before it, the frame draws them all at once
+        if (!mInvalidateScheduled) {
+            mInvalidateScheduled = true;
+            postFrameCallback(mInvalidateCallback);
         }
     }
 
+    /**
+     * Run a callback on the next vsync. Tests replace this to run the frames themselves.
+     */
+    void postFrameCallback(Choreographer.FrameCallback callback) {
+        Choreographer.getInstance().postFrameCallback(callback);
+    }
+
+    private void invalidateAllCells() {
+        invalidateCell(0, 0);
+        invalidateCell(GRID_SIZE - 1, GRID_SIZE - 1);
+    }
+
+    /**
+     * Invalidate the box around the cells changed since the last frame. The box takes in the
+     * cursor outlines, which are centered on the edges of their cells.
+     */
+    private void invalidateDirtyCells() {
+        mInvalidateScheduled = false;
+        if (mDirtyLeft > mDirtyRight) {
+            return;
+        }
+
+        invalidateCells(mDirtyLeft, mDirtyTop, mDirtyRight, mDirtyBottom);
+        mDirtyLeft = mDirtyTop = GRID_SIZE;
+        mDirtyRight = mDirtyBottom = -1;
+    }
+
+    /**
+     * Invalidate a box of cells, widened by the cursor outline.
+     *
+     * @param left   the first column of the box.
+     * @param top    the first row of the box.
+     * @param right  the last column of the box.
+     * @param bottom the last row of the box.
+     */
+    void invalidateCells(int left, int top, int right, int bottom) {
+        double cellSize = (double) getHeight() / GRID_SIZE;
+        int margin = CURSOR_STROKE_WIDTH / 2 + 1;
+        invalidate((int) Math.floor(left * cellSize) - margin,
+                (int) Math.floor(top * cellSize) - margin,
+                (int) Math.ceil((right + 1) * cellSize) + margin,
+                (int) Math.ceil((bottom + 1) * cellSize) + margin);
+    }
+
+    /**
+     * Describe how often the view was drawn and how long it took, for the latency report.
+     */
+    public String getSummary() {
+        return String.format(Locale.US, "frames=%d cells=%d draw=%.1fms (%.1fus/frame)",
+                mFramesRendered, mCellsRendered, mRenderNanos / 1e6,
+                mRenderNanos / 1e3 / Math.max(1, mFramesRendered));
+    }
+
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
@@ -144,12 +291,25 @@ public class DrawView extends View implements OnTouchListener, ColorChooser.Colo
         this.touchEnabled = touchEnabled;
     }
 
+    /**
+     * Switch between painting every touched cell and capturing strokes as polylines, which are
+     * handed to the listener through onStrokeEvent.
+     */
+    public void setVectorMode(boolean vectorMode) {
+        mVectorMode = vectorMode;
+        mStrokePointCount = 0;
+    }
+
     @Override
     public boolean onTouch(View arg0, MotionEvent me) {
         if (!touchEnabled) {
             return false;
         }
 
+        if (mVectorMode) {
+            return onVectorTouch(me);
+        }
+
         switch (me.getAction() & MotionEvent.ACTION_MASK) {
             case MotionEvent.ACTION_DOWN:
             case MotionEvent.ACTION_MOVE:
@@ -168,6 +328,9 @@ public class DrawView extends View implements OnTouchListener, ColorChooser.Colo
 
                     short oldColor = grid[gridX][gridY];
                     grid[gridX][gridY] = mSelectedColor;
+                    if (oldColor != mSelectedColor) {
+                        invalidateCell(gridX, gridY);
+                    }
 
                     // Don't double-draw or send messages where the color does not change
                     boolean notSameSpot = (lastGridX != gridX) || (lastGridY != gridY);
@@ -185,6 +348,72 @@ public class DrawView extends View implements OnTouchListener, ColorChooser.Colo
         return false;
     }
 
+    private boolean onVectorTouch(MotionEvent me) {
+        switch (me.getAction() & MotionEvent.ACTION_MASK) {
+            case MotionEvent.ACTION_DOWN:
+                mStrokePointCount = 0;
+                mStrokeChunkStart = me.getEventTime();
+                addStrokePoint(me.getX(), me.getY());
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                // Keep the points batched into this event, fast swipes skip cells without them
+                for (int i = 0; i < me.getHistorySize(); i++) {
+                    addStrokePoint(me.getHistoricalX(i), me.getHistoricalY(i));
+                }
+                addStrokePoint(me.getX(), me.getY());
+                // A piece that has not left its first cell would paint nothing new yet
+                if (me.getEventTime() - mStrokeChunkStart >= STROKE_CHUNK_MS
+                        && hasLeftFirstCell()) {
+                    flushStroke(true);
+                    mStrokeChunkStart = me.getEventTime();
+                }
+                return true;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                flushStroke(false);
+                return true;
+        }
+
+        return false;
+    }
+
+    private void addStrokePoint(float x, float y) {
+        if (mStrokePointCount * 2 == mStrokePoints.length) {
+            float[] points = new float[mStrokePoints.length * 2];
+            System.arraycopy(mStrokePoints, 0, points, 0, mStrokePoints.length);
+            mStrokePoints = points;
+        }
+        mStrokePoints[mStrokePointCount * 2] = (float) (x / mHeightInPixels * GRID_SIZE);
+        mStrokePoints[mStrokePointCount * 2 + 1] = (float) (y / mHeightInPixels * GRID_SIZE);
+        mStrokePointCount++;
+    }
+
+    private boolean hasLeftFirstCell() {
+        int last = mStrokePointCount * 2 - 2;
+        return (int) mStrokePoints[0] != (int) mStrokePoints[last]
+                || (int) mStrokePoints[1] != (int) mStrokePoints[last + 1];
+    }
+
+    /**
+     * Hand the stroke captured so far to the listener.
+     *
+     * @param continued true if the stroke goes on, in which case its last point is kept to start
+     *                  the next piece.
+     */
+    private void flushStroke(boolean continued) {
+        if (mStrokePointCount > 0 && mListener != null) {
+            mListener.onStrokeEvent(mStrokePoints, mStrokePointCount, mSelectedColor);
+        }
+
+        if (continued && mStrokePointCount > 0) {
+            mStrokePoints[0] = mStrokePoints[mStrokePointCount * 2 - 2];
+            mStrokePoints[1] = mStrokePoints[mStrokePointCount * 2 - 1];
+            mStrokePointCount = 1;
+        } else {
+            mStrokePointCount = 0;
+        }
+    }
+
     /**
      * Paint a pixel with the currently selected color.
      *
@@ -192,23 +421,96 @@ public class DrawView extends View implements OnTouchListener, ColorChooser.Colo
      * @param gridY      the row of the pixel to paint.
      * @param colorIndex the index into the color array to paint with.
      */
+    @Override
     public void setMacroPixel(int gridX, int gridY, short colorIndex) {
         // paint that pixel with the currently selected color
-        grid[gridX][gridY] = colorIndex;
+        if (grid[gridX][gridY] != colorIndex) {
+            grid[gridX][gridY] = colorIndex;
+            invalidateCell(gridX, gridY);
+        }
+    }
+
+    /**
+     * Get the color of a pixel.
+     *
+     * @param gridX the column of the pixel.
+     * @param gridY the row of the pixel.
+     * @return the index into the color array of the pixel's color.
+     */
+    public short getMacroPixel(int gridX, int gridY) {
+        return grid[gridX][gridY];
+    }
+
+    /**
+     * Get the colors of all pixels.
+     *
+     * @return the index into the color array of each pixel, indexed by (x * GRID_SIZE + y).
+     */
+    public short[] getCells() {
+        short[] cells = new short[GRID_SIZE * GRID_SIZE];
+        for (int x = 0; x < GRID_SIZE; x++) {
+            System.arraycopy(grid[x], 0, cells, x * GRID_SIZE, GRID_SIZE);
+        }
+        return cells;
+    }
+
+    /**
+     * Show where another artist last drew.
+     *
+     * @param artist     the session ID of the artist.
+     * @param gridX      the column of the cell the artist drew.
+     * @param gridY      the row of the cell the artist drew.
+     * @param colorIndex the index into the color array the artist drew with.
+     */
+    @Override
+    public void setCursor(int artist, int gridX, int gridY, short colorIndex) {
+        int i = 0;
+        while (i < mCursorCount && mCursorArtists[i] != artist) {
+            i++;
+        }
+        if (i == MAX_CURSORS) {
+            return;
+        }
+        int cell = gridX * GRID_SIZE + gridY;
+        if (i == mCursorCount) {
+            mCursorArtists[i] = artist;
+            mCursorCount++;
+        } else if (mCursorCells[i] == cell && mCursorColors[i] == colorIndex) {
+            return;
+        } else {
+            // Erase the outline where the artist drew before
+            invalidateCell(mCursorCells[i] / GRID_SIZE, mCursorCells[i] % GRID_SIZE);
+        }
+        mCursorCells[i] = cell;
+        mCursorColors[i] = colorIndex;
+        invalidateCell(gridX, gridY);
+    }
+
+    /**
+     * Hide the cursors of all other artists.
+     */
+    public void clearCursors() {
+        for (int i = 0; i < mCursorCount; i++) {
+            invalidateCell(mCursorCells[i] / GRID_SIZE, mCursorCells[i] % GRID_SIZE);
+        }
+        mCursorCount = 0;
     }
 
     /**
      * Clear paint from all pixels.
      */
+    @Override
     public void clear() {
         lastGridX = -1;
         lastGridY = -1;
+        mStrokePointCount = 0;
 
         for (int x = 0; x < GRID_SIZE; x++) {
             for (int y = 0; y < GRID_SIZE; y++) {
                 grid[x][y] = 0;
             }
         }
+        invalidateAllCells();
     }
 
     @Override
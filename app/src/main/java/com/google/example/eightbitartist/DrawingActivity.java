@@ -18,21 +18,34 @@ package com.google.example.eightbitartist;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.util.SparseArray;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.Choreographer;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.WindowManager;
+import android.view.inputmethod.EditorInfo;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.ProgressBar;
@@ -54,24 +67,25 @@ import com.google.android.gms.games.multiplayer.realtime.Room;
 import com.google.android.gms.games.multiplayer.realtime.RoomConfig;
 import com.google.android.gms.games.multiplayer.realtime.RoomStatusUpdateListener;
 import com.google.android.gms.games.multiplayer.realtime.RoomUpdateListener;
+import com.google.example.eightbitartist.messages.CanvasAckMessage;
+import com.google.example.eightbitartist.messages.CanvasDeltaMessage;
 import com.google.example.eightbitartist.messages.ClearMessage;
+import com.google.example.eightbitartist.messages.DrawingMessage;
 import com.google.example.eightbitartist.messages.EPointMessage;
-import com.google.example.eightbitartist.messages.GuessMessage;
 import com.google.example.eightbitartist.messages.Message;
 import com.google.example.eightbitartist.messages.MessageAdapter;
-import com.google.example.eightbitartist.messages.ParticipantMessage;
+import com.google.example.eightbitartist.messages.StrokeMessage;
 import com.google.example.eightbitartist.messages.TurnMessage;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.UUID;
 
 /**
  * The main Activity for all of 8BitArtist.  This Activity can show the UI for creating a match as
@@ -101,6 +115,15 @@ public class DrawingActivity extends AppCompatActivity implements
 
     private static final String TAG = "DrawingActivity";
 
+    // How many players draw at once in the team matches this device starts
+    private static final int TEAM_ARTISTS = 4;
+
+    // Word packs are compiled into assets/words at build time, see GameService
+    private static final String DEFAULT_WORD_PACK = "classic";
+    private static final String SETTINGS_PREFS = "settings";
+    private static final String PREF_WORD_PACK = "word_pack";
+    private static final String PREF_PLAYER_ID = "player_id";
+
     // Intent codes used in startActivityForResult
     private final static int RC_SIGN_IN = 9001;
     private final static int RC_SELECT_PLAYERS = 10000;
@@ -114,6 +137,22 @@ public class DrawingActivity extends AppCompatActivity implements
     // managed separately because sign-in is not required to connect to Nearby players.
     private NearbyClient mNearbyClient;
 
+    // Owns the game and the Nearby Connections session of a party, bound for the lifetime of
+    // the activity
+    private GameService mGameService;
+    private ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mGameService = ((GameService.LocalBinder) service).getService();
+            attachToGame();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mGameService = null;
+        }
+    };
+
     // Are we currently resolving a connection failure?
     private boolean mResolvingConnectionFailure = false;
 
@@ -137,43 +176,220 @@ public class DrawingActivity extends AppCompatActivity implements
     private boolean mIsJoinedParty = false;
     private String mServiceId;
 
-    // The player's participant id.  This maps to DrawingParticipant.persistentId
-    private String mMyPersistentId;
+    // The game rules and state. They live in the GameService, so that a party outlives the
+    // activity, and are set once it is bound.
+    private GameEngine mGame;
+
+    // Shows the state changes of the game and the party, and sends the game's messages
+    private GameService.Listener mGameListener = new GameService.Listener() {
+        @Override
+        public void onSendMessage(Message message) {
+            sendReliableMessageToOthers(message);
+        }
+
+        @Override
+        public void onMessage(Message message) {
+            onGameMessage(message);
+        }
+
+        @Override
+        public void onTurnStarted() {
+            mStrokePlayer.reset();
+            beginMyTurn();
+        }
+
+        @Override
+        public void onRosterChanged() {
+            updateViewVisibility();
+        }
+
+        @Override
+        public void onParticipantLeft(DrawingParticipant participant) {
+            DrawingActivity.this.onParticipantLeft(participant);
+        }
 
-    // It is the player's turn when (match turn number % num participants == my turn index)
-    private int mMyTurnIndex;
+        @Override
+        public void onGuessResult(boolean correct, String guessedWord, String correctWord) {
+            createGuessDialog(correct, guessedWord, correctWord);
+        }
 
-    // The match turn number, monotonically increasing from 0
-    private int mMatchTurnNumber = 0;
+        @Override
+        public void onGuessJudged(int guesserId, int turn, int points, long elapsedMs) {
+            mHistoryRecorder.onGuessJudged(guesserId, turn, points, elapsedMs);
+        }
 
-    // The eligible guess words for this turn
-    private List<String> mTurnWords;
+        @Override
+        public void onGuessResultsPending() {
+            // The GameService sends the results, whether or not the activity is attached
+        }
 
-    // The index of the correct word
-    private int mWordIndex = 0;
+        @Override
+        public void onAllGuessed() {
+            String message = "All other players have guessed.\n" +
+                    "Press 'Done' to end your turn.";
+            showDialog("All Guesses Entered", message);
+        }
 
-    // Set of participant IDs for players that have guessed this turn
-    private HashSet<String> mGuessersThisTurn = new HashSet<>();
+        @Override
+        public WordDictionary onLoadDictionary(String pack) {
+            return GameService.openWordPack(DrawingActivity.this, pack);
+        }
 
-    // True if this player has already guessed this turn, false otherwise
-    private boolean mHasGuessed = false;
+        @Override
+        public void onDictionaryMismatch() {
+            // Every device derives the words itself, which only works with the same words
+            leaveGame();
+            showDialog("Cannot Join Game", "The other players use a word pack you do not " +
+                    "have. Make sure everyone has the same version of the app.");
+        }
 
-    // Map of all participants in the match, with key being the participant ID for fast lookup
-    private HashMap<String, DrawingParticipant> mParticipants = new HashMap<>();
+        @Override
+        public void onClientJoined(boolean matchStarted) {
+            if (matchStarted) {
+                // Unlock the Achievement for starting a game
+                mAchievements.unlock(R.string.achievement_started_a_game);
+            } else {
+                beginMyTurn();
+            }
+            updateViewVisibility();
+        }
 
-    // Participants that were in this match at one time, but left
-    private HashMap<String, DrawingParticipant> mOldParticipants = new HashMap<>();
+        @Override
+        public void onJoinedParty(String hostName) {
+            dismissSpinner();
+            mIsJoinedParty = true;
+        }
+    };
 
     // Data to draw the DrawView
     private DrawView mDrawView;
 
-    // All possible words for 8BitArtist
-    private String[] mAllWords;
+    // Views changed on every turn, found once in onCreate
+    private View mGameplayLayout;
+    private View mGuesserUI;
+    private View mColorChooser;
+    private View mClearDoneLayout;
+    private View mDoneButton;
+    private TextView mGuessWordView;
+    private ListView mWordList;
+    private EditText mGuessInput;
+    private LinearLayout mPlayerViewsLayout;
+
+    // The words shown to a guesser. The adapter is refilled each turn rather than replaced.
+    private ArrayAdapter<String> mWordAdapter;
+
+    // The player 'cards' by session ID, updated in place when the roster or the scores change
+    private SparseArray<PlayerView> mPlayerViews = new SparseArray<>();
+
+    // Turn transitions are timed to find the ones that drop frames: the main thread work that
+    // starts the turn, and the length of the frame that first shows it. Once that frame is
+    // done, the time until the next turn is used to prepare it.
+    private static final long FRAME_INTERVAL_NANOS = 1000000000L / 60;
+    private LatencyHistogram mTurnTransitionWork = new LatencyHistogram("turn_transition");
+    private LatencyHistogram mTurnTransitionFrame = new LatencyHistogram("turn_first_frame");
+    private long mTurnDroppedFrames = 0;
+    private long mTurnFirstFrameNanos = 0;
+    private Choreographer.FrameCallback mTurnFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mTurnFirstFrameNanos == 0) {
+                // This frame lays out and draws the new turn, the next one starts when it is done
+                mTurnFirstFrameNanos = frameTimeNanos;
+                Choreographer.getInstance().postFrameCallback(this);
+                return;
+            }
+
+            long frameNanos = frameTimeNanos - mTurnFirstFrameNanos;
+            mTurnFirstFrameNanos = 0;
+            mTurnTransitionFrame.record(frameNanos / 1000000L);
+            long frames = (frameNanos + FRAME_INTERVAL_NANOS / 2) / FRAME_INTERVAL_NANOS;
+            mTurnDroppedFrames += Math.max(0, frames - 1);
+
+            mGame.prepareNextTurn();
+        }
+    };
 
-    // ProgressBar. TextView, and Handler used to show the time remaining to make a guess.
+    // ProgressBar and TextView showing the points a guess is worth. They are recomputed from
+    // the turn's start time on the host's clock, at each point boundary.
     private ProgressBar mGuessProgress;
     private TextView mGuessProgressText;
     private Handler mGuessProgressHandler = new Handler(Looper.getMainLooper());
+    private Runnable mGuessProgressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateGuessProgress();
+        }
+    };
+
+    // Draws the changes of the other players onto mDrawView. Created with mGame.
+    private StrokePlayer mStrokePlayer;
+
+    // Offset from this device's clock to the party host's clock, kept by the GameService
+    private ClockSync mClockSync;
+
+    // Touch-to-render latency of traced strokes. When mTraceLatency is set, strokes drawn on
+    // this device are marked as traced.
+    private boolean mTraceLatency = false;
+    private LatencyTracer mLatencyTracer = new LatencyTracer();
+
+    // When true, strokes are sent unreliably with forward error correction. RTMP games use the
+    // channels of mRoomMessenger, party games the ones in NearbyClient.
+    private boolean mUnreliableStrokes = false;
+
+    // When true, the artist's strokes are captured as polylines and sent as StrokeMessages
+    // instead of one EPointMessage per cell. Receivers handle both either way.
+    private boolean mVectorStrokes = false;
+
+    // When true, guessers type their guess instead of choosing one of the turn's words. Typed
+    // guesses are matched by mWordMatcher, which is built in the background the first time it
+    // is needed for a dictionary.
+    private static final int MAX_SUGGESTIONS = 10;
+    private boolean mTypedGuesses = false;
+    private WordMatcher mWordMatcher;
+    private WordDictionary mWordMatcherPending;
+    private int[] mSuggestions = new int[MAX_SUGGESTIONS];
+    private Handler mWordMatcherHandler = new Handler(Looper.getMainLooper());
+
+    // When true, matches started here are played in teams: several artists draw at once, and
+    // the party host orders their changes in mSharedCanvas. RTMP rooms have no host to order
+    // them, so they always have one artist.
+    private boolean mTeamDrawing = false;
+    private SharedCanvas mSharedCanvas;
+
+    // The number of the last change drawn on this device. Outside team turns, receivers order
+    // the artist's changes by these numbers in mSharedCanvas, and a delta syncing host orders
+    // them before folding them into its canvas.
+    private long mLastDrawOrder = DrawingMessage.NO_ORDER;
+
+    // Sends and receives the messages of an RTMP game. Created with mGame.
+    private RoomMessenger mRoomMessenger;
+    // Relays, rate limits and restamps the messages of the clients while hosting a party, and
+    // owns the canvas if delta sync is on. Created with mGame.
+    private PartyHost mPartyHost;
+
+    // Saves the party match in progress, so that it can be resumed if the process is killed. A
+    // saved match is loaded in onCreate and resumed once the GameService is bound, unless the
+    // GameService is still running the party.
+    private MatchJournal mJournal;
+    private SavedMatch mSavedMatch;
+    private long mRestoreMillis = 0;
+
+    // The turns played on this device, with their guesses and drawings, recorded by
+    // mHistoryRecorder once there is a game
+    private MatchHistory mHistory;
+    private HistoryRecorder mHistoryRecorder;
+
+    // The persistent ID of the local player, made up once per install. The history knows the
+    // local player by this ID in every game, and party clients know the host by it.
+    private String mMyPlayerId;
+
+    // The turn on screen, by turn number and match seed. A turn announced again, as it is to a
+    // player who reconnects, keeps its drawing.
+    private int mShownTurnNumber = -1;
+    private long mShownSeed = 0;
+
+    // Achievement updates, sent in batches
+    private AchievementReporter mAchievements;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -200,12 +416,41 @@ public class DrawingActivity extends AppCompatActivity implements
                     @Override
                     public void onItemClick(AdapterView<?> parent, View view,
                                             int position, long id) {
-                        makeGuess(position);
+                        if (mTypedGuesses) {
+                            // A suggestion for the typed guess
+                            makeTypedGuess((String) parent.getItemAtPosition(position));
+                        } else {
+                            makeGuess(position);
+                        }
                     }
                 });
 
-        // Check the games configuration
-        checkConfiguration(true);
+        // Typed guesses: suggest words while the guess is typed, guess on the Go key
+        EditText guessInput = (EditText) findViewById(R.id.guessInput);
+        guessInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                updateSuggestions(s.toString());
+            }
+        });
+        guessInput.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+                if (actionId == EditorInfo.IME_ACTION_GO || (event != null
+                        && event.getKeyCode() == KeyEvent.KEYCODE_ENTER
+                        && event.getAction() == KeyEvent.ACTION_DOWN)) {
+                    makeTypedGuess(v.getText().toString());
+                    return true;
+                }
+                return false;
+            }
+        });
 
         // Create the Google API Client with access to Plus and Games
         mGoogleApiClient = new GoogleApiClient.Builder(this)
@@ -214,6 +459,10 @@ public class DrawingActivity extends AppCompatActivity implements
                 .addApi(Games.API).addScope(Games.SCOPE_GAMES)
                 .build();
 
+        // Achievements are ignored unless the games configuration is filled in
+        mAchievements = new AchievementReporter(this, mGoogleApiClient,
+                checkConfiguration(true));
+
         // Service ID for Nearby Connections, set to App ID
         mServiceId = getString(R.string.app_id);
 
@@ -229,9 +478,100 @@ public class DrawingActivity extends AppCompatActivity implements
         ((ColorChooser) findViewById(R.id.colorChooser))
                 .setDrawView(((DrawView) findViewById(R.id.drawView)));
 
-        // Create array of all words
-        mAllWords = getResources().getString(R.string.words).split(",");
-        mTurnWords = Arrays.asList(mAllWords);
+        // Find the views changed on every turn
+        mGameplayLayout = findViewById(R.id.gameplay_layout);
+        mGuesserUI = findViewById(R.id.guesserUI);
+        mColorChooser = findViewById(R.id.colorChooser);
+        mClearDoneLayout = findViewById(R.id.clearDoneLayout);
+        mDoneButton = findViewById(R.id.doneButton);
+        mGuessWordView = (TextView) findViewById(R.id.guessWord);
+        mWordList = (ListView) findViewById(R.id.listView);
+        mGuessInput = (EditText) findViewById(R.id.guessInput);
+        mPlayerViewsLayout = (LinearLayout) findViewById(R.id.playerViews);
+        mWordAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        mWordList.setAdapter(mWordAdapter);
+
+        // Load the party match that was in progress if the process was killed, to resume it
+        // once the GameService is bound
+        long restoreStart = SystemClock.uptimeMillis();
+        mSavedMatch = MatchJournal.load(getFilesDir());
+        mRestoreMillis = SystemClock.uptimeMillis() - restoreStart;
+        mHistory = new MatchHistory(getFilesDir());
+        mMyPlayerId = loadPlayerId();
+
+        // The game and its parties run in the GameService
+        bindService(new Intent(this, GameService.class), mServiceConnection, BIND_AUTO_CREATE);
+    }
+
+    /**
+     * The GameService is bound: show its game, creating it with the chosen word pack the first
+     * time. If the GameService is still running a party this activity was recreated, and takes
+     * the party over where it is. Otherwise the match saved before the process was killed, if
+     * any, is resumed.
+     */
+    private void attachToGame() {
+        mGame = mGameService.getGame();
+        if (mGame == null) {
+            String pack = getSharedPreferences(SETTINGS_PREFS, MODE_PRIVATE)
+                    .getString(PREF_WORD_PACK, DEFAULT_WORD_PACK);
+            WordDictionary dictionary = GameService.openWordPack(this, pack);
+            if (dictionary == null) {
+                dictionary = GameService.openWordPack(this, DEFAULT_WORD_PACK);
+            }
+            mGame = mGameService.createGame(dictionary);
+        }
+        mPartyHost = mGameService.getPartyHost();
+        mSharedCanvas = mGameService.getSharedCanvas();
+        mClockSync = mGameService.getClockSync();
+        mJournal = mGameService.getJournal();
+        mStrokePlayer = new StrokePlayer(mDrawView, mGame, mSharedCanvas, mLatencyTracer);
+        mRoomMessenger = new RoomMessenger(mGoogleApiClient, mMapper, mGame);
+        mRoomMessenger.setUnreliableStrokes(mUnreliableStrokes);
+        mHistoryRecorder = new HistoryRecorder(mHistory, mGame, mMyPlayerId);
+        mGameService.attach(this, mGameListener);
+
+        mNearbyClient = mGameService.getNearbyClient();
+        if (mGameService.isHostingParty() || mGameService.isJoinedParty()) {
+            showRunningParty();
+        } else if (mSavedMatch != null && System.currentTimeMillis()
+                - mSavedMatch.getSavedAt() > ParticipantTable.DEFAULT_DEPARTED_TTL_MS) {
+            // The other players no longer keep our place
+            mSavedMatch = null;
+            mJournal.discard();
+        } else if (mSavedMatch != null) {
+            resumeSavedMatch();
+        }
+    }
+
+    /**
+     * Show the party the GameService kept running while the activity was recreated. The turn
+     * goes on with the drawing last saved, if it is the same turn.
+     */
+    private void showRunningParty() {
+        SavedMatch match = mSavedMatch;
+        mSavedMatch = null;
+        mIsHostingParty = mGameService.isHostingParty();
+        mIsJoinedParty = mGameService.isJoinedParty();
+        mNearbyClient.setUnreliableDrawing(mUnreliableStrokes);
+
+        TurnMessage turn = (match == null) ? null : match.getTurn();
+        if (turn != null && turn.getTurnNumber() == mGame.getTurnNumber()
+                && turn.getSeed() == mGame.getMatchSeed()) {
+            for (int x = 0; x < DrawView.GRID_SIZE; x++) {
+                for (int y = 0; y < DrawView.GRID_SIZE; y++) {
+                    mDrawView.setMacroPixel(x, y, match.getCell(x, y));
+                }
+            }
+            mShownTurnNumber = mGame.getTurnNumber();
+            mShownSeed = mGame.getMatchSeed();
+        }
+
+        if (mGame.getMySessionId() != ParticipantTable.NO_SESSION) {
+            beginMyTurn();
+        } else {
+            // No one has joined the host yet
+            updateViewVisibility();
+        }
     }
 
     @Override
@@ -244,14 +584,31 @@ public class DrawingActivity extends AppCompatActivity implements
     @Override
     protected void onStop() {
         super.onStop();
+        mAchievements.flush();
+
         Log.d(TAG, "onStop: disconnecting GoogleApiClient(s)");
         if (isSignedIn()) {
             mGoogleApiClient.disconnect();
         }
 
-        if (mNearbyClient != null) {
-            mNearbyClient.onStop();
+        // A party keeps running in the GameService while the activity is in the background
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // A party goes on in the GameService, and the next activity attaches to it again
+        if (mGameService != null) {
+            mGameService.detach();
+        }
+        if (mStrokePlayer != null) {
+            mStrokePlayer.reset();
         }
+        mGuessProgressHandler.removeCallbacks(mGuessProgressRunnable);
+        Choreographer.getInstance().removeFrameCallback(mTurnFrameCallback);
+        mHistory.close();
+        unbindService(mServiceConnection);
     }
 
     @Override
@@ -259,8 +616,11 @@ public class DrawingActivity extends AppCompatActivity implements
         dismissSpinner();
 
         if (mNearbyClient != null && mNearbyClient.getState() == NearbyClient.STATE_DISCOVERING) {
-            // Cancel discovery of Nearby Connections
+            // Cancel discovery of Nearby Connections, and with it the match being resumed
             mNearbyClient.stopDiscovery(mServiceId);
+            if (mGameService.isResuming()) {
+                leaveGame();
+            }
         } else if (mRoom != null || mIsHostingParty || mIsJoinedParty) {
             // In a game, leave the game on back pressed
             leaveGame();
@@ -286,6 +646,8 @@ public class DrawingActivity extends AppCompatActivity implements
             }
         }
 
+        mAchievements.onSignedIn();
+
         updateViewVisibility();
     }
 
@@ -337,10 +699,101 @@ public class DrawingActivity extends AppCompatActivity implements
                 Intent intent = Games.Achievements.getAchievementsIntent(mGoogleApiClient);
                 startActivityForResult(intent, RC_ACHIEVEMENTS);
                 return true;
+            case R.id.menu_delta_sync:
+                item.setChecked(!item.isChecked());
+                mPartyHost.setDeltaSyncEnabled(item.isChecked(), mDrawView.getCells());
+                return true;
+            case R.id.menu_trace_latency:
+                item.setChecked(!item.isChecked());
+                mTraceLatency = item.isChecked();
+                return true;
+            case R.id.menu_latency_report:
+                showLatencyReport();
+                return true;
+            case R.id.menu_unreliable_strokes:
+                item.setChecked(!item.isChecked());
+                mUnreliableStrokes = item.isChecked();
+                if (mNearbyClient != null) {
+                    mNearbyClient.setUnreliableDrawing(mUnreliableStrokes);
+                }
+                if (mRoomMessenger != null) {
+                    mRoomMessenger.setUnreliableStrokes(mUnreliableStrokes);
+                }
+                return true;
+            case R.id.menu_vector_strokes:
+                item.setChecked(!item.isChecked());
+                mVectorStrokes = item.isChecked();
+                mDrawView.setVectorMode(mVectorStrokes);
+                return true;
+            case R.id.menu_typed_guesses:
+                // Takes effect from the next turn
+                item.setChecked(!item.isChecked());
+                mTypedGuesses = item.isChecked();
+                if (mTypedGuesses) {
+                    loadWordMatcher();
+                }
+                return true;
+            case R.id.menu_team_drawing:
+                // Takes effect from the next match started on this device
+                item.setChecked(!item.isChecked());
+                mTeamDrawing = item.isChecked();
+                return true;
+            case R.id.menu_word_pack:
+                showWordPackDialog();
+                return true;
+            case R.id.menu_history:
+                showHistoryDialog();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Let the player choose the word pack for the matches they start.
+     */
+    private void showWordPackDialog() {
+        if (mGameService == null) {
+            Log.w(TAG, "showWordPackDialog: GameService not bound yet");
+            return;
+        }
+        if (mIsHostingParty || mIsJoinedParty || mRoom != null) {
+            Toast.makeText(this, "The word pack can be changed between matches.",
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        final String[] packs;
+        try {
+            String[] files = getAssets().list(GameService.WORD_PACK_DIR);
+            packs = new String[files.length];
+            for (int i = 0; i < files.length; i++) {
+                packs[i] = files[i].replace(GameService.WORD_PACK_EXTENSION, "");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not list word packs", e);
+            return;
+        }
+
+        int checked = Arrays.asList(packs).indexOf(mGame.getDictionary().getName());
+        mAlertDialog = new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.word_pack))
+                .setSingleChoiceItems(packs, checked, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        WordDictionary dictionary =
+                                GameService.openWordPack(DrawingActivity.this, packs[which]);
+                        if (dictionary != null) {
+                            mGame.setDictionary(dictionary);
+                            getSharedPreferences(SETTINGS_PREFS, MODE_PRIVATE).edit()
+                                    .putString(PREF_WORD_PACK, packs[which]).apply();
+                        }
+                        dialog.dismiss();
+                    }
+                })
+                .create();
+        mAlertDialog.show();
+    }
+
     /**
      * Open the player selection UI for a RealTime Multiplayer game
      */
@@ -357,81 +810,20 @@ public class DrawingActivity extends AppCompatActivity implements
      * Initialize a NearbyClient to advertise as a Nearby Connections host.
      */
     private void onHostPartyClicked() {
+        if (mGameService == null) {
+            Log.w(TAG, "onHostPartyClicked: GameService not bound yet");
+            return;
+        }
+
         // Show party mode layout
         mIsHostingParty = true;
         updateViewVisibility();
 
-        if (mNearbyClient != null) {
-            mNearbyClient.onStop();
-        }
-
-        // Start advertising for Nearby Connections
-        mNearbyClient = new NearbyClient(this, true, new NearbyClient.NearbyClientListener() {
-
-            @Override
-            public void onServiceConnected() {
-                Log.d(TAG, "Advertising for Nearby Connections");
-                mNearbyClient.startAdvertising();
-            }
-
-            @Override
-            public void onConnectedToEndpoint(String endpointId, String
-                    endpointName) {
-
-                mMyPersistentId = "";
-                DrawingParticipant me = new DrawingParticipant("local", "Me");
-                onParticipantConnected(me);
-
-                // Add participant
-                DrawingParticipant participant = new DrawingParticipant
-                        (endpointId, endpointName);
-                onParticipantConnected(participant);
-
-                // Send all participants to all other participants
-                for (DrawingParticipant dp : mParticipants.values()) {
-
-                    ParticipantMessage msg = new ParticipantMessage(dp);
-                    mNearbyClient.sendMessageToAll(mMapper.toJson(msg,
-                            Message.class),
-                            dp.getMessagingId());
-
-                }
-
-                if (mParticipants.size() <= 2) {
-                    // Start the match if this is the first connection
-                    startMatch();
-                } else {
-                    // Otherwise, send them the current game state
-                    TurnMessage turnMsg = new TurnMessage(mMatchTurnNumber, mTurnWords, mWordIndex);
-                    mNearbyClient.sendMessageTo(endpointId, mMapper.toJson
-                            (turnMsg, Message.class));
-
-
-                    beginMyTurn();
-                }
-                updateViewVisibility();
-            }
-
-            @Override
-            public void onDisconnectedFromEndpoint(String endpointId, String deviceId) {
-                // Tell other clients it was disconnected
-                ParticipantMessage msg = new ParticipantMessage(mParticipants.get(deviceId));
-                msg.setIsJoining(false);
-                mNearbyClient.broadcastMessage(mMapper.toJson(msg));
-
-                DrawingActivity.this.onParticipantDisconnected(endpointId, deviceId);
-            }
-
-            @Override
-            public void onMessageReceived(String remoteEndpointId, byte[] payload) {
-                // The host forwards most messages to all clients.
-                mNearbyClient.sendMessageToAll(new String(payload),
-                        remoteEndpointId);
-
-                // Parse messages normally
-                DrawingActivity.this.onMessageReceived(payload);
-            }
-        });
+        // Start advertising for Nearby Connections. The GameService starts the match when the
+        // first client connects.
+        mNearbyClient = mGameService.hostParty(this, mMyPlayerId,
+                mTeamDrawing ? TEAM_ARTISTS : 1, mDrawView.getCells());
+        mNearbyClient.setUnreliableDrawing(mUnreliableStrokes);
     }
 
     /**
@@ -439,51 +831,15 @@ public class DrawingActivity extends AppCompatActivity implements
      */
     private void onJoinPartyClicked() {
         Log.d(TAG, "onJoinPartyClicked:" + mServiceId);
-        showSpinner();
-
-        if (mNearbyClient != null) {
-            mNearbyClient.onStop();
+        if (mGameService == null) {
+            Log.w(TAG, "onJoinPartyClicked: GameService not bound yet");
+            return;
         }
+        showSpinner();
 
         // Start looking for Nearby Connections
-        mNearbyClient = new NearbyClient(this, false, new NearbyClient.NearbyClientListener() {
-            @Override
-            public void onServiceConnected() {
-                Log.d(TAG, "Trying to find party host.");
-                mNearbyClient.startDiscovery(mServiceId);
-            }
-
-            @Override
-            public void onConnectedToEndpoint(String hostId, String hostName) {
-                Log.d(TAG, "onConnectedToEndpoint");
-                dismissSpinner();
-
-                mNearbyClient.stopDiscovery(mServiceId);
-                mIsJoinedParty = true;
-
-                // Add self to participants
-                mMyPersistentId = "localhost";
-                DrawingParticipant me = new DrawingParticipant("local", "Me");
-                onParticipantConnected(me);
-
-                // Add host to participants
-                DrawingParticipant participant = new DrawingParticipant(hostId, hostName);
-                onParticipantConnected(participant);
-
-                // Start the appropriate turn
-                beginMyTurn();
-            }
-
-            @Override
-            public void onDisconnectedFromEndpoint(String endpointId, String deviceId) {
-                DrawingActivity.this.onParticipantDisconnected(endpointId, deviceId);
-            }
-
-            @Override
-            public void onMessageReceived(String remoteEndpointId, byte[] payload) {
-                DrawingActivity.this.onMessageReceived(payload);
-            }
-        });
+        mNearbyClient = mGameService.joinParty(this, mServiceId);
+        mNearbyClient.setUnreliableDrawing(mUnreliableStrokes);
     }
 
     /**
@@ -530,12 +886,10 @@ public class DrawingActivity extends AppCompatActivity implements
             findViewById(R.id.gameplay_layout).setVisibility(View.VISIBLE);
             findViewById(R.id.partyModeLayout).setVisibility(View.GONE);
 
-            // Set proper UI for either artist or guesser
-            if (isMyTurn()) {
-                setArtistUI();
-            } else {
-                setGuessingUI();
-            }
+            // Show the views of either artist or guesser. What they show is set when each turn
+            // begins, so that roster and score changes do not reset the turn.
+            showRoleUI(mGame.isDrawing());
+            updatePlayerViews();
         }
     }
 
@@ -632,44 +986,16 @@ public class DrawingActivity extends AppCompatActivity implements
     }
 
     /**
-     * Begin a new match, send a message to all other participants with the initial turn data
+     * Begin a new match in an RTMP room, send a message to all other participants with the
+     * initial turn data. Party matches are started by the GameService.
      */
     private void startMatch() {
-        if (isMyTurn()) {
-            // Pick words randomly
-            mTurnWords = getRandomWordSubset(10);
-            mWordIndex = (new Random()).nextInt(mTurnWords.size());
-
-            // Send turn message to others
-            TurnMessage turnMessage = new TurnMessage(0, mTurnWords, mWordIndex);
-            sendReliableMessageToOthers(turnMessage);
-        }
-
-        beginMyTurn();
+        // RTMP rooms have no host to order the changes of several artists
+        mGame.setTeamSize(1);
+        mGame.startMatch(getHostTime());
 
         // Unlock the Achievement for starting a game
-        if (isSignedIn() && checkConfiguration(false)) {
-            Games.Achievements.unlock(mGoogleApiClient, getString(R.string.achievement_started_a_game));
-        }
-    }
-
-    /**
-     * Determines if the current player is drawing or guessing. Used to determine what UI to show
-     * and what messages to send.
-     *
-     * @return true if the current player is the artist, false otherwise.
-     */
-    private boolean isMyTurn() {
-        int numParticipants = mParticipants.size();
-        if (numParticipants == 0) {
-            Log.w(TAG, "isMyTurn: no participants - default to true.");
-            return true;
-        }
-        int participantTurnIndex = mMatchTurnNumber % numParticipants;
-
-        Log.d(TAG, String.format("isMyTurn: %d participants, turn #%d, my turn is #%d",
-                numParticipants, mMatchTurnNumber, mMyTurnIndex));
-        return (mMyTurnIndex == participantTurnIndex);
+        mAchievements.unlock(R.string.achievement_started_a_game);
     }
 
     @Override
@@ -728,9 +1054,134 @@ public class DrawingActivity extends AppCompatActivity implements
     public void onDrawEvent(int gridX, int gridY, short colorIndex) {
         // Send realtime message to others
         EPointMessage msg = new EPointMessage(new EPoint(gridX, gridY), colorIndex);
+        stampCaptureTime(msg);
+        prepareTeamStroke(msg);
+        sendReliableMessageToOthers(msg);
+    }
+
+    @Override
+    public void onStrokeEvent(float[] points, int count, short colorIndex) {
+        // Send the simplified stroke, and draw it the same way the receivers will
+        float[] simplified = VectorStroke.simplify(points, count, VectorStroke.DEFAULT_TOLERANCE);
+        StrokeMessage msg = new StrokeMessage(colorIndex, VectorStroke.encode(simplified));
+        mStrokePlayer.rasterize(msg);
+        stampCaptureTime(msg);
+        prepareTeamStroke(msg);
         sendReliableMessageToOthers(msg);
     }
 
+    @Override
+    public void onFrameRendered() {
+        mLatencyTracer.onFrameRendered(SystemClock.elapsedRealtime(), mClockSync);
+        mJournal.recordCanvas(mDrawView);
+    }
+
+    /**
+     * Stamp a stroke drawn on this device with its capture time and order number, and mark it
+     * for latency tracing if tracing is on and the clock offset to the host is known.
+     */
+    private void stampCaptureTime(DrawingMessage msg) {
+        long now = SystemClock.elapsedRealtime();
+        msg.setCaptureTime(now);
+
+        // Numbers follow the clock, so they keep growing if the match is resumed in a new process
+        mLastDrawOrder = Math.max(mLastDrawOrder + 1, now);
+        msg.setOrder(mLastDrawOrder);
+
+        if (mTraceLatency && mClockSync.hasOffset()) {
+            msg.setTraced(true);
+            msg.setClockOffset(mClockSync.getOffset());
+            if (mIsHostingParty) {
+                // The host relays its own strokes as it sends them
+                msg.setRelayTime(now);
+            }
+        }
+    }
+
+    /**
+     * Mark a change drawn on this device in a team turn with its artist. The party host numbers
+     * it and applies it to the shared canvas straight away; a client gets it back numbered from
+     * the host.
+     */
+    private void prepareTeamStroke(DrawingMessage msg) {
+        if (mGame.getTeamSize() == 1) {
+            return;
+        }
+
+        msg.setArtist(mGame.getMySessionId());
+        if (mIsHostingParty) {
+            msg.setSequence(mSharedCanvas.nextSequence());
+            mStrokePlayer.applySequenced(msg, msg.getSequence());
+        }
+    }
+
+    /**
+     * Show the latency histograms, with the option to save them to a file.
+     */
+    private void showLatencyReport() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.latency_report))
+                .setMessage(getLatencyReport())
+                .setPositiveButton("OK", null)
+                .setNeutralButton("Save to file", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        dumpLatencyReport();
+                    }
+                });
+
+        mAlertDialog = builder.create();
+        mAlertDialog.show();
+    }
+
+    /**
+     * Get the persistent ID of the local player, making one up the first time.
+     */
+    private String loadPlayerId() {
+        SharedPreferences prefs = getSharedPreferences(SETTINGS_PREFS, MODE_PRIVATE);
+        String playerId = prefs.getString(PREF_PLAYER_ID, null);
+        if (playerId == null) {
+            playerId = UUID.randomUUID().toString();
+            prefs.edit().putString(PREF_PLAYER_ID, playerId).apply();
+        }
+        return playerId;
+    }
+
+    /**
+     * Show the local player's statistics, the players with the most points and how often the
+     * word of this turn was guessed.
+     */
+    private void showHistoryDialog() {
+        String message = (mHistoryRecorder == null) ? "Loading..." : mHistoryRecorder.getStats();
+        showDialog(getString(R.string.history), message);
+    }
+
+    private String getLatencyReport() {
+        String report = mLatencyTracer.getSummary();
+        report += "\n\nTurns: " + mTurnTransitionWork.getSummary() + "\n"
+                + mTurnTransitionFrame.getSummary() + "\n"
+                + "dropped frames: " + mTurnDroppedFrames;
+        report += mGameService.getSummary() + " restore=" + mRestoreMillis + "ms";
+        report += "\n\nHistory: " + mHistory.getSummary();
+        report += "\n\nCanvas: " + mDrawView.getSummary();
+        return report;
+    }
+
+    private void dumpLatencyReport() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+
+        try {
+            File file = mLatencyTracer.dump(directory);
+            Toast.makeText(this, "Saved " + file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write latency report", e);
+            Toast.makeText(this, "Error: could not save report.", Toast.LENGTH_SHORT).show();
+        }
+    }
+
     /**
      * Clear the DrawView and send a message to all opponents to do the same
      */
@@ -738,58 +1189,33 @@ public class DrawingActivity extends AppCompatActivity implements
         mDrawView.clear();
 
         ClearMessage msg = new ClearMessage();
+        stampCaptureTime(msg);
+        prepareTeamStroke(msg);
         sendReliableMessageToOthers(msg);
     }
 
     /**
      * Create a Dialog with the result of the local player's guess.
      *
-     * @param guessIndex   the index in the word list that the player clicked.
-     * @param correctIndex the index in the word list of the correct answer.
+     * @param correct     true if the guess was right.
+     * @param guessedWord the word that the player clicked.
+     * @param correctWord the correct answer.
      */
-    private void createGuessDialog(int guessIndex, int correctIndex) {
-        Log.d(TAG, "Guessed..." + mTurnWords.get(guessIndex));
-        mHasGuessed = true;
-        String guessedWord = mTurnWords.get(guessIndex);
-        String correctWord = mTurnWords.get(correctIndex);
+    private void createGuessDialog(boolean correct, String guessedWord, String correctWord) {
+        Log.d(TAG, "Guessed..." + guessedWord);
 
-        if (guessIndex == correctIndex) {
+        if (correct) {
             // The player guessed correctly
             showDialog("You got it!", guessedWord + " is correct!");
 
-            // Reveal and unlock the correct guess achievement
-            if (isSignedIn() && checkConfiguration(false)) {
-                Games.Achievements.reveal(mGoogleApiClient,
-                        getResources().getString(R.string.achievement_guessed_correctly));
-                Games.Achievements.unlock(mGoogleApiClient,
-                        getResources().getString(R.string.achievement_guessed_correctly));
-            }
+            // Unlock the correct guess achievement, which also reveals it
+            mAchievements.unlock(R.string.achievement_guessed_correctly);
         } else {
             // The player guessed incorrectly
             showDialog("No!", guessedWord + " is wrong. The real answer was " + correctWord);
 
             // Unlock the wrong guess achievement
-            if (isSignedIn() && checkConfiguration(false)) {
-                Games.Achievements.unlock(mGoogleApiClient,
-                        getResources().getString(R.string.achievement_got_one_wrong));
-            }
-        }
-    }
-
-    /**
-     * Create a dialog with the result of another player's guess.
-     *
-     * @param guesserId the participant ID of the player that guessed.
-     */
-    private void createOpponentGuessDialog(String guesserId) {
-        mGuessersThisTurn.add(guesserId);
-
-        boolean allHaveGuessed = mGuessersThisTurn.size() >= mParticipants.size() - 1;
-        if (isMyTurn() && allHaveGuessed) {
-            // All guesses entered
-            String message = "All other players have guessed.\n" +
-                    "Press 'Done' to end your turn.";
-            showDialog("All Guesses Entered", message);
+            mAchievements.unlock(R.string.achievement_got_one_wrong);
         }
     }
 
@@ -799,69 +1225,101 @@ public class DrawingActivity extends AppCompatActivity implements
      * @param enable true if the list should be shown, false otherwise.
      */
     private void enableGuessing(boolean enable) {
-        if (enable) {
-            findViewById(R.id.listView).setVisibility(View.VISIBLE);
-        } else {
-            findViewById(R.id.listView).setVisibility(View.INVISIBLE);
-        }
+        int visibility = enable ? View.VISIBLE : View.INVISIBLE;
+        mWordList.setVisibility(visibility);
+        mGuessInput.setVisibility(mTypedGuesses ? visibility : View.GONE);
     }
 
     /**
      * Begin a turn where the player is guessing what the artist is drawing. Begins a countdown
-     * from 30 to 1 which determines how many points the player will get if and when they make a
-     * correct guess,
+     * from 30 to 1 which shows how many points the player will get if and when they make a
+     * correct guess.
      */
     private void beginGuessingTurn() {
-        mDrawView.clear();
-        mHasGuessed = false;
         setGuessingUI();
 
-        // Set up the progress dialog
-        mGuessProgress.setProgress(30);
-        mGuessProgressText.setText(String.valueOf(30));
-
-        // Decrement from 30 to 1, once every second
-        Runnable decrementProgress = new Runnable() {
-            @Override
-            public void run() {
-                int oldProgress = mGuessProgress.getProgress();
-                if (!mHasGuessed && oldProgress > 1) {
-                    mGuessProgress.setProgress(oldProgress - 1);
-                    mGuessProgressText.setText(
-                            mNearbyClient.getState() + ": " +
-                                    String.valueOf(oldProgress - 1));
-                    mGuessProgressHandler.postDelayed(this, 1000L);
+        mGuessProgressHandler.removeCallbacks(mGuessProgressRunnable);
+        updateGuessProgress();
+    }
 
-                }
-            }
-        };
-        mGuessProgressHandler.removeCallbacksAndMessages(null);
-        mGuessProgressHandler.postDelayed(decrementProgress, 1000L);
+    /**
+     * Show the points a guess made now would earn, and schedule the next update for when they
+     * drop. The points are computed from the host's clock every time rather than counted down,
+     * so the countdown matches the host's scoring and follows changes to the clock offset.
+     */
+    private void updateGuessProgress() {
+        long elapsed = Math.max(0, getHostTime() - mGame.getTurnStartTime());
+        int points = GameEngine.getGuessPoints(elapsed);
+        mGuessProgress.setProgress(points);
+        mGuessProgressText.setText(String.valueOf(points));
+
+        if (!mGame.hasGuessed() && points > 1) {
+            long interval = GameEngine.GUESS_POINT_INTERVAL_MS;
+            mGuessProgressHandler.postDelayed(mGuessProgressRunnable,
+                    interval - elapsed % interval);
+        }
+    }
 
-        updateViewVisibility();
+    /**
+     * Get the current time on the party host's clock, which times turns and guesses. Outside a
+     * party there is no offset and this is the local clock.
+     */
+    private long getHostTime() {
+        return mClockSync.toHostTime(SystemClock.elapsedRealtime());
     }
 
 
     /**
-     * Begin a turn where the player is drawing. Clear the DrawView and show the drawing UI.
+     * Begin a turn where the player is drawing. Show the drawing UI.
      */
     private void beginArtistTurn() {
-        mDrawView.clear();
+        mGuessProgressHandler.removeCallbacks(mGuessProgressRunnable);
         setArtistUI();
 
-        updateViewVisibility();
+        if (mGame.getTeamSize() > 1) {
+            // Start each artist of the team with a color of their own, other than the background
+            int index = mGame.getArtistIndex(mGame.getMySessionId());
+            mDrawView.setColor((short) (1 + index % (DrawView.COLOR_MAP.length - 1)));
+            mColorChooser.invalidate();
+        }
     }
 
     /**
      * Begin the player's turn, calling the correct beginTurn function based on role
      **/
     private void beginMyTurn() {
-        Log.d(TAG, "beginMyTurn: " + isMyTurn());
-        if (isMyTurn()) {
+        long start = SystemClock.uptimeMillis();
+        Log.d(TAG, "beginMyTurn: " + mGame.isMyTurn());
+        MessageRouter.updateSubscriptions(mGame);
+
+        boolean newTurn = mGame.getTurnNumber() != mShownTurnNumber
+                || mGame.getMatchSeed() != mShownSeed;
+        if (newTurn) {
+            mDrawView.clearCursors();
+            mHistoryRecorder.endTurn(mDrawView.getCells());
+            mDrawView.clear();
+            mHistoryRecorder.startTurn();
+            mShownTurnNumber = mGame.getTurnNumber();
+            mShownSeed = mGame.getMatchSeed();
+        }
+        if (mGame.isDrawing()) {
             beginArtistTurn();
         } else {
             beginGuessingTurn();
         }
+
+        // The new artist's card is highlighted, the rest of the screen is already shown
+        if (mGameplayLayout.getVisibility() != View.VISIBLE) {
+            updateViewVisibility();
+        } else {
+            updatePlayerViews();
+        }
+
+        mTurnTransitionWork.record(SystemClock.uptimeMillis() - start);
+        Choreographer choreographer = Choreographer.getInstance();
+        choreographer.removeFrameCallback(mTurnFrameCallback);
+        mTurnFirstFrameNanos = 0;
+        choreographer.postFrameCallback(mTurnFrameCallback);
     }
 
     /**
@@ -870,145 +1328,205 @@ public class DrawingActivity extends AppCompatActivity implements
      * until Done is clicked.
      */
     private void onDoneClicked() {
-        // Increment turn number
-        mMatchTurnNumber = mMatchTurnNumber + 1;
-
-        // Choose random word subset and correct word
-        mTurnWords = getRandomWordSubset(10);
-        mWordIndex = (new Random()).nextInt(mTurnWords.size());
-
-        // Send new turn data to others
-        TurnMessage turnMessage = new TurnMessage(mMatchTurnNumber, mTurnWords, mWordIndex);
-        sendReliableMessageToOthers(turnMessage);
-
+        // Pass the turn on, with new words
+        mGame.endTurn(getHostTime());
 
         // Increment turn achievements
-        if (isSignedIn() && checkConfiguration(false)) {
-            Games.Achievements.increment(mGoogleApiClient,
-                    getString(R.string.achievement_5_turns), 1);
-            Games.Achievements.increment(mGoogleApiClient,
-                    getString(R.string.achievement_10_turns), 1);
-        }
+        mAchievements.increment(R.string.achievement_5_turns, 1);
+        mAchievements.increment(R.string.achievement_10_turns, 1);
 
-        beginMyTurn();
         updateViewVisibility();
     }
 
     /**
-     * Pick a random set of words from the master word list.
+     * Record my guess, incrementing score if necessary and informing all other players.
      *
-     * @param numWords the number of words to choose.
-     * @return a list of randomly chosen words.
+     * @param position the index in the word list of my guess.
      */
-    private List<String> getRandomWordSubset(int numWords) {
-        List<String> result = new ArrayList<>();
-
-        Collections.addAll(result, mAllWords);
-        Collections.shuffle(result);
-        result = result.subList(0, numWords);
-
-        return result;
+    private void makeGuess(int position) {
+        // Disable guessing, the game scores and sends the guess and reports the result
+        enableGuessing(false);
+        mGuessProgressHandler.removeCallbacks(mGuessProgressRunnable);
+        mGame.makeGuess(position, getHostTime());
     }
 
     /**
-     * Record my guess, incrementing score if necessary and informing all other players.
+     * Guess a typed word, if it matches a word of the dictionary. Otherwise the player can try
+     * again.
      *
-     * @param position the index in the word list of my guess.
+     * @param text the guess as typed.
      */
-    private void makeGuess(int position) {
-        // Decide how many points I could earn based on the current state of the countdown bar
-        int potentialPoints = mGuessProgress.getProgress();
+    private void makeTypedGuess(String text) {
+        if (text.trim().isEmpty()) {
+            return;
+        }
 
-        // Send my guess to other players
-        GuessMessage guessMessage = new GuessMessage(position, potentialPoints, mMyPersistentId);
-        sendReliableMessageToOthers(guessMessage);
+        WordMatcher matcher = getWordMatcher();
+        if (matcher == null) {
+            Toast.makeText(this, "Still loading the words, try again in a moment.",
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+        int word = matcher.match(text);
+        if (word == WordMatcher.NO_MATCH) {
+            Toast.makeText(this, "\"" + text + "\" is not a word, try again.",
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
 
-        // Disable guessing and show result
         enableGuessing(false);
-        createGuessDialog(position, mWordIndex);
+        mGuessProgressHandler.removeCallbacks(mGuessProgressRunnable);
+        mGame.makeGuess(matcher.getDictionary().get(word), getHostTime());
+    }
+
+    /**
+     * Show the words starting with a partly typed guess in place of the turn's words.
+     */
+    private void updateSuggestions(String text) {
+        List<String> words = new ArrayList<>();
+        WordMatcher matcher = getWordMatcher();
+        if (matcher != null) {
+            int count = matcher.suggest(text, mSuggestions);
+            for (int i = 0; i < count; i++) {
+                words.add(matcher.getDictionary().get(mSuggestions[i]));
+            }
+        }
+        resetWords(words);
+    }
 
-        // Increment my score if I got it right
-        if (position == mWordIndex) {
-            incrementPlayerScore(mMyPersistentId, potentialPoints);
+    /**
+     * @return the matcher for the current dictionary, or null if it is not built yet.
+     */
+    private WordMatcher getWordMatcher() {
+        if (mWordMatcher == null || mWordMatcher.getDictionary() != mGame.getDictionary()) {
+            return null;
+        }
+        return mWordMatcher;
+    }
+
+    /**
+     * Build the matcher for the current dictionary on a background thread, unless it is built
+     * or being built already. Indexing 50,000 words takes a few hundred milliseconds.
+     */
+    private void loadWordMatcher() {
+        final WordDictionary dictionary = mGame.getDictionary();
+        if (getWordMatcher() != null || mWordMatcherPending == dictionary) {
+            return;
         }
+
+        mWordMatcherPending = dictionary;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final WordMatcher matcher = new WordMatcher(dictionary);
+                mWordMatcherHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mWordMatcherPending == dictionary) {
+                            mWordMatcher = matcher;
+                            mWordMatcherPending = null;
+                        }
+                    }
+                });
+            }
+        }, "WordMatcher").start();
     }
 
     /**
-     * Show the UI for a non-artist player
+     * Show the UI for a non-artist player, with the words of the turn. The DrawView is cleared
+     * by beginMyTurn when the turn is new.
      */
     private void setGuessingUI() {
-        findViewById(R.id.guesserUI).setVisibility(View.VISIBLE);
-        findViewById(R.id.colorChooser).setVisibility(View.GONE);
-        findViewById(R.id.clearDoneLayout).setVisibility(View.GONE);
-        findViewById(R.id.guessWord).setVisibility(View.GONE);
+        showRoleUI(false);
 
         // Disable touch on drawview
         mDrawView.setTouchEnabled(false);
         enableGuessing(true);
 
-        // Show player 'cards'
-        setUpPlayerViews();
-
-        // Set words, clear draw view
-        resetWords(mTurnWords);
-        mDrawView.clear();
+        // Set words or clear the typed guess
+        if (mTypedGuesses) {
+            loadWordMatcher();
+            mGuessInput.setText("");
+            resetWords(Collections.<String>emptyList());
+        } else {
+            resetWords(mGame.getTurnWords());
+        }
     }
 
     /**
-     * Show the UI for the player who is currently acting as the artist.
+     * Show the UI for the player who is currently acting as the artist, with the word to draw.
+     * The DrawView is cleared by beginMyTurn when the turn is new.
      */
     private void setArtistUI() {
-        findViewById(R.id.artistUI).setVisibility(View.VISIBLE);
-        findViewById(R.id.guesserUI).setVisibility(View.GONE);
-        findViewById(R.id.colorChooser).setVisibility(View.VISIBLE);
-        findViewById(R.id.clearDoneLayout).setVisibility(View.VISIBLE);
-        findViewById(R.id.guessWord).setVisibility(View.VISIBLE);
+        showRoleUI(true);
 
         mDrawView.setTouchEnabled(true);
 
-        ((TextView) findViewById(R.id.guessWord)).setText(mTurnWords.get(mWordIndex));
-        mDrawView.clear();
+        // In a team turn only the artist whose turn it is ends it
+        setVisibility(mDoneButton, mGame.isMyTurn() ? View.VISIBLE : View.GONE);
+        mGuessWordView.setText(mGame.getWord());
     }
 
     /**
-     * Show a small view for each connected player with their picture, name, and score.
+     * Show the views of the artist or of a guesser. Views that already have the right
+     * visibility are left alone.
      */
-    private void setUpPlayerViews() {
-        // Remove all existing views (note that removing and re-adding all views is not very
-        // efficient and you should not do it in your own application).
-        LinearLayout playerViews = (LinearLayout) findViewById(R.id.playerViews);
-        playerViews.removeAllViewsInLayout();
-
-        // Sort the list to determine which player is the artist so we can highlight that view
-        List<String> ids = new ArrayList<>();
-        ids.addAll(mParticipants.keySet());
-        Collections.sort(ids);
-        int artistIndex = mMatchTurnNumber % ids.size();
-        String artistId = ids.get(artistIndex);
+    private void showRoleUI(boolean artist) {
+        int artistVisibility = artist ? View.VISIBLE : View.GONE;
+        setVisibility(mGuesserUI, artist ? View.GONE : View.VISIBLE);
+        setVisibility(mColorChooser, artistVisibility);
+        setVisibility(mClearDoneLayout, artistVisibility);
+        setVisibility(mGuessWordView, artistVisibility);
+    }
 
-        // Create a PlayerView for each participant
-        for (DrawingParticipant participant : mParticipants.values()) {
-            PlayerView playerView = new PlayerView(this);
-            playerView.populateWithParticipant(participant);
-            playerView.setIsArtist(participant.getPersistentId().equals(artistId));
-            playerViews.addView(playerView);
+    private static void setVisibility(View view, int visibility) {
+        if (view.getVisibility() != visibility) {
+            view.setVisibility(visibility);
         }
     }
 
     /**
-     * Set the list of words to display for guessing.
+     * Show a small view for each connected player with their picture, name, and score. Views
+     * are kept from one update to the next: only players who joined or left add or remove one,
+     * and a view only changes what it shows if the player's details did.
      */
-    private void resetWords(List<String> words) {
-        ListView list = (ListView) findViewById(R.id.listView);
-
-        ArrayAdapter<String> adapter = new ArrayAdapter<>(this,
-                android.R.layout.simple_list_item_1);
+    private void updatePlayerViews() {
+        ParticipantTable participants = mGame.getParticipantTable();
+
+        // Remove the views of players who left
+        for (int i = mPlayerViews.size() - 1; i >= 0; i--) {
+            if (participants.get(mPlayerViews.keyAt(i)) == null) {
+                mPlayerViewsLayout.removeView(mPlayerViews.valueAt(i));
+                mPlayerViews.removeAt(i);
+            }
+        }
 
-        for (String st : words) {
-            adapter.add(st);
+        // Add, move and update views to follow the turn order
+        List<DrawingParticipant> ordered = participants.getParticipants();
+        for (int i = 0; i < ordered.size(); i++) {
+            DrawingParticipant participant = ordered.get(i);
+            PlayerView playerView = mPlayerViews.get(participant.getSessionId());
+            if (playerView == null) {
+                playerView = new PlayerView(this);
+                mPlayerViews.put(participant.getSessionId(), playerView);
+                mPlayerViewsLayout.addView(playerView, i);
+            } else if (mPlayerViewsLayout.getChildAt(i) != playerView) {
+                mPlayerViewsLayout.removeView(playerView);
+                mPlayerViewsLayout.addView(playerView, i);
+            }
+            playerView.populateWithParticipant(participant);
+            playerView.setIsArtist(mGame.isArtist(participant.getSessionId()));
         }
+    }
 
-        list.setAdapter(adapter);
+    /**
+     * Set the list of words to display for guessing.
+     */
+    private void resetWords(List<String> words) {
+        mWordAdapter.setNotifyOnChange(false);
+        mWordAdapter.clear();
+        mWordAdapter.addAll(words);
+        mWordAdapter.notifyDataSetChanged();
     }
 
     /**
@@ -1018,15 +1536,68 @@ public class DrawingActivity extends AppCompatActivity implements
         if (mRoom != null) {
             leaveRoom();
         } else if (mIsJoinedParty || mIsHostingParty) {
-            mNearbyClient.onStop();
+            mGameService.stopParty();
             mIsJoinedParty = mIsHostingParty = false;
             updateViewVisibility();
         }
 
-        mParticipants.clear();
-        mOldParticipants.clear();
-        mMyPersistentId = null;
-        mHasGuessed = false;
+        // The match is over, send its achievements now
+        mAchievements.flush();
+
+        mStrokePlayer.reset();
+        mRoomMessenger.clear();
+        mGuessProgressHandler.removeCallbacks(mGuessProgressRunnable);
+        Choreographer.getInstance().removeFrameCallback(mTurnFrameCallback);
+        mPlayerViewsLayout.removeAllViews();
+        mPlayerViews.clear();
+        mGame.reset();
+
+        // Keep the drawing of the last turn before its canvas is cleared
+        mHistoryRecorder.endTurn(mDrawView.getCells());
+        mShownTurnNumber = -1;
+    }
+
+    /**
+     * Resume the party match saved before the process was killed: restore the game and the
+     * drawing of the turn, then host the party again or look for its host. Its host gives
+     * this player its place back when it reconnects.
+     */
+    private void resumeSavedMatch() {
+        long start = SystemClock.uptimeMillis();
+        SavedMatch match = mSavedMatch;
+        mSavedMatch = null;
+
+        // The words of the match are derived from the word pack it was played with
+        TurnMessage turn = match.getTurn();
+        WordDictionary dictionary = mGame.getDictionary();
+        if (turn.getPack() != null && !turn.getPack().equals(dictionary.getName())) {
+            dictionary = GameService.openWordPack(this, turn.getPack());
+        }
+        if (dictionary == null || dictionary.getHash() != turn.getDictionaryHash()) {
+            Log.w(TAG, "resumeSavedMatch: word pack changed, not resuming " + turn.getPack());
+            mJournal.discard();
+            return;
+        }
+        mGame.setDictionary(dictionary);
+        mGameService.resumeMatch(match);
+
+        // Show the drawing as saved, and keep it when the turn is announced again
+        for (int x = 0; x < DrawView.GRID_SIZE; x++) {
+            for (int y = 0; y < DrawView.GRID_SIZE; y++) {
+                mDrawView.setMacroPixel(x, y, match.getCell(x, y));
+            }
+        }
+        mShownTurnNumber = mGame.getTurnNumber();
+        mShownSeed = mGame.getMatchSeed();
+        mRestoreMillis += SystemClock.uptimeMillis() - start;
+
+        Toast.makeText(this, "Resuming your last match", Toast.LENGTH_SHORT).show();
+        if (match.isHost()) {
+            onHostPartyClicked();
+            beginMyTurn();
+        } else {
+            onJoinPartyClicked();
+        }
     }
 
     /**
@@ -1042,21 +1613,6 @@ public class DrawingActivity extends AppCompatActivity implements
         updateViewVisibility();
     }
 
-    /**
-     * Update the turn order so that each participant has a unique slot.
-     */
-    private void updateTurnIndices() {
-        // Turn order is determined by sorting participant IDs, which are consistent across
-        // devices (but not across sessions)
-        ArrayList<String> ids = new ArrayList<>();
-        ids.addAll(mParticipants.keySet());
-        Collections.sort(ids);
-
-        // Get your turn order
-        mMyTurnIndex = ids.indexOf(mMyPersistentId);
-        Log.d(TAG, "My turn index: " + mMyTurnIndex);
-    }
-
     /**
      * Show the UI for an RTMP waiting room.
      */
@@ -1069,88 +1625,54 @@ public class DrawingActivity extends AppCompatActivity implements
     }
 
 
-    private void sendReliableMessageToOthers(Message msg) {
-        sendReliableMessageToOthers(mMapper.toJson(msg, Message.class));
-    }
-
     /**
-     * Send a reliable message to all other participants. If this is an RTMP game, send a reliable
-     * message to each player directly. If this is a Nearby Connections game, send a message to the
-     * host who will broadcast it to all connected players.
+     * Send a message to all other participants that consume it, according to the message's
+     * route. If this is an RTMP game, send a message to each of those players directly. If this
+     * is a Nearby Connections game, send a message to the host who will relay it to the
+     * connected players.
      *
-     * @param message string to send in the message.
+     * @param msg the message to send.
      */
-    private void sendReliableMessageToOthers(String message) {
-
-        byte[] data = null;
-
-        DrawingParticipant me = mParticipants.get(mMyPersistentId);
-        for (DrawingParticipant participant : mParticipants.values()) {
-            if (!participant.equals(me) && !participant.getIsLocal()) {
-                if (data == null) {
-                    try {
-                        data = message.getBytes("UTF-8");
-                    } catch (UnsupportedEncodingException e) {
-                        Log.e(TAG, "Could not encode " + message + " as UTF-8?");
-                        return;
-                    }
-                }
-                // The participant is RTMP and not sending message to myself
-                Games.RealTimeMultiplayer.sendReliableMessage(mGoogleApiClient, null,
-                        data, mRoom.getRoomId(), participant.getMessagingId());
-            }
+    private void sendReliableMessageToOthers(Message msg) {
+        if (msg.isTurnScoped()) {
+            msg.setTurn(mGame.getTurnNumber());
+        }
+        String message = mMapper.toJson(msg, Message.class);
+
+        if (mRoom != null) {
+            mRoomMessenger.send(mRoom.getRoomId(), msg, message);
         }
 
         // Party mode, route messages through host
-        if (mIsJoinedParty || mIsHostingParty) {
-            Log.d(TAG, "Broadcasting message.");
-            mNearbyClient.broadcastMessage(message);
+        if (mIsHostingParty || mIsJoinedParty) {
+            mGameService.sendToParty(msg, message);
         }
     }
 
     /**
-     * Add points to a player's score, local copy only.
+     * A participant left the game. If this is RTMP and you are now the only player in the room,
+     * leave the room as well and end the game. If this is a Nearby Connections game and the host
+     * has disconnected, leave the game and display an error.
      *
-     * @param id        the participant ID to update.
-     * @param numPoints number of points to add to the score.
+     * @param dp the player that disconnected.
      */
-    private void incrementPlayerScore(String id, int numPoints) {
-        Integer currentScore = mParticipants.get(id).getScore();
-        mParticipants.get(id).setScore(currentScore + numPoints);
-    }
+    private void onParticipantLeft(DrawingParticipant dp) {
+        Log.d(TAG, "onParticipantLeft:" + dp.getSessionId());
 
-    /**
-     * Remove a participant. If this is RTMP and you are now the only player in the room, leave the
-     * room as well and end the game. If this is a Nearby Connections game and the host has
-     * disconnected, leave the game and display an error.
-     *
-     * @param messagingId  the messaging ID of the player that disconnected.
-     * @param persistentId the persistent ID of the player that disconnected.
-     */
-    private void onParticipantDisconnected(String messagingId, String persistentId) {
-        Log.d(TAG, "onParticipantDisconnected:" + messagingId);
-        DrawingParticipant dp = mParticipants.remove(persistentId);
-        if (dp != null) {
-            // Display disconnection toast
-            Toast.makeText(this, dp.getDisplayName() + " disconnected.", Toast.LENGTH_SHORT).show();
-
-            // Add the participant to the "old" list in case they reconnect
-            mOldParticipants.put(dp.getPersistentId(), dp);
-
-            if (mRoom != null && mParticipants.size() <= 1) {
-                // Last player left in an RTMP game, leave
-                leaveRoom();
-            } else if (mIsJoinedParty && messagingId.equals(mNearbyClient.getHostEndpointId())) {
-                // Host disconnected, leave the game
-                Log.d(TAG, "onParticipantDisconnected: host");
-                Toast.makeText(this, "Error: disconnected from host.", Toast.LENGTH_SHORT).show();
-                leaveGame();
-            } else {
-                updateTurnIndices();
-            }
+        // Display disconnection toast
+        Toast.makeText(this, dp.getDisplayName() + " disconnected.", Toast.LENGTH_SHORT).show();
 
-            updateViewVisibility();
+        if (mRoom != null && mGame.getParticipantTable().size() <= 1) {
+            // Last player left in an RTMP game, leave
+            leaveRoom();
+        } else if (mIsJoinedParty && dp.getSessionId() == GameEngine.HOST_SESSION_ID) {
+            // Host disconnected, leave the game
+            Log.d(TAG, "onParticipantLeft: host");
+            Toast.makeText(this, "Error: disconnected from host.", Toast.LENGTH_SHORT).show();
+            leaveGame();
         }
+
+        updateViewVisibility();
     }
 
     /**
@@ -1160,107 +1682,50 @@ public class DrawingActivity extends AppCompatActivity implements
      */
     private void onParticipantConnected(Participant p) {
         if (p.isConnectedToRoom()) {
-            onParticipantConnected(new DrawingParticipant(p));
+            Uri iconImageUri = p.getIconImageUri();
+            DrawingParticipant dp = new DrawingParticipant(p.getParticipantId(),
+                    p.getDisplayName(), (iconImageUri == null) ? null : iconImageUri.toString());
+            dp.setSessionId(getRoomSessionId(p.getParticipantId()));
+            mGame.addParticipant(dp);
         }
     }
 
     /**
-     * Add a DrawingParticipant to the ongoing game and update turn order. If the
-     * DrawingParticipant is a duplicate, this method does nothing.
+     * Get the session ID of an RTMP participant: its position among the sorted participant IDs
+     * of the room, which every player in the room computes the same way.
      *
-     * @param dp the DrawingParticipant to add.
+     * @param participantId the participant ID in the current room.
+     * @return the session ID, or ParticipantTable.NO_SESSION if the ID is not in the room.
      */
-    private void onParticipantConnected(DrawingParticipant dp) {
-        Log.d(TAG, "onParticipantConnected: " + dp.getPersistentId());
-        if (!mParticipants.containsKey(dp.getPersistentId())) {
-            mParticipants.put(dp.getPersistentId(), dp);
-        }
-
-        updateTurnIndices();
-        updateViewVisibility();
+    private int getRoomSessionId(String participantId) {
+        List<String> ids = new ArrayList<>(mRoom.getParticipantIds());
+        Collections.sort(ids);
+        int index = ids.indexOf(participantId);
+        return (index < 0) ? ParticipantTable.NO_SESSION : index;
     }
 
     @Override
     public void onRealTimeMessageReceived(RealTimeMessage realTimeMessage) {
-        Log.d(TAG, "onRealTimeMessageReceived");
-        byte[] data = realTimeMessage.getMessageData();
-
-        onMessageReceived(data);
+        mRoomMessenger.onRealTimeMessageReceived(realTimeMessage);
     }
 
     /**
-     * Message handler for RTMP and Nearby Connections messages. First decodes as a general Message
-     * and then uses the type attribute to determine which class the message originally was. Then
-     * deserializes to a specific message class and takes the appropriate action,
+     * Take the appropriate action for a message for the current turn that the game rules do not
+     * handle themselves.
      *
-     * @param bytes byte array of data to deserialize.
+     * @param message the message to handle.
      */
-    private void onMessageReceived(byte[] bytes) {
-        String data = new String(bytes);
-        Log.d(TAG, "Message: " + data);
-
-        // Parse JSON message.
-        Message message = mMapper.fromJson(data, Message.class);
-
+    private void onGameMessage(Message message) {
         // Branch on message type
-        if (message instanceof EPointMessage) {
-            // EPointMessage - draw a point on the DrawView
-            EPointMessage msg = (EPointMessage) message;
-            mDrawView.setMacroPixel(msg.getPoint().x, msg.getPoint().y, (short) msg.getColor());
-        } else if (message instanceof ClearMessage) {
-            // ClearMessage - clear the DrawView
-            mDrawView.clear();
-        } else if (message instanceof TurnMessage) {
-            // TurnMessage - set all turn-specific data
-            TurnMessage msg = (TurnMessage) message;
-            mMatchTurnNumber = msg.getTurnNumber();
-            mTurnWords = msg.getWords();
-            mWordIndex = msg.getCorrectWord();
-            mGuessersThisTurn.clear();
-
-            beginMyTurn();
-        } else if (message instanceof GuessMessage) {
-            // GuessMessage - record an opponent's guess
-            GuessMessage msg = (GuessMessage) message;
-            createOpponentGuessDialog(msg.getGuesserId());
-
-            if (msg.getGuessIndex() == mWordIndex) {
-                // The guess was correct, award a point
-                incrementPlayerScore(msg.getGuesserId(), msg.getPotentialPoints());
-            }
-        } else if (message instanceof ParticipantMessage) {
-            // ParticipantMessage - add or remove a participant
-            ParticipantMessage msg = (ParticipantMessage) message;
-            DrawingParticipant participant = msg.getDrawingParticipant();
-
-            if (msg.getIsJoining()) {
-                if (mOldParticipants.containsKey(participant.getPersistentId())) {
-                    Log.d(TAG, "Participant rejoining: " + participant.getPersistentId());
-                    // This participant was in the game before, add and recover
-                    DrawingParticipant oldParticipant = mOldParticipants.remove(
-                            participant.getPersistentId());
-                    mParticipants.put(participant.getPersistentId(), oldParticipant);
-
-                    // Tell everyone what their old score was
-                    ParticipantMessage updateMsg = new ParticipantMessage(oldParticipant);
-                    mNearbyClient.sendMessageToAll(mMapper.toJson
-                            (updateMsg, Message.class), null);
-                } else if (mParticipants.containsKey(participant.getPersistentId())) {
-                    // Current participant, update the score
-                    mParticipants.get(participant.getPersistentId()).setScore(
-                            participant.getScore());
-                    onParticipantConnected(participant);
-                } else {
-                    // Add new participant
-                    onParticipantConnected(participant);
-                }
-            } else {
-                onParticipantDisconnected(participant.getMessagingId(),
-                        participant.getPersistentId());
-            }
-
-            updateTurnIndices();
-            updateViewVisibility();
+        if (message instanceof EPointMessage || message instanceof StrokeMessage
+                || message instanceof ClearMessage) {
+            // EPointMessage, StrokeMessage or ClearMessage - draw on the DrawView once due
+            mStrokePlayer.buffer((DrawingMessage) message);
+        } else if (message instanceof CanvasDeltaMessage) {
+            // CanvasDeltaMessage - apply changed cells and acknowledge the new version
+            CanvasDeltaMessage msg = (CanvasDeltaMessage) message;
+            mStrokePlayer.applyDelta(msg);
+            sendReliableMessageToOthers(new CanvasAckMessage(msg.getVersion()));
         }
     }
 
@@ -1374,12 +1839,12 @@ public class DrawingActivity extends AppCompatActivity implements
         mRoom = room;
 
         // Add self to participants
-        mMyPersistentId = mRoom.getParticipantId(
+        String myParticipantId = mRoom.getParticipantId(
                 Games.Players.getCurrentPlayerId(mGoogleApiClient));
-        Participant me = mRoom.getParticipant(mMyPersistentId);
+        mGame.setMySessionId(getRoomSessionId(myParticipantId));
+        Participant me = mRoom.getParticipant(myParticipantId);
         onParticipantConnected(me);
 
-        updateTurnIndices();
         updateViewVisibility();
     }
 
@@ -1402,7 +1867,8 @@ public class DrawingActivity extends AppCompatActivity implements
     public void onPeersDisconnected(Room room, List<String> strings) {
         Log.d(TAG, "onPeersDisconnected: " + room + ":" + strings);
         for (String pId : strings) {
-            onParticipantDisconnected(pId, pId);
+            mGame.removeParticipant(mGame.getParticipantTable().findSessionId(pId),
+                    SystemClock.elapsedRealtime());
         }
     }
 
@@ -15,14 +15,15 @@
  */
 package com.google.example.eightbitartist;
 
-import android.net.Uri;
-
-import com.google.android.gms.games.multiplayer.Participant;
+import com.google.example.eightbitartist.messages.Message;
 
 /**
  * A player participating in an 8BitArtist match, Can either be a RealTime Multiplayer Participant
  * or a Nearby Connections (Local) endpoint.  This abstraction reduces duplication of logic by
  * handling all participants in the same way, independent of which API the game is actually using.
+ * <p>
+ * This class does not depend on Android or Play Games, so that the game rules can be run and
+ * tested on any JVM. DrawingActivity converts RTMP participants.
  */
 public class DrawingParticipant {
 
@@ -35,15 +36,23 @@ public class DrawingParticipant {
     // Id used to identify the player (for RTMP this is Participant ID, for Nearby this is device ID)
     private String persistentId;
 
+    // Small integer ID of the player in this match, the same on every device and used to refer
+    // to the player in messages. See ParticipantTable.
+    private int sessionId = ParticipantTable.NO_SESSION;
+
     // The name to display on the PlayerView for this Participant
     private String displayName;
 
-    // A Uri to a picture to display next to the displayName, or null
-    private Uri iconImageUri;
+    // The URI of a picture to display next to the displayName, or null
+    private String iconImageUri;
 
     // The participant's score in this round
     private int score;
 
+    // Bit mask of Message topics this participant should receive when messages are relayed.
+    // Local routing state only, so it is never sent over the wire.
+    private transient int subscriptions = Message.TOPIC_ALL;
+
     /** Default constructor required for Jackson **/
     public DrawingParticipant() {}
 
@@ -63,37 +72,39 @@ public class DrawingParticipant {
 
     /**
      * Initialize for a remote (RTMP) player
+     *
+     * @param participantId the participant ID in the room.
+     * @param displayName   the name of the player.
+     * @param iconImageUri  the URI of the player's picture, or null.
      */
-    public DrawingParticipant(Participant participant) {
+    public DrawingParticipant(String participantId, String displayName, String iconImageUri) {
         isLocal = false;
-        this.messagingId = participant.getParticipantId();
-        this.persistentId = participant.getParticipantId();
-        this.displayName = participant.getDisplayName();
-        this.iconImageUri = participant.getIconImageUri();
+        this.messagingId = participantId;
+        this.persistentId = participantId;
+        this.displayName = displayName;
+        this.iconImageUri = iconImageUri;
         this.score = 0;
     }
 
+    /**
+     * Participants are the same player if they have the same persistent ID. The messaging ID is
+     * not part of the identity, since it changes when a player reconnects.
+     */
     @Override
     public boolean equals(Object that) {
-        if (that == null) {
-            return false;
+        if (this == that) {
+            return true;
         } else if (!(that instanceof DrawingParticipant)) {
             return false;
         } else {
-            DrawingParticipant other = (DrawingParticipant) that;
-            boolean isMessagingIdEqual = (other.getMessagingId().equals(this.getMessagingId()));
-            boolean isPersistentIdEqual = (other.getPersistentId().equals(this.getPersistentId()));
-            return (isMessagingIdEqual || isPersistentIdEqual);
+            String otherId = ((DrawingParticipant) that).getPersistentId();
+            return (persistentId == null) ? (otherId == null) : persistentId.equals(otherId);
         }
     }
 
     @Override
     public int hashCode() {
-      if (persistentId != null && messagingId != null) {
-        return (messagingId + persistentId).hashCode();
-      } else {
-        return super.hashCode();
-      }
+        return (persistentId == null) ? 0 : persistentId.hashCode();
     }
 
     public String getMessagingId() {
@@ -112,6 +123,14 @@ public class DrawingParticipant {
         this.persistentId = persistentId;
     }
 
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
     public String getDisplayName() {
         return displayName;
     }
@@ -120,11 +139,11 @@ public class DrawingParticipant {
         this.displayName = displayName;
     }
 
-    public Uri getIconImageUri() {
+    public String getIconImageUri() {
         return iconImageUri;
     }
 
-    public void setIconImageUri(Uri iconImageUri) {
+    public void setIconImageUri(String iconImageUri) {
         this.iconImageUri = iconImageUri;
     }
 
@@ -136,6 +155,18 @@ public class DrawingParticipant {
         this.score = score;
     }
 
+    public int getSubscriptions() {
+        return subscriptions;
+    }
+
+    public void setSubscriptions(int subscriptions) {
+        this.subscriptions = subscriptions;
+    }
+
+    public boolean isSubscribedTo(int topic) {
+        return (subscriptions & topic) != 0;
+    }
+
     public boolean getIsLocal() {
         return isLocal;
     }
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Forward error correction for packets sent unreliably to a single peer. Outgoing packets are
+ * grouped, and after every group a parity packet holding the XOR of the group's (length
+ * prefixed) payloads is sent. If exactly one packet of a group is lost, the receiver rebuilds it
+ * from the parity and the packets that did arrive, without waiting for a retransmission.
+ * <p>
+ * Each side also measures the loss on its incoming packets and reports it back over the
+ * reliable channel, and the sending side picks its group size from the reported loss: a clean
+ * link gets large groups (little overhead), a lossy link small groups (more parity).
+ * <p>
+ * Packets start with a marker byte that can never begin a JSON message, so FEC packets and
+ * normal messages can share a connection.
+ */
+public class FecChannel {
+
+    /**
+     * Sends raw packets to the peer at the other end of the channel.
+     */
+    public interface Transport {
+        void sendUnreliable(byte[] packet);
+
+        void sendReliable(byte[] packet);
+    }
+
+    private static final byte MAGIC = (byte) 0xFE;
+    private static final byte KIND_DATA = 0;
+    private static final byte KIND_PARITY = 1;
+    private static final byte KIND_REPORT = 2;
+
+    private static final int DATA_HEADER = 2 + 4 + 4 + 1;
+    private static final int PARITY_HEADER = 2 + 4 + 1;
+
+    // Group sizes the adaptation can choose between
+    public static final int MIN_GROUP_SIZE = 2;
+    public static final int MAX_GROUP_SIZE = 16;
+
+    // Aim for at most about one loss per group: group size ~ TARGET_LOSSES_PER_GROUP / loss
+    private static final double TARGET_LOSSES_PER_GROUP = 0.1;
+
+    // Incoming loss is reported after this many sequence numbers
+    private static final int REPORT_WINDOW = 64;
+
+    // Number of recent groups kept for recovery
+    private static final int GROUP_HISTORY = 8;
+
+    private Transport mTransport;
+
+    // Sending state
+    private int mGroupSize = 8;
+    private boolean mAdaptive = true;
+    private int mNextSeq = 0;
+    private int mGroupId = 0;
+    private int mGroupCount = 0;
+    private byte[] mParity = new byte[0];
+    private int mParityLength = 0;
+
+    // Receiving state, a ring of the most recent groups
+    private int[] mGroupIds = new int[GROUP_HISTORY];
+    private byte[][][] mGroupData = new byte[GROUP_HISTORY][MAX_GROUP_SIZE][];
+    private int[] mGroupReceived = new int[GROUP_HISTORY];
+    private boolean[] mGroupRecovered = new boolean[GROUP_HISTORY];
+    private byte[][] mGroupParity = new byte[GROUP_HISTORY][];
+    private int[] mGroupParityCount = new int[GROUP_HISTORY];
+
+    // Incoming loss measurement
+    private int mWindowStart = -1;
+    private int mWindowReceived = 0;
+    private double mIncomingLoss = 0.0;
+    private double mReportedLoss = 0.0;
+
+    // Statistics
+    private long mDataSent = 0;
+    private long mParitySent = 0;
+    private long mBytesSent = 0;
+    private long mPayloadBytesSent = 0;
+    private long mRecovered = 0;
+
+    public FecChannel(Transport transport) {
+        mTransport = transport;
+        for (int i = 0; i < GROUP_HISTORY; i++) {
+            mGroupIds[i] = -1;
+        }
+    }
+
+    /**
+     * @return true if the packet was produced by a FecChannel rather than being a plain message.
+     */
+    public static boolean isFecPacket(byte[] packet) {
+        return packet.length >= 2 && packet[0] == MAGIC;
+    }
+
+    /**
+     * Use a fixed group size instead of adapting to the measured loss.
+     *
+     * @param groupSize number of data packets protected by each parity packet.
+     */
+    public void setGroupSize(int groupSize) {
+        mGroupSize = Math.max(MIN_GROUP_SIZE, Math.min(MAX_GROUP_SIZE, groupSize));
+        mAdaptive = false;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        mAdaptive = adaptive;
+    }
+
+    public int getGroupSize() {
+        return mGroupSize;
+    }
+
+    /**
+     * Send a payload unreliably, followed by a parity packet if it completes a group.
+     */
+    public void send(byte[] payload) {
+        ByteBuffer packet = ByteBuffer.allocate(DATA_HEADER + payload.length);
+        packet.put(MAGIC).put(KIND_DATA).putInt(mNextSeq++).putInt(mGroupId)
+                .put((byte) mGroupCount).put(payload);
+        sendUnreliable(packet.array());
+        mDataSent++;
+        mPayloadBytesSent += payload.length;
+
+        // Fold the length-prefixed payload into the running parity
+        int length = payload.length + 2;
+        if (length > mParity.length) {
+            byte[] grown = new byte[Math.max(length, mParity.length * 2)];
+            System.arraycopy(mParity, 0, grown, 0, mParityLength);
+            mParity = grown;
+        }
+        mParity[0] ^= (byte) (payload.length >> 8);
+        mParity[1] ^= (byte) payload.length;
+        for (int i = 0; i < payload.length; i++) {
+            mParity[i + 2] ^= payload[i];
+        }
+        mParityLength = Math.max(mParityLength, length);
+        mGroupCount++;
+
+        if (mGroupCount >= mGroupSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the parity for a partially filled group, so the last packets before a pause in
+     * sending are protected too.
+     */
+    public void flush() {
+        if (mGroupCount == 0) {
+            return;
+        }
+
+        ByteBuffer packet = ByteBuffer.allocate(PARITY_HEADER + mParityLength);
+        packet.put(MAGIC).put(KIND_PARITY).putInt(mGroupId).put((byte) mGroupCount)
+                .put(mParity, 0, mParityLength);
+        sendUnreliable(packet.array());
+        mParitySent++;
+
+        for (int i = 0; i < mParityLength; i++) {
+            mParity[i] = 0;
+        }
+        mParityLength = 0;
+        mGroupCount = 0;
+        mGroupId++;
+    }
+
+    /**
+     * @return true if a partially filled group is waiting for flush().
+     */
+    public boolean hasPendingGroup() {
+        return mGroupCount > 0;
+    }
+
+    private void sendUnreliable(byte[] packet) {
+        mBytesSent += packet.length;
+        mTransport.sendUnreliable(packet);
+    }
+
+    /**
+     * Handle a packet from the peer.
+     *
+     * @param packet a packet for which isFecPacket() is true.
+     * @param out    list to append delivered payloads to, received or recovered.
+     */
+    public void onPacket(byte[] packet, List<byte[]> out) {
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        buffer.get();
+        byte kind = buffer.get();
+
+        if (kind == KIND_REPORT) {
+            mReportedLoss = buffer.getShort() / 1000.0;
+            if (mAdaptive) {
+                int groupSize = (mReportedLoss <= 0.0) ? MAX_GROUP_SIZE
+                        : (int) Math.round(TARGET_LOSSES_PER_GROUP / mReportedLoss);
+                mGroupSize = Math.max(MIN_GROUP_SIZE, Math.min(MAX_GROUP_SIZE, groupSize));
+            }
+            return;
+        }
+
+        if (kind == KIND_DATA) {
+            int seq = buffer.getInt();
+            int groupId = buffer.getInt();
+            int index = buffer.get();
+            byte[] payload = new byte[buffer.remaining()];
+            buffer.get(payload);
+
+            measureLoss(seq);
+
+            int slot = getSlot(groupId);
+            if (slot < 0 || index >= MAX_GROUP_SIZE) {
+                // Too old to help with recovery, just deliver it
+                out.add(payload);
+            } else if (mGroupData[slot][index] == null) {
+                // Skip duplicates and packets that were already rebuilt from parity
+                mGroupData[slot][index] = payload;
+                mGroupReceived[slot]++;
+                out.add(payload);
+                recover(slot, out);
+            }
+        } else if (kind == KIND_PARITY) {
+            int groupId = buffer.getInt();
+            int count = buffer.get();
+            byte[] parity = new byte[buffer.remaining()];
+            buffer.get(parity);
+
+            int slot = getSlot(groupId);
+            if (slot >= 0) {
+                mGroupParity[slot] = parity;
+                mGroupParityCount[slot] = count;
+                recover(slot, out);
+            }
+        }
+    }
+
+    /**
+     * Find (or claim) the ring slot for a group.
+     *
+     * @return the slot index, or -1 if the group is too old to track.
+     */
+    private int getSlot(int groupId) {
+        int slot = groupId % GROUP_HISTORY;
+        if (mGroupIds[slot] == groupId) {
+            return slot;
+        } else if (mGroupIds[slot] > groupId) {
+            return -1;
+        }
+
+        mGroupIds[slot] = groupId;
+        for (int i = 0; i < MAX_GROUP_SIZE; i++) {
+            mGroupData[slot][i] = null;
+        }
+        mGroupReceived[slot] = 0;
+        mGroupRecovered[slot] = false;
+        mGroupParity[slot] = null;
+        mGroupParityCount[slot] = 0;
+        return slot;
+    }
+
+    /**
+     * Rebuild the missing packet of a group if the parity and all but one packet have arrived.
+     */
+    private void recover(int slot, List<byte[]> out) {
+        byte[] parity = mGroupParity[slot];
+        int count = mGroupParityCount[slot];
+        if (parity == null || mGroupRecovered[slot] || mGroupReceived[slot] != count - 1) {
+            return;
+        }
+
+        byte[] missing = parity.clone();
+        int missingIndex = -1;
+        for (int i = 0; i < count; i++) {
+            byte[] data = mGroupData[slot][i];
+            if (data == null) {
+                missingIndex = i;
+                continue;
+            }
+            missing[0] ^= (byte) (data.length >> 8);
+            missing[1] ^= (byte) data.length;
+            for (int j = 0; j < data.length; j++) {
+                missing[j + 2] ^= data[j];
+            }
+        }
+
+        int length = ((missing[0] & 0xFF) << 8) | (missing[1] & 0xFF);
+        if (missingIndex < 0 || length + 2 > missing.length) {
+            return;
+        }
+
+        byte[] payload = new byte[length];
+        System.arraycopy(missing, 2, payload, 0, length);
+        mGroupData[slot][missingIndex] = payload;
+        mGroupReceived[slot]++;
+        mGroupRecovered[slot] = true;
+        mRecovered++;
+        out.add(payload);
+    }
+
+    /**
+     * Count an incoming sequence number and report the loss rate once per window.
+     */
+    private void measureLoss(int seq) {
+        if (mWindowStart < 0) {
+            mWindowStart = seq;
+            mWindowReceived = 0;
+        } else if (seq < mWindowStart) {
+            // Arrived late, after its window was already reported
+            return;
+        }
+        mWindowReceived++;
+
+        int expected = seq - mWindowStart + 1;
+        if (expected >= REPORT_WINDOW) {
+            mIncomingLoss = 1.0 - Math.min(1.0, (double) mWindowReceived / expected);
+            mWindowStart = seq + 1;
+            mWindowReceived = 0;
+
+            ByteBuffer report = ByteBuffer.allocate(4);
+            report.put(MAGIC).put(KIND_REPORT).putShort((short) Math.round(mIncomingLoss * 1000));
+            mTransport.sendReliable(report.array());
+        }
+    }
+
+    /**
+     * @return the loss measured on packets from the peer, before recovery.
+     */
+    public double getIncomingLoss() {
+        return mIncomingLoss;
+    }
+
+    /**
+     * @return the loss the peer last reported on packets from this side.
+     */
+    public double getReportedLoss() {
+        return mReportedLoss;
+    }
+
+    public long getRecoveredCount() {
+        return mRecovered;
+    }
+
+    /**
+     * @return bytes sent (data and parity, including headers) per byte of payload.
+     */
+    public double getOverhead() {
+        return mPayloadBytesSent == 0 ? 0.0 : (double) mBytesSent / mPayloadBytesSent;
+    }
+
+    public long getDataSent() {
+        return mDataSent;
+    }
+
+    public long getParitySent() {
+        return mParitySent;
+    }
+}
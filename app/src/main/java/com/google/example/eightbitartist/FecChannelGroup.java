@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The FecChannels of one transport, one per peer, created as peers are first sent to or heard
+ * from. Parity for partially filled groups is sent once sending pauses for FLUSH_MS, so the last
+ * packets before a pause are protected too. Party games use one group in NearbyClient, RTMP
+ * games one in DrawingActivity.
+ */
+public class FecChannelGroup {
+
+    /**
+     * Sends raw packets to a peer.
+     */
+    public interface Transport {
+        void sendUnreliable(String peerId, byte[] packet);
+
+        void sendReliable(String peerId, byte[] packet);
+    }
+
+    /**
+     * Gets the payloads delivered by incoming packets, received or recovered.
+     */
+    public interface Receiver {
+        void onPayload(String peerId, byte[] payload);
+    }
+
+    // How long a partially filled FEC group waits before its parity is sent
+    public static final long FLUSH_MS = 50L;
+
+    private Transport mTransport;
+    private HashMap<String, FecChannel> mChannels = new HashMap<>();
+    private List<byte[]> mPayloads = new ArrayList<>();
+    private Handler mFlushHandler = new Handler(Looper.getMainLooper());
+    private Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (FecChannel channel : mChannels.values()) {
+                channel.flush();
+            }
+        }
+    };
+
+    public FecChannelGroup(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Send a payload unreliably to a peer, protected by forward error correction.
+     */
+    public void send(String peerId, byte[] payload) {
+        getChannel(peerId).send(payload);
+
+        mFlushHandler.removeCallbacks(mFlushRunnable);
+        mFlushHandler.postDelayed(mFlushRunnable, FLUSH_MS);
+    }
+
+    /**
+     * Handle a packet from a peer.
+     *
+     * @param peerId   the peer that sent the packet.
+     * @param packet   a packet for which FecChannel.isFecPacket() is true.
+     * @param receiver gets whatever the packet carries or lets the channel rebuild.
+     */
+    public void onPacket(String peerId, byte[] packet, Receiver receiver) {
+        getChannel(peerId).onPacket(packet, mPayloads);
+        for (byte[] payload : mPayloads) {
+            receiver.onPayload(peerId, payload);
+        }
+        mPayloads.clear();
+    }
+
+    /**
+     * Get the channel of a peer, creating it if needed.
+     */
+    public FecChannel getChannel(final String peerId) {
+        FecChannel channel = mChannels.get(peerId);
+        if (channel == null) {
+            channel = new FecChannel(new FecChannel.Transport() {
+                @Override
+                public void sendUnreliable(byte[] packet) {
+                    mTransport.sendUnreliable(peerId, packet);
+                }
+
+                @Override
+                public void sendReliable(byte[] packet) {
+                    mTransport.sendReliable(peerId, packet);
+                }
+            });
+            mChannels.put(peerId, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Forget a peer that has gone away.
+     */
+    public void remove(String peerId) {
+        mChannels.remove(peerId);
+    }
+
+    /**
+     * Forget every peer, for example when the game ends.
+     */
+    public void clear() {
+        mChannels.clear();
+        mFlushHandler.removeCallbacks(mFlushRunnable);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.CanvasAckMessage;
+import com.google.example.eightbitartist.messages.ClockSyncMessage;
+import com.google.example.eightbitartist.messages.EPointMessage;
+import com.google.example.eightbitartist.messages.RosterMessage;
+import com.google.example.eightbitartist.messages.StrokeMessage;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Rate limits the messages the Host receives, with one token bucket per endpoint and message
+ * type. A message over the limit of its type is either coalesced (for types where only the
+ * latest state matters, such as drawn cells) or dropped.
+ * <p>
+ * Endpoints are judged in one second windows: a window with more than a set number of over
+ * limit messages is a strike, a clean window clears all strikes, and an endpoint that collects
+ * enough strikes in a row should be disconnected. A message that cannot be read at all is a
+ * strike by itself.
+ */
+public class FloodGuard {
+
+    public static final int RESULT_ALLOW = 0;
+    public static final int RESULT_COALESCE = 1;
+    public static final int RESULT_DROP = 2;
+    public static final int RESULT_DISCONNECT = 3;
+
+    private static final long WINDOW_MS = 1000L;
+
+    /**
+     * The limit for one message type.
+     */
+    public static class Limit {
+        public final double ratePerSecond;
+        public final int burst;
+        public final boolean coalesce;
+
+        /**
+         * @param ratePerSecond messages per second allowed on average.
+         * @param burst         messages allowed at once after a quiet period.
+         * @param coalesce      true if over limit messages are coalesced rather than dropped.
+         */
+        public Limit(double ratePerSecond, int burst, boolean coalesce) {
+            this.ratePerSecond = ratePerSecond;
+            this.burst = burst;
+            this.coalesce = coalesce;
+        }
+    }
+
+    private static class Bucket {
+        double tokens;
+        long lastRefill;
+    }
+
+    private static class Endpoint {
+        HashMap<String, Bucket> buckets = new HashMap<>();
+        long windowStart;
+        int windowViolations;
+        boolean windowStruck;
+        int strikes;
+        long allowed;
+        long coalesced;
+        long dropped;
+    }
+
+    private HashMap<String, Limit> mLimits = new HashMap<>();
+    private Limit mDefaultLimit;
+    private HashMap<String, Endpoint> mEndpoints = new HashMap<>();
+
+    private int mViolationsPerStrike = 50;
+    private int mMaxStrikes = 3;
+
+    // Totals over all endpoints
+    private long mAllowed = 0;
+    private long mCoalesced = 0;
+    private long mDropped = 0;
+    private long mDisconnects = 0;
+
+    /**
+     * Create a FloodGuard that applies the same limit to every message type, until other limits
+     * are set with setLimit.
+     *
+     * @param defaultLimit the limit for types without a limit of their own.
+     */
+    public FloodGuard(Limit defaultLimit) {
+        mDefaultLimit = defaultLimit;
+    }
+
+    /**
+     * Create the party host's inbound rate limits. Drawing allows a full canvas in one burst and
+     * is coalesced over the limit, everything else is occasional and dropped over the limit.
+     */
+    public static FloodGuard createForPartyHost() {
+        FloodGuard guard = new FloodGuard(new Limit(5, 10, false));
+        guard.setLimit(EPointMessage.class.getSimpleName(),
+                new Limit(60, DrawView.GRID_SIZE * DrawView.GRID_SIZE, true));
+        guard.setLimit(StrokeMessage.class.getSimpleName(), new Limit(40, 80, false));
+        guard.setLimit(CanvasAckMessage.class.getSimpleName(), new Limit(20, 20, false));
+        guard.setLimit(ClockSyncMessage.class.getSimpleName(), new Limit(1, 4, false));
+        guard.setLimit(RosterMessage.class.getSimpleName(), new Limit(1, 3, false));
+        return guard;
+    }
+
+    /**
+     * Set the limit for one message type.
+     *
+     * @param type  the message type, the simple name of the Message class.
+     * @param limit the limit to apply.
+     */
+    public void setLimit(String type, Limit limit) {
+        mLimits.put(type, limit);
+        for (Endpoint endpoint : mEndpoints.values()) {
+            endpoint.buckets.remove(type);
+        }
+    }
+
+    public void setDefaultLimit(Limit limit) {
+        mDefaultLimit = limit;
+        for (Endpoint endpoint : mEndpoints.values()) {
+            endpoint.buckets.clear();
+        }
+    }
+
+    /**
+     * Set when an endpoint should be disconnected.
+     *
+     * @param violationsPerStrike over limit messages in one second that count as a strike.
+     * @param maxStrikes          consecutive strikes that lead to a disconnect.
+     */
+    public void setStrikePolicy(int violationsPerStrike, int maxStrikes) {
+        mViolationsPerStrike = violationsPerStrike;
+        mMaxStrikes = maxStrikes;
+    }
+
+    /**
+     * Take a token for a received message.
+     *
+     * @param endpointId the sender.
+     * @param type       the message type, the simple name of the Message class.
+     * @param now        the current time, in milliseconds.
+     * @return RESULT_ALLOW to handle the message, RESULT_COALESCE or RESULT_DROP if it is over
+     * the limit, or RESULT_DISCONNECT if the sender should be disconnected.
+     */
+    public int onMessage(String endpointId, String type, long now) {
+        Endpoint endpoint = getEndpoint(endpointId, now);
+        Limit limit = getLimit(type);
+        if (take(endpoint, type, limit, now)) {
+            endpoint.allowed++;
+            mAllowed++;
+            return RESULT_ALLOW;
+        }
+
+        if (addViolation(endpoint, now)) {
+            mDisconnects++;
+            return RESULT_DISCONNECT;
+        }
+
+        if (limit.coalesce) {
+            endpoint.coalesced++;
+            mCoalesced++;
+            return RESULT_COALESCE;
+        } else {
+            endpoint.dropped++;
+            mDropped++;
+            return RESULT_DROP;
+        }
+    }
+
+    /**
+     * Count a message that could not be read, which is dropped. Each window with such a message
+     * is a strike, so a client that keeps sending garbage is disconnected, and a single bad
+     * message is forgiven by the next clean window.
+     *
+     * @param endpointId the sender.
+     * @param now        the current time, in milliseconds.
+     * @return RESULT_DROP, or RESULT_DISCONNECT if the sender should be disconnected.
+     */
+    public int onMalformed(String endpointId, long now) {
+        Endpoint endpoint = getEndpoint(endpointId, now);
+        rollWindow(endpoint, now);
+        endpoint.dropped++;
+        mDropped++;
+        if (addStrike(endpoint)) {
+            mDisconnects++;
+            return RESULT_DISCONNECT;
+        }
+        return RESULT_DROP;
+    }
+
+    /**
+     * Take a token for a message that was coalesced earlier and is now due, without counting
+     * another violation if none is available.
+     *
+     * @return true if the message may be handled now.
+     */
+    public boolean tryRelease(String endpointId, String type, long now) {
+        Endpoint endpoint = getEndpoint(endpointId, now);
+        if (take(endpoint, type, getLimit(type), now)) {
+            endpoint.allowed++;
+            mAllowed++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forget an endpoint that has disconnected.
+     */
+    public void remove(String endpointId) {
+        mEndpoints.remove(endpointId);
+    }
+
+    public void clear() {
+        mEndpoints.clear();
+    }
+
+    private Limit getLimit(String type) {
+        Limit limit = mLimits.get(type);
+        return (limit == null) ? mDefaultLimit : limit;
+    }
+
+    private Endpoint getEndpoint(String endpointId, long now) {
+        Endpoint endpoint = mEndpoints.get(endpointId);
+        if (endpoint == null) {
+            endpoint = new Endpoint();
+            endpoint.windowStart = now;
+            mEndpoints.put(endpointId, endpoint);
+        }
+        return endpoint;
+    }
+
+    private boolean take(Endpoint endpoint, String type, Limit limit, long now) {
+        Bucket bucket = endpoint.buckets.get(type);
+        if (bucket == null) {
+            bucket = new Bucket();
+            bucket.tokens = limit.burst;
+            bucket.lastRefill = now;
+            endpoint.buckets.put(type, bucket);
+        }
+
+        long elapsed = now - bucket.lastRefill;
+        if (elapsed > 0) {
+            bucket.tokens = Math.min(limit.burst,
+                    bucket.tokens + elapsed * limit.ratePerSecond / 1000.0);
+            bucket.lastRefill = now;
+        }
+
+        if (bucket.tokens >= 1) {
+            bucket.tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Count an over limit message against the endpoint.
+     *
+     * @return true if the endpoint has used up its strikes.
+     */
+    private boolean addViolation(Endpoint endpoint, long now) {
+        rollWindow(endpoint, now);
+        endpoint.windowViolations++;
+        if (endpoint.windowViolations == mViolationsPerStrike + 1) {
+            return addStrike(endpoint);
+        }
+        return endpoint.strikes >= mMaxStrikes;
+    }
+
+    /**
+     * Count a strike against the endpoint, at most one per window.
+     *
+     * @return true if the endpoint has used up its strikes.
+     */
+    private boolean addStrike(Endpoint endpoint) {
+        if (!endpoint.windowStruck) {
+            endpoint.windowStruck = true;
+            endpoint.strikes++;
+        }
+        return endpoint.strikes >= mMaxStrikes;
+    }
+
+    /**
+     * Start a new window if the current one is over.
+     */
+    private void rollWindow(Endpoint endpoint, long now) {
+        if (now - endpoint.windowStart >= WINDOW_MS) {
+            // Windows without a strike, including empty ones, forgive earlier strikes
+            boolean consecutive = now - endpoint.windowStart < 2 * WINDOW_MS;
+            if (!endpoint.windowStruck || !consecutive) {
+                endpoint.strikes = 0;
+            }
+            endpoint.windowStart = now;
+            endpoint.windowViolations = 0;
+            endpoint.windowStruck = false;
+        }
+    }
+
+    public long getAllowedCount() {
+        return mAllowed;
+    }
+
+    public long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    public long getDisconnectCount() {
+        return mDisconnects;
+    }
+
+    /**
+     * Get the counters for one endpoint as text, or null if nothing was received from it.
+     */
+    public String getSummary(String endpointId) {
+        Endpoint endpoint = mEndpoints.get(endpointId);
+        if (endpoint == null) {
+            return null;
+        }
+        return String.format(Locale.US, "allowed=%d coalesced=%d dropped=%d strikes=%d",
+                endpoint.allowed, endpoint.coalesced, endpoint.dropped, endpoint.strikes);
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "allowed=%d coalesced=%d dropped=%d disconnects=%d",
+                mAllowed, mCoalesced, mDropped, mDisconnects);
+    }
+}
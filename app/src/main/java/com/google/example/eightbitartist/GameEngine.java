@@ -0,0 +1,888 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.GuessMessage;
+import com.google.example.eightbitartist.messages.GuessResultMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.RosterMessage;
+import com.google.example.eightbitartist.messages.SessionMessage;
+import com.google.example.eightbitartist.messages.TurnMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The rules of the game: the roster, turn rotation, word choice, guesses and scoring. The engine
+ * knows nothing about the UI or the network. It is driven by local input (startMatch, endTurn,
+ * makeGuess), roster changes and received messages, and reports back through a Listener: the
+ * messages to send to the other participants and the state changes to show.
+ * <p>
+ * All methods must be called from the same thread, generally the main thread.
+ */
+public class GameEngine {
+
+    // The party host is always the first participant
+    public static final int HOST_SESSION_ID = 0;
+
+    // Words to choose from each turn
+    public static final int WORDS_PER_TURN = 10;
+
+    // A guess is worth MAX_GUESS_POINTS at the start of a turn, one point less every
+    // GUESS_POINT_INTERVAL_MS, and never less than one point
+    public static final int MAX_GUESS_POINTS = 30;
+    public static final long GUESS_POINT_INTERVAL_MS = 1000L;
+
+    // Messages kept for a turn this device has not started yet
+    private static final int MAX_FUTURE_MESSAGES = 256;
+
+    /**
+     * Receives the output of the engine.
+     */
+    public interface Listener {
+        /**
+         * Send a message to all other participants that consume it.
+         */
+        void onSendMessage(Message message);
+
+        /**
+         * A message the game rules do not handle (drawing, canvas state, clock sync) arrived for
+         * the current turn.
+         */
+        void onMessage(Message message);
+
+        /**
+         * A turn started, check isMyTurn() and isDrawing() for the role of the local player.
+         */
+        void onTurnStarted();
+
+        /**
+         * A participant joined or a score changed.
+         */
+        void onRosterChanged();
+
+        /**
+         * A participant left the match. It keeps its slot in case it comes back.
+         */
+        void onParticipantLeft(DrawingParticipant participant);
+
+        /**
+         * The local player made a guess.
+         */
+        void onGuessResult(boolean correct, String guessedWord, String correctWord);
+
+        /**
+         * The local player is the referee and has judged a guess. Call flushGuessResults()
+         * shortly, so that guesses judged close together are sent as one message.
+         */
+        void onGuessResultsPending();
+
+        /**
+         * The referee judged a guess, here or on another device. Called once per guess.
+         *
+         * @param guesserId the session ID of the guesser.
+         * @param turn      the turn the guess was made in, this turn or the previous one.
+         * @param points    the points the guess earned, 0 if it was wrong.
+         * @param elapsedMs how long after the start of its turn the guess was made.
+         */
+        void onGuessJudged(int guesserId, int turn, int points, long elapsedMs);
+
+        /**
+         * Every other player has guessed, while the local player is the artist.
+         */
+        void onAllGuessed();
+
+        /**
+         * A turn uses a word pack other than the current one. Open it, so the engine can
+         * switch to it.
+         *
+         * @return the pack, or null if this device does not have it.
+         */
+        WordDictionary onLoadDictionary(String pack);
+
+        /**
+         * A turn was started by a device with a word pack this device does not have, so it
+         * cannot derive the words. The turn is ignored.
+         */
+        void onDictionaryMismatch();
+    }
+
+    private WordDictionary mDictionary;
+    private Random mRandom;
+
+    // Derives the words of every turn from the match seed
+    private WordSampler mSampler;
+    private Listener mListener;
+
+    // All participants in the match, indexed by session ID. Participants that were in this
+    // match at one time, but left, keep their slot in case they reconnect.
+    private ParticipantTable mParticipants = new ParticipantTable();
+
+    // The player's session id.  This maps to DrawingParticipant.sessionId
+    private int mMySessionId = ParticipantTable.NO_SESSION;
+
+    // The name of the party host, used by clients
+    private String mHostName;
+
+    // The match turn number, monotonically increasing from 0
+    private int mTurnNumber = 0;
+
+    // How many players draw at once: the artist and the next ones in turn order. Set before a
+    // match by the device that starts it, and taken from every TurnMessage.
+    private int mTeamSize = 1;
+
+    // The eligible guess words for this turn
+    private List<String> mTurnWords;
+
+    // The words of the turn after mTurnNumber, derived ahead of time by prepareNextTurn. They
+    // are only used for turn mNextTurnNumber of the match with seed mNextTurnSeed.
+    private List<String> mNextTurnWords;
+    private int mNextWordIndex;
+    private int mNextTurnNumber = -1;
+    private long mNextTurnSeed;
+
+    // The index of the correct word
+    private int mWordIndex = 0;
+
+    // The index of the correct word of the previous turn, to score guesses that were made
+    // during that turn but arrive after this one started. -1 if there was no previous turn.
+    private int mPreviousWordIndex = -1;
+
+    // When this turn and the previous one started, on the party host's clock
+    private long mTurnStartTime = 0;
+    private long mPreviousTurnStartTime = 0;
+
+    // Turn-scoped messages that arrived before the TurnMessage starting their turn, replayed
+    // once it arrives
+    private List<Message> mFutureMessages = new ArrayList<>();
+    private long mStaleMessages = 0;
+
+    // Session IDs of players that have guessed this turn and the previous one
+    private BitSet mGuessersThisTurn = new BitSet();
+    private BitSet mPreviousGuessers = new BitSet();
+
+    // Guesses the referee judged but has not sent yet, GuessResultMessage.RESULT_SIZE ints each
+    private int[] mPendingResults = new int[GuessResultMessage.RESULT_SIZE * 8];
+    private int mPendingResultsLength = 0;
+    private long mRejectedGuesses = 0;
+
+    // True if this player has already guessed this turn, false otherwise
+    private boolean mHasGuessed = false;
+
+    /**
+     * Create a new GameEngine.
+     *
+     * @param dictionary the word pack to play with.
+     * @param random   source of the match seeds, seed it for a repeatable match.
+     * @param listener receives the messages to send and the state changes.
+     */
+    public GameEngine(WordDictionary dictionary, Random random, Listener listener) {
+        mRandom = random;
+        mListener = listener;
+        setDictionary(dictionary);
+    }
+
+    public WordDictionary getDictionary() {
+        return mDictionary;
+    }
+
+    /**
+     * Play with another word pack. Only change it between matches: the other devices switch to
+     * the pack of the first artist of a match.
+     */
+    public void setDictionary(WordDictionary dictionary) {
+        mDictionary = dictionary;
+        mSampler = new WordSampler(dictionary.size(), WORDS_PER_TURN);
+        mTurnWords = Collections.singletonList(dictionary.get(0));
+        mWordIndex = 0;
+        mNextTurnNumber = -1;
+    }
+
+    public ParticipantTable getParticipantTable() {
+        return mParticipants;
+    }
+
+    public int getMySessionId() {
+        return mMySessionId;
+    }
+
+    public void setMySessionId(int sessionId) {
+        mMySessionId = sessionId;
+    }
+
+    public void setHostName(String hostName) {
+        mHostName = hostName;
+    }
+
+    /**
+     * Add a participant to the match. If the participant is already connected, this method does
+     * nothing but report the roster.
+     */
+    public void addParticipant(DrawingParticipant participant) {
+        if (!mParticipants.isConnected(participant.getSessionId())) {
+            mParticipants.put(participant);
+        }
+        mListener.onRosterChanged();
+    }
+
+    /**
+     * Remove a participant from the match. It keeps its slot for a while in case it reconnects.
+     *
+     * @param sessionId the session ID of the participant.
+     * @param now       the current time, in milliseconds.
+     * @return the participant, or null if the session ID was not connected.
+     */
+    public DrawingParticipant removeParticipant(int sessionId, long now) {
+        DrawingParticipant participant = mParticipants.remove(sessionId, now);
+        if (participant != null) {
+            mListener.onParticipantLeft(participant);
+        }
+        return participant;
+    }
+
+    public int getTurnNumber() {
+        return mTurnNumber;
+    }
+
+    public List<String> getTurnWords() {
+        return mTurnWords;
+    }
+
+    public int getWordIndex() {
+        return mWordIndex;
+    }
+
+    /**
+     * Get the word the artist is drawing this turn.
+     */
+    public String getWord() {
+        return mTurnWords.get(mWordIndex);
+    }
+
+    /**
+     * Get the seed of the match, which with the turn number identifies a turn.
+     */
+    public long getMatchSeed() {
+        return mSampler.getSeed();
+    }
+
+    /**
+     * Get when the current turn started, on the party host's clock. In an RTMP room, where there
+     * is no host, this is the local time the turn reached this device.
+     */
+    public long getTurnStartTime() {
+        return mTurnStartTime;
+    }
+
+    /**
+     * Get the points a correct guess earns.
+     *
+     * @param elapsedMs how long after the start of the turn the guess was made.
+     * @return MAX_GUESS_POINTS at the start of the turn, one less every GUESS_POINT_INTERVAL_MS,
+     * and at least 1.
+     */
+    public static int getGuessPoints(long elapsedMs) {
+        long lost = Math.max(0, elapsedMs) / GUESS_POINT_INTERVAL_MS;
+        return (int) Math.max(1, MAX_GUESS_POINTS - lost);
+    }
+
+    public boolean hasGuessed() {
+        return mHasGuessed;
+    }
+
+    public long getStaleCount() {
+        return mStaleMessages;
+    }
+
+    /**
+     * Determines if the local player is drawing or guessing. It is the player's turn when the
+     * match turn number modulo the number of participants is the player's turn index.
+     *
+     * @return true if the local player is the artist, false otherwise. Also true if there are no
+     * participants yet.
+     */
+    public boolean isMyTurn() {
+        int numParticipants = mParticipants.size();
+        if (numParticipants == 0) {
+            return true;
+        }
+        return mParticipants.getTurnIndex(mMySessionId) == mTurnNumber % numParticipants;
+    }
+
+    /**
+     * Find the participant who is drawing this turn. Turn order is the order of session IDs,
+     * which are consistent across devices (but not across sessions).
+     *
+     * @return the artist, or null if there are no participants.
+     */
+    public DrawingParticipant getArtist() {
+        if (mParticipants.isEmpty()) {
+            return null;
+        }
+        return mParticipants.getByTurnIndex(mTurnNumber % mParticipants.size());
+    }
+
+    /**
+     * Set how many players draw at once in the matches this device starts. Other devices take
+     * it from the TurnMessages.
+     */
+    public void setTeamSize(int teamSize) {
+        mTeamSize = Math.max(1, teamSize);
+    }
+
+    /**
+     * @return how many players draw this turn. At least one player is always left to guess.
+     */
+    public int getTeamSize() {
+        return Math.max(1, Math.min(mTeamSize, mParticipants.size() - 1));
+    }
+
+    /**
+     * Determines if a participant draws this turn: the artist or, in a team turn, one of the
+     * getTeamSize() - 1 participants after the artist in turn order.
+     *
+     * @param sessionId the session ID of the participant.
+     */
+    public boolean isArtist(int sessionId) {
+        return getArtistIndex(sessionId) >= 0;
+    }
+
+    /**
+     * Get the place of a participant among the artists of this turn.
+     *
+     * @param sessionId the session ID of the participant.
+     * @return 0 for the artist whose turn it is, 1 for the next one in turn order and so on, or
+     * -1 if the participant does not draw this turn.
+     */
+    public int getArtistIndex(int sessionId) {
+        int numParticipants = mParticipants.size();
+        if (numParticipants == 0) {
+            return (sessionId == mMySessionId) ? 0 : -1;
+        }
+        int turnIndex = mParticipants.getTurnIndex(sessionId);
+        if (turnIndex < 0) {
+            return -1;
+        }
+        int index = (turnIndex - mTurnNumber % numParticipants + numParticipants)
+                % numParticipants;
+        return (index < getTeamSize()) ? index : -1;
+    }
+
+    /**
+     * @return true if the local player draws this turn, see isArtist. Only the artist whose
+     * turn it is (isMyTurn) ends it.
+     */
+    public boolean isDrawing() {
+        return isArtist(mMySessionId);
+    }
+
+    /**
+     * Build a TurnMessage describing the current turn, including the score of every participant.
+     */
+    public TurnMessage createTurnMessage() {
+        TurnMessage turnMessage = new TurnMessage(mTurnNumber, mSampler.getSeed(),
+                mDictionary.getName(), mDictionary.getHash());
+        turnMessage.setScores(mParticipants.getScores());
+        turnMessage.setStartTime(mTurnStartTime);
+        turnMessage.setTeamSize(mTeamSize);
+        return turnMessage;
+    }
+
+    /**
+     * Begin a new match. If the local player draws first, choose the match seed and send the
+     * first TurnMessage.
+     *
+     * @param hostNow the current time on the party host's clock.
+     */
+    public void startMatch(long hostNow) {
+        if (isMyTurn()) {
+            mTurnStartTime = hostNow;
+            mSampler.reset(mRandom.nextLong());
+            chooseWords();
+            mListener.onSendMessage(createTurnMessage());
+        }
+        beginTurn();
+    }
+
+    /**
+     * End the local player's turn as the artist and pass the turn to the next participant.
+     *
+     * @param hostNow the current time on the party host's clock. The host replaces it with the
+     *                time it relays the TurnMessage, if the artist is a client.
+     */
+    public void endTurn(long hostNow) {
+        // Increment turn number, keeping the old word to score guesses still on their way
+        mTurnNumber++;
+        mPreviousWordIndex = mWordIndex;
+        mPreviousTurnStartTime = mTurnStartTime;
+        mTurnStartTime = hostNow;
+
+        chooseWords();
+        mListener.onSendMessage(createTurnMessage());
+        beginTurn();
+    }
+
+    /**
+     * Record the local player's guess and send it to the referee, which scores it. The result
+     * is shown straight away; the score changes when the referee's result arrives.
+     *
+     * @param position  the index in the word list of the guess.
+     * @param guessTime when the guess was made, on the party host's clock.
+     */
+    public void makeGuess(int position, long guessTime) {
+        makeGuess(position, mTurnWords.get(position), guessTime);
+    }
+
+    /**
+     * Record a typed guess, see makeGuess(int, long). A word that is not one of this turn's
+     * words is a wrong guess.
+     *
+     * @param word      the dictionary word the guess was matched to.
+     * @param guessTime when the guess was made, on the party host's clock.
+     */
+    public void makeGuess(String word, long guessTime) {
+        makeGuess(mTurnWords.indexOf(word), word, guessTime);
+    }
+
+    private void makeGuess(int position, String word, long guessTime) {
+        if (mHasGuessed) {
+            return;
+        }
+        mHasGuessed = true;
+
+        int potentialPoints = getGuessPoints(guessTime - mTurnStartTime);
+        if (isReferee()) {
+            judgeGuess(mMySessionId, mTurnNumber, position, potentialPoints, guessTime);
+        } else {
+            mListener.onSendMessage(
+                    new GuessMessage(position, potentialPoints, mMySessionId, guessTime));
+        }
+
+        boolean correct = (position == mWordIndex);
+        mListener.onGuessResult(correct, word, getWord());
+    }
+
+    /**
+     * Determines if the local player judges the guesses: the party host, or in an RTMP room the
+     * connected participant with the lowest session ID.
+     */
+    public boolean isReferee() {
+        return mParticipants.isEmpty() || mParticipants.getTurnIndex(mMySessionId) == 0;
+    }
+
+    /**
+     * Get the participant who judges the guesses, see isReferee().
+     *
+     * @return the referee, or null if there are no participants.
+     */
+    public DrawingParticipant getReferee() {
+        return mParticipants.getByTurnIndex(0);
+    }
+
+    /**
+     * Send the guesses judged since the last call as one GuessResultMessage. Does nothing if
+     * there are none.
+     */
+    public void flushGuessResults() {
+        if (mPendingResultsLength == 0) {
+            return;
+        }
+        int[] results = Arrays.copyOf(mPendingResults, mPendingResultsLength);
+        mPendingResultsLength = 0;
+        mListener.onSendMessage(new GuessResultMessage(results));
+    }
+
+    /**
+     * Get the number of guesses the referee refused: repeats, guesses from the artist or from
+     * players not in the match, and guesses for turns that are over.
+     */
+    public long getRejectedGuessCount() {
+        return mRejectedGuesses;
+    }
+
+    /**
+     * Score a guess with the party host's clock, replacing the points the guesser claimed. The
+     * guess time is clamped between the start of its turn and when the host received it, so a
+     * guesser with a wrong clock offset can neither gain points nor lose more than its latency.
+     *
+     * @param msg        the guess, relayed by the host once scored.
+     * @param receivedAt when the host received the guess.
+     */
+    public void scoreGuess(GuessMessage msg, long receivedAt) {
+        long turnStartTime;
+        if (msg.getTurn() == Message.NO_TURN || msg.getTurn() == mTurnNumber) {
+            turnStartTime = mTurnStartTime;
+        } else if (msg.getTurn() == mTurnNumber - 1) {
+            turnStartTime = mPreviousTurnStartTime;
+        } else {
+            // Too old to count, onGuessMessage ignores it
+            return;
+        }
+
+        long guessTime = Math.max(turnStartTime, Math.min(msg.getGuessTime(), receivedAt));
+        msg.setGuessTime(guessTime);
+        msg.setPotentialPoints(getGuessPoints(guessTime - turnStartTime));
+    }
+
+    /**
+     * @return true if the message belongs to an earlier turn and should be dropped. Late
+     * guesses are not stale, since they still count for the turn they were made in.
+     */
+    public boolean isStale(Message message) {
+        return message.isTurnScoped() && message.getTurn() != Message.NO_TURN
+                && message.getTurn() < mTurnNumber && !(message instanceof GuessMessage);
+    }
+
+    /**
+     * Take the appropriate action for a message received from another participant. Messages for
+     * a turn that has not started here yet are held until it does, and messages for a turn that
+     * is over are dropped.
+     *
+     * @param message the message to handle.
+     * @param now     the current time, in milliseconds.
+     */
+    public void onMessageReceived(Message message, long now) {
+        if (message.isTurnScoped() && message.getTurn() > mTurnNumber) {
+            // The artist of a later turn started before its TurnMessage reached us
+            if (mFutureMessages.size() < MAX_FUTURE_MESSAGES) {
+                mFutureMessages.add(message);
+            }
+            return;
+        } else if (isStale(message)) {
+            // Drawing for a turn that is over, not for the new artist's canvas
+            mStaleMessages++;
+            return;
+        }
+
+        if (message instanceof TurnMessage) {
+            onTurnMessage((TurnMessage) message, now);
+        } else if (message instanceof GuessMessage) {
+            onGuessMessage((GuessMessage) message);
+        } else if (message instanceof GuessResultMessage) {
+            onGuessResultMessage((GuessResultMessage) message);
+        } else if (message instanceof SessionMessage) {
+            // The host assigned this client its session ID
+            mMySessionId = ((SessionMessage) message).getSessionId();
+        } else if (message instanceof RosterMessage) {
+            onRosterMessage((RosterMessage) message, now);
+        } else {
+            mListener.onMessage(message);
+        }
+    }
+
+    /**
+     * Clear all match state, when leaving the game.
+     */
+    public void reset() {
+        mParticipants.clear();
+        mGuessersThisTurn.clear();
+        mMySessionId = ParticipantTable.NO_SESSION;
+        mHostName = null;
+        mTurnNumber = 0;
+        mPreviousWordIndex = -1;
+        mPreviousGuessers.clear();
+        mPendingResultsLength = 0;
+        mTurnStartTime = 0;
+        mPreviousTurnStartTime = 0;
+        mSampler.reset(0);
+        mNextTurnNumber = -1;
+        mFutureMessages.clear();
+        mHasGuessed = false;
+    }
+
+    /**
+     * Pick up a match saved by MatchJournal before this process was killed, with the same word
+     * pack. Nothing is sent and no turn is started: the turn starts again when it is announced.
+     * On the party host the other participants are kept as departed, so that each gets its
+     * session ID and score back when it reconnects. A client gets the roster from the host.
+     *
+     * @param match the saved match, with a turn.
+     * @param now   the current time, in milliseconds.
+     */
+    public void restoreMatch(SavedMatch match, long now) {
+        reset();
+        mMySessionId = match.getMySessionId();
+        mHostName = match.getHostName();
+        for (DrawingParticipant participant : match.getParticipants()) {
+            mParticipants.put(participant);
+        }
+        if (match.isHost()) {
+            for (DrawingParticipant participant : match.getParticipants()) {
+                if (participant.getSessionId() != mMySessionId) {
+                    mParticipants.remove(participant.getSessionId(), now);
+                }
+            }
+        }
+
+        TurnMessage turn = match.getTurn();
+        mSampler.reset(turn.getSeed());
+        mTurnNumber = turn.getTurnNumber();
+        mTurnStartTime = turn.getStartTime();
+        mTeamSize = Math.max(1, turn.getTeamSize());
+        chooseWords();
+    }
+
+    private void onTurnMessage(TurnMessage msg, long now) {
+        if (msg.getTurnNumber() < mTurnNumber) {
+            // An older turn, already replaced
+            return;
+        }
+        if (msg.getPack() != null && !msg.getPack().equals(mDictionary.getName())) {
+            // Play with the pack of the match
+            WordDictionary dictionary = mListener.onLoadDictionary(msg.getPack());
+            if (dictionary != null) {
+                setDictionary(dictionary);
+            }
+        }
+        if (msg.getDictionaryHash() != mDictionary.getHash()) {
+            mListener.onDictionaryMismatch();
+            return;
+        }
+        if (msg.getSeed() != mSampler.getSeed()) {
+            // A new match
+            mSampler.reset(msg.getSeed());
+        }
+
+        mPreviousWordIndex = (msg.getTurnNumber() == mTurnNumber + 1) ? mWordIndex : -1;
+        mPreviousTurnStartTime = mTurnStartTime;
+        mTurnStartTime = msg.getStartTime();
+        mTurnNumber = msg.getTurnNumber();
+        mTeamSize = Math.max(1, msg.getTeamSize());
+        chooseWords();
+
+        // Adopt the scores of the referee, which the party host writes into every turn
+        int[] scores = msg.getScores();
+        if (scores != null) {
+            for (int i = 0; i + 1 < scores.length; i += 2) {
+                DrawingParticipant participant = mParticipants.get(scores[i]);
+                if (participant != null) {
+                    participant.setScore(scores[i + 1]);
+                }
+            }
+        }
+
+        beginTurn();
+        replayFutureMessages(now);
+    }
+
+    private void onGuessMessage(GuessMessage msg) {
+        if (!isReferee()) {
+            // Only the referee judges guesses, everyone else applies its results
+            return;
+        }
+        int turn = (msg.getTurn() == Message.NO_TURN) ? mTurnNumber : msg.getTurn();
+        judgeGuess(msg.getGuesserId(), turn, msg.getGuessIndex(), msg.getPotentialPoints(),
+                msg.getGuessTime());
+    }
+
+    /**
+     * Judge a guess as the referee: refuse it if the guesser cannot guess (again) in that turn,
+     * otherwise score it, apply the result and queue it for the next GuessResultMessage.
+     */
+    private void judgeGuess(int guesserId, int turn, int guessIndex, int potentialPoints,
+                            long guessTime) {
+        BitSet guessers;
+        int wordIndex;
+        long turnStartTime;
+        if (turn == mTurnNumber) {
+            guessers = mGuessersThisTurn;
+            wordIndex = mWordIndex;
+            turnStartTime = mTurnStartTime;
+        } else if (turn == mTurnNumber - 1 && mPreviousWordIndex >= 0) {
+            // Made during the previous turn, so score it against that turn's word
+            guessers = mPreviousGuessers;
+            wordIndex = mPreviousWordIndex;
+            turnStartTime = mPreviousTurnStartTime;
+        } else {
+            mRejectedGuesses++;
+            return;
+        }
+
+        DrawingParticipant guesser = mParticipants.get(guesserId);
+        if (guesser == null || guessers.get(guesserId)
+                || (turn == mTurnNumber && isArtist(guesserId))) {
+            mRejectedGuesses++;
+            return;
+        }
+
+        int points = 0;
+        if (guessIndex == wordIndex) {
+            points = Math.max(1, Math.min(MAX_GUESS_POINTS, potentialPoints));
+        }
+        int score = guesser.getScore() + points;
+        int elapsed = (int) Math.max(0, Math.min(Integer.MAX_VALUE, guessTime - turnStartTime));
+        applyGuessResult(guesserId, turn, points, score, elapsed);
+
+        if (mPendingResultsLength == 0) {
+            mListener.onGuessResultsPending();
+        }
+        if (mPendingResultsLength + GuessResultMessage.RESULT_SIZE > mPendingResults.length) {
+            mPendingResults = Arrays.copyOf(mPendingResults, mPendingResults.length * 2);
+        }
+        mPendingResults[mPendingResultsLength + GuessResultMessage.RESULT_GUESSER] = guesserId;
+        mPendingResults[mPendingResultsLength + GuessResultMessage.RESULT_TURN] = turn;
+        mPendingResults[mPendingResultsLength + GuessResultMessage.RESULT_POINTS] = points;
+        mPendingResults[mPendingResultsLength + GuessResultMessage.RESULT_SCORE] = score;
+        mPendingResults[mPendingResultsLength + GuessResultMessage.RESULT_ELAPSED] = elapsed;
+        mPendingResultsLength += GuessResultMessage.RESULT_SIZE;
+    }
+
+    private void onGuessResultMessage(GuessResultMessage msg) {
+        int[] results = msg.getResults();
+        for (int i = 0; i + GuessResultMessage.RESULT_SIZE <= results.length;
+             i += GuessResultMessage.RESULT_SIZE) {
+            applyGuessResult(results[i + GuessResultMessage.RESULT_GUESSER],
+                    results[i + GuessResultMessage.RESULT_TURN],
+                    results[i + GuessResultMessage.RESULT_POINTS],
+                    results[i + GuessResultMessage.RESULT_SCORE],
+                    results[i + GuessResultMessage.RESULT_ELAPSED]);
+        }
+        mListener.onRosterChanged();
+    }
+
+    /**
+     * Record that a player guessed in a turn and set their score, telling the artist once
+     * every other player has guessed.
+     */
+    private void applyGuessResult(int guesserId, int turn, int points, int score, int elapsed) {
+        DrawingParticipant guesser = mParticipants.get(guesserId);
+        if (guesser != null) {
+            guesser.setScore(score);
+        }
+        mListener.onGuessJudged(guesserId, turn, points, elapsed);
+
+        if (turn == mTurnNumber && !mGuessersThisTurn.get(guesserId)) {
+            mGuessersThisTurn.set(guesserId);
+            boolean allHaveGuessed =
+                    mGuessersThisTurn.cardinality() >= mParticipants.size() - getTeamSize();
+            if (isMyTurn() && allHaveGuessed) {
+                mListener.onAllGuessed();
+            }
+        } else if (turn == mTurnNumber - 1) {
+            mPreviousGuessers.set(guesserId);
+        }
+    }
+
+    private void onRosterMessage(RosterMessage msg, long now) {
+        if (msg.getIsSnapshot()) {
+            // Anyone not in the snapshot is no longer in the match
+            BitSet listed = new BitSet();
+            for (DrawingParticipant participant : msg.getParticipants()) {
+                listed.set(participant.getSessionId());
+            }
+            for (DrawingParticipant current : mParticipants.getParticipants()) {
+                if (!listed.get(current.getSessionId())) {
+                    removeParticipant(current.getSessionId(), now);
+                }
+            }
+        }
+        for (int sessionId : msg.getLeftSessionIds()) {
+            removeParticipant(sessionId, now);
+        }
+
+        for (DrawingParticipant participant : msg.getParticipants()) {
+            if (participant.getSessionId() == mMySessionId) {
+                participant.setDisplayName("Me");
+            } else if (participant.getSessionId() == HOST_SESSION_ID && mHostName != null) {
+                participant.setDisplayName(mHostName);
+            }
+
+            DrawingParticipant current = mParticipants.get(participant.getSessionId());
+            if (current != null) {
+                // Current participant, update the score
+                current.setScore(participant.getScore());
+            } else {
+                // New or returning participant, the host sends their old score
+                mParticipants.put(participant);
+            }
+        }
+        mListener.onRosterChanged();
+    }
+
+    /**
+     * Start the turn in mTurnNumber, with nobody having guessed yet.
+     */
+    private void beginTurn() {
+        mHasGuessed = false;
+
+        // Keep who guessed in the last turn, to refuse their guesses still on the way
+        BitSet previousGuessers = mPreviousGuessers;
+        mPreviousGuessers = mGuessersThisTurn;
+        mGuessersThisTurn = previousGuessers;
+        mGuessersThisTurn.clear();
+        mListener.onTurnStarted();
+    }
+
+    /**
+     * Handle the messages that arrived early for the turn that just started.
+     */
+    private void replayFutureMessages(long now) {
+        if (mFutureMessages.isEmpty()) {
+            return;
+        }
+
+        List<Message> messages = mFutureMessages;
+        mFutureMessages = new ArrayList<>();
+        for (Message message : messages) {
+            onMessageReceived(message, now);
+        }
+    }
+
+    /**
+     * Derive the words of the next turn now, so that starting it does not have to. Call when
+     * there is time to spare, such as once a turn is on screen.
+     */
+    public void prepareNextTurn() {
+        int turn = mTurnNumber + 1;
+        if (mNextTurnNumber == turn && mNextTurnSeed == mSampler.getSeed()) {
+            return;
+        }
+
+        mSampler.select(turn);
+        mNextTurnWords = getSampledWords();
+        mNextWordIndex = mSampler.getCorrectWord();
+        mNextTurnNumber = turn;
+        mNextTurnSeed = mSampler.getSeed();
+    }
+
+    /**
+     * Derive the words of mTurnNumber and the correct one among them from the match seed,
+     * unless prepareNextTurn already did.
+     */
+    private void chooseWords() {
+        if (mNextTurnNumber == mTurnNumber && mNextTurnSeed == mSampler.getSeed()) {
+            mTurnWords = mNextTurnWords;
+            mWordIndex = mNextWordIndex;
+        } else {
+            mSampler.select(mTurnNumber);
+            mTurnWords = getSampledWords();
+            mWordIndex = mSampler.getCorrectWord();
+        }
+        mNextTurnNumber = -1;
+    }
+
+    private List<String> getSampledWords() {
+        List<String> words = new ArrayList<>(mSampler.getWordsPerTurn());
+        for (int i = 0; i < mSampler.getWordsPerTurn(); i++) {
+            words.add(mDictionary.get(mSampler.getWord(i)));
+        }
+        return words;
+    }
+}
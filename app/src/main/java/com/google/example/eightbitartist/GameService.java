@@ -0,0 +1,651 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.google.example.eightbitartist.messages.ClockSyncMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.MessageAdapter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * A bound Service that owns the game and the Nearby Connections session of a party, so that the
+ * party does not depend on the DrawingActivity. While a party is running the Service is also
+ * started and in the foreground, which keeps the process, the game and its connections alive
+ * when the player switches to another app or the activity is recreated. The activity attaches
+ * to the Service as its Listener while it exists; without one, the Service keeps the party
+ * going on its own: it hosts, relays, judges guesses and saves the match, and nothing is shown.
+ */
+public class GameService extends Service {
+
+    private static final String TAG = GameService.class.getSimpleName();
+
+    private static final int NOTIFICATION_ID = 8001;
+
+    // How often a party client re-measures its clock offset to the host
+    private static final long CLOCK_SYNC_INTERVAL_MS = 5000L;
+
+    // How often the referee sends the results of the guesses it judged
+    private static final long GUESS_RESULT_TICK_MS = 1000L;
+
+    // Word packs are compiled into assets/words at build time, see WordDictionary
+    static final String WORD_PACK_DIR = "words";
+    static final String WORD_PACK_EXTENSION = ".dict";
+
+    /**
+     * Binder returned to the activity, giving direct access to the Service in this process.
+     */
+    public class LocalBinder extends Binder {
+        public GameService getService() {
+            return GameService.this;
+        }
+    }
+
+    /**
+     * Shows the game and the party. Besides the game events, it is told when players connect.
+     */
+    public interface Listener extends GameEngine.Listener {
+        /**
+         * A client connected to the party hosted here and was sent the match.
+         *
+         * @param matchStarted true if it is the first client, with whom the match started.
+         */
+        void onClientJoined(boolean matchStarted);
+
+        /**
+         * This device connected to the host of the party it was looking for.
+         */
+        void onJoinedParty(String hostName);
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
+    //  JSON Processing
+    private final Gson mMapper = new GsonBuilder()
+            .registerTypeAdapter(Message.class, new MessageAdapter())
+            .create();
+
+    // The game rules and state, created by the first activity to bind
+    private GameEngine mGame;
+
+    // Numbers the changes of team turns, and on a party client the artist's changes
+    private SharedCanvas mSharedCanvas = new SharedCanvas();
+
+    // Relays, rate limits and restamps the messages of the clients while hosting a party
+    private PartyHost mPartyHost;
+
+    // Offset from this device's clock to the party host's clock
+    private ClockSync mClockSync = new ClockSync();
+
+    // Saves the party match in progress, so that it can be resumed if the process is killed
+    private MatchJournal mJournal;
+
+    // The activity showing the game, or null while there is none
+    private Listener mListener;
+
+    // The running party, or null if there is none. A client is joined once it has connected
+    // to its host. While resuming, the party is being hosted or looked for again after the
+    // process was killed, and the saved match is played on.
+    private NearbyClient mNearbyClient;
+    private boolean mIsHost = false;
+    private boolean mIsJoined = false;
+    private boolean mResuming = false;
+    private String mServiceId;
+
+    // The turn last started, by turn number and match seed
+    private int mTurnNumber = -1;
+    private long mSeed = 0;
+
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+    private Runnable mClockSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendGameMessage(new ClockSyncMessage(SystemClock.elapsedRealtime()));
+            mHandler.postDelayed(this, CLOCK_SYNC_INTERVAL_MS);
+        }
+    };
+    private Runnable mGuessResultRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mGame.flushGuessResults();
+        }
+    };
+
+    // Keeps the party going and the match saved, and passes everything on to the activity
+    private GameEngine.Listener mGameListener = new GameEngine.Listener() {
+        @Override
+        public void onSendMessage(Message message) {
+            if (mListener != null) {
+                mListener.onSendMessage(message);
+            } else {
+                sendGameMessage(message);
+            }
+        }
+
+        @Override
+        public void onMessage(Message message) {
+            if (message instanceof ClockSyncMessage && !mIsHost) {
+                // The host's answer to one of our clock sync requests
+                ClockSyncMessage msg = (ClockSyncMessage) message;
+                mClockSync.onSample(msg.getClientTime(), msg.getHostReceiveTime(),
+                        msg.getHostSendTime(), SystemClock.elapsedRealtime());
+            } else if (mListener != null) {
+                mListener.onMessage(message);
+            }
+        }
+
+        @Override
+        public void onTurnStarted() {
+            if (mGame.getTurnNumber() != mTurnNumber || mGame.getMatchSeed() != mSeed) {
+                mTurnNumber = mGame.getTurnNumber();
+                mSeed = mGame.getMatchSeed();
+                mPartyHost.onNewTurn();
+                mSharedCanvas.reset();
+            }
+            mJournal.recordTurn(mGame.createTurnMessage());
+            if (mListener != null) {
+                mListener.onTurnStarted();
+            }
+        }
+
+        @Override
+        public void onRosterChanged() {
+            mJournal.recordRoster(mGame.getMySessionId(), mGame.getParticipantTable());
+            if (mListener != null) {
+                mListener.onRosterChanged();
+            }
+        }
+
+        @Override
+        public void onParticipantLeft(DrawingParticipant participant) {
+            if (mListener != null) {
+                mListener.onParticipantLeft(participant);
+            } else if (mIsJoined && participant.getSessionId() == GameEngine.HOST_SESSION_ID) {
+                Log.d(TAG, "onParticipantLeft: host");
+                stopParty();
+            }
+        }
+
+        @Override
+        public void onGuessResult(boolean correct, String guessedWord, String correctWord) {
+            if (mListener != null) {
+                mListener.onGuessResult(correct, guessedWord, correctWord);
+            }
+        }
+
+        @Override
+        public void onGuessResultsPending() {
+            mHandler.postDelayed(mGuessResultRunnable, GUESS_RESULT_TICK_MS);
+        }
+
+        @Override
+        public void onGuessJudged(int guesserId, int turn, int points, long elapsedMs) {
+            if (mListener != null) {
+                mListener.onGuessJudged(guesserId, turn, points, elapsedMs);
+            }
+        }
+
+        @Override
+        public void onAllGuessed() {
+            if (mListener != null) {
+                mListener.onAllGuessed();
+            }
+        }
+
+        @Override
+        public WordDictionary onLoadDictionary(String pack) {
+            return openWordPack(GameService.this, pack);
+        }
+
+        @Override
+        public void onDictionaryMismatch() {
+            if (mListener != null) {
+                mListener.onDictionaryMismatch();
+            } else {
+                stopParty();
+            }
+        }
+    };
+
+    // Adds the clients to the game and hands their messages to mPartyHost
+    private NearbyClient.NearbyClientListener mHostListener =
+            new NearbyClient.NearbyClientListener() {
+                @Override
+                public void onServiceConnected() {
+                    Log.d(TAG, "Advertising for Nearby Connections");
+                    mNearbyClient.startAdvertising();
+                }
+
+                @Override
+                public void onConnectedToEndpoint(String endpointId, String endpointName) {
+                    onClientConnected(endpointId, endpointName);
+                }
+
+                @Override
+                public void onDisconnectedFromEndpoint(String endpointId, String deviceId) {
+                    mPartyHost.removeClient(endpointId);
+                }
+
+                @Override
+                public void onMessageReceived(String remoteEndpointId, byte[] payload) {
+                    mPartyHost.onMessageReceived(remoteEndpointId, payload);
+                }
+            };
+
+    // Joins the party of the first host chosen and hands its messages to the game
+    private NearbyClient.NearbyClientListener mClientListener =
+            new NearbyClient.NearbyClientListener() {
+                @Override
+                public void onServiceConnected() {
+                    Log.d(TAG, "Trying to find party host.");
+                    mNearbyClient.startDiscovery(mServiceId);
+                }
+
+                @Override
+                public void onConnectedToEndpoint(String hostId, String hostName) {
+                    Log.d(TAG, "onConnectedToEndpoint");
+                    mNearbyClient.stopDiscovery(mServiceId);
+                    mIsJoined = true;
+                    if (!mResuming) {
+                        mJournal.begin(false, hostName);
+                    }
+                    mResuming = false;
+
+                    // The host sends our session ID, the participants and the current turn
+                    mGame.setHostName(hostName);
+
+                    // Start measuring the offset to the host's clock
+                    mHandler.removeCallbacks(mClockSyncRunnable);
+                    mHandler.post(mClockSyncRunnable);
+
+                    if (mListener != null) {
+                        mListener.onJoinedParty(hostName);
+                    }
+                }
+
+                @Override
+                public void onDisconnectedFromEndpoint(String endpointId, String deviceId) {
+                    // A client is only connected to the host
+                    mGame.removeParticipant(GameEngine.HOST_SESSION_ID,
+                            SystemClock.elapsedRealtime());
+                }
+
+                @Override
+                public void onMessageReceived(String remoteEndpointId, byte[] payload) {
+                    Message message = parseMessage(payload);
+                    if (message != null) {
+                        mGame.onMessageReceived(message, SystemClock.elapsedRealtime());
+                    }
+                }
+            };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mJournal = new MatchJournal(getFilesDir());
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // A party that was killed with the process is resumed from its MatchJournal by the
+        // activity, so do not restart
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        stopParty();
+        mHandler.removeCallbacks(mGuessResultRunnable);
+        mJournal.close();
+    }
+
+    /**
+     * Open a word pack from the assets. Packs are memory-mapped rather than read, so opening
+     * one is cheap whatever its size.
+     *
+     * @param context the context to get the assets from.
+     * @param pack    the name of the pack, its file name without extension.
+     * @return the pack, or null if there is no such pack or it cannot be read.
+     */
+    static WordDictionary openWordPack(Context context, String pack) {
+        AssetFileDescriptor fd = null;
+        try {
+            fd = context.getAssets().openFd(WORD_PACK_DIR + "/" + pack + WORD_PACK_EXTENSION);
+            FileChannel channel = fd.createInputStream().getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    fd.getStartOffset(), fd.getLength());
+            return new WordDictionary(pack, buffer);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open word pack " + pack, e);
+            return null;
+        } finally {
+            if (fd != null) {
+                // The mapping stays valid once the file is closed
+                try {
+                    fd.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not close word pack " + pack, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create the game, the first time an activity binds.
+     *
+     * @param dictionary the word pack to play with.
+     * @return the new game.
+     */
+    public GameEngine createGame(WordDictionary dictionary) {
+        mGame = new GameEngine(dictionary, new Random(), mGameListener);
+        mPartyHost = new PartyHost(mGame, mSharedCanvas, mMapper);
+        return mGame;
+    }
+
+    /**
+     * Get the game, or null if no activity has created it yet.
+     */
+    public GameEngine getGame() {
+        return mGame;
+    }
+
+    /**
+     * Get the relay of the party hosted here. It exists along with the game.
+     */
+    public PartyHost getPartyHost() {
+        return mPartyHost;
+    }
+
+    /**
+     * Get the canvas that numbers the changes of the game's turns.
+     */
+    public SharedCanvas getSharedCanvas() {
+        return mSharedCanvas;
+    }
+
+    /**
+     * Get the offset from this device's clock to the party host's clock.
+     */
+    public ClockSync getClockSync() {
+        return mClockSync;
+    }
+
+    /**
+     * Get the journal saving the party match in progress.
+     */
+    public MatchJournal getJournal() {
+        return mJournal;
+    }
+
+    /**
+     * Attach the activity that shows the game. It is told of every game event until it
+     * detaches, and shows the Toasts and Dialogs of the party.
+     *
+     * @param context  the Activity.
+     * @param listener notified of the game and the party.
+     */
+    public void attach(Context context, Listener listener) {
+        mListener = listener;
+        if (mNearbyClient != null) {
+            mNearbyClient.setContext(context);
+        }
+    }
+
+    /**
+     * Detach the activity, which is going away. A running party goes on without it, except a
+     * client still looking for its host, which needs the activity to choose one.
+     */
+    public void detach() {
+        mListener = null;
+        if (mNearbyClient != null && !mIsHost && !mIsJoined) {
+            stopParty();
+        } else if (mNearbyClient != null) {
+            mNearbyClient.setContext(this);
+        }
+    }
+
+    /**
+     * Resume a match saved before the process was killed. Nothing is sent: host the party
+     * again or join it to play on.
+     */
+    public void resumeMatch(SavedMatch match) {
+        mGame.restoreMatch(match, SystemClock.elapsedRealtime());
+        mJournal.resume(match);
+        mTurnNumber = mGame.getTurnNumber();
+        mSeed = mGame.getMatchSeed();
+        mResuming = true;
+    }
+
+    /**
+     * Host a party, ending any party already running. Its match starts when the first client
+     * connects, unless a saved match is being resumed.
+     *
+     * @param context    the Context for displaying Toasts and Dialogs, generally the Activity.
+     * @param myPlayerId the persistent ID of the local player.
+     * @param teamSize   how many players draw at once in the match.
+     * @param cells      the drawing on screen, indexed by (x * GRID_SIZE + y).
+     * @return the NearbyClient of the new party.
+     */
+    public NearbyClient hostParty(Context context, String myPlayerId, int teamSize,
+                                  short[] cells) {
+        if (!mResuming) {
+            mJournal.begin(true, null);
+        }
+
+        // The host's clock is the reference for all latency measurements
+        mClockSync.setIsReference(true);
+
+        startParty(context, true, mHostListener);
+        mNearbyClient.setParticipantTable(mGame.getParticipantTable());
+        mPartyHost.start(mNearbyClient, myPlayerId, teamSize, cells);
+        return mNearbyClient;
+    }
+
+    /**
+     * Look for a party host to join, ending any party already running. The player chooses
+     * the host in a Dialog.
+     *
+     * @param context   the Context for displaying Toasts and Dialogs, generally the Activity.
+     * @param serviceId the Nearby Connections service ID of the game.
+     * @return the NearbyClient of the new party.
+     */
+    public NearbyClient joinParty(Context context, String serviceId) {
+        mServiceId = serviceId;
+        mClockSync.setIsReference(false);
+        mClockSync.reset();
+
+        startParty(context, false, mClientListener);
+        return mNearbyClient;
+    }
+
+    /**
+     * Get the NearbyClient of the running party, or null if there is none.
+     */
+    public NearbyClient getNearbyClient() {
+        return mNearbyClient;
+    }
+
+    /**
+     * @return true if this device hosts the running party.
+     */
+    public boolean isHostingParty() {
+        return mNearbyClient != null && mIsHost;
+    }
+
+    /**
+     * @return true if this device has joined the host of the running party.
+     */
+    public boolean isJoinedParty() {
+        return mNearbyClient != null && mIsJoined;
+    }
+
+    /**
+     * @return true if the running party plays a saved match and has not reconnected yet.
+     */
+    public boolean isResuming() {
+        return mResuming;
+    }
+
+    /**
+     * Describe the traffic of the party hosted here, if any, and the saved match, for the
+     * latency report.
+     */
+    public String getSummary() {
+        String summary = "";
+        if (isHostingParty()) {
+            summary += "\n\nHost sends: " + mNearbyClient.getAggregationSummary();
+            summary += "\n\nInbound: " + mPartyHost.getFloodSummary();
+        }
+        return summary + "\n\nSaved match: " + mJournal.getSummary();
+    }
+
+    /**
+     * Send a message to the other players of the party: the host relays it to the clients
+     * that consume it, a client sends it to the host.
+     *
+     * @param msg     the message.
+     * @param message the message serialized.
+     */
+    public void sendToParty(Message msg, String message) {
+        if (isHostingParty()) {
+            mPartyHost.sendToClients(msg, message);
+        } else if (isJoinedParty()) {
+            mNearbyClient.broadcastMessage(message, msg.isReliable());
+        }
+    }
+
+    /**
+     * End the running party, if any, disconnecting from all endpoints. The match is over, so
+     * the game is reset and its journal deleted.
+     */
+    public void stopParty() {
+        if (mNearbyClient == null) {
+            return;
+        }
+
+        Log.d(TAG, "stopParty");
+        mNearbyClient.onStop();
+        mNearbyClient = null;
+        mIsHost = mIsJoined = mResuming = false;
+        mPartyHost.stop();
+        mHandler.removeCallbacks(mClockSyncRunnable);
+        mHandler.removeCallbacks(mGuessResultRunnable);
+        mClockSync.setIsReference(false);
+        mClockSync.reset();
+        mGame.reset();
+        mJournal.discard();
+        mTurnNumber = -1;
+        stopForeground(true);
+        stopSelf();
+    }
+
+    /**
+     * Start a party, ending any party already running, and move the Service to the foreground
+     * until stopParty is called.
+     */
+    private void startParty(Context context, boolean isHost,
+                            NearbyClient.NearbyClientListener listener) {
+        if (mNearbyClient != null) {
+            mNearbyClient.onStop();
+        }
+
+        Log.d(TAG, "startParty: isHost=" + isHost);
+        mNearbyClient = new NearbyClient(context, isHost, listener);
+        mIsHost = isHost;
+        mIsJoined = false;
+
+        // Keep running when the activity unbinds, until the party ends
+        startService(new Intent(this, GameService.class));
+        startForeground(NOTIFICATION_ID, createNotification(isHost));
+    }
+
+    /**
+     * A client connected to the party hosted here: add it to the game, giving it its old
+     * session back if it is rejoining, and start the match with the first one.
+     */
+    private void onClientConnected(String endpointId, String endpointName) {
+        boolean matchStarted = mPartyHost.onClientConnected(endpointId, endpointName,
+                mResuming);
+        mResuming = false;
+
+        if (mListener != null) {
+            mListener.onClientJoined(matchStarted);
+        }
+    }
+
+    /**
+     * Send a message of the game's to the party while no activity is attached to do it.
+     */
+    private void sendGameMessage(Message msg) {
+        if (msg.isTurnScoped()) {
+            msg.setTurn(mGame.getTurnNumber());
+        }
+        sendToParty(msg, mMapper.toJson(msg, Message.class));
+    }
+
+    /**
+     * @return the message, or null if the payload cannot be read.
+     */
+    private Message parseMessage(byte[] bytes) {
+        try {
+            return mMapper.fromJson(new String(bytes), Message.class);
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Dropping malformed message", e);
+            return null;
+        }
+    }
+
+    private Notification createNotification(boolean isHost) {
+        Intent intent = new Intent(this, DrawingActivity.class)
+                .setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+
+        return new NotificationCompat.Builder(this)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(isHost ? R.string.party_hosting : R.string.party_joined))
+                .setContentIntent(pendingIntent)
+                .setOngoing(true)
+                .build();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records the turns of the game played on this device in the match history: each turn with its
+ * artists when it starts, the guesses as they are judged and the final drawing when it ends.
+ */
+public class HistoryRecorder {
+
+    // How many players the statistics list
+    private static final int TOP_PLAYERS = 5;
+
+    private MatchHistory mHistory;
+    private GameEngine mGame;
+    private String mMyPlayerId;
+
+    // The number of the turn last added to the history, or -1 if none is open
+    private int mTurn = -1;
+
+    /**
+     * @param history    the history to record to.
+     * @param game       the game whose turns are recorded.
+     * @param myPlayerId the persistent ID of the local player, which the history knows the local
+     *                   player by in every game.
+     */
+    public HistoryRecorder(MatchHistory history, GameEngine game, String myPlayerId) {
+        mHistory = history;
+        mGame = game;
+        mMyPlayerId = myPlayerId;
+    }
+
+    /**
+     * Add the turn that just started to the match history, with its artists.
+     */
+    public void startTurn() {
+        List<String> artistIds = new ArrayList<>();
+        List<String> artistNames = new ArrayList<>();
+        for (DrawingParticipant participant : mGame.getParticipantTable().getParticipants()) {
+            if (mGame.isArtist(participant.getSessionId())) {
+                artistIds.add(getHistoryId(participant));
+                artistNames.add(participant.getDisplayName());
+            }
+        }
+        mHistory.startTurn(mGame.getWord(), artistIds, artistNames, System.currentTimeMillis());
+        mTurn = mGame.getTurnNumber();
+    }
+
+    /**
+     * Add the final drawing of the open turn to the match history.
+     *
+     * @param cells the color index of each cell, indexed by (x * GRID_SIZE + y).
+     */
+    public void endTurn(short[] cells) {
+        if (mTurn >= 0) {
+            mHistory.setDrawing(cells);
+            mTurn = -1;
+        }
+    }
+
+    /**
+     * Add a guess the game judged. Only the last two turns are judged, and the history still
+     * has both.
+     */
+    public void onGuessJudged(int guesserId, int turn, int points, long elapsedMs) {
+        int turnsAgo = mTurn - turn;
+        DrawingParticipant guesser = mGame.getParticipantTable().get(guesserId);
+        if (mTurn >= 0 && (turnsAgo == 0 || turnsAgo == 1) && guesser != null) {
+            mHistory.addGuess(turnsAgo, getHistoryId(guesser), guesser.getDisplayName(),
+                    points, elapsedMs);
+        }
+    }
+
+    /**
+     * Describe the local player's statistics, the players with the most points and how often
+     * the word of the open turn was guessed.
+     */
+    public String getStats() {
+        if (!mHistory.isLoaded()) {
+            return "Loading...";
+        }
+
+        String message;
+        MatchHistory.PlayerStats me = mHistory.getPlayerStats(mMyPlayerId);
+        if (me == null) {
+            message = "No turns played yet.";
+        } else {
+            message = String.format(Locale.US,
+                    "Turns drawn: %d, guessed by others %d times\n"
+                            + "Guesses: %d correct of %d, in %.1fs on average\n"
+                            + "Points: %d",
+                    me.getTurnsDrawn(), me.getDrawingsGuessed(), me.getCorrectGuesses(),
+                    me.getGuesses(), me.getAverageGuessMillis() / 1000.0, me.getPoints());
+        }
+
+        message += "\n\nTop players:";
+        for (MatchHistory.PlayerStats player : mHistory.getTopPlayers(TOP_PLAYERS)) {
+            message += "\n" + player.getName() + ": " + player.getPoints();
+        }
+
+        MatchHistory.WordStats word = (mTurn >= 0) ? mHistory.getWordStats(mGame.getWord()) : null;
+        if (word != null) {
+            message += String.format(Locale.US,
+                    "\n\n'%s' was drawn %d times and guessed right %.0f%% of the time",
+                    word.getWord(), word.getTimesDrawn(), 100 * word.getGuessRate());
+        }
+        return message;
+    }
+
+    /**
+     * Get the ID a participant is kept under in the match history: its persistent ID, or the
+     * local player's own ID for the local player, whatever it is called in this game.
+     */
+    private String getHistoryId(DrawingParticipant participant) {
+        if (participant.getSessionId() == mGame.getMySessionId()) {
+            return mMyPlayerId;
+        }
+        return participant.getPersistentId();
+    }
+}
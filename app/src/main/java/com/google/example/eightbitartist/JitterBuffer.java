@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Holds items stamped with the sender's capture time and releases them at a steady offset from
+ * that time, smoothing out bursts caused by network jitter and batching.
+ * <p>
+ * The sender's clock is never compared with the local clock directly. Instead the buffer tracks
+ * the transit time (arrival - capture) of every item: the smallest transit seen is the baseline,
+ * and the variation in transit is smoothed into a jitter estimate the same way RTP does. Each
+ * item is played at capture + baseline + target delay, where the target delay is a multiple of
+ * the jitter estimate, so a steady network gets a short delay and a bursty one a longer delay.
+ * <p>
+ * Items are always released in the order they were added.
+ *
+ * @param <T> the type of the buffered items.
+ */
+public class JitterBuffer<T> {
+
+    // Bounds and scaling of the target delay, in milliseconds
+    private static final long MIN_DELAY_MS = 20L;
+    private static final long MAX_DELAY_MS = 500L;
+    private static final double JITTER_MULTIPLIER = 3.0;
+
+    private static class Entry<T> {
+        T item;
+        long arrivalTime;
+        long playoutTime;
+    }
+
+    private ArrayDeque<Entry<T>> mQueue = new ArrayDeque<>();
+
+    // Transit tracking for the current sender
+    private boolean mHasTransit = false;
+    private long mMinTransit;
+    private long mLastTransit;
+    private long mLastPlayoutTime;
+    private double mJitter = 0.0;
+    private long mTargetDelay = MIN_DELAY_MS;
+
+    // Metrics
+    private long mPlayedCount = 0;
+    private long mLateCount = 0;
+    private long mTotalBufferDelay = 0;
+    private long mMaxBufferDelay = 0;
+
+    /**
+     * Add an item to the buffer.
+     *
+     * @param item        the item to play back later.
+     * @param captureTime the time the sender created the item, on the sender's clock.
+     * @param now         the current time on the local clock.
+     */
+    public void add(T item, long captureTime, long now) {
+        long transit = now - captureTime;
+        if (mHasTransit) {
+            long variation = Math.abs(transit - mLastTransit);
+            mJitter += (variation - mJitter) / 16.0;
+            mMinTransit = Math.min(mMinTransit, transit);
+        } else {
+            mMinTransit = transit;
+            mLastPlayoutTime = now;
+            mHasTransit = true;
+        }
+        mLastTransit = transit;
+
+        mTargetDelay = Math.max(MIN_DELAY_MS,
+                Math.min(MAX_DELAY_MS, (long) (JITTER_MULTIPLIER * mJitter)));
+
+        // Never play an item before the one ahead of it
+        long playoutTime = Math.max(captureTime + mMinTransit + mTargetDelay, mLastPlayoutTime);
+        if (playoutTime < now) {
+            // Arrived after its slot. Play it now rather than lose part of the drawing.
+            mLateCount++;
+            playoutTime = now;
+        }
+        mLastPlayoutTime = playoutTime;
+
+        Entry<T> entry = new Entry<>();
+        entry.item = item;
+        entry.arrivalTime = now;
+        entry.playoutTime = playoutTime;
+        mQueue.add(entry);
+    }
+
+    /**
+     * Remove every item that is due for playback.
+     *
+     * @param now the current time on the local clock.
+     * @param out list to append the due items to, in order.
+     */
+    public void poll(long now, List<T> out) {
+        while (!mQueue.isEmpty() && mQueue.peek().playoutTime <= now) {
+            Entry<T> entry = mQueue.poll();
+            out.add(entry.item);
+
+            long bufferDelay = entry.playoutTime - entry.arrivalTime;
+            mTotalBufferDelay += bufferDelay;
+            mMaxBufferDelay = Math.max(mMaxBufferDelay, bufferDelay);
+            mPlayedCount++;
+        }
+    }
+
+    /**
+     * @return the local time at which the next item is due, or -1 if the buffer is empty.
+     */
+    public long getNextPlayoutTime() {
+        return mQueue.isEmpty() ? -1 : mQueue.peek().playoutTime;
+    }
+
+    /**
+     * Discard all pending items and forget the transit baseline, for example when a different
+     * sender (with a different clock) starts sending. The jitter estimate and metrics are kept.
+     */
+    public void clear() {
+        mQueue.clear();
+        mHasTransit = false;
+    }
+
+    public long getTargetDelay() {
+        return mTargetDelay;
+    }
+
+    public double getJitter() {
+        return mJitter;
+    }
+
+    public long getPlayedCount() {
+        return mPlayedCount;
+    }
+
+    /**
+     * @return the number of items that arrived after their playout time.
+     */
+    public long getLateCount() {
+        return mLateCount;
+    }
+
+    /**
+     * @return the average time, in milliseconds, items were held before playback.
+     */
+    public long getAverageBufferDelay() {
+        return mPlayedCount == 0 ? 0 : mTotalBufferDelay / mPlayedCount;
+    }
+
+    public long getMaxBufferDelay() {
+        return mMaxBufferDelay;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import java.util.Locale;
+
+/**
+ * A fixed-bucket histogram of latencies in milliseconds. Buckets grow roughly exponentially so
+ * that a handful of counters covers everything from a fast local hop to a multi-second stall.
+ */
+public class LatencyHistogram {
+
+    // Upper bounds (exclusive) of each bucket. The last bucket holds everything larger.
+    private static final long[] BUCKET_BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000
+    };
+
+    private String mName;
+    private long[] mCounts = new long[BUCKET_BOUNDS.length + 1];
+    private long mCount = 0;
+    private long mSum = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    /**
+     * Record one latency. Small negative values can appear because clock offsets are estimates,
+     * so they are counted in the first bucket.
+     */
+    public void record(long latencyMs) {
+        long value = Math.max(0L, latencyMs);
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && value >= BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        mCounts[bucket]++;
+
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * Estimate a percentile as the upper bound of the bucket containing it.
+     *
+     * @param percentile a value between 0 and 100.
+     * @return the estimated latency, or -1 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return -1;
+        }
+
+        long target = (long) Math.ceil(mCount * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return (i < BUCKET_BOUNDS.length) ? BUCKET_BOUNDS[i] : mMax;
+            }
+        }
+        return mMax;
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return a one-line human readable summary.
+     */
+    public String getSummary() {
+        if (mCount == 0) {
+            return mName + ": no samples";
+        }
+        return String.format(Locale.US, "%s: n=%d avg=%dms min=%dms p50<%dms p90<%dms " +
+                        "p99<%dms max=%dms", mName, mCount, mSum / mCount, mMin,
+                getPercentile(50), getPercentile(90), getPercentile(99), mMax);
+    }
+
+    /**
+     * @return the buckets as CSV rows of "name,upper bound,count". The last bucket has an empty
+     * upper bound.
+     */
+    public String toCsv() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mCounts.length; i++) {
+            sb.append(mName).append(',');
+            if (i < BUCKET_BOUNDS.length) {
+                sb.append(BUCKET_BOUNDS[i]);
+            }
+            sb.append(',').append(mCounts[i]).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.DrawingMessage;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how long traced strokes take to get from the artist's finger to a guesser's screen.
+ * A traced DrawingMessage carries the artist's capture time and clock offset and the Host's
+ * relay time; the receiving device adds its receive time and the time of the first frame drawn
+ * after the stroke was applied. All four are converted to the Host's clock with ClockSync
+ * offsets and recorded as per-hop histograms.
+ */
+public class LatencyTracer {
+
+    // Number of raw samples kept for dumping, oldest are overwritten first
+    private static final int MAX_SAMPLES = 4096;
+
+    private LatencyHistogram mCaptureToRelay = new LatencyHistogram("capture_to_relay");
+    private LatencyHistogram mRelayToReceive = new LatencyHistogram("relay_to_receive");
+    private LatencyHistogram mReceiveToRender = new LatencyHistogram("receive_to_render");
+    private LatencyHistogram mCaptureToRender = new LatencyHistogram("capture_to_render");
+
+    // Strokes applied to the DrawView that have not been drawn on screen yet
+    private List<DrawingMessage> mPendingRender = new ArrayList<>();
+
+    // Raw samples in Host time: capture, relay, receive and render for each stroke
+    private long[] mSamples = new long[MAX_SAMPLES * 4];
+    private int mNumSamples = 0;
+    private int mNextSample = 0;
+
+    /**
+     * Note that a traced stroke was applied to the DrawView and will appear on the next frame.
+     */
+    public void onStrokeApplied(DrawingMessage msg) {
+        mPendingRender.add(msg);
+    }
+
+    /**
+     * Record every stroke applied since the last frame.
+     *
+     * @param renderTime the local time the frame was drawn.
+     * @param clock      this device's offset to the Host clock.
+     */
+    public void onFrameRendered(long renderTime, ClockSync clock) {
+        if (mPendingRender.isEmpty()) {
+            return;
+        }
+
+        for (DrawingMessage msg : mPendingRender) {
+            mReceiveToRender.record(renderTime - msg.getReceiveTime());
+            if (!clock.hasOffset()) {
+                continue;
+            }
+
+            long capture = msg.getCaptureTime() + msg.getClockOffset();
+            long relay = msg.getRelayTime();
+            long receive = clock.toHostTime(msg.getReceiveTime());
+            long render = clock.toHostTime(renderTime);
+
+            if (relay > 0) {
+                mCaptureToRelay.record(relay - capture);
+                mRelayToReceive.record(receive - relay);
+            }
+            mCaptureToRender.record(render - capture);
+
+            int base = mNextSample * 4;
+            mSamples[base] = capture;
+            mSamples[base + 1] = relay;
+            mSamples[base + 2] = receive;
+            mSamples[base + 3] = render;
+            mNextSample = (mNextSample + 1) % MAX_SAMPLES;
+            mNumSamples = Math.min(mNumSamples + 1, MAX_SAMPLES);
+        }
+        mPendingRender.clear();
+    }
+
+    /**
+     * @return a human readable summary of every hop, one per line.
+     */
+    public String getSummary() {
+        return mCaptureToRelay.getSummary() + "\n"
+                + mRelayToReceive.getSummary() + "\n"
+                + mReceiveToRender.getSummary() + "\n"
+                + mCaptureToRender.getSummary();
+    }
+
+    /**
+     * Write the histograms and the raw samples to a new CSV file.
+     *
+     * @param directory the directory to create the file in.
+     * @return the file that was written.
+     * @throws IOException if the file cannot be written.
+     */
+    public File dump(File directory) throws IOException {
+        File file = new File(directory, "latency-" + System.currentTimeMillis() + ".csv");
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write("hop,bucket_upper_ms,count\n");
+            writer.write(mCaptureToRelay.toCsv());
+            writer.write(mRelayToReceive.toCsv());
+            writer.write(mReceiveToRender.toCsv());
+            writer.write(mCaptureToRender.toCsv());
+
+            writer.write("\ncapture,relay,receive,render\n");
+            int first = (mNumSamples < MAX_SAMPLES) ? 0 : mNextSample;
+            for (int i = 0; i < mNumSamples; i++) {
+                int base = ((first + i) % MAX_SAMPLES) * 4;
+                writer.write(mSamples[base] + "," + mSamples[base + 1] + ","
+                        + mSamples[base + 2] + "," + mSamples[base + 3] + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    public void reset() {
+        mCaptureToRelay.reset();
+        mRelayToReceive.reset();
+        mReceiveToRender.reset();
+        mCaptureToRender.reset();
+        mPendingRender.clear();
+        mNumSamples = 0;
+        mNextSample = 0;
+    }
+}
@@ -0,0 +1,1024 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The turns played on this device: their words, artists, guesses and final drawings. Turns are
+ * kept in an append-only file of records, and summed up in memory as they are added, so that
+ * the queries (player and word statistics, the players with the most points, the turns a
+ * player drew) never scan the file:
+ * <ul>
+ *     <li>Player IDs, player names and words are written once, as STRING records, and referred
+ *     to by number after that. Players are known by their persistent ID; a PLAYER record gives
+ *     the name a player is shown with from then on.</li>
+ *     <li>A turn is a TURN record when it starts, a GUESS record for each judged guess, and a
+ *     DRAWING record when it ends, with its canvas packed at 2 bits per cell.</li>
+ *     <li>Records are written in frames with their length and CRC, as in MatchJournal, so a
+ *     frame cut short by the process dying is dropped, and the file is cut back to the last
+ *     whole frame when it is loaded.</li>
+ * </ul>
+ * Adding a turn only queues it: records are encoded, written and added to the indexes on a
+ * background thread, every FLUSH_DELAY_MS or every MAX_BATCH_EVENTS events. The file is read
+ * back into the indexes on the same thread when the history is created.
+ * <p>
+ * Turns are added from one thread, generally the main thread. Queries can be made from any
+ * thread; they return empty results until the file is loaded.
+ */
+public class MatchHistory {
+
+    private static final String TAG = "MatchHistory";
+
+    private static final String HISTORY_FILE = "history.log";
+
+    // Marks the start of the file
+    private static final int MAGIC = 0x38424831;
+
+    // Each frame starts with its length and CRC
+    private static final int FRAME_HEADER_BYTES = 8;
+    private static final int MAX_FRAME_BYTES = 1 << 20;
+
+    // A frame is closed once it is this long, so a backlog of events is never written as a
+    // frame too long to load
+    private static final int FRAME_TARGET_BYTES = 64 * 1024;
+
+    // How long events are collected before they are written, unless there are this many
+    public static final long FLUSH_DELAY_MS = 1000;
+    public static final int MAX_BATCH_EVENTS = 512;
+
+    // Record types, each followed by its fields:
+    // STRING: String value, numbered from 0 in the order written
+    // PLAYER: int player, int name - players without one are shown by their ID
+    // TURN: long time, int word, byte artistCount, int artist... - numbered from 0 in order
+    // GUESS: int turn, int guesser, byte points (0 if wrong), int elapsedMs
+    // DRAWING: int turn, byte[DRAWING_BYTES] cells
+    private static final byte RECORD_STRING = 'S';
+    private static final byte RECORD_PLAYER = 'P';
+    private static final byte RECORD_TURN = 'T';
+    private static final byte RECORD_GUESS = 'G';
+    private static final byte RECORD_DRAWING = 'D';
+
+    // A drawing is packed 4 cells to a byte, cell (x * GRID_SIZE + y) in bits 2 * (i % 4)
+    private static final int NUM_CELLS = DrawView.GRID_SIZE * DrawView.GRID_SIZE;
+    public static final int DRAWING_BYTES = (NUM_CELLS + 3) / 4;
+
+    /**
+     * What a player did in all the turns played on this device.
+     */
+    public static class PlayerStats {
+        private final String mId;
+        private String mName;
+        private int mTurnsDrawn;
+        private int mDrawingsGuessed;
+        private int mGuesses;
+        private int mCorrectGuesses;
+        private long mPoints;
+        private long mCorrectGuessMillis;
+
+        private PlayerStats(String id) {
+            mId = id;
+            mName = id;
+        }
+
+        /**
+         * @return the persistent ID of the player.
+         */
+        public String getId() {
+            return mId;
+        }
+
+        /**
+         * @return the name the player last played under.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return the number of turns the player drew in, alone or in a team.
+         */
+        public int getTurnsDrawn() {
+            return mTurnsDrawn;
+        }
+
+        /**
+         * @return the number of correct guesses other players made of the player's drawings.
+         */
+        public int getDrawingsGuessed() {
+            return mDrawingsGuessed;
+        }
+
+        public int getGuesses() {
+            return mGuesses;
+        }
+
+        public int getCorrectGuesses() {
+            return mCorrectGuesses;
+        }
+
+        public long getPoints() {
+            return mPoints;
+        }
+
+        /**
+         * @return how long the player took on average to guess right, in milliseconds, or 0 if
+         * the player never did.
+         */
+        public long getAverageGuessMillis() {
+            return (mCorrectGuesses == 0) ? 0 : mCorrectGuessMillis / mCorrectGuesses;
+        }
+
+        private PlayerStats copy() {
+            PlayerStats copy = new PlayerStats(mId);
+            copy.mName = mName;
+            copy.mTurnsDrawn = mTurnsDrawn;
+            copy.mDrawingsGuessed = mDrawingsGuessed;
+            copy.mGuesses = mGuesses;
+            copy.mCorrectGuesses = mCorrectGuesses;
+            copy.mPoints = mPoints;
+            copy.mCorrectGuessMillis = mCorrectGuessMillis;
+            return copy;
+        }
+    }
+
+    /**
+     * How often a word was drawn and guessed.
+     */
+    public static class WordStats {
+        private final String mWord;
+        private int mTimesDrawn;
+        private int mGuesses;
+        private int mCorrectGuesses;
+
+        private WordStats(String word) {
+            mWord = word;
+        }
+
+        public String getWord() {
+            return mWord;
+        }
+
+        public int getTimesDrawn() {
+            return mTimesDrawn;
+        }
+
+        public int getGuesses() {
+            return mGuesses;
+        }
+
+        public int getCorrectGuesses() {
+            return mCorrectGuesses;
+        }
+
+        /**
+         * @return the share of guesses of the word that were right, 0 if it was never guessed.
+         */
+        public float getGuessRate() {
+            return (mGuesses == 0) ? 0 : (float) mCorrectGuesses / mGuesses;
+        }
+
+        private WordStats copy() {
+            WordStats copy = new WordStats(mWord);
+            copy.mTimesDrawn = mTimesDrawn;
+            copy.mGuesses = mGuesses;
+            copy.mCorrectGuesses = mCorrectGuesses;
+            return copy;
+        }
+    }
+
+    /**
+     * One turn, as read back by readTurn.
+     */
+    public static class Turn {
+        private int mId;
+        private long mTime;
+        private String mWord;
+        private String[] mArtists;
+        private int mGuesses;
+        private int mCorrectGuesses;
+        private short[] mCells;
+
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * @return when the turn started, in milliseconds since the epoch.
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        public String getWord() {
+            return mWord;
+        }
+
+        public String[] getArtists() {
+            return mArtists;
+        }
+
+        public int getGuesses() {
+            return mGuesses;
+        }
+
+        public int getCorrectGuesses() {
+            return mCorrectGuesses;
+        }
+
+        /**
+         * @return the final drawing indexed by (x * GRID_SIZE + y), or null if the turn has no
+         * drawing.
+         */
+        public short[] getCells() {
+            return mCells;
+        }
+    }
+
+    /**
+     * An event queued by the adding thread for the writer.
+     */
+    private static class Event {
+        byte type;
+        long time;
+        String word;
+        String[] players;
+        String[] names;
+        int turnsAgo;
+        int points;
+        int elapsedMs;
+        byte[] drawing;
+    }
+
+    /**
+     * The indexes of the turns in the file. Changed by the writer thread only, under mIndexLock.
+     */
+    private static class Index {
+        ArrayList<String> strings = new ArrayList<>();
+        HashMap<String, Integer> stringIds = new HashMap<>();
+
+        // Statistics by string number, of the player ID or the word
+        HashMap<Integer, PlayerStats> players = new HashMap<>();
+        HashMap<Integer, WordStats> words = new HashMap<>();
+
+        // Players with the most points first
+        TreeSet<PlayerStats> leaderboard = new TreeSet<>(new Comparator<PlayerStats>() {
+            @Override
+            public int compare(PlayerStats a, PlayerStats b) {
+                if (a.mPoints != b.mPoints) {
+                    return (a.mPoints > b.mPoints) ? -1 : 1;
+                }
+                int byName = a.mName.compareTo(b.mName);
+                return (byName != 0) ? byName : a.mId.compareTo(b.mId);
+            }
+        });
+
+        // Turns by number. The artists of turn i are artists[artistStart[i]] up to
+        // artists[artistStart[i + 1]], or the end for the last turn.
+        int turnCount = 0;
+        long[] turnTime = new long[256];
+        int[] turnWord = new int[256];
+        int[] artistStart = new int[256];
+        int[] turnGuesses = new int[256];
+        int[] turnCorrect = new int[256];
+        long[] drawingOffset = new long[256];
+        int[] artists = new int[256];
+        int artistCount = 0;
+
+        // The turns each player drew, oldest first, by string number
+        HashMap<Integer, int[]> drawnTurns = new HashMap<>();
+
+        // The string number of each player's name, by string number of the player ID
+        HashMap<Integer, Integer> playerNames = new HashMap<>();
+
+        int getArtistEnd(int turn) {
+            return (turn + 1 < turnCount) ? artistStart[turn + 1] : artistCount;
+        }
+    }
+
+    private final File mFile;
+
+    // The indexes, replaced once the file is loaded
+    private final Object mIndexLock = new Object();
+    private Index mIndex = new Index();
+    private volatile boolean mLoaded = false;
+
+    // Events not written yet, guarded by mLock
+    private final Object mLock = new Object();
+    private ArrayList<Event> mPending = new ArrayList<>();
+    private boolean mFlushScheduled = false;
+
+    // Writes the file and updates the indexes, one task at a time
+    private ScheduledExecutorService mWriter;
+
+    // Used on the writer thread only
+    private FileOutputStream mOut;
+    private long mFileLength;
+    private boolean mFailed = false;
+
+    // Turns added since the history was created, so a GUESS or DRAWING event cannot refer to a
+    // turn of an earlier session
+    private int mSessionTurns = 0;
+
+    // Statistics, written on the writer thread
+    private volatile long mLoadMillis = 0;
+    private volatile long mWrittenEvents = 0;
+    private volatile long mWriteNanos = 0;
+    private volatile long mFrames = 0;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
+
+    /**
+     * Open the history kept in a directory, and start loading it.
+     *
+     * @param directory an app-private directory, such as Context.getFilesDir().
+     */
+    public MatchHistory(File directory) {
+        mFile = new File(directory, HISTORY_FILE);
+        mWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, TAG);
+            }
+        });
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Add a turn that started.
+     *
+     * @param word        the word drawn.
+     * @param artistIds   the persistent IDs of the players drawing it.
+     * @param artistNames the names of the players drawing it, in the same order.
+     * @param time        when the turn started, in milliseconds since the epoch.
+     */
+    public void startTurn(String word, List<String> artistIds, List<String> artistNames,
+                          long time) {
+        Event event = new Event();
+        event.type = RECORD_TURN;
+        event.time = time;
+        event.word = word;
+        event.players = artistIds.toArray(new String[artistIds.size()]);
+        event.names = artistNames.toArray(new String[artistNames.size()]);
+        queue(event);
+    }
+
+    /**
+     * Add a judged guess.
+     *
+     * @param turnsAgo    0 for a guess in the last turn added, 1 for the turn before it.
+     * @param guesserId   the persistent ID of the guesser.
+     * @param guesserName the name of the guesser.
+     * @param points      the points the guess earned, 0 if it was wrong.
+     * @param elapsedMs   how long after the start of its turn the guess was made.
+     */
+    public void addGuess(int turnsAgo, String guesserId, String guesserName, int points,
+                         long elapsedMs) {
+        Event event = new Event();
+        event.type = RECORD_GUESS;
+        event.turnsAgo = turnsAgo;
+        event.players = new String[]{guesserId};
+        event.names = new String[]{guesserName};
+        event.points = points;
+        event.elapsedMs = (int) Math.min(Integer.MAX_VALUE, Math.max(0, elapsedMs));
+        queue(event);
+    }
+
+    /**
+     * Add the final drawing of the last turn added.
+     */
+    public void setDrawing(DrawView drawView) {
+        setDrawing(drawView.getCells());
+    }
+
+    /**
+     * Add the final drawing of the last turn added.
+     *
+     * @param cells the color index of each cell, indexed by (x * GRID_SIZE + y).
+     */
+    public void setDrawing(short[] cells) {
+        byte[] drawing = new byte[DRAWING_BYTES];
+        for (int cell = 0; cell < NUM_CELLS; cell++) {
+            drawing[cell / 4] |= (cells[cell] & 3) << (2 * (cell % 4));
+        }
+
+        Event event = new Event();
+        event.type = RECORD_DRAWING;
+        event.drawing = drawing;
+        queue(event);
+    }
+
+    /**
+     * @return true once the file is loaded and the queries answer from it.
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    public int getTurnCount() {
+        synchronized (mIndexLock) {
+            return mIndex.turnCount;
+        }
+    }
+
+    /**
+     * @param playerId the persistent ID of the player.
+     * @return the statistics of a player, or null if the player never played.
+     */
+    public PlayerStats getPlayerStats(String playerId) {
+        synchronized (mIndexLock) {
+            Integer id = mIndex.stringIds.get(playerId);
+            PlayerStats stats = (id == null) ? null : mIndex.players.get(id);
+            return (stats == null) ? null : stats.copy();
+        }
+    }
+
+    /**
+     * @return the statistics of a word, or null if it was never drawn.
+     */
+    public WordStats getWordStats(String word) {
+        synchronized (mIndexLock) {
+            Integer id = mIndex.stringIds.get(word);
+            WordStats stats = (id == null) ? null : mIndex.words.get(id);
+            return (stats == null) ? null : stats.copy();
+        }
+    }
+
+    /**
+     * @return up to count players with the most points, the most first.
+     */
+    public List<PlayerStats> getTopPlayers(int count) {
+        List<PlayerStats> top = new ArrayList<>(count);
+        synchronized (mIndexLock) {
+            Iterator<PlayerStats> players = mIndex.leaderboard.iterator();
+            while (top.size() < count && players.hasNext()) {
+                top.add(players.next().copy());
+            }
+        }
+        return top;
+    }
+
+    /**
+     * @param playerId the persistent ID of the player.
+     * @return the numbers of up to count turns a player drew, the latest first.
+     */
+    public int[] getTurnsDrawnBy(String playerId, int count) {
+        synchronized (mIndexLock) {
+            Integer id = mIndex.stringIds.get(playerId);
+            int[] turns = (id == null) ? null : mIndex.drawnTurns.get(id);
+            if (turns == null) {
+                return new int[0];
+            }
+            int total = turns[0];
+            int[] latest = new int[Math.min(count, total)];
+            for (int i = 0; i < latest.length; i++) {
+                latest[i] = turns[total - i];
+            }
+            return latest;
+        }
+    }
+
+    /**
+     * Read a turn back, with its drawing. This reads the file, so do not call it on the main
+     * thread.
+     *
+     * @param id the number of the turn, from 0 to getTurnCount() - 1.
+     * @return the turn, or null if there is no such turn or it cannot be read.
+     */
+    public Turn readTurn(int id) {
+        Turn turn = new Turn();
+        long drawingOffset;
+        synchronized (mIndexLock) {
+            Index index = mIndex;
+            if (id < 0 || id >= index.turnCount) {
+                return null;
+            }
+            turn.mId = id;
+            turn.mTime = index.turnTime[id];
+            turn.mWord = index.strings.get(index.turnWord[id]);
+            int start = index.artistStart[id];
+            turn.mArtists = new String[index.getArtistEnd(id) - start];
+            for (int i = 0; i < turn.mArtists.length; i++) {
+                turn.mArtists[i] = getPlayer(index, index.artists[start + i]).mName;
+            }
+            turn.mGuesses = index.turnGuesses[id];
+            turn.mCorrectGuesses = index.turnCorrect[id];
+            drawingOffset = index.drawingOffset[id];
+        }
+
+        if (drawingOffset > 0) {
+            // Records are in the file before they are indexed
+            byte[] drawing = new byte[DRAWING_BYTES];
+            try {
+                RandomAccessFile file = new RandomAccessFile(mFile, "r");
+                try {
+                    file.seek(drawingOffset);
+                    file.readFully(drawing);
+                } finally {
+                    file.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "readTurn: could not read drawing of turn " + id, e);
+                return null;
+            }
+            turn.mCells = new short[NUM_CELLS];
+            for (int cell = 0; cell < NUM_CELLS; cell++) {
+                turn.mCells[cell] = (short) ((drawing[cell / 4] >> (2 * (cell % 4))) & 3);
+            }
+        }
+        return turn;
+    }
+
+    /**
+     * Write what is queued and stop the writer thread. The history cannot be used after this.
+     */
+    public void close() {
+        if (mWriter.isShutdown()) {
+            return;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                flushPending();
+                if (mOut != null) {
+                    try {
+                        mOut.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "close", e);
+                    }
+                    mOut = null;
+                }
+            }
+        });
+        mWriter.shutdown();
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US,
+                "turns=%d load=%dms events=%d write=%.2fus/event frames=%d bytes=%d",
+                getTurnCount(), mLoadMillis, mWrittenEvents,
+                mWriteNanos / 1000.0 / Math.max(1, mWrittenEvents), mFrames, mFile.length());
+    }
+
+    private void queue(Event event) {
+        synchronized (mLock) {
+            mPending.add(event);
+            if (mPending.size() >= MAX_BATCH_EVENTS) {
+                // Write a large batch straight away rather than let it grow
+                mFlushScheduled = true;
+                execute(mFlushRunnable);
+                return;
+            }
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        if (!mWriter.isShutdown()) {
+            mWriter.schedule(mFlushRunnable, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void execute(Runnable task) {
+        if (!mWriter.isShutdown()) {
+            mWriter.execute(task);
+        }
+    }
+
+    /**
+     * Read the file into a new index, and cut off a damaged end. Runs on the writer thread.
+     */
+    private void load() {
+        long start = System.nanoTime();
+        Index index = new Index();
+
+        long length = 0;
+        if (mFile.exists()) {
+            try {
+                length = readFile(index);
+            } catch (IOException e) {
+                Log.e(TAG, "load: could not read the history", e);
+                mFailed = true;
+            }
+        }
+
+        if (!mFailed) {
+            try {
+                if (length == 0) {
+                    // A new file, or one without a whole header
+                    DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+                    out.writeInt(MAGIC);
+                    out.close();
+                    length = 4;
+                } else if (length < mFile.length()) {
+                    Log.w(TAG, "load: dropped " + (mFile.length() - length) + " damaged bytes");
+                    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+                    file.setLength(length);
+                    file.close();
+                }
+                mOut = new FileOutputStream(mFile, true);
+                mFileLength = length;
+            } catch (IOException e) {
+                Log.e(TAG, "load: could not open the history", e);
+                mFailed = true;
+            }
+        }
+
+        synchronized (mIndexLock) {
+            mIndex = index;
+        }
+        mLoaded = true;
+        mLoadMillis = (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * Apply the whole frames of the file to an index.
+     *
+     * @return the length of the file up to the end of the last whole frame, or 0 if it has no
+     * header.
+     */
+    private long readFile(Index index) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile), 64 * 1024));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a history file: " + mFile);
+            }
+            long length = 4;
+            CRC32 crc = new CRC32();
+            byte[] frame = new byte[4096];
+            while (true) {
+                int frameLength;
+                try {
+                    frameLength = in.readInt();
+                    if (frameLength < 0 || frameLength > MAX_FRAME_BYTES) {
+                        break;
+                    }
+                    if (frameLength > frame.length) {
+                        frame = new byte[Math.max(frameLength, frame.length * 2)];
+                    }
+                    int checksum = in.readInt();
+                    in.readFully(frame, 0, frameLength);
+                    crc.reset();
+                    crc.update(frame, 0, frameLength);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // The end of the file, or a frame cut short
+                    break;
+                }
+                if (!applyFrame(index, frame, frameLength, length + FRAME_HEADER_BYTES)) {
+                    break;
+                }
+                length += FRAME_HEADER_BYTES + frameLength;
+            }
+            return length;
+        } catch (EOFException e) {
+            // No header
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Encode the queued events as a frame, append it to the file and apply it to the index.
+     * Runs on the writer thread.
+     */
+    private void flushPending() {
+        ArrayList<Event> events;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            events = mPending;
+            mPending = new ArrayList<>();
+        }
+        if (mFailed) {
+            return;
+        }
+        long start = System.nanoTime();
+
+        // Only this thread changes the index, so it can be read here without the lock
+        Index index = mIndex;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                Math.min(32 * events.size(), FRAME_TARGET_BYTES));
+        DataOutputStream out = new DataOutputStream(bytes);
+        HashMap<String, Integer> newStrings = new HashMap<>();
+        HashMap<Integer, Integer> newNames = new HashMap<>();
+        int turnCount = index.turnCount;
+        int frameEvents = 0;
+        try {
+            for (Event event : events) {
+                if (bytes.size() >= FRAME_TARGET_BYTES) {
+                    // The strings and names of this frame are in the index once it is written
+                    writeFrame(index, bytes.toByteArray(), frameEvents);
+                    bytes.reset();
+                    newStrings.clear();
+                    newNames.clear();
+                    frameEvents = 0;
+                }
+                frameEvents++;
+
+                int[] ids = new int[(event.players == null) ? 0 : event.players.length];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = intern(out, index, newStrings, event.players[i]);
+                    namePlayer(out, index, newStrings, newNames, ids[i], event.names[i]);
+                }
+
+                if (event.type == RECORD_TURN) {
+                    int word = intern(out, index, newStrings, event.word);
+                    out.writeByte(RECORD_TURN);
+                    out.writeLong(event.time);
+                    out.writeInt(word);
+                    out.writeByte(ids.length);
+                    for (int id : ids) {
+                        out.writeInt(id);
+                    }
+                    turnCount++;
+                    mSessionTurns++;
+                    continue;
+                }
+
+                if (event.turnsAgo >= mSessionTurns) {
+                    // Its turn was not added in this session
+                    continue;
+                }
+                int turn = turnCount - 1 - event.turnsAgo;
+                if (event.type == RECORD_GUESS) {
+                    out.writeByte(RECORD_GUESS);
+                    out.writeInt(turn);
+                    out.writeInt(ids[0]);
+                    out.writeByte(Math.min(event.points, Byte.MAX_VALUE));
+                    out.writeInt(event.elapsedMs);
+                } else {
+                    out.writeByte(RECORD_DRAWING);
+                    out.writeInt(turn);
+                    out.write(event.drawing);
+                }
+            }
+
+            writeFrame(index, bytes.toByteArray(), frameEvents);
+        } catch (IOException e) {
+            // The history is best effort, games go on without it
+            Log.e(TAG, "Could not write the history, stopped writing it", e);
+            mFailed = true;
+        }
+        mWriteNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Append a frame to the file and apply it to the index. Runs on the writer thread.
+     */
+    private void writeFrame(Index index, byte[] frame, int events) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(frame, 0, frame.length);
+        DataOutputStream file = new DataOutputStream(mOut);
+        file.writeInt(frame.length);
+        file.writeInt((int) crc.getValue());
+        file.write(frame);
+        file.flush();
+
+        synchronized (mIndexLock) {
+            applyFrame(index, frame, frame.length, mFileLength + FRAME_HEADER_BYTES);
+        }
+        mFileLength += FRAME_HEADER_BYTES + frame.length;
+        mWrittenEvents += events;
+        mFrames++;
+    }
+
+    /**
+     * @return the number of a string, writing a STRING record first if it is new.
+     */
+    private static int intern(DataOutputStream out, Index index,
+                              HashMap<String, Integer> newStrings, String value)
+            throws IOException {
+        Integer id = index.stringIds.get(value);
+        if (id == null) {
+            id = newStrings.get(value);
+        }
+        if (id == null) {
+            id = index.strings.size() + newStrings.size();
+            newStrings.put(value, id);
+            out.writeByte(RECORD_STRING);
+            out.writeUTF(value);
+        }
+        return id;
+    }
+
+    /**
+     * Write a PLAYER record if a player's name is not the one it was last shown with.
+     */
+    private static void namePlayer(DataOutputStream out, Index index,
+                                   HashMap<String, Integer> newStrings,
+                                   HashMap<Integer, Integer> newNames, int player, String name)
+            throws IOException {
+        int nameId = intern(out, index, newStrings, name);
+        Integer current = newNames.get(player);
+        if (current == null) {
+            current = index.playerNames.get(player);
+        }
+        if (current == null ? nameId == player : current == nameId) {
+            return;
+        }
+        newNames.put(player, nameId);
+        out.writeByte(RECORD_PLAYER);
+        out.writeInt(player);
+        out.writeInt(nameId);
+    }
+
+    /**
+     * Add the records of a frame to an index.
+     *
+     * @param offset the offset of the frame in the file, after its header.
+     * @return false if the frame is not valid, in which case the index may have part of it.
+     */
+    private static boolean applyFrame(Index index, byte[] frame, int length, long offset)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 0, length));
+        try {
+            while (in.available() > 0) {
+                int position = length - in.available();
+                switch (in.readByte()) {
+                    case RECORD_STRING:
+                        String value = in.readUTF();
+                        index.stringIds.put(value, index.strings.size());
+                        index.strings.add(value);
+                        break;
+                    case RECORD_PLAYER:
+                        applyPlayer(index, in.readInt(), in.readInt());
+                        break;
+                    case RECORD_TURN:
+                        applyTurn(index, in);
+                        break;
+                    case RECORD_GUESS:
+                        applyGuess(index, in.readInt(), in.readInt(), in.readByte(), in.readInt());
+                        break;
+                    case RECORD_DRAWING:
+                        int turn = in.readInt();
+                        if (turn < 0 || turn >= index.turnCount) {
+                            return false;
+                        }
+                        in.skipBytes(DRAWING_BYTES);
+                        // Point at the cells, past the type and the turn number
+                        index.drawingOffset[turn] = offset + position + 5;
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        } catch (EOFException | IndexOutOfBoundsException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private static void applyPlayer(Index index, int id, int name) {
+        PlayerStats player = getPlayer(index, id);
+
+        // Reposition the player on the leaderboard, which is sorted by name within equal points
+        index.leaderboard.remove(player);
+        player.mName = index.strings.get(name);
+        index.leaderboard.add(player);
+        index.playerNames.put(id, name);
+    }
+
+    private static void applyTurn(Index index, DataInputStream in) throws IOException {
+        int turn = index.turnCount;
+        if (turn == index.turnTime.length) {
+            int capacity = turn * 2;
+            index.turnTime = Arrays.copyOf(index.turnTime, capacity);
+            index.turnWord = Arrays.copyOf(index.turnWord, capacity);
+            index.artistStart = Arrays.copyOf(index.artistStart, capacity);
+            index.turnGuesses = Arrays.copyOf(index.turnGuesses, capacity);
+            index.turnCorrect = Arrays.copyOf(index.turnCorrect, capacity);
+            index.drawingOffset = Arrays.copyOf(index.drawingOffset, capacity);
+        }
+
+        index.turnTime[turn] = in.readLong();
+        int word = in.readInt();
+        index.turnWord[turn] = word;
+        index.artistStart[turn] = index.artistCount;
+        index.turnGuesses[turn] = 0;
+        index.turnCorrect[turn] = 0;
+        index.drawingOffset[turn] = 0;
+        index.turnCount++;
+
+        WordStats wordStats = index.words.get(word);
+        if (wordStats == null) {
+            wordStats = new WordStats(index.strings.get(word));
+            index.words.put(word, wordStats);
+        }
+        wordStats.mTimesDrawn++;
+
+        int count = in.readUnsignedByte();
+        for (int i = 0; i < count; i++) {
+            int artist = in.readInt();
+            if (index.artistCount == index.artists.length) {
+                index.artists = Arrays.copyOf(index.artists, index.artistCount * 2);
+            }
+            index.artists[index.artistCount++] = artist;
+            getPlayer(index, artist).mTurnsDrawn++;
+
+            // Turns drawn by the player, with the count in the first entry
+            int[] drawn = index.drawnTurns.get(artist);
+            if (drawn == null) {
+                drawn = new int[8];
+            } else if (drawn[0] + 1 == drawn.length) {
+                drawn = Arrays.copyOf(drawn, drawn.length * 2);
+            }
+            drawn[++drawn[0]] = turn;
+            index.drawnTurns.put(artist, drawn);
+        }
+    }
+
+    private static void applyGuess(Index index, int turn, int guesser, int points,
+                                   int elapsedMs) {
+        if (turn < 0 || turn >= index.turnCount) {
+            throw new IndexOutOfBoundsException("No turn " + turn);
+        }
+        boolean correct = points > 0;
+        index.turnGuesses[turn]++;
+
+        WordStats wordStats = index.words.get(index.turnWord[turn]);
+        wordStats.mGuesses++;
+
+        PlayerStats player = getPlayer(index, guesser);
+        player.mGuesses++;
+        if (correct) {
+            index.turnCorrect[turn]++;
+            wordStats.mCorrectGuesses++;
+            player.mCorrectGuesses++;
+            player.mCorrectGuessMillis += elapsedMs;
+
+            // Reposition the player on the leaderboard
+            index.leaderboard.remove(player);
+            player.mPoints += points;
+            index.leaderboard.add(player);
+
+            for (int i = index.artistStart[turn]; i < index.getArtistEnd(turn); i++) {
+                getPlayer(index, index.artists[i]).mDrawingsGuessed++;
+            }
+        }
+    }
+
+    private static PlayerStats getPlayer(Index index, int id) {
+        PlayerStats player = index.players.get(id);
+        if (player == null) {
+            player = new PlayerStats(index.strings.get(id));
+            index.players.put(id, player);
+            index.leaderboard.add(player);
+        }
+        return player;
+    }
+}
@@ -0,0 +1,703 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import android.util.Log;
+
+import com.google.example.eightbitartist.messages.TurnMessage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the state of the party match in progress to app-private storage, so a player whose
+ * process is killed can pick the match up again on the next launch. The state is kept as a
+ * snapshot and a journal of the changes since the snapshot:
+ * <ul>
+ *     <li>The journal is append-only. Each change is a record of a few bytes, and records are
+ *     written in frames of up to FLUSH_DELAY_MS of changes, each with its length and CRC, so
+ *     a frame cut short by the process dying is recognized and dropped on restore.</li>
+ *     <li>A snapshot is taken at the start of every turn and every SNAPSHOT_RECORDS changes. It
+ *     is written to a temporary file that replaces the old snapshot in one rename, after which
+ *     the journal starts over. Both files carry a generation number, so a journal left over
+ *     from before the latest snapshot is ignored.</li>
+ * </ul>
+ * Changes are found by comparing the game with the state saved so far (see recordRoster and
+ * recordCanvas), which is cheap for a roster of a few players and a 10x10 canvas. Recording
+ * only appends to a buffer: files are written on a background thread. A write survives the
+ * process being killed as soon as it is made; only snapshots are also synced to the disk.
+ * <p>
+ * Except for load, all methods must be called from the same thread, generally the main thread.
+ */
+public class MatchJournal {
+
+    private static final String TAG = "MatchJournal";
+
+    private static final String SNAPSHOT_FILE = "match.snapshot";
+    private static final String JOURNAL_FILE = "match.journal";
+
+    // Marks the start of both files, followed by the generation
+    private static final int MAGIC = 0x38424a31;
+
+    // Larger frames can only be a damaged length
+    private static final int MAX_FRAME_BYTES = 1 << 20;
+
+    // How long changes are collected before they are written, and how many are written before
+    // the journal is folded into a new snapshot
+    public static final long FLUSH_DELAY_MS = 100;
+    public static final int SNAPSHOT_RECORDS = 1024;
+
+    // Record types, each followed by its fields:
+    // MATCH: boolean host, int mySessionId, String hostName
+    // TURN: int turnNumber, long seed, long startTime, int teamSize, String pack, int hash
+    // PLAYER: int sessionId, String persistentId, String displayName, int score
+    // LEFT: int sessionId
+    // CELL: byte index (x * GRID_SIZE + y), byte colorIndex
+    private static final byte RECORD_MATCH = 'M';
+    private static final byte RECORD_TURN = 'T';
+    private static final byte RECORD_PLAYER = 'P';
+    private static final byte RECORD_LEFT = 'L';
+    private static final byte RECORD_CELL = 'C';
+
+    private static final int NUM_CELLS = DrawView.GRID_SIZE * DrawView.GRID_SIZE;
+
+    private final File mSnapshotFile;
+    private final File mJournalFile;
+    private final File mTempFile;
+
+    // The match as saved so far, null when no match is being saved
+    private SavedMatch mState;
+
+    // Records not written yet, guarded by mLock. They belong in the journal of mGeneration.
+    private final Object mLock = new Object();
+    private ByteArrayOutputStream mPending = new ByteArrayOutputStream(256);
+    private DataOutputStream mRecords = new DataOutputStream(mPending);
+    private int mPendingRecords = 0;
+    private int mGeneration = 0;
+    private boolean mFlushScheduled = false;
+
+    // Records since the last snapshot
+    private int mJournaledRecords = 0;
+
+    // Writes the files, one task at a time
+    private ScheduledExecutorService mWriter;
+
+    // Used on the writer thread only
+    private FileOutputStream mJournal;
+    private int mJournalGeneration = -1;
+    private boolean mFailed = false;
+
+    // Statistics: the time spent recording on the calling thread, and writing on the writer
+    private long mRecordCount = 0;
+    private long mRecordNanos = 0;
+    private volatile long mWrittenRecords = 0;
+    private volatile long mWriteNanos = 0;
+    private volatile long mWrittenBytes = 0;
+    private volatile long mSnapshots = 0;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
+
+    /**
+     * Create a journal kept in a directory. Nothing is saved until begin or resume.
+     *
+     * @param directory an app-private directory, such as Context.getFilesDir().
+     */
+    public MatchJournal(File directory) {
+        mSnapshotFile = new File(directory, SNAPSHOT_FILE);
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mTempFile = new File(directory, SNAPSHOT_FILE + ".tmp");
+        mWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, TAG);
+            }
+        });
+    }
+
+    /**
+     * Start saving a new match, replacing any match saved before.
+     *
+     * @param host     true if the local player hosts the party.
+     * @param hostName the name of the party host, or null on the host.
+     */
+    public void begin(boolean host, String hostName) {
+        resume(new SavedMatch(host, hostName));
+    }
+
+    /**
+     * Go on saving a match restored by load.
+     */
+    public void resume(SavedMatch match) {
+        mState = match;
+        snapshot();
+    }
+
+    /**
+     * @return true if a match is being saved.
+     */
+    public boolean isActive() {
+        return mState != null;
+    }
+
+    /**
+     * Record the participants that joined, left or changed score since the last call, and the
+     * local player's session ID.
+     */
+    public void recordRoster(int mySessionId, ParticipantTable participants) {
+        if (mState == null) {
+            return;
+        }
+        long start = System.nanoTime();
+
+        synchronized (mLock) {
+            if (mySessionId != mState.mMySessionId) {
+                mState.mMySessionId = mySessionId;
+                writeMatch(mRecords, mState);
+                countRecord();
+            }
+
+            for (DrawingParticipant participant : participants.getParticipants()) {
+                DrawingParticipant saved = mState.mParticipants.get(participant.getSessionId());
+                if (saved == null || saved.getScore() != participant.getScore()
+                        || !equal(saved.getPersistentId(), participant.getPersistentId())
+                        || !equal(saved.getDisplayName(), participant.getDisplayName())) {
+                    saved = copyParticipant(participant);
+                    mState.mParticipants.put(saved.getSessionId(), saved);
+                    writePlayer(mRecords, saved);
+                    countRecord();
+                }
+            }
+
+            Iterator<Integer> sessionIds = mState.mParticipants.keySet().iterator();
+            while (sessionIds.hasNext()) {
+                int sessionId = sessionIds.next();
+                if (!participants.isConnected(sessionId)) {
+                    sessionIds.remove();
+                    mPending.write(RECORD_LEFT);
+                    writeInt(mPending, sessionId);
+                    countRecord();
+                }
+            }
+        }
+
+        onRecorded(start);
+    }
+
+    /**
+     * Record the start of a turn, and take a snapshot. A turn repeated with the same turn
+     * number and seed, as is sent to a returning player, keeps the canvas.
+     *
+     * @param turn the turn, from GameEngine.createTurnMessage().
+     */
+    public void recordTurn(TurnMessage turn) {
+        if (mState == null) {
+            return;
+        }
+
+        applyTurn(mState, turn);
+        snapshot();
+    }
+
+    /**
+     * Record the cells of the canvas that changed since the last call.
+     */
+    public void recordCanvas(DrawView drawView) {
+        if (mState == null) {
+            return;
+        }
+        long start = System.nanoTime();
+
+        short[] cells = mState.mCells;
+        boolean changed = false;
+        int index = 0;
+        for (int x = 0; x < DrawView.GRID_SIZE; x++) {
+            for (int y = 0; y < DrawView.GRID_SIZE; y++, index++) {
+                short color = drawView.getMacroPixel(x, y);
+                if (color != cells[index]) {
+                    cells[index] = color;
+                    synchronized (mLock) {
+                        mPending.write(RECORD_CELL);
+                        mPending.write(index);
+                        mPending.write(color);
+                    }
+                    countRecord();
+                    changed = true;
+                }
+            }
+        }
+
+        if (changed) {
+            onRecorded(start);
+        }
+    }
+
+    /**
+     * Stop saving the match and delete it, when the player leaves it.
+     */
+    public void discard() {
+        mState = null;
+        synchronized (mLock) {
+            mPending.reset();
+            mPendingRecords = 0;
+            mGeneration++;
+        }
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                closeJournal();
+                mSnapshotFile.delete();
+                mJournalFile.delete();
+                mTempFile.delete();
+            }
+        });
+    }
+
+    /**
+     * Write what is pending and stop the writer thread. The journal cannot be used after this.
+     */
+    public void close() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                flushPending();
+                closeJournal();
+            }
+        });
+        mWriter.shutdown();
+    }
+
+    public String getSummary() {
+        long written = Math.max(1, mWrittenRecords);
+        return String.format(Locale.US,
+                "records=%d record=%.2fus/record write=%.2fus/record bytes=%d snapshots=%d",
+                mRecordCount, mRecordNanos / 1000.0 / Math.max(1, mRecordCount),
+                mWriteNanos / 1000.0 / written, mWrittenBytes, mSnapshots);
+    }
+
+    /**
+     * Read the match last saved in a directory.
+     *
+     * @return the match, or null if none was saved, it had not started a turn, or the snapshot
+     * cannot be read. Changes after a damaged frame of the journal are lost.
+     */
+    public static SavedMatch load(File directory) {
+        File snapshotFile = new File(directory, SNAPSHOT_FILE);
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+
+        SavedMatch match = new SavedMatch(false, null);
+        try {
+            int generation = readFile(snapshotFile, -1, match);
+            if (generation < 0) {
+                Log.w(TAG, "load: damaged snapshot");
+                return null;
+            }
+            if (journalFile.exists()) {
+                readFile(journalFile, generation, match);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "load: could not read the saved match", e);
+            return null;
+        }
+
+        match.mSavedAt = Math.max(snapshotFile.lastModified(), journalFile.lastModified());
+        return (match.mTurn != null) ? match : null;
+    }
+
+    /**
+     * Apply the frames of a snapshot or journal to a match.
+     *
+     * @param generation the generation the file must have, or -1 for any.
+     * @return the generation of the file, or -1 if it is not of that generation, or is a
+     * snapshot that is damaged.
+     */
+    private static int readFile(File file, int generation, SavedMatch match) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                return -1;
+            }
+            int fileGeneration = in.readInt();
+            if (generation >= 0 && fileGeneration != generation) {
+                // Left over from before the snapshot, which already has its changes
+                return -1;
+            }
+
+            boolean complete = false;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] frame;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_FRAME_BYTES) {
+                        break;
+                    }
+                    frame = new byte[length];
+                    int checksum = in.readInt();
+                    in.readFully(frame);
+                    crc.reset();
+                    crc.update(frame, 0, frame.length);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // The end of the file, or a frame cut short
+                    break;
+                }
+                if (!applyRecords(frame, match)) {
+                    break;
+                }
+                complete = true;
+            }
+            return (complete || generation >= 0) ? fileGeneration : -1;
+        } catch (EOFException e) {
+            // No header
+            return -1;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return false if the frame has a record of an unknown type.
+     */
+    private static boolean applyRecords(byte[] frame, SavedMatch match) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        while (in.available() > 0) {
+            switch (in.readByte()) {
+                case RECORD_MATCH:
+                    match.mHost = in.readBoolean();
+                    match.mMySessionId = in.readInt();
+                    match.mHostName = readString(in);
+                    break;
+                case RECORD_TURN:
+                    TurnMessage turn = new TurnMessage();
+                    turn.setTurnNumber(in.readInt());
+                    turn.setSeed(in.readLong());
+                    turn.setStartTime(in.readLong());
+                    turn.setTeamSize(in.readInt());
+                    turn.setPack(readString(in));
+                    turn.setDictionaryHash(in.readInt());
+                    applyTurn(match, turn);
+                    break;
+                case RECORD_PLAYER:
+                    DrawingParticipant participant = new DrawingParticipant();
+                    participant.setIsLocal(true);
+                    participant.setSessionId(in.readInt());
+                    participant.setPersistentId(readString(in));
+                    participant.setDisplayName(readString(in));
+                    participant.setScore(in.readInt());
+                    match.mParticipants.put(participant.getSessionId(), participant);
+                    break;
+                case RECORD_LEFT:
+                    match.mParticipants.remove(in.readInt());
+                    break;
+                case RECORD_CELL:
+                    int index = in.readUnsignedByte();
+                    short color = in.readByte();
+                    if (index < NUM_CELLS) {
+                        match.mCells[index] = color;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Start a turn in a match, clearing the canvas unless the turn is the one in progress.
+     */
+    private static void applyTurn(SavedMatch match, TurnMessage turn) {
+        TurnMessage current = match.mTurn;
+        if (current == null || current.getTurnNumber() != turn.getTurnNumber()
+                || current.getSeed() != turn.getSeed()) {
+            for (int i = 0; i < NUM_CELLS; i++) {
+                match.mCells[i] = 0;
+            }
+        }
+        match.mTurn = turn;
+    }
+
+    /**
+     * Replace the snapshot with the current state and start a new journal, on the writer thread.
+     * Records still pending are already part of the state, so they are dropped.
+     */
+    private void snapshot() {
+        long start = System.nanoTime();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + 2 * NUM_CELLS);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeMatch(out, mState);
+            TurnMessage turn = mState.mTurn;
+            if (turn != null) {
+                out.writeByte(RECORD_TURN);
+                out.writeInt(turn.getTurnNumber());
+                out.writeLong(turn.getSeed());
+                out.writeLong(turn.getStartTime());
+                out.writeInt(turn.getTeamSize());
+                writeString(out, turn.getPack());
+                out.writeInt(turn.getDictionaryHash());
+            }
+            for (DrawingParticipant participant : mState.mParticipants.values()) {
+                writePlayer(out, participant);
+            }
+            for (int i = 0; i < NUM_CELLS; i++) {
+                if (mState.mCells[i] != 0) {
+                    out.writeByte(RECORD_CELL);
+                    out.writeByte(i);
+                    out.writeByte(mState.mCells[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final byte[] frame = bytes.toByteArray();
+        final int generation;
+        synchronized (mLock) {
+            mPending.reset();
+            mPendingRecords = 0;
+            generation = ++mGeneration;
+        }
+        mJournaledRecords = 0;
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot(generation, frame);
+            }
+        });
+        mRecordNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Write a snapshot and start its journal. Runs on the writer thread.
+     */
+    private void writeSnapshot(int generation, byte[] frame) {
+        if (mFailed) {
+            return;
+        }
+        long start = System.nanoTime();
+
+        try {
+            closeJournal();
+
+            FileOutputStream out = new FileOutputStream(mTempFile);
+            try {
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(MAGIC);
+                data.writeInt(generation);
+                writeFrame(data, frame, frame.length);
+                data.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!mTempFile.renameTo(mSnapshotFile)) {
+                throw new IOException("Could not replace " + mSnapshotFile);
+            }
+
+            // Until the new journal has its header, the old one is ignored for its generation
+            mJournal = new FileOutputStream(mJournalFile);
+            DataOutputStream data = new DataOutputStream(mJournal);
+            data.writeInt(MAGIC);
+            data.writeInt(generation);
+            data.flush();
+            mJournalGeneration = generation;
+
+            mWrittenBytes += 8 + 8 + frame.length + 8;
+            mSnapshots++;
+        } catch (IOException e) {
+            fail(e);
+        }
+        mWriteNanos += System.nanoTime() - start;
+
+        // Records made since the snapshot was taken waited for their journal
+        flushPending();
+    }
+
+    /**
+     * Append the pending records to the journal as one frame. Runs on the writer thread.
+     */
+    private void flushPending() {
+        byte[] frame;
+        int records;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            if (mPendingRecords == 0 || mGeneration != mJournalGeneration || mFailed) {
+                // Nothing to write, or the journal for these records is not started yet
+                return;
+            }
+            frame = mPending.toByteArray();
+            records = mPendingRecords;
+            mPending.reset();
+            mPendingRecords = 0;
+        }
+        long start = System.nanoTime();
+
+        try {
+            DataOutputStream data = new DataOutputStream(mJournal);
+            writeFrame(data, frame, frame.length);
+            data.flush();
+            mWrittenBytes += 8 + frame.length;
+            mWrittenRecords += records;
+        } catch (IOException e) {
+            fail(e);
+        }
+        mWriteNanos += System.nanoTime() - start;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] frame, int length)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(frame, 0, length);
+        out.writeInt(length);
+        out.writeInt((int) crc.getValue());
+        out.write(frame, 0, length);
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException e) {
+                Log.w(TAG, "closeJournal", e);
+            }
+            mJournal = null;
+            mJournalGeneration = -1;
+        }
+    }
+
+    private void fail(IOException e) {
+        // Saving is best effort, a match that cannot be saved is still played
+        Log.e(TAG, "Could not save the match, stopped saving it", e);
+        closeJournal();
+        mFailed = true;
+    }
+
+    /**
+     * Count a record appended to mPending, and schedule the next flush. Every SNAPSHOT_RECORDS
+     * records, the journal is folded into a snapshot instead.
+     */
+    private void countRecord() {
+        mRecordCount++;
+        mJournaledRecords++;
+        synchronized (mLock) {
+            mPendingRecords++;
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        if (!mWriter.isShutdown()) {
+            mWriter.schedule(mFlushRunnable, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onRecorded(long start) {
+        mRecordNanos += System.nanoTime() - start;
+        if (mJournaledRecords >= SNAPSHOT_RECORDS) {
+            snapshot();
+        }
+    }
+
+    private void execute(Runnable task) {
+        if (!mWriter.isShutdown()) {
+            mWriter.execute(task);
+        }
+    }
+
+    private static void writeMatch(DataOutputStream out, SavedMatch match) {
+        try {
+            out.writeByte(RECORD_MATCH);
+            out.writeBoolean(match.mHost);
+            out.writeInt(match.mMySessionId);
+            writeString(out, match.mHostName);
+        } catch (IOException e) {
+            // Records are only written to memory, which does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writePlayer(DataOutputStream out, DrawingParticipant participant) {
+        try {
+            out.writeByte(RECORD_PLAYER);
+            out.writeInt(participant.getSessionId());
+            writeString(out, participant.getPersistentId());
+            writeString(out, participant.getDisplayName());
+            out.writeInt(participant.getScore());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeUTF((value == null) ? "" : value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        String value = in.readUTF();
+        return value.isEmpty() ? null : value;
+    }
+
+    private static DrawingParticipant copyParticipant(DrawingParticipant participant) {
+        DrawingParticipant copy = new DrawingParticipant();
+        copy.setIsLocal(participant.getIsLocal());
+        copy.setSessionId(participant.getSessionId());
+        copy.setPersistentId(participant.getPersistentId());
+        copy.setDisplayName(participant.getDisplayName());
+        copy.setScore(participant.getScore());
+        return copy;
+    }
+
+    private static boolean equal(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+}
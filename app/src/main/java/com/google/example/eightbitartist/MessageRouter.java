@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.Message;
+
+/**
+ * Decides which clients the Host relays a message to, or which players of an RTMP room a player
+ * sends it to, by the message's route and topic. Players that would not consume a message are
+ * not sent a copy.
+ */
+public class MessageRouter {
+
+    // Message topics each role needs. The artist produces the drawing and consumes the guesses,
+    // the guessers consume the drawing and only learn about other guesses via TurnMessage scores.
+    public static final int ARTIST_TOPICS =
+            Message.TOPIC_GUESSES | Message.TOPIC_TURNS | Message.TOPIC_ROSTER;
+    public static final int GUESSER_TOPICS =
+            Message.TOPIC_DRAWING | Message.TOPIC_TURNS | Message.TOPIC_ROSTER;
+
+    // In team turns the artists also see each other's drawing
+    public static final int TEAM_ARTIST_TOPICS = ARTIST_TOPICS | Message.TOPIC_DRAWING;
+
+    private MessageRouter() {
+    }
+
+    /**
+     * Subscribe each participant to the message topics their role needs this turn, so that
+     * messages routed with Message.ROUTE_SUBSCRIBERS are not sent to players who ignore them.
+     */
+    public static void updateSubscriptions(GameEngine game) {
+        int artistTopics = (game.getTeamSize() > 1) ? TEAM_ARTIST_TOPICS : ARTIST_TOPICS;
+        for (DrawingParticipant participant : game.getParticipantTable().getParticipants()) {
+            boolean artist = game.isArtist(participant.getSessionId());
+            participant.setSubscriptions(artist ? artistTopics : GUESSER_TOPICS);
+        }
+    }
+
+    /**
+     * Check if a client consumes a message the Host relays.
+     *
+     * @param endpointId   the endpoint ID of the client.
+     * @param msg          the message, which decides the route and topic.
+     * @param artistId     the endpoint ID of the current artist, or null if the artist is not a
+     *                     connected client.
+     * @param participants the participants of the match, or null before there is one.
+     * @return true if the client should be sent the message.
+     */
+    public static boolean isRecipient(String endpointId, Message msg, String artistId,
+                                      ParticipantTable participants) {
+        switch (msg.getRoute()) {
+            case Message.ROUTE_HOST:
+                return false;
+            case Message.ROUTE_ARTIST:
+                return endpointId.equals(artistId);
+            case Message.ROUTE_SUBSCRIBERS:
+                // Clients that are not in the match yet get everything
+                DrawingParticipant participant = (participants == null) ? null
+                        : participants.getByMessagingId(endpointId);
+                return (participant == null) || participant.isSubscribedTo(msg.getTopic());
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Check if a player of an RTMP room consumes a message another player sends.
+     *
+     * @param participant the potential recipient.
+     * @param msg         the message, which decides the route and topic.
+     * @param artist      the participant who is drawing this turn.
+     * @param referee     the participant who judges the guesses, as a room has no host.
+     * @return true if the participant should be sent the message.
+     */
+    public static boolean isRoomRecipient(DrawingParticipant participant, Message msg,
+                                          DrawingParticipant artist,
+                                          DrawingParticipant referee) {
+        switch (msg.getRoute()) {
+            case Message.ROUTE_HOST:
+                return participant.equals(referee);
+            case Message.ROUTE_ARTIST:
+                return participant.equals(artist);
+            case Message.ROUTE_SUBSCRIBERS:
+                return participant.isSubscribedTo(msg.getTopic());
+            default:
+                return true;
+        }
+    }
+}
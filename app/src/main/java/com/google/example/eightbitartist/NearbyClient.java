@@ -19,6 +19,9 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.widget.Toast;
@@ -29,9 +32,13 @@ import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 import com.google.android.gms.nearby.Nearby;
 import com.google.android.gms.nearby.connection.Connections;
+import com.google.example.eightbitartist.messages.Message;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
 
 /**
  * A wrapper for a GoogleApiClient that communicates with the Nearby Connections API. The
@@ -48,7 +55,8 @@ import java.util.HashMap;
 public class NearbyClient implements
         GoogleApiClient.ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener,
-        Connections.MessageListener {
+        Connections.MessageListener,
+        PartyHost.Transport {
 
     private Connections.ConnectionRequestListener myConnectionRequestListener =
             new Connections.ConnectionRequestListener() {
@@ -114,6 +122,9 @@ public class NearbyClient implements
     public static final int STATE_DISCOVERING = 8001;
     public static final int STATE_ADVERTISING = 8002;
 
+    // How long the Host collects relayed messages before sending one packet per client
+    public static final long DEFAULT_AGGREGATION_TICK_MS = 20L;
+
     // The Google API Client for connecting to the Nearby Connections API
     private GoogleApiClient mGoogleApiClient;
 
@@ -126,8 +137,13 @@ public class NearbyClient implements
     // A listener to receive events such as messages and connect/disconnect events.
     private NearbyClientListener mListener;
 
-    // A set of all connected clients, used by the Host.
-    private HashMap<String, DrawingParticipant> mConnectedClients = new HashMap<>();
+    // The names of all connected endpoints by endpoint ID: the clients for the Host, the Host
+    // for a client.
+    private HashMap<String, String> mConnectedEndpoints = new HashMap<>();
+
+    // The participants of the match, used by the Host to look up subscriptions when relaying.
+    // Null until set, in which case every message is relayed to every client.
+    private ParticipantTable mParticipants;
 
     // The id of the Host, used by the client.
     private String mHostId;
@@ -138,6 +154,53 @@ public class NearbyClient implements
     // List dialog to display available endpoints
     private MyListDialog mListDialog;
 
+    // When true, messages that tolerate loss are sent unreliably with forward error correction,
+    // using one FecChannel per endpoint.
+    private boolean mUnreliableDrawing = false;
+    private FecChannelGroup mFecChannels = new FecChannelGroup(new FecChannelGroup.Transport() {
+        @Override
+        public void sendUnreliable(String endpointId, byte[] packet) {
+            Nearby.Connections.sendUnreliableMessage(mGoogleApiClient, endpointId, packet);
+        }
+
+        @Override
+        public void sendReliable(String endpointId, byte[] packet) {
+            Nearby.Connections.sendReliableMessage(mGoogleApiClient, endpointId, packet);
+        }
+    });
+    private FecChannelGroup.Receiver mFecReceiver = new FecChannelGroup.Receiver() {
+        @Override
+        public void onPayload(String endpointId, byte[] payload) {
+            mListener.onMessageReceived(endpointId, payload);
+        }
+    };
+
+    // Messages the Host sends to several clients are collected for one tick and then sent as
+    // a single packet per client.
+    private TickAggregator mAggregator = new TickAggregator(new TickAggregator.Transport() {
+        @Override
+        public void send(String endpointId, byte[] packet) {
+            Nearby.Connections.sendReliableMessage(mGoogleApiClient, endpointId, packet);
+        }
+    }, DEFAULT_AGGREGATION_TICK_MS, Connections.MAX_RELIABLE_MESSAGE_LEN);
+    private List<byte[]> mBatchPayloads = new ArrayList<>();
+    private boolean mAggregationScheduled = false;
+    private Handler mAggregationHandler = new Handler(Looper.getMainLooper());
+    private Runnable mAggregationRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mAggregationScheduled = false;
+            mAggregator.flushAll(SystemClock.elapsedRealtime());
+        }
+    };
+
+    // Relay statistics, used by the Host to measure how much fan-out routing saves. They are
+    // logged once every RELAY_LOG_INTERVAL relayed messages, when debug logging is on.
+    private static final int RELAY_LOG_INTERVAL = 500;
+    private long mMessagesSent = 0;
+    private long mMessagesFiltered = 0;
+    private long mMessagesRelayed = 0;
+
     /**
      * Create a new NearbyClient.
      *
@@ -151,12 +214,22 @@ public class NearbyClient implements
         mListener = listener;
         mState = STATE_IDLE;
 
-        mGoogleApiClient = new GoogleApiClient.Builder(mContext, this, this)
+        // The client lives as long as the party, which may outlive the Activity
+        mGoogleApiClient = new GoogleApiClient.Builder(mContext.getApplicationContext(), this,
+                this)
                 .addApi(Nearby.CONNECTIONS_API)
                 .build();
         mGoogleApiClient.connect();
     }
 
+    /**
+     * Set the Context for displaying Toasts and Dialogs, when the party moves to a new Activity
+     * or goes on without one.
+     */
+    public void setContext(Context context) {
+        mContext = context;
+    }
+
     /**
      * Begin advertising for Nearby Connections.
      */
@@ -231,6 +304,9 @@ public class NearbyClient implements
             mGoogleApiClient.disconnect();
             mState = STATE_IDLE;
         }
+        mAggregationHandler.removeCallbacks(mAggregationRunnable);
+        mAggregationScheduled = false;
+        mAggregator.clear();
     }
 
     /**
@@ -253,14 +329,36 @@ public class NearbyClient implements
      * @param message - the message to send.
      */
     public void broadcastMessage(String message) {
-        Log.d(TAG, "broadcastMessage: " + message);
+        broadcastMessage(message, true);
+    }
+
+    /**
+     * Send a message to all other participants by routing through the Host.
+     *
+     * @param message  the message to send.
+     * @param reliable false if the message tolerates loss and may be sent unreliably.
+     */
+    public void broadcastMessage(String message, boolean reliable) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "broadcastMessage: " + message);
+        }
         if (mIsHost) {
             sendMessageToAll(message, null);
+        } else if (!reliable && mUnreliableDrawing) {
+            sendUnreliableMessageTo(mHostId, message);
         } else {
             sendMessageToHost(message);
         }
     }
 
+    /**
+     * Send messages that tolerate loss unreliably, protected by forward error correction,
+     * instead of waiting for retransmissions.
+     */
+    public void setUnreliableDrawing(boolean enabled) {
+        mUnreliableDrawing = enabled;
+    }
+
     /**
      * Send a message from the Host to all Clients, with the option to
      * exclude one participant.
@@ -269,14 +367,101 @@ public class NearbyClient implements
      * @param excludingId the participant ID of the participant to exclude.
      *                    Null to send to all.
      */
+    @Override
     public void sendMessageToAll(String message, String excludingId) {
-        for (DrawingParticipant participant : mConnectedClients.values()) {
-            if (!participant.getMessagingId().equals(excludingId)) {
-                sendMessageTo(participant.getMessagingId(), message);
+        for (String endpointId : mConnectedEndpoints.keySet()) {
+            if (!endpointId.equals(excludingId)) {
+                queueMessageTo(endpointId, message);
             }
         }
     }
 
+    /**
+     * Relay a message from the Host according to its routing rule. Participants that would not
+     * consume the message are skipped instead of receiving a copy.
+     *
+     * @param message     string to send as payload.
+     * @param msg         the message, which decides the route, topic and reliability.
+     * @param artistId    the endpoint ID of the current artist, or null if the artist is not a
+     *                    connected client.
+     * @param excludingId the endpoint ID of the sender, which never gets its own message back.
+     *                    Null to send to all.
+     */
+    @Override
+    public void relayMessage(String message, Message msg, String artistId, String excludingId) {
+        boolean unreliable = mUnreliableDrawing && !msg.isReliable();
+        for (String endpointId : mConnectedEndpoints.keySet()) {
+            if (endpointId.equals(excludingId)) {
+                continue;
+            }
+
+            boolean deliver = MessageRouter.isRecipient(endpointId, msg, artistId, mParticipants);
+            if (deliver && unreliable) {
+                sendUnreliableMessageTo(endpointId, message);
+            } else if (deliver) {
+                queueMessageTo(endpointId, message);
+            } else {
+                mMessagesFiltered++;
+            }
+        }
+
+        // Relaying is on the drawing hot path, so only a summary is logged now and then
+        mMessagesRelayed++;
+        if (mMessagesRelayed % RELAY_LOG_INTERVAL == 0 && Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "relayMessage: relayed=" + mMessagesRelayed + " sent=" + mMessagesSent
+                    + " filtered=" + mMessagesFiltered);
+        }
+    }
+
+    /**
+     * Set the participants of the match, whose subscriptions decide which clients relayMessage
+     * sends each topic to.
+     */
+    public void setParticipantTable(ParticipantTable participants) {
+        mParticipants = participants;
+    }
+
+    /**
+     * Get the endpoint IDs of all connected clients, used by the Host.
+     */
+    @Override
+    public Set<String> getConnectedEndpointIds() {
+        return mConnectedEndpoints.keySet();
+    }
+
+    public long getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    public long getMessagesFiltered() {
+        return mMessagesFiltered;
+    }
+
+    /**
+     * Set how long the Host collects messages for each client before sending them as one
+     * packet. Longer ticks mean fewer sends but more latency.
+     *
+     * @param tickMs the tick length in milliseconds, 0 to send every message immediately.
+     */
+    public void setAggregationTickMs(long tickMs) {
+        mAggregationHandler.removeCallbacks(mAggregationRunnable);
+        mAggregationScheduled = false;
+        mAggregator.flushAll(SystemClock.elapsedRealtime());
+        mAggregator.setTickMs(tickMs);
+        mAggregator.resetStats();
+    }
+
+    public long getAggregationTickMs() {
+        return mAggregator.getTickMs();
+    }
+
+    /**
+     * Get the Host's packet rate and the latency the aggregation adds, as text.
+     */
+    public String getAggregationSummary() {
+        return mAggregator.getSummary();
+    }
+
     /**
      * Send a message to a specific participant.
      *
@@ -284,18 +469,79 @@ public class NearbyClient implements
      *                   receive the message.
      * @param message    String to send as payload.
      */
+    @Override
     public void sendMessageTo(String endpointId, String message) {
 
         try {
             byte[] payload = message.getBytes("UTF-8");
-            Log.d(TAG, "Sending message: " + message);
+
+            // Anything still waiting for the tick goes first, so messages stay in order
+            mAggregator.flush(endpointId, SystemClock.elapsedRealtime());
             Nearby.Connections.sendReliableMessage(mGoogleApiClient,
                     endpointId, payload);
+            mMessagesSent++;
         } catch (UnsupportedEncodingException e) {
             Log.e(TAG, "Cannot encode " + message + " to UTF-8?");
         }
     }
 
+    /**
+     * Send a message to a specific participant at the end of the current tick, together with
+     * everything else the participant gets during the tick.
+     *
+     * @param endpointId the endpoint ID of the participant that will
+     *                   receive the message.
+     * @param message    String to send as payload.
+     */
+    private void queueMessageTo(String endpointId, String message) {
+        try {
+            byte[] payload = message.getBytes("UTF-8");
+            mMessagesSent++;
+            if (mAggregator.send(endpointId, payload, SystemClock.elapsedRealtime())
+                    && !mAggregationScheduled) {
+                mAggregationScheduled = true;
+                mAggregationHandler.postDelayed(mAggregationRunnable, mAggregator.getTickMs());
+            }
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "Cannot encode " + message + " to UTF-8?");
+        }
+    }
+
+    /**
+     * Send a message unreliably to a specific participant, protected by forward error
+     * correction. Parity for a partially filled group follows shortly after sending stops.
+     * Reliable messages still waiting for the aggregation tick are sent first, so drawing can
+     * never overtake them.
+     *
+     * @param endpointId the endpoint ID of the participant that will
+     *                   receive the message.
+     * @param message    String to send as payload.
+     */
+    public void sendUnreliableMessageTo(String endpointId, String message) {
+        try {
+            byte[] payload = message.getBytes("UTF-8");
+
+            // Reliable messages waiting for the tick, such as a ClearMessage, go first
+            mAggregator.flush(endpointId, SystemClock.elapsedRealtime());
+            mFecChannels.send(endpointId, payload);
+            mMessagesSent++;
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "Cannot encode " + message + " to UTF-8?");
+        }
+    }
+
+    /**
+     * Disconnect from a remote endpoint, for example a client that floods the Host. The
+     * listener is notified as if the endpoint had disconnected itself.
+     *
+     * @param endpointId the endpoint ID to disconnect from.
+     */
+    @Override
+    public void disconnectFrom(String endpointId) {
+        Nearby.Connections.disconnectFromEndpoint(mGoogleApiClient, endpointId);
+        onDisconnected(endpointId);
+    }
+
     /**
      * Send a connection request to a remote endpoint. If the request is successful, notify the
      * listener and add the connection to the Set.  Otherwise, show an error Toast.
@@ -320,9 +566,7 @@ public class NearbyClient implements
                                     Toast.LENGTH_SHORT).show();
 
                             mHostId = remoteEndpointId;
-                            mConnectedClients.put(remoteEndpointId,
-                                    new DrawingParticipant(
-                                    remoteEndpointId, endpointName));
+                            mConnectedEndpoints.put(remoteEndpointId, endpointName);
                             mListener.onConnectedToEndpoint(mHostId,
                                     endpointName);
                         } else {
@@ -377,10 +621,7 @@ public class NearbyClient implements
                                 Toast.LENGTH_SHORT).show();
 
                         // Record connection
-                        DrawingParticipant participant =
-                                new DrawingParticipant(remoteEndpointId,
-                                remoteName);
-                        mConnectedClients.put(remoteEndpointId, participant);
+                        mConnectedEndpoints.put(remoteEndpointId, remoteName);
 
                         // Notify listener
                         mListener.onConnectedToEndpoint(remoteEndpointId, remoteName);
@@ -399,17 +640,28 @@ public class NearbyClient implements
 
     @Override
     public void onMessageReceived(String remoteEndpointId, byte[] payload, boolean isReliable) {
-        Log.d(TAG, "onMessageReceived:" + remoteEndpointId);
-        mListener.onMessageReceived(remoteEndpointId, payload);
+        if (FecChannel.isFecPacket(payload)) {
+            // Deliver whatever the packet carries or lets us rebuild
+            mFecChannels.onPacket(remoteEndpointId, payload, mFecReceiver);
+        } else if (TickAggregator.isBatch(payload)) {
+            TickAggregator.unpack(payload, mBatchPayloads);
+            for (byte[] message : mBatchPayloads) {
+                mListener.onMessageReceived(remoteEndpointId, message);
+            }
+            mBatchPayloads.clear();
+        } else {
+            mListener.onMessageReceived(remoteEndpointId, payload);
+        }
     }
 
     @Override
     public void onDisconnected(String remoteEndpointId) {
         Log.d(TAG, "onDisconnected:" + remoteEndpointId);
-        DrawingParticipant removed = mConnectedClients.remove(remoteEndpointId);
-        if (removed != null) {
-            mListener.onDisconnectedFromEndpoint(removed.getMessagingId(),
-                    removed.getPersistentId());
+        mFecChannels.remove(remoteEndpointId);
+        mAggregator.remove(remoteEndpointId);
+        String name = mConnectedEndpoints.remove(remoteEndpointId);
+        if (name != null) {
+            mListener.onDisconnectedFromEndpoint(remoteEndpointId, name);
         }
     }
 
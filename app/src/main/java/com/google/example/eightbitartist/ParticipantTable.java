@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The registry of the participants of a match, indexed by session ID. A session ID is a small
+ * integer given to a participant when it joins (by the Host in a party, by sorted participant ID
+ * in an RTMP room). It is the same on every device, so messages refer to participants by session
+ * ID and turn order is simply the order of the connected session IDs.
+ * <p>
+ * Connected participants can also be found by messaging ID and persistent ID in constant time.
+ * A participant's IDs must not change while it is in the table; to change the messaging ID of a
+ * returning participant, change it before putting the participant back.
+ * <p>
+ * A participant that leaves keeps its slot for a while, so a player who comes back can be given
+ * its old session ID and score. Only the most recent departures are kept, and only for a limited
+ * time. Once a slot is no longer kept its session ID is handed out again, so the table only grows
+ * with the number of participants in the match and the departures kept, not with every join.
+ */
+public class ParticipantTable {
+
+    public static final int NO_SESSION = -1;
+
+    // Departed participants kept for returning players, and for how long
+    public static final int DEFAULT_MAX_DEPARTED = 16;
+    public static final long DEFAULT_DEPARTED_TTL_MS = 10 * 60 * 1000L;
+
+    // Participants by session ID, including those that left recently
+    private DrawingParticipant[] mSlots = new DrawingParticipant[8];
+
+    // When each departed participant left, by session ID
+    private long[] mDepartedAt = new long[8];
+
+    // Session IDs of the participants currently in the match, in ascending (turn) order
+    private int[] mTurnOrder = new int[8];
+    private int mCount = 0;
+
+    // Session IDs of connected participants by messaging ID and persistent ID
+    private HashMap<String, Integer> mByMessagingId = new HashMap<>();
+    private HashMap<String, Integer> mByPersistentId = new HashMap<>();
+
+    // Session IDs of departed participants by persistent ID, oldest departure first
+    private LinkedHashMap<String, Integer> mDeparted = new LinkedHashMap<>();
+
+    private int mMaxDeparted = DEFAULT_MAX_DEPARTED;
+    private long mDepartedTtlMs = DEFAULT_DEPARTED_TTL_MS;
+
+    // One more than the highest session ID used, the length the slots need
+    private int mNextSessionId = 0;
+
+    /**
+     * Set how many departed participants are kept, and for how long.
+     *
+     * @param maxDeparted the number of most recent departures kept.
+     * @param ttlMs       how long a departed participant can come back, in milliseconds.
+     */
+    public void setDepartedLimits(int maxDeparted, long ttlMs) {
+        mMaxDeparted = maxDeparted;
+        mDepartedTtlMs = ttlMs;
+        trimDeparted();
+    }
+
+    /**
+     * Find the lowest unused session ID, used by the Host when a participant joins. An ID is
+     * unused when no participant holds it, connected or kept as departed. The ID stays unused
+     * until a participant is put with it.
+     */
+    public int nextSessionId() {
+        for (int i = 0; i < mNextSessionId; i++) {
+            if (mSlots[i] == null) {
+                return i;
+            }
+        }
+        return mNextSessionId;
+    }
+
+    /**
+     * Add or replace a participant, in the slot of its session ID.
+     */
+    public void put(DrawingParticipant participant) {
+        int sessionId = participant.getSessionId();
+        if (sessionId >= mSlots.length) {
+            int length = Math.max(sessionId + 1, mSlots.length * 2);
+            mSlots = Arrays.copyOf(mSlots, length);
+            mDepartedAt = Arrays.copyOf(mDepartedAt, length);
+        }
+
+        if (isConnected(sessionId)) {
+            unindex(mSlots[sessionId]);
+        } else {
+            forgetDeparted(sessionId);
+            insertTurnOrder(sessionId);
+        }
+
+        // A player that is back under a new session ID cannot take its old one any more
+        Integer departed = (participant.getPersistentId() == null) ? null
+                : mDeparted.remove(participant.getPersistentId());
+        if (departed != null && departed != sessionId) {
+            mSlots[departed] = null;
+        }
+
+        mSlots[sessionId] = participant;
+        index(participant);
+        mNextSessionId = Math.max(mNextSessionId, sessionId + 1);
+    }
+
+    /**
+     * Get a participant currently in the match.
+     *
+     * @return the participant, or null if the session ID is not connected.
+     */
+    public DrawingParticipant get(int sessionId) {
+        return isConnected(sessionId) ? mSlots[sessionId] : null;
+    }
+
+    public boolean isConnected(int sessionId) {
+        return getTurnIndex(sessionId) >= 0;
+    }
+
+    /**
+     * Mark a participant as having left. Its slot is kept for findDeparted, within the departed
+     * limits.
+     *
+     * @param sessionId the session ID of the participant.
+     * @param now       the current time, in milliseconds.
+     * @return the participant, or null if the session ID was not connected.
+     */
+    public DrawingParticipant remove(int sessionId, long now) {
+        int turnIndex = getTurnIndex(sessionId);
+        if (turnIndex < 0) {
+            return null;
+        }
+
+        System.arraycopy(mTurnOrder, turnIndex + 1, mTurnOrder, turnIndex,
+                mCount - turnIndex - 1);
+        mCount--;
+
+        DrawingParticipant participant = mSlots[sessionId];
+        unindex(participant);
+        if (participant.getPersistentId() != null) {
+            // A later departure with the same persistent ID replaces an earlier one
+            Integer earlier = mDeparted.remove(participant.getPersistentId());
+            if (earlier != null) {
+                mSlots[earlier] = null;
+            }
+            mDeparted.put(participant.getPersistentId(), sessionId);
+            mDepartedAt[sessionId] = now;
+            trimDeparted();
+        } else {
+            // Nobody can come back to this slot
+            mSlots[sessionId] = null;
+        }
+        return participant;
+    }
+
+    /**
+     * Find a participant that left the match, to give a returning player its old session.
+     *
+     * @param persistentId the persistent ID of the returning player.
+     * @param now          the current time, in milliseconds.
+     * @return the departed participant, or null if there is none with that ID or it left more
+     * than the departed TTL ago.
+     */
+    public DrawingParticipant findDeparted(String persistentId, long now) {
+        expireDeparted(now);
+        Integer sessionId = mDeparted.get(persistentId);
+        return (sessionId == null) ? null : mSlots[sessionId];
+    }
+
+    /**
+     * Get the number of departed participants still kept.
+     */
+    public int getDepartedCount() {
+        return mDeparted.size();
+    }
+
+    /**
+     * Find the session ID of a connected participant from its messaging ID.
+     *
+     * @return the session ID, or NO_SESSION if no connected participant has that messaging ID.
+     */
+    public int findSessionId(String messagingId) {
+        Integer sessionId = mByMessagingId.get(messagingId);
+        return (sessionId == null) ? NO_SESSION : sessionId;
+    }
+
+    /**
+     * Get a connected participant by messaging ID.
+     *
+     * @return the participant, or null if no connected participant has that messaging ID.
+     */
+    public DrawingParticipant getByMessagingId(String messagingId) {
+        Integer sessionId = mByMessagingId.get(messagingId);
+        return (sessionId == null) ? null : mSlots[sessionId];
+    }
+
+    /**
+     * Get a connected participant by persistent ID.
+     *
+     * @return the participant, or null if no connected participant has that persistent ID.
+     */
+    public DrawingParticipant getByPersistentId(String persistentId) {
+        Integer sessionId = mByPersistentId.get(persistentId);
+        return (sessionId == null) ? null : mSlots[sessionId];
+    }
+
+    /**
+     * Get the number of participants currently in the match.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Get one more than the highest session ID handed out, the size of arrays indexed by
+     * session ID.
+     */
+    public int getCapacity() {
+        return mNextSessionId;
+    }
+
+    /**
+     * Get a participant's position in the turn order.
+     *
+     * @return the number of connected participants with a lower session ID, or -1 if the
+     * session ID is not connected.
+     */
+    public int getTurnIndex(int sessionId) {
+        if (sessionId < 0) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(mTurnOrder, 0, mCount, sessionId);
+        return (index < 0) ? -1 : index;
+    }
+
+    /**
+     * Get the participant at a position in the turn order.
+     *
+     * @return the participant, or null if the index is out of range.
+     */
+    public DrawingParticipant getByTurnIndex(int turnIndex) {
+        if (turnIndex < 0 || turnIndex >= mCount) {
+            return null;
+        }
+        return mSlots[mTurnOrder[turnIndex]];
+    }
+
+    /**
+     * Get the participants currently in the match, in turn order.
+     */
+    public List<DrawingParticipant> getParticipants() {
+        List<DrawingParticipant> participants = new ArrayList<>(mCount);
+        for (int i = 0; i < mCount; i++) {
+            participants.add(mSlots[mTurnOrder[i]]);
+        }
+        return participants;
+    }
+
+    /**
+     * Get the score of every participant currently in the match, in turn order.
+     *
+     * @return the session ID and the score of each participant, one after the other.
+     */
+    public int[] getScores() {
+        int[] scores = new int[mCount * 2];
+        for (int i = 0; i < mCount; i++) {
+            scores[i * 2] = mTurnOrder[i];
+            scores[i * 2 + 1] = mSlots[mTurnOrder[i]].getScore();
+        }
+        return scores;
+    }
+
+    public void clear() {
+        mSlots = new DrawingParticipant[8];
+        mDepartedAt = new long[8];
+        mTurnOrder = new int[8];
+        mCount = 0;
+        mByMessagingId.clear();
+        mByPersistentId.clear();
+        mDeparted.clear();
+        mNextSessionId = 0;
+    }
+
+    private void index(DrawingParticipant participant) {
+        if (participant.getMessagingId() != null) {
+            mByMessagingId.put(participant.getMessagingId(), participant.getSessionId());
+        }
+        if (participant.getPersistentId() != null) {
+            mByPersistentId.put(participant.getPersistentId(), participant.getSessionId());
+        }
+    }
+
+    private void unindex(DrawingParticipant participant) {
+        Integer sessionId = participant.getSessionId();
+        if (sessionId.equals(mByMessagingId.get(participant.getMessagingId()))) {
+            mByMessagingId.remove(participant.getMessagingId());
+        }
+        if (sessionId.equals(mByPersistentId.get(participant.getPersistentId()))) {
+            mByPersistentId.remove(participant.getPersistentId());
+        }
+    }
+
+    private void insertTurnOrder(int sessionId) {
+        if (mCount == mTurnOrder.length) {
+            mTurnOrder = Arrays.copyOf(mTurnOrder, mCount * 2);
+        }
+        int index = -(Arrays.binarySearch(mTurnOrder, 0, mCount, sessionId) + 1);
+        System.arraycopy(mTurnOrder, index, mTurnOrder, index + 1, mCount - index);
+        mTurnOrder[index] = sessionId;
+        mCount++;
+    }
+
+    /**
+     * Stop keeping a departed participant, because it came back with this session ID.
+     */
+    private void forgetDeparted(int sessionId) {
+        DrawingParticipant departed = mSlots[sessionId];
+        if (departed != null && departed.getPersistentId() != null) {
+            Integer kept = mDeparted.get(departed.getPersistentId());
+            if (kept != null && kept == sessionId) {
+                mDeparted.remove(departed.getPersistentId());
+            }
+        }
+    }
+
+    /**
+     * Drop the oldest departures beyond the limit.
+     */
+    private void trimDeparted() {
+        Iterator<Map.Entry<String, Integer>> departed = mDeparted.entrySet().iterator();
+        while (mDeparted.size() > mMaxDeparted && departed.hasNext()) {
+            mSlots[departed.next().getValue()] = null;
+            departed.remove();
+        }
+    }
+
+    /**
+     * Drop the departures older than the TTL. Departures are in order, so this stops at the
+     * first one that is recent enough.
+     */
+    private void expireDeparted(long now) {
+        Iterator<Map.Entry<String, Integer>> departed = mDeparted.entrySet().iterator();
+        while (departed.hasNext()) {
+            int sessionId = departed.next().getValue();
+            if (now - mDepartedAt[sessionId] < mDepartedTtlMs) {
+                return;
+            }
+            mSlots[sessionId] = null;
+            departed.remove();
+        }
+    }
+}
@@ -0,0 +1,719 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.example.eightbitartist.messages.CanvasAckMessage;
+import com.google.example.eightbitartist.messages.CanvasDeltaMessage;
+import com.google.example.eightbitartist.messages.ClearMessage;
+import com.google.example.eightbitartist.messages.ClockSyncMessage;
+import com.google.example.eightbitartist.messages.DrawingMessage;
+import com.google.example.eightbitartist.messages.EPointMessage;
+import com.google.example.eightbitartist.messages.GuessMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.RosterMessage;
+import com.google.example.eightbitartist.messages.SessionMessage;
+import com.google.example.eightbitartist.messages.StrokeMessage;
+import com.google.example.eightbitartist.messages.TurnMessage;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The relay a party host runs for its clients. It rate limits what each client sends, restamps
+ * messages with the host's clock and scores, relays them to the clients that consume them and
+ * batches roster changes. With delta sync on, it owns the canvas instead and sends each client
+ * the cells it has not acknowledged, rather than relaying every draw event.
+ * <p>
+ * All methods must be called from the thread the Scheduler runs on, the main thread in the app.
+ */
+public class PartyHost {
+
+    /**
+     * The connections to the clients. NearbyClient in the app.
+     */
+    public interface Transport {
+        void sendMessageTo(String endpointId, String message);
+
+        void sendMessageToAll(String message, String excludingId);
+
+        void relayMessage(String message, Message msg, String artistId, String excludingId);
+
+        void disconnectFrom(String endpointId);
+
+        Set<String> getConnectedEndpointIds();
+    }
+
+    /**
+     * Runs the host's timers, and tells the time they run by.
+     */
+    public interface Scheduler {
+        long now();
+
+        void postDelayed(Runnable runnable, long delayMs);
+
+        void removeCallbacks(Runnable runnable);
+    }
+
+    /**
+     * Runs timers on the main thread, by the clock the rest of the party uses.
+     */
+    private static class MainThreadScheduler implements Scheduler {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMs) {
+            mHandler.postDelayed(runnable, delayMs);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            mHandler.removeCallbacks(runnable);
+        }
+    }
+
+    private static final String TAG = "PartyHost";
+
+    // How often the host sends canvas deltas when synchronizing the canvas by state
+    private static final long CANVAS_SYNC_TICK_MS = 100L;
+
+    // How often the host retries cells coalesced by the flood guard
+    private static final long FLOOD_RELEASE_MS = 50L;
+
+    // How long the host holds roster changes, so a burst of joins goes out as one delta
+    private static final long ROSTER_COALESCE_MS = 100L;
+
+    private final GameEngine mGame;
+    private final SharedCanvas mSharedCanvas;
+    private final Gson mMapper;
+    private final Scheduler mScheduler;
+
+    // The party's connections, null when not hosting
+    private Transport mTransport;
+
+    // The persistent ID of the local player, and how many players draw at once in the match
+    private String mMyPlayerId;
+    private int mTeamSize = 1;
+
+    // When true, the host owns the canvas and sends periodic deltas instead of relaying every
+    // draw event. mCanvasSync is non-null only while this mode is running. Changes are ordered
+    // in mSyncOrder before they are folded into mCanvasSync.
+    private boolean mUseDeltaSync = false;
+    private CanvasSync mCanvasSync;
+    private SharedCanvas mSyncOrder = new SharedCanvas();
+    private Runnable mCanvasSyncTick = new Runnable() {
+        @Override
+        public void run() {
+            sendCanvasDeltas();
+            mScheduler.postDelayed(this, CANVAS_SYNC_TICK_MS);
+        }
+    };
+
+    // Inbound rate limits. Cells a client draws over its limit are coalesced (latest color per
+    // cell) and released as tokens come back.
+    private FloodGuard mFloodGuard = FloodGuard.createForPartyHost();
+    private HashMap<String, LinkedHashMap<Integer, EPointMessage>> mCoalescedPoints =
+            new HashMap<>();
+    private Runnable mFloodReleaseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            releaseCoalescedPoints();
+        }
+    };
+
+    // Roster changes not sent to the clients yet, by session ID
+    private LinkedHashMap<Integer, DrawingParticipant> mRosterJoins = new LinkedHashMap<>();
+    private LinkedHashSet<Integer> mRosterLeaves = new LinkedHashSet<>();
+    private Runnable mRosterFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushRosterChanges();
+        }
+    };
+
+    /**
+     * Create a PartyHost running on the main thread, which does nothing until started.
+     *
+     * @param game         the game the party plays.
+     * @param sharedCanvas numbers the changes of team turns, shared with the host's own drawing.
+     * @param mapper       serializes messages.
+     */
+    public PartyHost(GameEngine game, SharedCanvas sharedCanvas, Gson mapper) {
+        this(game, sharedCanvas, mapper, new MainThreadScheduler());
+    }
+
+    /**
+     * Create a PartyHost, which does nothing until started.
+     *
+     * @param game         the game the party plays.
+     * @param sharedCanvas numbers the changes of team turns, shared with the host's own drawing.
+     * @param mapper       serializes messages.
+     * @param scheduler    runs the host's timers.
+     */
+    public PartyHost(GameEngine game, SharedCanvas sharedCanvas, Gson mapper,
+                     Scheduler scheduler) {
+        mGame = game;
+        mSharedCanvas = sharedCanvas;
+        mMapper = mapper;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Start hosting a party.
+     *
+     * @param transport  the party's connections.
+     * @param myPlayerId the persistent ID of the local player.
+     * @param teamSize   how many players draw at once in the match, if it starts over.
+     * @param cells      the drawing on screen, indexed by (x * GRID_SIZE + y). Seeds the canvas
+     *                   if delta sync is on.
+     */
+    public void start(Transport transport, String myPlayerId, int teamSize, short[] cells) {
+        mTransport = transport;
+        mMyPlayerId = myPlayerId;
+        mTeamSize = teamSize;
+        if (mUseDeltaSync) {
+            startCanvasSync(cells);
+        }
+    }
+
+    /**
+     * Stop hosting and drop everything queued for the clients.
+     */
+    public void stop() {
+        stopCanvasSync();
+        mFloodGuard.clear();
+        mCoalescedPoints.clear();
+        mRosterJoins.clear();
+        mRosterLeaves.clear();
+        mScheduler.removeCallbacks(mFloodReleaseRunnable);
+        mScheduler.removeCallbacks(mRosterFlushRunnable);
+        mTransport = null;
+    }
+
+    /**
+     * Switch between replicating every draw event and synchronizing the canvas by state. Only
+     * the host's choice matters: clients apply whatever the host sends them. Takes effect
+     * immediately when hosting.
+     *
+     * @param enabled true to send periodic canvas deltas, false to relay draw events.
+     * @param cells   the drawing on screen, indexed by (x * GRID_SIZE + y).
+     */
+    public void setDeltaSyncEnabled(boolean enabled, short[] cells) {
+        mUseDeltaSync = enabled;
+        if (mTransport == null) {
+            return;
+        }
+
+        if (enabled) {
+            startCanvasSync(cells);
+        } else {
+            stopCanvasSync();
+        }
+    }
+
+    /**
+     * A client connected: add it to the game, giving a returning player its old session back
+     * if it is still kept, and send it what it needs to play along. The match starts with the
+     * first client, unless a saved match is being resumed.
+     *
+     * @param endpointId   the endpoint ID of the client.
+     * @param endpointName the name of the client, which identifies a returning player.
+     * @param resuming     true if the host plays on a saved match.
+     * @return true if the match started.
+     */
+    public boolean onClientConnected(String endpointId, String endpointName, boolean resuming) {
+        long now = mScheduler.now();
+        ParticipantTable participants = mGame.getParticipantTable();
+        if (mGame.getMySessionId() == ParticipantTable.NO_SESSION) {
+            mGame.setMySessionId(participants.nextSessionId());
+            DrawingParticipant me = new DrawingParticipant("local", "Me");
+            me.setPersistentId(mMyPlayerId);
+            me.setSessionId(mGame.getMySessionId());
+            mGame.addParticipant(me);
+        }
+
+        DrawingParticipant participant = participants.findDeparted(endpointName, now);
+        boolean rejoining = (participant != null);
+        if (rejoining) {
+            Log.d(TAG, "Participant rejoining: " + endpointName);
+            participant.setMessagingId(endpointId);
+        } else {
+            participant = new DrawingParticipant(endpointId, endpointName);
+            participant.setSessionId(participants.nextSessionId());
+        }
+        mGame.addParticipant(participant);
+
+        // Send the newcomer its session ID and the roster, and everyone else the newcomer
+        addClient(endpointId, participant);
+
+        boolean matchStarted = participants.size() <= 2 && !rejoining && !resuming;
+        if (matchStarted) {
+            // Start the match if this is the first connection
+            mGame.setTeamSize(mTeamSize);
+            mGame.startMatch(now);
+        } else {
+            // Otherwise, send them the current game state
+            TurnMessage turnMsg = mGame.createTurnMessage();
+            mTransport.sendMessageTo(endpointId, mMapper.toJson(turnMsg, Message.class));
+        }
+        return matchStarted;
+    }
+
+    /**
+     * Tell a client that was added to the game its session ID and the whole roster, and the
+     * other clients about it.
+     */
+    private void addClient(String endpointId, DrawingParticipant participant) {
+        if (mCanvasSync != null) {
+            mCanvasSync.addClient(endpointId);
+        }
+
+        SessionMessage sessionMsg = new SessionMessage(participant.getSessionId());
+        mTransport.sendMessageTo(endpointId, mMapper.toJson(sessionMsg, Message.class));
+
+        List<DrawingParticipant> roster = mGame.getParticipantTable().getParticipants();
+        RosterMessage rosterMsg = new RosterMessage(
+                roster.toArray(new DrawingParticipant[roster.size()]), new int[0], true);
+        mTransport.sendMessageTo(endpointId, mMapper.toJson(rosterMsg, Message.class));
+        queueRosterJoin(participant);
+    }
+
+    /**
+     * A client disconnected: forget its limits and what it had pending, remove it from the
+     * game and tell the other clients.
+     */
+    public void removeClient(String endpointId) {
+        int sessionId = mGame.getParticipantTable().findSessionId(endpointId);
+        if (mCanvasSync != null) {
+            mCanvasSync.removeClient(endpointId);
+        }
+        mFloodGuard.remove(endpointId);
+        mCoalescedPoints.remove(endpointId);
+
+        if (mGame.removeParticipant(sessionId, mScheduler.now()) != null) {
+            queueRosterLeave(sessionId);
+        }
+    }
+
+    /**
+     * Handle a message from a client, within its rate limits. A client that floods the host, or
+     * keeps sending messages that cannot be read, is disconnected.
+     *
+     * @param endpointId the endpoint ID of the sender.
+     * @param payload    the message as received.
+     */
+    public void onMessageReceived(String endpointId, byte[] payload) {
+        long receivedAt = mScheduler.now();
+        Message message;
+        try {
+            message = mMapper.fromJson(new String(payload), Message.class);
+        } catch (JsonParseException e) {
+            message = null;
+        }
+
+        int result;
+        if (message == null) {
+            Log.w(TAG, "Dropping malformed message from " + endpointId);
+            result = mFloodGuard.onMalformed(endpointId, receivedAt);
+        } else {
+            result = mFloodGuard.onMessage(endpointId, message.getClass().getSimpleName(),
+                    receivedAt);
+        }
+
+        if (result == FloodGuard.RESULT_DISCONNECT) {
+            Log.w(TAG, "Disconnecting flooding client " + endpointId + ": " +
+                    mFloodGuard.getSummary(endpointId));
+            mTransport.disconnectFrom(endpointId);
+        } else if (result == FloodGuard.RESULT_COALESCE && message instanceof EPointMessage) {
+            coalescePoint(endpointId, (EPointMessage) message);
+        } else if (result == FloodGuard.RESULT_ALLOW) {
+            onAllowedMessage(endpointId, message, payload, receivedAt);
+        }
+    }
+
+    /**
+     * Send a message of the host's own to the clients that consume it, or fold it into the
+     * canvas if the host owns it.
+     *
+     * @param msg     the message.
+     * @param message the message serialized.
+     */
+    public void sendToClients(Message msg, String message) {
+        if (msg instanceof TurnMessage) {
+            // Clients must know the roster of a turn before it starts
+            flushRosterChanges();
+        }
+
+        if (isCanvasSynced(msg)) {
+            foldIntoCanvasSync(msg, null);
+        } else {
+            DrawingParticipant artist = mGame.getArtist();
+            String artistId = (artist == null) ? null : artist.getMessagingId();
+            mTransport.relayMessage(message, msg, artistId, null);
+        }
+    }
+
+    /**
+     * A new turn is on screen: the canvas starts over.
+     */
+    public void onNewTurn() {
+        if (mCanvasSync != null) {
+            mCanvasSync.onNewTurn();
+        }
+        mSyncOrder.reset();
+    }
+
+    /**
+     * Send the queued roster changes to all clients as one RosterMessage. Clients must know
+     * the roster of a turn before it starts, so this is called before any TurnMessage is sent.
+     */
+    public void flushRosterChanges() {
+        mScheduler.removeCallbacks(mRosterFlushRunnable);
+        if (mTransport == null || (mRosterJoins.isEmpty() && mRosterLeaves.isEmpty())) {
+            return;
+        }
+
+        DrawingParticipant[] joined = mRosterJoins.values().toArray(
+                new DrawingParticipant[mRosterJoins.size()]);
+        int[] left = new int[mRosterLeaves.size()];
+        int i = 0;
+        for (int sessionId : mRosterLeaves) {
+            left[i++] = sessionId;
+        }
+        mRosterJoins.clear();
+        mRosterLeaves.clear();
+
+        RosterMessage msg = new RosterMessage(joined, left, false);
+        mTransport.sendMessageToAll(mMapper.toJson(msg, Message.class), null);
+    }
+
+    /**
+     * @return the inbound rate limiting done so far, for the latency report.
+     */
+    public String getFloodSummary() {
+        return mFloodGuard.getSummary();
+    }
+
+    /**
+     * Handle a message a client sent within its limits: answer it, relay it to the clients
+     * that consume it, and apply it locally.
+     *
+     * @param remoteEndpointId the endpoint ID of the sender.
+     * @param message          the deserialized message.
+     * @param payload          the message as received, relayed as is unless it is restamped.
+     * @param receivedAt       when the host received the message.
+     */
+    private void onAllowedMessage(String remoteEndpointId, Message message, byte[] payload,
+                                  long receivedAt) {
+        if (mGame.isStale(message)) {
+            // Drawing for a turn that is over is not relayed or folded into the canvas
+            return;
+        }
+
+        if (message instanceof EPointMessage) {
+            // A newer color for a cell replaces any coalesced one still waiting
+            LinkedHashMap<Integer, EPointMessage> pending = mCoalescedPoints.get(remoteEndpointId);
+            if (pending != null) {
+                EPoint point = ((EPointMessage) message).getPoint();
+                pending.remove(point.x * DrawView.GRID_SIZE + point.y);
+            }
+        } else if (message instanceof ClearMessage) {
+            // Coalesced cells were drawn before the clear
+            mCoalescedPoints.remove(remoteEndpointId);
+        }
+
+        if (message instanceof ClockSyncMessage) {
+            // Answer clock sync requests straight away
+            ClockSyncMessage msg = (ClockSyncMessage) message;
+            msg.setHostReceiveTime(receivedAt);
+            msg.setHostSendTime(mScheduler.now());
+            mTransport.sendMessageTo(remoteEndpointId,
+                    mMapper.toJson(msg, Message.class));
+            return;
+        }
+
+        // Clients act only for themselves, whatever their messages claim
+        int senderId = mGame.getParticipantTable().findSessionId(remoteEndpointId);
+
+        if (message instanceof TurnMessage) {
+            // Only the artist whose turn it is passes the turn on
+            DrawingParticipant artist = mGame.getArtist();
+            if (artist == null || artist.getSessionId() != senderId) {
+                Log.w(TAG, "Dropping turn from " + remoteEndpointId + ", not the artist");
+                return;
+            }
+
+            // The host's clock times every turn and the host's scores are the real ones,
+            // whichever client draws it
+            TurnMessage msg = (TurnMessage) message;
+            msg.setStartTime(receivedAt);
+            msg.setScores(mGame.getParticipantTable().getScores());
+            payload = mMapper.toJson(message, Message.class).getBytes();
+
+            // Clients must know the roster of a turn before it starts, as when the host sends
+            // a turn of its own
+            flushRosterChanges();
+        } else if (message instanceof GuessMessage) {
+            // A client guesses only for itself, or it could use up or score other players'
+            // guesses
+            GuessMessage msg = (GuessMessage) message;
+            if (senderId == ParticipantTable.NO_SESSION || msg.getGuesserId() != senderId) {
+                Log.w(TAG, "Dropping guess for " + msg.getGuesserId() + " from " +
+                        remoteEndpointId);
+                return;
+            }
+
+            // Score the guess by the host's clock, not by the points the guesser claims. The
+            // guess stays on the host, which judges it.
+            mGame.scoreGuess(msg, receivedAt);
+        } else if (message instanceof DrawingMessage
+                && ((DrawingMessage) message).isTraced()) {
+            // Stamp the relay hop onto traced strokes
+            ((DrawingMessage) message).setRelayTime(receivedAt);
+            payload = mMapper.toJson(message, Message.class).getBytes();
+        }
+
+        boolean echo = false;
+        if (message instanceof DrawingMessage
+                && ((DrawingMessage) message).getArtist() != DrawingMessage.NO_ARTIST) {
+            // A change from a team turn: number it in the order it arrived, and send it back to
+            // its artist too, so that cells two artists drew at once settle the same everywhere.
+            // The change is credited to the client that sent it.
+            ((DrawingMessage) message).setArtist(senderId);
+            ((DrawingMessage) message).setSequence(mSharedCanvas.nextSequence());
+            payload = mMapper.toJson(message, Message.class).getBytes();
+            echo = true;
+        }
+
+        if (isCanvasSynced(message)) {
+            // Drawing goes into the authoritative canvas and out with the next delta
+            foldIntoCanvasSync(message, remoteEndpointId);
+        } else {
+            // The host forwards messages only to the clients that consume them.
+            DrawingParticipant artist = mGame.getArtist();
+            String artistId = (artist == null) ? null : artist.getMessagingId();
+            mTransport.relayMessage(new String(payload), message, artistId,
+                    echo ? null : remoteEndpointId);
+        }
+
+        // Handle messages normally
+        mGame.onMessageReceived(message, receivedAt);
+    }
+
+    /**
+     * Queue telling the clients that a participant joined. Changes are held for
+     * ROSTER_COALESCE_MS, so joins and leaves that happen close together are sent as one delta.
+     */
+    private void queueRosterJoin(DrawingParticipant participant) {
+        scheduleRosterFlush();
+        mRosterLeaves.remove(participant.getSessionId());
+        mRosterJoins.put(participant.getSessionId(), participant);
+    }
+
+    /**
+     * Queue telling the clients that a participant left. The leave is sent even if its join is
+     * still queued, since a newcomer's snapshot may already list the participant.
+     */
+    private void queueRosterLeave(int sessionId) {
+        scheduleRosterFlush();
+        mRosterJoins.remove(sessionId);
+        mRosterLeaves.add(sessionId);
+    }
+
+    private void scheduleRosterFlush() {
+        if (mRosterJoins.isEmpty() && mRosterLeaves.isEmpty()) {
+            mScheduler.postDelayed(mRosterFlushRunnable, ROSTER_COALESCE_MS);
+        }
+    }
+
+    /**
+     * Hold a cell a client drew over its rate limit. Only the latest color of each cell is kept,
+     * so a flood costs at most one pending message per cell.
+     */
+    private void coalescePoint(String endpointId, EPointMessage msg) {
+        LinkedHashMap<Integer, EPointMessage> pending = mCoalescedPoints.get(endpointId);
+        if (pending == null) {
+            pending = new LinkedHashMap<>();
+            mCoalescedPoints.put(endpointId, pending);
+        }
+
+        // Re-insert so cells are released in the order they were last drawn
+        int cell = msg.getPoint().x * DrawView.GRID_SIZE + msg.getPoint().y;
+        pending.remove(cell);
+        pending.put(cell, msg);
+
+        mScheduler.removeCallbacks(mFloodReleaseRunnable);
+        mScheduler.postDelayed(mFloodReleaseRunnable, FLOOD_RELEASE_MS);
+    }
+
+    /**
+     * Handle as many coalesced cells as each client's tokens allow, and try again later if any
+     * are left.
+     */
+    private void releaseCoalescedPoints() {
+        long now = mScheduler.now();
+        String type = EPointMessage.class.getSimpleName();
+        Iterator<String> endpoints = mCoalescedPoints.keySet().iterator();
+        while (endpoints.hasNext()) {
+            String endpointId = endpoints.next();
+            LinkedHashMap<Integer, EPointMessage> pending = mCoalescedPoints.get(endpointId);
+
+            List<EPointMessage> released = new ArrayList<>();
+            Iterator<EPointMessage> points = pending.values().iterator();
+            while (points.hasNext() && mFloodGuard.tryRelease(endpointId, type, now)) {
+                released.add(points.next());
+                points.remove();
+            }
+            if (pending.isEmpty()) {
+                endpoints.remove();
+            }
+
+            for (EPointMessage msg : released) {
+                byte[] payload = mMapper.toJson(msg, Message.class).getBytes();
+                onAllowedMessage(endpointId, msg, payload, now);
+            }
+        }
+
+        if (!mCoalescedPoints.isEmpty()) {
+            mScheduler.postDelayed(mFloodReleaseRunnable, FLOOD_RELEASE_MS);
+        }
+    }
+
+    /**
+     * Begin owning the canvas, seeded from the current drawing, and start the tick that sends
+     * each client its delta.
+     */
+    private void startCanvasSync(short[] cells) {
+        mCanvasSync = new CanvasSync();
+        mSyncOrder.reset();
+        for (int x = 0; x < DrawView.GRID_SIZE; x++) {
+            for (int y = 0; y < DrawView.GRID_SIZE; y++) {
+                mCanvasSync.setCell(x, y, cells[x * DrawView.GRID_SIZE + y]);
+            }
+        }
+        if (mTransport != null) {
+            for (String endpointId : mTransport.getConnectedEndpointIds()) {
+                mCanvasSync.addClient(endpointId);
+            }
+        }
+
+        mScheduler.removeCallbacks(mCanvasSyncTick);
+        mScheduler.postDelayed(mCanvasSyncTick, CANVAS_SYNC_TICK_MS);
+    }
+
+    /**
+     * Stop the canvas delta tick and go back to relaying draw events.
+     */
+    private void stopCanvasSync() {
+        mScheduler.removeCallbacks(mCanvasSyncTick);
+        mCanvasSync = null;
+    }
+
+    /**
+     * Send every client except the artist the canvas cells it has not acknowledged yet.
+     */
+    private void sendCanvasDeltas() {
+        if (mCanvasSync == null || mTransport == null) {
+            return;
+        }
+
+        DrawingParticipant artist = mGame.getArtist();
+        String artistId = (artist == null) ? null : artist.getMessagingId();
+        for (String endpointId : mTransport.getConnectedEndpointIds()) {
+            if (endpointId.equals(artistId) && mGame.getTeamSize() == 1) {
+                // The artist already has the drawing, unless a team draws it
+                continue;
+            }
+
+            CanvasDeltaMessage delta = mCanvasSync.createDelta(endpointId);
+            if (delta != null) {
+                delta.setTurn(mGame.getTurnNumber());
+                mTransport.sendMessageTo(endpointId, mMapper.toJson(delta, Message.class));
+            }
+        }
+    }
+
+    /**
+     * @return true if the message is drawing traffic the host absorbs into its canvas state
+     * rather than relays.
+     */
+    private boolean isCanvasSynced(Message message) {
+        return mCanvasSync != null && message.getTopic() == Message.TOPIC_DRAWING;
+    }
+
+    /**
+     * Apply drawing traffic to the host's authoritative canvas.
+     *
+     * @param message  an EPointMessage, StrokeMessage, ClearMessage or CanvasAckMessage.
+     * @param senderId the endpoint ID of the sender, or null if sent by the host itself.
+     */
+    private void foldIntoCanvasSync(Message message, String senderId) {
+        if (message instanceof EPointMessage) {
+            EPointMessage msg = (EPointMessage) message;
+            foldCell(msg.getPoint().x, msg.getPoint().y, (short) msg.getColor(), msg.getOrder());
+        } else if (message instanceof StrokeMessage) {
+            final StrokeMessage msg = (StrokeMessage) message;
+            VectorStroke.rasterize(msg.getPoints(), DrawView.GRID_SIZE,
+                    new VectorStroke.CellWriter() {
+                        @Override
+                        public void setCell(int gridX, int gridY) {
+                            foldCell(gridX, gridY, (short) msg.getColor(), msg.getOrder());
+                        }
+                    });
+        } else if (message instanceof ClearMessage) {
+            long order = ((ClearMessage) message).getOrder();
+            if (order == DrawingMessage.NO_ORDER) {
+                mCanvasSync.clear();
+            } else {
+                // Cells drawn after the clear, which overtook it, stay
+                mSyncOrder.clear(order);
+                for (int x = 0; x < DrawView.GRID_SIZE; x++) {
+                    for (int y = 0; y < DrawView.GRID_SIZE; y++) {
+                        mCanvasSync.setCell(x, y, mSyncOrder.getCell(x, y));
+                    }
+                }
+            }
+        } else if (message instanceof CanvasAckMessage && senderId != null) {
+            mCanvasSync.onAck(senderId, ((CanvasAckMessage) message).getVersion());
+        }
+    }
+
+    /**
+     * Fold one cell of a change into the host's canvas, unless a newer change already set it.
+     */
+    private void foldCell(int gridX, int gridY, short colorIndex, long order) {
+        if (order == DrawingMessage.NO_ORDER
+                || mSyncOrder.setCell(gridX, gridY, colorIndex, order)) {
+            mCanvasSync.setCell(gridX, gridY, colorIndex);
+        }
+    }
+}
@@ -38,6 +38,12 @@ public class PlayerView extends LinearLayout {
     private TextView mNameView;
     private TextView mScoreView;
 
+    // What the views show, so that updates which change nothing are skipped
+    private String mDisplayName;
+    private String mIconImageUri;
+    private int mScore = -1;
+    private Boolean mIsArtist;
+
     public PlayerView(Context context) {
         this(context, null);
     }
@@ -56,28 +62,42 @@ public class PlayerView extends LinearLayout {
     }
 
     /**
-     * Update the View to display the information of a DrawingParticipant.
+     * Update the View to display the information of a DrawingParticipant. Only what changed since
+     * the last call is updated, so this can be called on every roster or score change.
      * @param participant the DrawingParticipant to display.
      */
     public void populateWithParticipant(DrawingParticipant participant) {
-        ImageManager imMan = ImageManager.create(mContext);
         if (participant == null) {
-            mNameView.setText(mContext.getString(R.string.automatch_player));
-            mIconView.setBackground(getResources().getDrawable(R.drawable.none));
-        } else {
-            mNameView.setText(participant.getDisplayName());
-            if (participant.getIconImageUri() != null) {
-                imMan.loadImage(new ImageManager.OnImageLoadedListener() {
-                    @Override
-                    public void onImageLoaded(Uri uri, Drawable drawable, boolean isRequested) {
-                        if (drawable != null) {
-                            mIconView.setBackground(drawable);
-                        }
-                    }
-                }, participant.getIconImageUri());
+            String automatch = mContext.getString(R.string.automatch_player);
+            if (!automatch.equals(mDisplayName)) {
+                mDisplayName = automatch;
+                mIconImageUri = null;
+                mNameView.setText(automatch);
+                mIconView.setBackground(getResources().getDrawable(R.drawable.none));
             }
+            return;
+        }
+
+        if (mDisplayName == null || !mDisplayName.equals(participant.getDisplayName())) {
+            mDisplayName = participant.getDisplayName();
+            mNameView.setText(mDisplayName);
+        }
+        String iconImageUri = participant.getIconImageUri();
+        if (iconImageUri != null && !iconImageUri.equals(mIconImageUri)) {
+            mIconImageUri = iconImageUri;
+            ImageManager.create(mContext).loadImage(new ImageManager.OnImageLoadedListener() {
+                @Override
+                public void onImageLoaded(Uri uri, Drawable drawable, boolean isRequested) {
+                    if (drawable != null) {
+                        mIconView.setBackground(drawable);
+                    }
+                }
+            }, Uri.parse(iconImageUri));
+        }
+        if (participant.getScore() != mScore) {
+            mScore = participant.getScore();
+            mScoreView.setText(Integer.toString(mScore));
         }
-        mScoreView.setText(Integer.toString(participant.getScore()));
     }
 
     /**
@@ -86,6 +106,11 @@ public class PlayerView extends LinearLayout {
      * @param isArtist true if the DrawingParticipant is the artist, false if it is a guesser.
      */
     public void setIsArtist(boolean isArtist) {
+        if (mIsArtist != null && mIsArtist == isArtist) {
+            return;
+        }
+        mIsArtist = isArtist;
+
         if (isArtist) {
             this.setBackground(mContext.getResources().getDrawable(R.drawable.artist_bg));
         } else {
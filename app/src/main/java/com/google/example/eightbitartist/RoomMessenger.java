@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.games.Games;
+import com.google.android.gms.games.multiplayer.realtime.RealTimeMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.TurnMessage;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Sends the messages of an RTMP game to the players of the room and hands the ones received to
+ * the game. A room has no host, so every player sends to each other player that consumes a
+ * message, and the referee judges the guesses. Messages are sent reliably, except that when
+ * unreliable strokes are on, messages that tolerate loss are sent unreliably with forward error
+ * correction.
+ */
+public class RoomMessenger {
+
+    private static final String TAG = "RoomMessenger";
+
+    private GoogleApiClient mGoogleApiClient;
+    private Gson mMapper;
+    private GameEngine mGame;
+    private boolean mUnreliableStrokes = false;
+
+    // The room sent to last, which the FEC channels send their parity to
+    private String mRoomId;
+
+    private FecChannelGroup mFecChannels = new FecChannelGroup(
+            new FecChannelGroup.Transport() {
+                @Override
+                public void sendUnreliable(String participantId, byte[] packet) {
+                    if (mRoomId != null) {
+                        Games.RealTimeMultiplayer.sendUnreliableMessage(mGoogleApiClient,
+                                packet, mRoomId, participantId);
+                    }
+                }
+
+                @Override
+                public void sendReliable(String participantId, byte[] packet) {
+                    if (mRoomId != null) {
+                        Games.RealTimeMultiplayer.sendReliableMessage(mGoogleApiClient, null,
+                                packet, mRoomId, participantId);
+                    }
+                }
+            });
+
+    private FecChannelGroup.Receiver mFecReceiver = new FecChannelGroup.Receiver() {
+        @Override
+        public void onPayload(String participantId, byte[] payload) {
+            onMessageReceived(payload);
+        }
+    };
+
+    /**
+     * @param googleApiClient the client the room was created with.
+     * @param mapper          serializes and parses messages.
+     * @param game            the game played in the room.
+     */
+    public RoomMessenger(GoogleApiClient googleApiClient, Gson mapper, GameEngine game) {
+        mGoogleApiClient = googleApiClient;
+        mMapper = mapper;
+        mGame = game;
+    }
+
+    public void setUnreliableStrokes(boolean unreliableStrokes) {
+        mUnreliableStrokes = unreliableStrokes;
+    }
+
+    /**
+     * Send a message to the other players of the room that consume it, according to the
+     * message's route.
+     *
+     * @param roomId  the room.
+     * @param msg     the message.
+     * @param message the message serialized.
+     */
+    public void send(String roomId, Message msg, String message) {
+        byte[] data = null;
+
+        ParticipantTable participants = mGame.getParticipantTable();
+        DrawingParticipant me = participants.get(mGame.getMySessionId());
+        DrawingParticipant artist = mGame.getArtist();
+        DrawingParticipant referee = mGame.getReferee();
+        for (DrawingParticipant participant : participants.getParticipants()) {
+            if (participant.equals(me) || participant.getIsLocal()
+                    || !MessageRouter.isRoomRecipient(participant, msg, artist, referee)) {
+                continue;
+            }
+
+            if (data == null) {
+                try {
+                    data = message.getBytes("UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    Log.e(TAG, "Could not encode " + message + " as UTF-8?");
+                    return;
+                }
+            }
+            mRoomId = roomId;
+            if (mUnreliableStrokes && !msg.isReliable()) {
+                mFecChannels.send(participant.getMessagingId(), data);
+            } else {
+                Games.RealTimeMultiplayer.sendReliableMessage(mGoogleApiClient, null,
+                        data, roomId, participant.getMessagingId());
+            }
+        }
+    }
+
+    /**
+     * Hand a message from another player of the room to the game.
+     *
+     * @param realTimeMessage the message as received.
+     */
+    public void onRealTimeMessageReceived(RealTimeMessage realTimeMessage) {
+        byte[] data = realTimeMessage.getMessageData();
+
+        if (FecChannel.isFecPacket(data)) {
+            // Deliver whatever the packet carries or lets us rebuild
+            mFecChannels.onPacket(realTimeMessage.getSenderParticipantId(), data, mFecReceiver);
+        } else {
+            onMessageReceived(data);
+        }
+    }
+
+    /**
+     * Forget the players of the room, for example when the game ends.
+     */
+    public void clear() {
+        mFecChannels.clear();
+        mRoomId = null;
+    }
+
+    private void onMessageReceived(byte[] bytes) {
+        long receivedAt = SystemClock.elapsedRealtime();
+        Message message = parseMessage(bytes);
+        if (message == null) {
+            return;
+        }
+        if (message instanceof TurnMessage) {
+            // An RTMP room has no shared clock, so the turn starts when it arrives
+            ((TurnMessage) message).setStartTime(receivedAt);
+        }
+        mGame.onMessageReceived(message, receivedAt);
+    }
+
+    /**
+     * @return the message, or null if the payload cannot be read.
+     */
+    private Message parseMessage(byte[] bytes) {
+        try {
+            return mMapper.fromJson(new String(bytes), Message.class);
+        } catch (JsonParseException e) {
+            Log.w(TAG, "Dropping malformed message", e);
+            return null;
+        }
+    }
+}
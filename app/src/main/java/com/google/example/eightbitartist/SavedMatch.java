@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.TurnMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The state of a party match as MatchJournal saves it, and as MatchJournal.load restores it.
+ * MatchJournal sets the fields directly.
+ */
+public class SavedMatch {
+
+    boolean mHost;
+    int mMySessionId = ParticipantTable.NO_SESSION;
+    String mHostName;
+
+    // The turn in progress, null until the first turn starts
+    TurnMessage mTurn;
+
+    // Copies of the participants in the match by session ID, so that changes the game
+    // makes to its own participants are found by comparing with them
+    TreeMap<Integer, DrawingParticipant> mParticipants = new TreeMap<>();
+
+    // The canvas of the turn, indexed by (x * GRID_SIZE + y)
+    short[] mCells = new short[DrawView.GRID_SIZE * DrawView.GRID_SIZE];
+
+    // When the match was last saved, in milliseconds since the epoch
+    long mSavedAt;
+
+    public SavedMatch(boolean host, String hostName) {
+        mHost = host;
+        mHostName = hostName;
+    }
+
+    /**
+     * @return true if the local player hosted the party.
+     */
+    public boolean isHost() {
+        return mHost;
+    }
+
+    public int getMySessionId() {
+        return mMySessionId;
+    }
+
+    public String getHostName() {
+        return mHostName;
+    }
+
+    /**
+     * @return the turn in progress, null if no turn had started.
+     */
+    public TurnMessage getTurn() {
+        return mTurn;
+    }
+
+    /**
+     * @return the participants in the match, in session ID order.
+     */
+    public List<DrawingParticipant> getParticipants() {
+        return new ArrayList<>(mParticipants.values());
+    }
+
+    /**
+     * @return the color index of a cell of the canvas of the turn.
+     */
+    public short getCell(int gridX, int gridY) {
+        return mCells[gridX * DrawView.GRID_SIZE + gridY];
+    }
+
+    public long getSavedAt() {
+        return mSavedAt;
+    }
+}
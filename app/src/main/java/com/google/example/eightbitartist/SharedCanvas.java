@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+/**
+ * The canvas of a team turn, where several artists draw at once. The party host gives every
+ * change a sequence number as it relays it, and each cell keeps the change with the highest
+ * number: the last one the host saw. Changes can then be applied in any order, and skipped if
+ * they repeat, and every device still ends up with the host's canvas.
+ * <p>
+ * An artist paints its own changes straight away and then gets them back from the host with
+ * their number, which settles any cell another artist drew at the same time.
+ * <p>
+ * Outside team turns, the changes of the one artist are ordered the same way by the numbers the
+ * artist gave them (DrawingMessage.getOrder()), so a stale point never paints over a newer one.
+ */
+public class SharedCanvas {
+
+    // Sequence number of the blank canvas at the start of a turn
+    public static final int NO_SEQUENCE = 0;
+
+    private static final int NUM_CELLS = DrawView.GRID_SIZE * DrawView.GRID_SIZE;
+
+    // Color of each cell and the sequence number of the change that set it, indexed by
+    // (x * GRID_SIZE + y)
+    private short[] mCells = new short[NUM_CELLS];
+    private long[] mCellSequences = new long[NUM_CELLS];
+
+    // On the host, the number of the last change handed out. Numbers keep growing from one
+    // turn to the next, so a change numbered just before a turn began still loses to the
+    // changes made in that turn.
+    private int mLastSequence = NO_SEQUENCE;
+
+    /**
+     * Start a new turn with a blank canvas.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_CELLS; i++) {
+            mCells[i] = 0;
+            mCellSequences[i] = NO_SEQUENCE;
+        }
+    }
+
+    /**
+     * Number a change to the canvas. Only the party host calls this.
+     *
+     * @return the sequence number of the change, greater than those of all earlier changes.
+     */
+    public int nextSequence() {
+        return ++mLastSequence;
+    }
+
+    /**
+     * Apply a change to one cell, unless a later change already set it.
+     *
+     * @param gridX      the column of the cell.
+     * @param gridY      the row of the cell.
+     * @param colorIndex the color of the change.
+     * @param sequence   the sequence number of the change.
+     * @return true if the cell took the change, false if it was older than the cell.
+     */
+    public boolean setCell(int gridX, int gridY, short colorIndex, long sequence) {
+        int index = gridX * DrawView.GRID_SIZE + gridY;
+        if (sequence <= mCellSequences[index]) {
+            return false;
+        }
+        mCells[index] = colorIndex;
+        mCellSequences[index] = sequence;
+        return true;
+    }
+
+    /**
+     * Clear every cell not set by a later change.
+     *
+     * @param sequence the sequence number of the clear.
+     */
+    public void clear(long sequence) {
+        for (int x = 0; x < DrawView.GRID_SIZE; x++) {
+            for (int y = 0; y < DrawView.GRID_SIZE; y++) {
+                setCell(x, y, (short) 0, sequence);
+            }
+        }
+    }
+
+    /**
+     * @return the color index of a cell.
+     */
+    public short getCell(int gridX, int gridY) {
+        return mCells[gridX * DrawView.GRID_SIZE + gridY];
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.example.eightbitartist.messages.CanvasDeltaMessage;
+import com.google.example.eightbitartist.messages.ClearMessage;
+import com.google.example.eightbitartist.messages.DrawingMessage;
+import com.google.example.eightbitartist.messages.EPointMessage;
+import com.google.example.eightbitartist.messages.StrokeMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Draws the changes other players make onto the grid on screen. Strokes from the artist are
+ * held in a jitter buffer and played back with the artist's timing. Numbered changes go through
+ * the SharedCanvas, so that every device ends up with the same cells whatever order they
+ * arrive in.
+ */
+public class StrokePlayer {
+
+    /**
+     * The grid the changes are drawn on. DrawView in the app.
+     */
+    public interface Grid {
+        void setMacroPixel(int gridX, int gridY, short colorIndex);
+
+        void setCursor(int artist, int gridX, int gridY, short colorIndex);
+
+        void clear();
+    }
+
+    private static final String TAG = "StrokePlayer";
+
+    private final Grid mGrid;
+    private final GameEngine mGame;
+    private final SharedCanvas mSharedCanvas;
+    private final LatencyTracer mLatencyTracer;
+
+    // Remote strokes are held here and played back with the artist's timing
+    private JitterBuffer<DrawingMessage> mStrokeBuffer = new JitterBuffer<>();
+    private List<DrawingMessage> mDueStrokes = new ArrayList<>();
+    private Handler mPlaybackHandler = new Handler(Looper.getMainLooper());
+    private Runnable mPlaybackRunnable = new Runnable() {
+        @Override
+        public void run() {
+            playBufferedStrokes();
+        }
+    };
+
+    /**
+     * @param grid          the grid on screen.
+     * @param game          the game, which tells the local player's team artists apart.
+     * @param sharedCanvas  orders numbered changes.
+     * @param latencyTracer records when traced strokes are applied.
+     */
+    public StrokePlayer(Grid grid, GameEngine game, SharedCanvas sharedCanvas,
+                        LatencyTracer latencyTracer) {
+        mGrid = grid;
+        mGame = game;
+        mSharedCanvas = sharedCanvas;
+        mLatencyTracer = latencyTracer;
+    }
+
+    /**
+     * Queue a stroke from the artist in the jitter buffer, to be drawn when it is due.
+     *
+     * @param msg an EPointMessage, StrokeMessage or ClearMessage.
+     */
+    public void buffer(DrawingMessage msg) {
+        long now = SystemClock.elapsedRealtime();
+        msg.setReceiveTime(now);
+        if (msg.getCaptureTime() == 0 || msg.getSequence() != SharedCanvas.NO_SEQUENCE) {
+            // No capture time, nothing to pace it against. Team strokes come from artists with
+            // different clocks, and their sequence settles their order anyway.
+            apply(msg);
+            return;
+        }
+
+        mStrokeBuffer.add(msg, msg.getCaptureTime(), now);
+        schedulePlayback(now);
+    }
+
+    /**
+     * Apply the changed cells of a canvas delta from a host that synchronizes the canvas by
+     * state.
+     */
+    public void applyDelta(CanvasDeltaMessage msg) {
+        for (int cell : msg.getCells()) {
+            int index = CanvasDeltaMessage.unpackIndex(cell);
+            mGrid.setMacroPixel(index / DrawView.GRID_SIZE, index % DrawView.GRID_SIZE,
+                    CanvasDeltaMessage.unpackColor(cell));
+        }
+    }
+
+    /**
+     * Apply a numbered change to the shared canvas, and paint the cells it wins onto the
+     * grid. In a team turn, the cursor of the artist who made it follows it.
+     *
+     * @param sequence the number the host gave the change in a team turn, else the number its
+     *                 artist gave it.
+     */
+    public void applySequenced(DrawingMessage msg, final long sequence) {
+        int cursor = -1;
+        short color = 0;
+        if (msg instanceof EPointMessage) {
+            EPointMessage point = (EPointMessage) msg;
+            color = (short) point.getColor();
+            setSharedCell(point.getPoint().x, point.getPoint().y, color, sequence);
+            cursor = point.getPoint().x * DrawView.GRID_SIZE + point.getPoint().y;
+        } else if (msg instanceof StrokeMessage) {
+            final StrokeMessage stroke = (StrokeMessage) msg;
+            final int[] lastCell = {-1};
+            color = (short) stroke.getColor();
+            VectorStroke.rasterize(stroke.getPoints(), DrawView.GRID_SIZE,
+                    new VectorStroke.CellWriter() {
+                        @Override
+                        public void setCell(int gridX, int gridY) {
+                            setSharedCell(gridX, gridY, (short) stroke.getColor(), sequence);
+                            lastCell[0] = gridX * DrawView.GRID_SIZE + gridY;
+                        }
+                    });
+            cursor = lastCell[0];
+        } else if (msg instanceof ClearMessage) {
+            mSharedCanvas.clear(sequence);
+            for (int x = 0; x < DrawView.GRID_SIZE; x++) {
+                for (int y = 0; y < DrawView.GRID_SIZE; y++) {
+                    mGrid.setMacroPixel(x, y, mSharedCanvas.getCell(x, y));
+                }
+            }
+        }
+
+        if (cursor >= 0 && msg.getArtist() != DrawingMessage.NO_ARTIST
+                && msg.getArtist() != mGame.getMySessionId()) {
+            mGrid.setCursor(msg.getArtist(), cursor / DrawView.GRID_SIZE,
+                    cursor % DrawView.GRID_SIZE, color);
+        }
+    }
+
+    /**
+     * Paint the cells a StrokeMessage covers onto the grid.
+     */
+    public void rasterize(final StrokeMessage msg) {
+        VectorStroke.rasterize(msg.getPoints(), DrawView.GRID_SIZE,
+                new VectorStroke.CellWriter() {
+                    @Override
+                    public void setCell(int gridX, int gridY) {
+                        mGrid.setMacroPixel(gridX, gridY, (short) msg.getColor());
+                    }
+                });
+    }
+
+    /**
+     * Drop strokes still waiting in the jitter buffer, for example because the turn ended, and
+     * log the playback metrics.
+     */
+    public void reset() {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, String.format(Locale.US, "Stroke playback: played=%d late=%d " +
+                            "target=%dms jitter=%.1fms avgDelay=%dms maxDelay=%dms",
+                    mStrokeBuffer.getPlayedCount(), mStrokeBuffer.getLateCount(),
+                    mStrokeBuffer.getTargetDelay(), mStrokeBuffer.getJitter(),
+                    mStrokeBuffer.getAverageBufferDelay(), mStrokeBuffer.getMaxBufferDelay()));
+        }
+
+        mStrokeBuffer.clear();
+        mPlaybackHandler.removeCallbacks(mPlaybackRunnable);
+    }
+
+    /**
+     * Draw every buffered stroke that is due and schedule the next playback.
+     */
+    private void playBufferedStrokes() {
+        long now = SystemClock.elapsedRealtime();
+        mStrokeBuffer.poll(now, mDueStrokes);
+        for (DrawingMessage msg : mDueStrokes) {
+            apply(msg);
+        }
+        mDueStrokes.clear();
+
+        schedulePlayback(now);
+    }
+
+    private void schedulePlayback(long now) {
+        mPlaybackHandler.removeCallbacks(mPlaybackRunnable);
+        long next = mStrokeBuffer.getNextPlayoutTime();
+        if (next >= 0) {
+            mPlaybackHandler.postDelayed(mPlaybackRunnable, Math.max(0L, next - now));
+        }
+    }
+
+    private void apply(DrawingMessage msg) {
+        if (msg.isTraced()) {
+            mLatencyTracer.onStrokeApplied(msg);
+        }
+
+        if (msg.getSequence() != SharedCanvas.NO_SEQUENCE) {
+            applySequenced(msg, msg.getSequence());
+        } else if (msg.getOrder() != DrawingMessage.NO_ORDER) {
+            applySequenced(msg, msg.getOrder());
+        } else if (msg instanceof EPointMessage) {
+            EPointMessage point = (EPointMessage) msg;
+            mGrid.setMacroPixel(point.getPoint().x, point.getPoint().y,
+                    (short) point.getColor());
+        } else if (msg instanceof StrokeMessage) {
+            rasterize((StrokeMessage) msg);
+        } else if (msg instanceof ClearMessage) {
+            mGrid.clear();
+        }
+    }
+
+    private void setSharedCell(int gridX, int gridY, short colorIndex, long sequence) {
+        if (mSharedCanvas.setCell(gridX, gridY, colorIndex, sequence)) {
+            mGrid.setMacroPixel(gridX, gridY, colorIndex);
+        }
+    }
+}
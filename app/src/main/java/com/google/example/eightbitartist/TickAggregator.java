@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collects the messages the Host sends during one tick and delivers them as a single packet per
+ * destination when the tick ends, instead of one packet per message. Messages to the same
+ * destination keep their order.
+ * <p>
+ * A tick of length T costs every message between 0 and T of extra latency (T / 2 on average),
+ * and in return each destination gets at most 1000 / T packets per second no matter how many
+ * participants are sending.
+ * <p>
+ * Batches start with a marker byte that can never begin a JSON message (or an FEC packet), so
+ * batches and single messages can share a connection. A tick with a single message for a
+ * destination sends that message as it is. A tick with more than fits in one packet is split
+ * into several batches, none larger than the transport's limit unless a single message is.
+ */
+public class TickAggregator {
+
+    /**
+     * Sends a raw packet to a destination.
+     */
+    public interface Transport {
+        void send(String endpointId, byte[] packet);
+    }
+
+    private static final byte MAGIC = (byte) 0xFD;
+
+    private Transport mTransport;
+    private long mTickMs;
+    private int mMaxPacketBytes;
+
+    // Messages waiting for the end of the tick, by destination
+    private HashMap<String, List<byte[]>> mPending = new HashMap<>();
+    private HashMap<String, Long> mPendingEnqueueTimes = new HashMap<>();
+
+    // Statistics
+    private long mFirstSendTime = -1;
+    private long mLastSendTime = -1;
+    private long mPacketsSent = 0;
+    private long mMessagesSent = 0;
+    private long mTotalDelayMs = 0;
+
+    /**
+     * Create a new TickAggregator.
+     *
+     * @param transport      sends the aggregated packets.
+     * @param tickMs         the tick length in milliseconds, 0 to send every message
+     *                       immediately.
+     * @param maxPacketBytes the largest packet the transport accepts.
+     */
+    public TickAggregator(Transport transport, long tickMs, int maxPacketBytes) {
+        mTransport = transport;
+        mTickMs = tickMs;
+        mMaxPacketBytes = maxPacketBytes;
+    }
+
+    /**
+     * Check if a packet is a batch built by a TickAggregator.
+     */
+    public static boolean isBatch(byte[] packet) {
+        return packet.length > 0 && packet[0] == MAGIC;
+    }
+
+    /**
+     * Split a batch into the messages it carries, in the order they were sent.
+     *
+     * @param packet the batch.
+     * @param out    list the messages are added to.
+     */
+    public static void unpack(byte[] packet, List<byte[]> out) {
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        buffer.get();
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                // Truncated batch, keep what was complete
+                return;
+            }
+            byte[] message = new byte[length];
+            buffer.get(message);
+            out.add(message);
+        }
+    }
+
+    public void setTickMs(long tickMs) {
+        mTickMs = tickMs;
+    }
+
+    public long getTickMs() {
+        return mTickMs;
+    }
+
+    /**
+     * Queue a message for the end of the tick, or send it right away when aggregation is off.
+     *
+     * @param endpointId the destination.
+     * @param payload    the message.
+     * @param now        the current time, in milliseconds.
+     * @return true if the message is queued and a flush at the end of the tick is needed.
+     */
+    public boolean send(String endpointId, byte[] payload, long now) {
+        if (mTickMs <= 0) {
+            sendPacket(endpointId, payload, 1, now);
+            return false;
+        }
+
+        List<byte[]> pending = mPending.get(endpointId);
+        if (pending == null) {
+            pending = new ArrayList<>();
+            mPending.put(endpointId, pending);
+            mPendingEnqueueTimes.put(endpointId, 0L);
+        }
+        pending.add(payload);
+        mPendingEnqueueTimes.put(endpointId, mPendingEnqueueTimes.get(endpointId) + now);
+        return true;
+    }
+
+    /**
+     * Send everything queued for one destination. Call before sending it anything directly so
+     * that the direct message does not overtake queued ones.
+     */
+    public void flush(String endpointId, long now) {
+        List<byte[]> pending = mPending.remove(endpointId);
+        Long enqueueTimes = mPendingEnqueueTimes.remove(endpointId);
+        if (pending == null || pending.isEmpty()) {
+            return;
+        }
+
+        mTotalDelayMs += pending.size() * now - enqueueTimes;
+        int start = 0;
+        while (start < pending.size()) {
+            // Take as many messages as fit in one packet, and at least one
+            int end = start + 1;
+            int length = 1 + 4 + pending.get(start).length;
+            while (end < pending.size()
+                    && length + 4 + pending.get(end).length <= mMaxPacketBytes) {
+                length += 4 + pending.get(end).length;
+                end++;
+            }
+
+            if (end - start == 1) {
+                sendPacket(endpointId, pending.get(start), 1, now);
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                buffer.put(MAGIC);
+                for (int i = start; i < end; i++) {
+                    buffer.putInt(pending.get(i).length);
+                    buffer.put(pending.get(i));
+                }
+                sendPacket(endpointId, buffer.array(), end - start, now);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Send everything queued, at the end of a tick.
+     */
+    public void flushAll(long now) {
+        for (String endpointId : new ArrayList<>(mPending.keySet())) {
+            flush(endpointId, now);
+        }
+    }
+
+    /**
+     * Drop everything queued for a destination that has gone away.
+     */
+    public void remove(String endpointId) {
+        mPending.remove(endpointId);
+        mPendingEnqueueTimes.remove(endpointId);
+    }
+
+    public void clear() {
+        mPending.clear();
+        mPendingEnqueueTimes.clear();
+    }
+
+    public boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    private void sendPacket(String endpointId, byte[] packet, int messages, long now) {
+        mTransport.send(endpointId, packet);
+        if (mFirstSendTime < 0) {
+            mFirstSendTime = now;
+        }
+        mLastSendTime = now;
+        mPacketsSent++;
+        mMessagesSent += messages;
+    }
+
+    /**
+     * Get the number of packets actually sent.
+     */
+    public long getPacketsSent() {
+        return mPacketsSent;
+    }
+
+    /**
+     * Get the number of messages carried by those packets.
+     */
+    public long getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    /**
+     * Get the packets sent per second, between the first and the last send.
+     */
+    public double getSendsPerSecond() {
+        long elapsed = mLastSendTime - mFirstSendTime;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return mPacketsSent * 1000.0 / elapsed;
+    }
+
+    /**
+     * Get the average time a message waited for the end of its tick, in milliseconds.
+     */
+    public double getAverageDelayMs() {
+        if (mMessagesSent == 0) {
+            return 0;
+        }
+        return (double) mTotalDelayMs / mMessagesSent;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US,
+                "tick=%dms packets=%d messages=%d sends/s=%.1f delay=%.1fms",
+                mTickMs, mPacketsSent, mMessagesSent, getSendsPerSecond(),
+                getAverageDelayMs());
+    }
+
+    public void resetStats() {
+        mFirstSendTime = -1;
+        mLastSendTime = -1;
+        mPacketsSent = 0;
+        mMessagesSent = 0;
+        mTotalDelayMs = 0;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+/**
+ * Strokes drawn as polylines instead of cell by cell. A stroke is captured as the touch path in
+ * grid units (one unit per cell), simplified with Ramer-Douglas-Peucker, and encoded as a short
+ * list of fixed point coordinate deltas. Every device rasterizes the encoded stroke into the grid
+ * with the same integer grid walk, so all canvases end up with exactly the same cells.
+ */
+public class VectorStroke {
+
+    /**
+     * Receives the cells covered by a rasterized stroke.
+     */
+    public interface CellWriter {
+        void setCell(int gridX, int gridY);
+    }
+
+    // Fixed point steps per cell used when encoding coordinates
+    public static final int STEPS_PER_CELL = 16;
+
+    // Simplification tolerance, in cells. Tied to the grid rather than to screen pixels, so the
+    // simplified line strays at most a quarter cell from the touch path and crosses nearly the
+    // same cells at any grid size.
+    public static final float DEFAULT_TOLERANCE = 0.25f;
+
+    /**
+     * Simplify a polyline with the Ramer-Douglas-Peucker algorithm.
+     *
+     * @param points    the points as x, y pairs, in grid units.
+     * @param count     the number of points.
+     * @param tolerance the largest distance, in grid units, a dropped point may be from the
+     *                  simplified line.
+     * @return the kept points as x, y pairs. The first and last point are always kept.
+     */
+    public static float[] simplify(float[] points, int count, float tolerance) {
+        if (count <= 2) {
+            float[] result = new float[count * 2];
+            System.arraycopy(points, 0, result, 0, count * 2);
+            return result;
+        }
+
+        boolean[] keep = new boolean[count];
+        keep[0] = true;
+        keep[count - 1] = true;
+
+        // Ranges still to simplify, as pairs of point indices
+        int[] stack = new int[count * 2];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+
+        float toleranceSquared = tolerance * tolerance;
+        int kept = 2;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            int farthest = -1;
+            float farthestDistance = toleranceSquared;
+            for (int i = first + 1; i < last; i++) {
+                float distance = distanceSquared(points, i, first, last);
+                if (distance > farthestDistance) {
+                    farthest = i;
+                    farthestDistance = distance;
+                }
+            }
+
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                kept++;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        float[] result = new float[kept * 2];
+        int next = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                result[next++] = points[i * 2];
+                result[next++] = points[i * 2 + 1];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Squared distance from point i to the segment between points first and last.
+     */
+    private static float distanceSquared(float[] points, int i, int first, int last) {
+        float x = points[i * 2];
+        float y = points[i * 2 + 1];
+        float x1 = points[first * 2];
+        float y1 = points[first * 2 + 1];
+        float dx = points[last * 2] - x1;
+        float dy = points[last * 2 + 1] - y1;
+
+        float lengthSquared = dx * dx + dy * dy;
+        float t = 0;
+        if (lengthSquared > 0) {
+            t = Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / lengthSquared));
+        }
+
+        float ex = x - (x1 + t * dx);
+        float ey = y - (y1 + t * dy);
+        return ex * ex + ey * ey;
+    }
+
+    /**
+     * Encode points for sending: the first point as fixed point coordinates, then the difference
+     * to each following point. Differences are small numbers, which keeps the message short.
+     *
+     * @param points the points as x, y pairs, in grid units.
+     * @return x0, y0, dx1, dy1, dx2, dy2... in 1/STEPS_PER_CELL of a cell.
+     */
+    public static int[] encode(float[] points) {
+        int[] encoded = new int[points.length];
+        int lastX = 0;
+        int lastY = 0;
+        for (int i = 0; i < points.length; i += 2) {
+            int x = Math.max(0, Math.round(points[i] * STEPS_PER_CELL));
+            int y = Math.max(0, Math.round(points[i + 1] * STEPS_PER_CELL));
+            encoded[i] = x - lastX;
+            encoded[i + 1] = y - lastY;
+            lastX = x;
+            lastY = y;
+        }
+        return encoded;
+    }
+
+    /**
+     * Rasterize an encoded stroke: every cell a segment between consecutive points passes
+     * through is written, including cells it only clips at a corner. Only integer math is used,
+     * so the result is the same on every device.
+     *
+     * @param encoded  the stroke, as built by encode().
+     * @param gridSize the number of cells in each row and column.
+     * @param writer   receives every covered cell inside the grid, possibly more than once.
+     * @return the number of cells written.
+     */
+    public static int rasterize(int[] encoded, int gridSize, CellWriter writer) {
+        if (encoded == null || encoded.length < 2) {
+            return 0;
+        }
+
+        int x = encoded[0];
+        int y = encoded[1];
+        int cellX = x / STEPS_PER_CELL;
+        int cellY = y / STEPS_PER_CELL;
+        int written = writeCell(cellX, cellY, gridSize, writer);
+
+        for (int i = 2; i + 1 < encoded.length; i += 2) {
+            int dx = encoded[i];
+            int dy = encoded[i + 1];
+            int endCellX = (x + dx) / STEPS_PER_CELL;
+            int endCellY = (y + dy) / STEPS_PER_CELL;
+            int stepX = dx > 0 ? 1 : -1;
+            int stepY = dy > 0 ? 1 : -1;
+
+            // Walk one cell boundary at a time, crossing whichever boundary the segment reaches
+            // first. Comparing distanceX / |dx| with distanceY / |dy| is done cross multiplied.
+            int steps = Math.abs(endCellX - cellX) + Math.abs(endCellY - cellY);
+            for (int step = 0; step < steps; step++) {
+                boolean crossX;
+                if (cellX == endCellX) {
+                    crossX = false;
+                } else if (cellY == endCellY) {
+                    crossX = true;
+                } else {
+                    int boundaryX = (dx > 0 ? cellX + 1 : cellX) * STEPS_PER_CELL;
+                    int boundaryY = (dy > 0 ? cellY + 1 : cellY) * STEPS_PER_CELL;
+                    long distanceX = Math.abs(boundaryX - x);
+                    long distanceY = Math.abs(boundaryY - y);
+                    crossX = distanceX * Math.abs(dy) <= distanceY * Math.abs(dx);
+                }
+
+                if (crossX) {
+                    cellX += stepX;
+                } else {
+                    cellY += stepY;
+                }
+                written += writeCell(cellX, cellY, gridSize, writer);
+            }
+
+            x += dx;
+            y += dy;
+        }
+        return written;
+    }
+
+    private static int writeCell(int cellX, int cellY, int gridSize, CellWriter writer) {
+        if (cellX < 0 || cellY < 0 || cellX >= gridSize || cellY >= gridSize) {
+            return 0;
+        }
+        writer.setCell(cellX, cellY);
+        return 1;
+    }
+}
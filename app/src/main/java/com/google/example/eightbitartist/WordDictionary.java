@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A word pack compiled at build time (see the compileWordPacks task in build.gradle) and read
+ * in place, generally from a memory-mapped asset. Words are decoded only when asked for, so
+ * opening a pack costs the same whatever its size and keeps no String per word on the heap.
+ * <p>
+ * The format is big-endian:
+ * <pre>
+ * int   magic       - MAGIC
+ * int   version     - VERSION
+ * int   count       - the number of words
+ * int   hash        - java.util.Arrays.hashCode of the words, identifies the pack in a match
+ * int[] offsets     - count + 1 offsets into the blob, word i is [offsets[i], offsets[i + 1])
+ * byte[] blob       - the words, UTF-8 encoded, back to back
+ * </pre>
+ */
+public class WordDictionary {
+
+    public static final int MAGIC = 0x38425744; // "8BWD"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String mName;
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mHash;
+    private final int mBlobStart;
+
+    /**
+     * Open a word pack.
+     *
+     * @param name   the name of the pack, shown to players and sent in TurnMessages.
+     * @param buffer the compiled pack, read from its current position. It is not copied.
+     * @throws IOException if the buffer does not hold a word pack of this version.
+     */
+    public WordDictionary(String name, ByteBuffer buffer) throws IOException {
+        mName = name;
+        mBuffer = buffer.slice();
+        if (mBuffer.remaining() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a word pack: " + name);
+        }
+        if (mBuffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported word pack version " + mBuffer.getInt(4) + ": "
+                    + name);
+        }
+
+        mCount = mBuffer.getInt(8);
+        mHash = mBuffer.getInt(12);
+        mBlobStart = HEADER_SIZE + (mCount + 1) * 4;
+        if (mCount <= 0 || mBlobStart > mBuffer.limit()
+                || mBlobStart + getOffset(mCount) > mBuffer.limit()) {
+            throw new IOException("Truncated word pack: " + name);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return the number of words in the pack.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return a hash of all words, equal on two devices only if they have the same pack.
+     */
+    public int getHash() {
+        return mHash;
+    }
+
+    /**
+     * Decode a word.
+     *
+     * @param index the index of the word, from 0 to size() - 1.
+     */
+    public String get(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Word " + index + " of " + mCount);
+        }
+
+        int start = getOffset(index);
+        int length = getOffset(index + 1) - start;
+        byte[] bytes = new byte[length];
+        ByteBuffer word = mBuffer.duplicate();
+        word.position(mBlobStart + start);
+        word.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private int getOffset(int index) {
+        return mBuffer.getInt(HEADER_SIZE + index * 4);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Matches typed guesses against a WordDictionary. Words are kept in a trie of their normalized
+ * form (lower case letters and digits only), which answers two questions:
+ * <ul>
+ *     <li>suggest: the words starting with what was typed so far, shortest first.</li>
+ *     <li>match: the word meant by a finished guess, allowing for plurals and typos. Typos are
+ *     counted as edits (insertions, deletions, substitutions and swaps of adjacent letters):
+ *     none for words of up to 3 letters, 1 up to 7 letters and 2 beyond.</li>
+ * </ul>
+ * The trie is walked with one edit-distance row per level, so a match only visits the branches
+ * that are still within reach of the guess rather than every word.
+ */
+public class WordMatcher {
+
+    public static final int NO_MATCH = -1;
+
+    private static final int NO_NODE = -1;
+
+    private final WordDictionary mDictionary;
+
+    // The trie, one entry per node. Children are linked from firstChild through nextSibling in
+    // increasing order of their letter. Node 0 is the root.
+    private char[] mLetter;
+    private int[] mFirstChild;
+    private int[] mNextSibling;
+    private int[] mWord;
+    private int mNodeCount;
+    private int mMaxDepth;
+
+    // Edit-distance rows and the trie path of the current match, one per trie level
+    private int[][] mRows = new int[0][];
+    private char[] mPath;
+
+    // The best match found so far by the current walk and its distance
+    private int mBestWord;
+    private int mBestDistance;
+
+    // Queue of nodes to visit, used by suggest
+    private int[] mQueue = new int[64];
+
+    /**
+     * Index a dictionary. This decodes every word, so it takes time proportional to the size of
+     * the dictionary; build a matcher once per dictionary.
+     */
+    public WordMatcher(WordDictionary dictionary) {
+        mDictionary = dictionary;
+
+        // Sort the words by normalized form so that children are added in order
+        int count = dictionary.size();
+        String[] keys = new String[count];
+        Integer[] order = new Integer[count];
+        int letters = 0;
+        for (int i = 0; i < count; i++) {
+            keys[i] = normalize(dictionary.get(i));
+            order[i] = i;
+            letters += keys[i].length();
+        }
+        final String[] sortKeys = keys;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return sortKeys[a].compareTo(sortKeys[b]);
+            }
+        });
+
+        int capacity = letters + 1;
+        mLetter = new char[capacity];
+        mFirstChild = new int[capacity];
+        mNextSibling = new int[capacity];
+        mWord = new int[capacity];
+        mNodeCount = 1;
+        mFirstChild[0] = NO_NODE;
+        mNextSibling[0] = NO_NODE;
+        mWord[0] = NO_MATCH;
+
+        // Each key shares its prefix with the previous one, so only the rest is new
+        int[] path = new int[16];
+        String previous = "";
+        for (Integer index : order) {
+            String key = keys[index];
+            if (key.isEmpty()) {
+                continue;
+            }
+            int common = 0;
+            while (common < previous.length() && common < key.length()
+                    && previous.charAt(common) == key.charAt(common)) {
+                common++;
+            }
+            if (path.length <= key.length()) {
+                path = Arrays.copyOf(path, key.length() * 2);
+            }
+            for (int depth = common; depth < key.length(); depth++) {
+                path[depth + 1] = addChild(path[depth], key.charAt(depth));
+            }
+            int node = path[key.length()];
+            if (mWord[node] == NO_MATCH) {
+                // The sort is stable, so of the words with the same normalized form the first
+                // in the dictionary wins
+                mWord[node] = index;
+            }
+            mMaxDepth = Math.max(mMaxDepth, key.length());
+            previous = key;
+        }
+        mPath = new char[mMaxDepth + 3];
+    }
+
+    public WordDictionary getDictionary() {
+        return mDictionary;
+    }
+
+    /**
+     * Find the words that start with a partly typed guess. If none do, the word match would
+     * pick is suggested instead, if any.
+     *
+     * @param input       the text typed so far.
+     * @param suggestions receives the dictionary indices of the suggestions, up to its length.
+     * @return the number of suggestions.
+     */
+    public int suggest(String input, int[] suggestions) {
+        String key = normalize(input);
+        if (key.isEmpty() || suggestions.length == 0) {
+            return 0;
+        }
+
+        int node = find(key);
+        if (node == NO_NODE) {
+            int word = match(input);
+            if (word == NO_MATCH) {
+                return 0;
+            }
+            suggestions[0] = word;
+            return 1;
+        }
+
+        // Breadth first, so that shorter words come first
+        int count = 0;
+        int head = 0;
+        int tail = 0;
+        mQueue[tail++] = node;
+        while (head < tail && count < suggestions.length) {
+            node = mQueue[head++];
+            if (mWord[node] != NO_MATCH) {
+                suggestions[count++] = mWord[node];
+            }
+            for (int child = mFirstChild[node]; child != NO_NODE; child = mNextSibling[child]) {
+                if (tail == mQueue.length) {
+                    if (head > 0) {
+                        System.arraycopy(mQueue, head, mQueue, 0, tail - head);
+                        tail -= head;
+                        head = 0;
+                    } else {
+                        mQueue = Arrays.copyOf(mQueue, mQueue.length * 2);
+                    }
+                }
+                mQueue[tail++] = child;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Find the word meant by a guess: the word itself, else its singular, else the closest word
+     * within the allowed number of edits.
+     *
+     * @param input the guess as typed.
+     * @return the dictionary index of the word, or NO_MATCH if no word is close enough.
+     */
+    public int match(String input) {
+        String key = normalize(input);
+        if (key.isEmpty()) {
+            return NO_MATCH;
+        }
+
+        int word = findWord(key);
+        if (word != NO_MATCH) {
+            return word;
+        }
+        if (key.endsWith("ies")) {
+            word = findWord(key.substring(0, key.length() - 3) + "y");
+        }
+        if (word == NO_MATCH && key.endsWith("es")) {
+            word = findWord(key.substring(0, key.length() - 2));
+        }
+        if (word == NO_MATCH && key.endsWith("s")) {
+            word = findWord(key.substring(0, key.length() - 1));
+        }
+        if (word != NO_MATCH) {
+            return word;
+        }
+
+        int maxEdits = getMaxEdits(key.length());
+        if (maxEdits == 0) {
+            return NO_MATCH;
+        }
+
+        // Walk the trie, one row of the edit-distance table per level
+        int columns = key.length() + 1;
+        if (mRows.length < mMaxDepth + 1 || mRows[0].length < columns) {
+            mRows = new int[mMaxDepth + 1][Math.max(columns, 16)];
+        }
+        for (int j = 0; j < columns; j++) {
+            mRows[0][j] = j;
+        }
+        mBestWord = NO_MATCH;
+        mBestDistance = maxEdits + 1;
+        for (int child = mFirstChild[0]; child != NO_NODE; child = mNextSibling[child]) {
+            walk(child, 1, key);
+        }
+        return mBestWord;
+    }
+
+    /**
+     * Fill the row of a node and visit its children while some entry of the row can still lead
+     * to a word closer than the best one found.
+     */
+    private void walk(int node, int depth, String key) {
+        char letter = mLetter[node];
+        mPath[depth] = letter;
+        int[] above = mRows[depth - 1];
+        int[] row = mRows[depth];
+        int columns = key.length() + 1;
+
+        row[0] = depth;
+        int rowMin = depth;
+        for (int j = 1; j < columns; j++) {
+            char typed = key.charAt(j - 1);
+            int cost = (typed == letter) ? 0 : 1;
+            int distance = Math.min(Math.min(row[j - 1] + 1, above[j] + 1), above[j - 1] + cost);
+            if (depth > 1 && j > 1 && typed == mPath[depth - 1] && key.charAt(j - 2) == letter) {
+                // Two adjacent letters swapped
+                distance = Math.min(distance, mRows[depth - 2][j - 2] + 1);
+            }
+            row[j] = distance;
+            rowMin = Math.min(rowMin, distance);
+        }
+
+        if (mWord[node] != NO_MATCH && row[columns - 1] < mBestDistance) {
+            mBestDistance = row[columns - 1];
+            mBestWord = mWord[node];
+        }
+
+        if (rowMin < mBestDistance && depth < mMaxDepth) {
+            for (int child = mFirstChild[node]; child != NO_NODE; child = mNextSibling[child]) {
+                walk(child, depth + 1, key);
+            }
+        }
+    }
+
+    /**
+     * @return the number of edits a guess of this many letters may have.
+     */
+    private static int getMaxEdits(int length) {
+        if (length <= 3) {
+            return 0;
+        } else if (length <= 7) {
+            return 1;
+        } else {
+            return 2;
+        }
+    }
+
+    private int addChild(int parent, char letter) {
+        // Keys are added in order, so the new child goes last
+        int node = mNodeCount++;
+        mLetter[node] = letter;
+        mFirstChild[node] = NO_NODE;
+        mNextSibling[node] = NO_NODE;
+        mWord[node] = NO_MATCH;
+
+        int child = mFirstChild[parent];
+        if (child == NO_NODE) {
+            mFirstChild[parent] = node;
+        } else {
+            while (mNextSibling[child] != NO_NODE) {
+                child = mNextSibling[child];
+            }
+            mNextSibling[child] = node;
+        }
+        return node;
+    }
+
+    private int find(String key) {
+        int node = 0;
+        for (int i = 0; i < key.length() && node != NO_NODE; i++) {
+            char letter = key.charAt(i);
+            int child = mFirstChild[node];
+            while (child != NO_NODE && mLetter[child] < letter) {
+                child = mNextSibling[child];
+            }
+            node = (child != NO_NODE && mLetter[child] == letter) ? child : NO_NODE;
+        }
+        return node;
+    }
+
+    private int findWord(String key) {
+        int node = find(key);
+        return (node == NO_NODE) ? NO_MATCH : mWord[node];
+    }
+
+    /**
+     * @return the text in lower case, without anything but letters and digits.
+     */
+    static String normalize(String text) {
+        StringBuilder key = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (Character.isLetterOrDigit(c)) {
+                key.append(c);
+            }
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import java.util.Random;
+
+/**
+ * Chooses the words of each turn from a match seed, so that every device derives the same
+ * words without sending them. The words of all turns are drawn from one shuffle of the
+ * dictionary, done a turn at a time with a partial Fisher-Yates shuffle: a turn costs as many
+ * steps as it has words, and no word comes up twice in a match until the dictionary runs out.
+ * <p>
+ * Turns must be derived in order. Asking for a turn ahead of the last one derives the turns in
+ * between; asking for an earlier one starts over from the seed.
+ */
+public class WordSampler {
+
+    private final int mDictionarySize;
+    private final int mWordsPerTurn;
+
+    // The shuffled dictionary: word indices, the first mUsed of which came up this match
+    private final int[] mPermutation;
+    private int mUsed = 0;
+
+    // Positions of mPermutation changed since the last reset, to undo them cheaply. Once there
+    // are as many as words, reset restores every position instead.
+    private int[] mTouched = new int[64];
+    private int mTouchedCount = 0;
+
+    private long mSeed;
+    private Random mRandom;
+
+    // The last turn derived, its words and the index among them of the word to draw
+    private int mTurn = -1;
+    private final int[] mTurnWords;
+    private int mCorrectWord;
+
+    /**
+     * Create a sampler for a dictionary.
+     *
+     * @param dictionarySize the number of words in the dictionary.
+     * @param wordsPerTurn   the number of words to choose from each turn, at most
+     *                       dictionarySize.
+     */
+    public WordSampler(int dictionarySize, int wordsPerTurn) {
+        mDictionarySize = dictionarySize;
+        mWordsPerTurn = Math.min(wordsPerTurn, dictionarySize);
+        mPermutation = new int[dictionarySize];
+        for (int i = 0; i < dictionarySize; i++) {
+            mPermutation[i] = i;
+        }
+        mTurnWords = new int[mWordsPerTurn];
+        reset(0);
+    }
+
+    /**
+     * Start a new match.
+     *
+     * @param seed the match seed, the same on every device.
+     */
+    public void reset(long seed) {
+        if (mTouchedCount >= mDictionarySize) {
+            for (int i = 0; i < mDictionarySize; i++) {
+                mPermutation[i] = i;
+            }
+        } else {
+            for (int i = 0; i < mTouchedCount; i++) {
+                mPermutation[mTouched[i]] = mTouched[i];
+            }
+        }
+        mTouchedCount = 0;
+        mUsed = 0;
+        mSeed = seed;
+        mRandom = new Random(seed);
+        mTurn = -1;
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    /**
+     * Derive the words of a turn. Read them with getWord and getCorrectWord.
+     *
+     * @param turn the turn number, from 0.
+     */
+    public void select(int turn) {
+        if (turn < mTurn) {
+            reset(mSeed);
+        }
+        while (mTurn < turn) {
+            sampleNextTurn();
+        }
+    }
+
+    /**
+     * @return the number of words to choose from each turn.
+     */
+    public int getWordsPerTurn() {
+        return mWordsPerTurn;
+    }
+
+    /**
+     * @return the dictionary index of a word of the last selected turn.
+     */
+    public int getWord(int position) {
+        return mTurnWords[position];
+    }
+
+    /**
+     * @return the position among the words of the last selected turn of the word to draw.
+     */
+    public int getCorrectWord() {
+        return mCorrectWord;
+    }
+
+    private void sampleNextTurn() {
+        if (mDictionarySize - mUsed < mWordsPerTurn) {
+            // Every word came up, start over with the whole dictionary
+            mUsed = 0;
+        }
+
+        for (int i = 0; i < mWordsPerTurn; i++) {
+            int chosen = mUsed + mRandom.nextInt(mDictionarySize - mUsed);
+            int word = mPermutation[chosen];
+            mPermutation[chosen] = mPermutation[mUsed];
+            mPermutation[mUsed] = word;
+            touch(chosen);
+            touch(mUsed);
+            mTurnWords[i] = word;
+            mUsed++;
+        }
+        mCorrectWord = mRandom.nextInt(mWordsPerTurn);
+        mTurn++;
+    }
+
+    private void touch(int position) {
+        if (mTouchedCount >= mDictionarySize) {
+            // Restoring the whole dictionary on reset is cheaper than recording more
+            return;
+        }
+        if (mTouchedCount == mTouched.length) {
+            int[] touched = new int[mTouched.length * 2];
+            System.arraycopy(mTouched, 0, touched, 0, mTouchedCount);
+            mTouched = touched;
+        }
+        mTouched[mTouchedCount++] = position;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist.messages;
+
+/**
+ * Message from a client telling the Host which canvas version it has applied, so that later
+ * deltas only contain newer cells.
+ * int version - the version from the last CanvasDeltaMessage applied.
+ */
+public class CanvasAckMessage extends Message {
+
+    private int version;
+
+    public CanvasAckMessage() {
+    }
+
+    public CanvasAckMessage(int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    @Override
+    public int getRoute() {
+        return ROUTE_HOST;
+    }
+
+    @Override
+    public int getTopic() {
+        return TOPIC_DRAWING;
+    }
+}
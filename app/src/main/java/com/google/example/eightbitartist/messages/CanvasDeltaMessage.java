@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist.messages;
+
+/**
+ * Message from the Host containing every canvas cell that changed since the recipient's last
+ * acknowledged version. Only used when the Host synchronizes the canvas by state.
+ * int version - the grid version the recipient has after applying this delta.
+ * int[] cells - the changed cells, each packed as (cell index << 2 | color index).
+ */
+public class CanvasDeltaMessage extends Message {
+
+    private int version;
+    private int[] cells;
+
+    public CanvasDeltaMessage() {
+    }
+
+    public CanvasDeltaMessage(int version, int[] cells) {
+        this.version = version;
+        this.cells = cells;
+    }
+
+    public static int packCell(int index, short colorIndex) {
+        return (index << 2) | colorIndex;
+    }
+
+    public static int unpackIndex(int packedCell) {
+        return packedCell >> 2;
+    }
+
+    public static short unpackColor(int packedCell) {
+        return (short) (packedCell & 3);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int[] getCells() {
+        return cells;
+    }
+
+    public void setCells(int[] cells) {
+        this.cells = cells;
+    }
+
+    @Override
+    public int getRoute() {
+        return ROUTE_HOST;
+    }
+
+    @Override
+    public int getTopic() {
+        return TOPIC_DRAWING;
+    }
+
+    @Override
+    public boolean isTurnScoped() {
+        return true;
+    }
+}
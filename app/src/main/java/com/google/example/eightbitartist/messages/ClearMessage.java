@@ -19,7 +19,7 @@ package com.google.example.eightbitartist.messages;
  * Message instructing the recipient to clear their drawing canvas. Sent when the artist presses
  * the 'Clear' button.
  */
-public class ClearMessage extends Message {
+public class ClearMessage extends DrawingMessage {
 
     public ClearMessage() {
 
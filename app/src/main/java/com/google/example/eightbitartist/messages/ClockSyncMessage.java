@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist.messages;
+
+/**
+ * Message used by a client to measure its clock offset to the Host. The client fills in
+ * clientTime and sends it to the Host, which fills in the other two fields and sends it straight
+ * back.
+ * long clientTime - the client's clock when the request was sent.
+ * long hostReceiveTime - the Host's clock when the request arrived.
+ * long hostSendTime - the Host's clock when the response was sent.
+ */
+public class ClockSyncMessage extends Message {
+
+    private long clientTime;
+    private long hostReceiveTime;
+    private long hostSendTime;
+
+    public ClockSyncMessage() {
+    }
+
+    public ClockSyncMessage(long clientTime) {
+        this.clientTime = clientTime;
+    }
+
+    public long getClientTime() {
+        return clientTime;
+    }
+
+    public void setClientTime(long clientTime) {
+        this.clientTime = clientTime;
+    }
+
+    public long getHostReceiveTime() {
+        return hostReceiveTime;
+    }
+
+    public void setHostReceiveTime(long hostReceiveTime) {
+        this.hostReceiveTime = hostReceiveTime;
+    }
+
+    public long getHostSendTime() {
+        return hostSendTime;
+    }
+
+    public void setHostSendTime(long hostSendTime) {
+        this.hostSendTime = hostSendTime;
+    }
+
+    @Override
+    public int getRoute() {
+        return ROUTE_HOST;
+    }
+}
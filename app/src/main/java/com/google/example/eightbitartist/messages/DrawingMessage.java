@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist.messages;
+
+/**
+ * Base class for messages that change the canvas, sent by the artist to everyone who is
+ * watching the drawing.
+ * long captureTime - the artist's SystemClock.elapsedRealtime() when the change was made, used
+ * by guessers to play strokes back with the same timing they were drawn with.
+ * boolean traced - true if receivers should record the latency of this message.
+ * long clockOffset - the artist's Host clock minus local clock when the message was traced.
+ * long relayTime - the Host's clock when it relayed the message, or 0 if not traced.
+ * int artist - in a team turn, the session ID of the artist who made the change, else NO_ARTIST.
+ * int sequence - in a team turn, the number the party host gave the change as it relayed it
+ * (see SharedCanvas), else 0.
+ * long order - the number the sending device gave the change, growing with every change it
+ * sends, or NO_ORDER. Receivers keep the newest change of each cell by this number, because
+ * points sent unreliably can arrive out of order, be rebuilt from FEC parity after later ones,
+ * or arrive after a reliable ClearMessage sent after them.
+ */
+public class DrawingMessage extends Message {
+
+    // Value of artist for changes made outside a team turn
+    public static final int NO_ARTIST = -1;
+
+    // Value of order for changes that are not numbered
+    public static final long NO_ORDER = 0;
+
+    private long captureTime;
+    private boolean traced;
+    private long clockOffset;
+    private long relayTime;
+    private int artist = NO_ARTIST;
+    private int sequence;
+    private long order = NO_ORDER;
+
+    // Local time this message arrived, never sent over the wire
+    private transient long receiveTime;
+
+    public DrawingMessage() {
+    }
+
+    public long getCaptureTime() {
+        return captureTime;
+    }
+
+    public void setCaptureTime(long captureTime) {
+        this.captureTime = captureTime;
+    }
+
+    public boolean isTraced() {
+        return traced;
+    }
+
+    public void setTraced(boolean traced) {
+        this.traced = traced;
+    }
+
+    public long getClockOffset() {
+        return clockOffset;
+    }
+
+    public void setClockOffset(long clockOffset) {
+        this.clockOffset = clockOffset;
+    }
+
+    public long getRelayTime() {
+        return relayTime;
+    }
+
+    public void setRelayTime(long relayTime) {
+        this.relayTime = relayTime;
+    }
+
+    public int getArtist() {
+        return artist;
+    }
+
+    public void setArtist(int artist) {
+        this.artist = artist;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    public long getOrder() {
+        return order;
+    }
+
+    public void setOrder(long order) {
+        this.order = order;
+    }
+
+    public long getReceiveTime() {
+        return receiveTime;
+    }
+
+    public void setReceiveTime(long receiveTime) {
+        this.receiveTime = receiveTime;
+    }
+
+    @Override
+    public int getRoute() {
+        return ROUTE_SUBSCRIBERS;
+    }
+
+    @Override
+    public int getTopic() {
+        return TOPIC_DRAWING;
+    }
+
+    @Override
+    public boolean isTurnScoped() {
+        return true;
+    }
+}
@@ -23,7 +23,7 @@ import com.google.example.eightbitartist.EPoint;
  * EPoint point - the location of the drawn point.
  * int color - the index of the drawn color in the array of colors.
  */
-public class EPointMessage extends Message {
+public class EPointMessage extends DrawingMessage {
 
     private EPoint point;
     private int color;
@@ -51,4 +51,11 @@ public class EPointMessage extends Message {
     public void setColor(int color) {
         this.color = color;
     }
+
+    @Override
+    public boolean isReliable() {
+        // A lost point only costs one cell, and FEC usually rebuilds it. In a team turn every
+        // device needs every change for the canvases to end up the same.
+        return getArtist() != NO_ARTIST;
+    }
 }
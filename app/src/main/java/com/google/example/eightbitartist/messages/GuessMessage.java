@@ -17,24 +17,30 @@ package com.google.example.eightbitartist.messages;
 
 /**
  * Message containing the information about a guess entered by a
- *   non-artist player.
- * guessIndex - the index (in mTurnWords) of the word chosen by the guesser.
+ *   non-artist player. Sent only to the referee, which judges it and
+ *   reports the result to everyone in a GuessResultMessage.
+ * guessIndex - the index (in mTurnWords) of the word chosen by the guesser, or -1 for a
+ * typed guess that is none of them.
  * potentialPoints - the number of points the guesser should get if
- * the guess is correct.
- * guesserId - the endpointId of the guesser.
+ * the guess is correct. Set by the guesser, and replaced by the party host's own score
+ * when it receives the guess.
+ * guesserId - the session ID of the guesser.
+ * guessTime - when the guess was made, on the party host's clock.
  */
 public class GuessMessage extends Message {
     private int guessIndex;
     private int potentialPoints;
-    private String guesserId;
+    private int guesserId;
+    private long guessTime;
 
     public GuessMessage() {
     }
 
-    public GuessMessage(int guessIndex, int potentialPoints, String guesserId) {
+    public GuessMessage(int guessIndex, int potentialPoints, int guesserId, long guessTime) {
         this.guessIndex = guessIndex;
         this.potentialPoints = potentialPoints;
         this.guesserId = guesserId;
+        this.guessTime = guessTime;
     }
 
     public int getGuessIndex() {
@@ -53,12 +59,34 @@ public class GuessMessage extends Message {
         this.potentialPoints = potentialPoints;
     }
 
-    public String getGuesserId() {
+    public int getGuesserId() {
         return guesserId;
     }
 
-    public void setGuesserId(String guesserId) {
+    public void setGuesserId(int guesserId) {
         this.guesserId = guesserId;
     }
 
+    public long getGuessTime() {
+        return guessTime;
+    }
+
+    public void setGuessTime(long guessTime) {
+        this.guessTime = guessTime;
+    }
+
+    @Override
+    public int getRoute() {
+        return ROUTE_HOST;
+    }
+
+    @Override
+    public int getTopic() {
+        return TOPIC_GUESSES;
+    }
+
+    @Override
+    public boolean isTurnScoped() {
+        return true;
+    }
 }
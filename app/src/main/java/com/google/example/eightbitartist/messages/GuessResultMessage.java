@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist.messages;
+
+/**
+ * Message from the referee (the party host, or the lowest session ID in an RTMP room) with the
+ * guesses it judged since its last result message. Receivers apply the results as they are.
+ * int[] results - RESULT_SIZE ints per guess: the guesser's session ID, the turn the guess was
+ * made in, the points it earned (0 if wrong), the guesser's score afterwards and how long after
+ * the start of the turn the guess was made, in milliseconds.
+ */
+public class GuessResultMessage extends Message {
+
+    // Layout of one result in the results array
+    public static final int RESULT_SIZE = 5;
+    public static final int RESULT_GUESSER = 0;
+    public static final int RESULT_TURN = 1;
+    public static final int RESULT_POINTS = 2;
+    public static final int RESULT_SCORE = 3;
+    public static final int RESULT_ELAPSED = 4;
+
+    private int[] results;
+
+    public GuessResultMessage() {
+    }
+
+    public GuessResultMessage(int[] results) {
+        this.results = results;
+    }
+
+    public int[] getResults() {
+        return results;
+    }
+
+    public void setResults(int[] results) {
+        this.results = results;
+    }
+
+    /**
+     * @return the number of guesses in this message.
+     */
+    public int getCount() {
+        return (results == null) ? 0 : results.length / RESULT_SIZE;
+    }
+
+    @Override
+    public int getTopic() {
+        return TOPIC_GUESSES;
+    }
+}
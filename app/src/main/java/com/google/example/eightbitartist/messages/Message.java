@@ -20,6 +20,65 @@ package com.google.example.eightbitartist.messages;
  */
 public class Message {
 
+    // Routing rules applied when a message is relayed to other participants.
+    public static final int ROUTE_ALL = 0;
+    public static final int ROUTE_HOST = 1;
+    public static final int ROUTE_ARTIST = 2;
+    public static final int ROUTE_SUBSCRIBERS = 3;
+
+    // Topics a DrawingParticipant can subscribe to, combined as a bit mask.
+    public static final int TOPIC_DRAWING = 1;
+    public static final int TOPIC_GUESSES = 1 << 1;
+    public static final int TOPIC_TURNS = 1 << 2;
+    public static final int TOPIC_ROSTER = 1 << 3;
+    public static final int TOPIC_ALL = TOPIC_DRAWING | TOPIC_GUESSES | TOPIC_TURNS | TOPIC_ROSTER;
+
+    // Value of turn for messages that have not been stamped with a turn.
+    public static final int NO_TURN = -1;
+
+    // The match turn number when the message was sent, for messages that belong to a turn.
+    private int turn = NO_TURN;
+
     public Message() {
     }
+
+    public int getTurn() {
+        return turn;
+    }
+
+    public void setTurn(int turn) {
+        this.turn = turn;
+    }
+
+    /**
+     * Whether this message belongs to the turn it was sent in, so that it is stamped with that
+     * turn and receivers can tell stragglers from an earlier turn from early messages of a
+     * later one.
+     */
+    public boolean isTurnScoped() {
+        return false;
+    }
+
+    /**
+     * Which participants should receive this message when it is relayed. One of ROUTE_ALL,
+     * ROUTE_HOST, ROUTE_ARTIST or ROUTE_SUBSCRIBERS.
+     */
+    public int getRoute() {
+        return ROUTE_ALL;
+    }
+
+    /**
+     * The topic of this message, used to filter recipients when the route is ROUTE_SUBSCRIBERS.
+     */
+    public int getTopic() {
+        return TOPIC_ALL;
+    }
+
+    /**
+     * Whether this message must be delivered. Messages that can tolerate loss may be sent
+     * unreliably, protected by forward error correction.
+     */
+    public boolean isReliable() {
+        return true;
+    }
 }
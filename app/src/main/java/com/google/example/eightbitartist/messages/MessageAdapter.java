@@ -22,7 +22,6 @@ import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 
@@ -60,18 +59,19 @@ public class MessageAdapter implements JsonSerializer<Message>,
     public Message deserialize(JsonElement json, Type typeOfT,
                                JsonDeserializationContext context)
             throws JsonParseException {
-        JsonObject jsonObject = json.getAsJsonObject();
-        if (jsonObject == null) {
+        if (json == null || !json.isJsonObject()) {
             Log.e(TAG, "Cannot get json object " + json);
             throw new JsonParseException("error parsing");
         }
-        JsonPrimitive p = jsonObject.getAsJsonPrimitive(CLASSNAME_TAG);
-        if (p == null) {
+        JsonObject jsonObject = json.getAsJsonObject();
+        JsonElement p = jsonObject.get(CLASSNAME_TAG);
+        if (p == null || !p.isJsonPrimitive()) {
             Log.e(TAG, "_CLASSNAME IS NULL in " + json);
             throw new JsonParseException("Cannot get classname!");
         }
         String clzname = p.getAsString();
 
+        // Payloads come from other devices, so only ever create messages
         Class<?> clz;
         try {
             clz = Class.forName(clzname);
@@ -79,6 +79,10 @@ public class MessageAdapter implements JsonSerializer<Message>,
             Log.e(TAG, "Could not find class " + clzname);
             throw new JsonParseException("Could not find class " + clzname);
         }
+        if (!Message.class.isAssignableFrom(clz)) {
+            Log.e(TAG, "Not a message class " + clzname);
+            throw new JsonParseException("Not a message class " + clzname);
+        }
 
         return context.deserialize(jsonObject.get("_INSTANCE"), clz);
     }
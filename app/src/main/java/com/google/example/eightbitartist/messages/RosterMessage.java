@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist.messages;
+
+import com.google.example.eightbitartist.DrawingParticipant;
+
+/**
+ * Message from the Host describing changes to the roster. A snapshot is sent once to a client
+ * that has just connected and lists everyone in the match; after that, joins and leaves that
+ * happen close together are sent to all clients as one delta.
+ * DrawingParticipant[] participants - participants joining (with their score) or, in a
+ * snapshot, everyone in the match.
+ * int[] leftSessionIds - session IDs of participants that left, empty in a snapshot.
+ * boolean isSnapshot - true if participants is the whole roster, false for a delta.
+ */
+public class RosterMessage extends Message {
+
+    private DrawingParticipant[] participants = new DrawingParticipant[0];
+    private int[] leftSessionIds = new int[0];
+    private boolean isSnapshot;
+
+    public RosterMessage() {
+    }
+
+    public RosterMessage(DrawingParticipant[] participants, int[] leftSessionIds,
+                         boolean isSnapshot) {
+        this.participants = participants;
+        this.leftSessionIds = leftSessionIds;
+        this.isSnapshot = isSnapshot;
+    }
+
+    public DrawingParticipant[] getParticipants() {
+        return participants;
+    }
+
+    public void setParticipants(DrawingParticipant[] participants) {
+        this.participants = participants;
+    }
+
+    public int[] getLeftSessionIds() {
+        return leftSessionIds;
+    }
+
+    public void setLeftSessionIds(int[] leftSessionIds) {
+        this.leftSessionIds = leftSessionIds;
+    }
+
+    public boolean getIsSnapshot() {
+        return isSnapshot;
+    }
+
+    public void setIsSnapshot(boolean isSnapshot) {
+        this.isSnapshot = isSnapshot;
+    }
+
+    @Override
+    public int getTopic() {
+        return TOPIC_ROSTER;
+    }
+}
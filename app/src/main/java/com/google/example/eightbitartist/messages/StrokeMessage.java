@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist.messages;
+
+/**
+ * Message that the artist has drawn part of a stroke in vector mode, and the recipient should
+ * rasterize it onto their own DrawView instance.
+ * int color - the index of the drawn color in the array of colors.
+ * int[] points - the simplified stroke, as encoded by VectorStroke.encode().
+ */
+public class StrokeMessage extends DrawingMessage {
+
+    private int color;
+    private int[] points;
+
+    public StrokeMessage() {
+    }
+
+    public StrokeMessage(int color, int[] points) {
+        this.color = color;
+        this.points = points;
+    }
+
+    public int getColor() {
+        return color;
+    }
+
+    public void setColor(int color) {
+        this.color = color;
+    }
+
+    public int[] getPoints() {
+        return points;
+    }
+
+    public void setPoints(int[] points) {
+        this.points = points;
+    }
+}
@@ -15,19 +15,29 @@
  */
 package com.google.example.eightbitartist.messages;
 
-import java.util.List;
-
 /**
  * Message containing the data relevant to one turn of a match.
  * int turnNumber - the absolute turn number in this match,
  * beginning at 0 and increasing.
- * List words - the words to be displayed as guessing choices, in order.
- * int correctWord - the index into `words` of the correct choice.
+ * long seed - the match seed. Every device derives the words of the turn, and which of
+ * them to draw, from the seed and the turn number (see WordSampler).
+ * String pack - the name of the word pack the words are drawn from.
+ * int dictionaryHash - identifies the word pack, which must be the same on every device.
+ * int[] scores - the session ID and score of each participant in the match at the start of the
+ * turn, one pair after the other.
+ * long startTime - when the turn started, on the party host's clock. The host restamps the
+ * TurnMessage of a client artist as it relays it, so every guess is timed by one clock.
+ * int teamSize - how many players draw at once, the first artist and the next ones in turn
+ * order. Set by the device that starts the match.
  */
 public class TurnMessage extends Message {
     private int turnNumber;
-    private List<String> words;
-    private int correctWord;
+    private long seed;
+    private String pack;
+    private int dictionaryHash;
+    private int[] scores;
+    private long startTime;
+    private int teamSize;
 
     /**
      * Default constructor required for Jackson
@@ -35,18 +45,11 @@ public class TurnMessage extends Message {
     public TurnMessage() {
     }
 
-    public TurnMessage(int turnNumber, List<String> words, int correctWord) {
+    public TurnMessage(int turnNumber, long seed, String pack, int dictionaryHash) {
         this.turnNumber = turnNumber;
-        this.words = words;
-        this.correctWord = correctWord;
-    }
-
-    public List<String> getWords() {
-        return words;
-    }
-
-    public void setWords(List<String> words) {
-        this.words = words;
+        this.seed = seed;
+        this.pack = pack;
+        this.dictionaryHash = dictionaryHash;
     }
 
     public int getTurnNumber() {
@@ -57,12 +60,56 @@ public class TurnMessage extends Message {
         this.turnNumber = turnNumber;
     }
 
-    public int getCorrectWord() {
-        return correctWord;
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public String getPack() {
+        return pack;
+    }
+
+    public void setPack(String pack) {
+        this.pack = pack;
+    }
+
+    public int getDictionaryHash() {
+        return dictionaryHash;
     }
 
-    public void setCorrectWord(int correctWord) {
-        this.correctWord = correctWord;
+    public void setDictionaryHash(int dictionaryHash) {
+        this.dictionaryHash = dictionaryHash;
     }
 
+    public int[] getScores() {
+        return scores;
+    }
+
+    public void setScores(int[] scores) {
+        this.scores = scores;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    public int getTeamSize() {
+        return teamSize;
+    }
+
+    public void setTeamSize(int teamSize) {
+        this.teamSize = teamSize;
+    }
+
+    @Override
+    public int getTopic() {
+        return TOPIC_TURNS;
+    }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AchievementQueue against a fake games client: a match of N turns costs the same handful of
+ * calls whatever N is, and updates queued while signed out or before a restart are sent later.
+ */
+public class AchievementQueueTest {
+
+    private static final String STARTED_A_GAME = "started_a_game";
+    private static final String GUESSED_CORRECTLY = "guessed_correctly";
+    private static final String GOT_ONE_WRONG = "got_one_wrong";
+    private static final String FIVE_TURNS = "5_turns";
+    private static final String TEN_TURNS = "10_turns";
+
+    /**
+     * Counts the calls made, and what the games service would end up knowing.
+     */
+    private static class FakeGamesClient implements AchievementQueue.GamesClient {
+        int calls = 0;
+        final Set<String> revealed = new HashSet<>();
+        final Set<String> unlocked = new HashSet<>();
+        final HashMap<String, Integer> steps = new HashMap<>();
+
+        @Override
+        public void reveal(String achievementId) {
+            calls++;
+            revealed.add(achievementId);
+        }
+
+        @Override
+        public void unlock(String achievementId) {
+            calls++;
+            revealed.add(achievementId);
+            unlocked.add(achievementId);
+        }
+
+        @Override
+        public void increment(String achievementId, int numSteps) {
+            calls++;
+            Integer total = steps.get(achievementId);
+            steps.put(achievementId, (total == null) ? numSteps : total + numSteps);
+        }
+
+        int getSteps(String achievementId) {
+            Integer total = steps.get(achievementId);
+            return (total == null) ? 0 : total;
+        }
+    }
+
+    /**
+     * Keeps the saved queue in memory, like SharedPreferences across a process restart.
+     */
+    private static class MemoryStore implements AchievementQueue.Store {
+        String saved;
+
+        @Override
+        public String load() {
+            return saved;
+        }
+
+        @Override
+        public void save(String queue) {
+            saved = queue;
+        }
+    }
+
+    /**
+     * The updates DrawingActivity makes for one turn: a guess unlocks one of two achievements,
+     * and every turn increments the turn count achievements.
+     */
+    private static void playTurn(AchievementQueue queue, Random random) {
+        queue.unlock(random.nextBoolean() ? GUESSED_CORRECTLY : GOT_ONE_WRONG);
+        queue.increment(FIVE_TURNS, 1);
+        queue.increment(TEN_TURNS, 1);
+    }
+
+    /**
+     * The same updates sent straight to the games service, as before the queue.
+     */
+    private static void playTurn(FakeGamesClient client, Random random) {
+        client.unlock(random.nextBoolean() ? GUESSED_CORRECTLY : GOT_ONE_WRONG);
+        client.increment(FIVE_TURNS, 1);
+        client.increment(TEN_TURNS, 1);
+    }
+
+    @Test
+    public void matchCostsConstantCalls() {
+        int[] turns = {10, 100, 1000};
+        int[] calls = new int[turns.length];
+        for (int i = 0; i < turns.length; i++) {
+            int n = turns[i];
+
+            FakeGamesClient direct = new FakeGamesClient();
+            Random random = new Random(n);
+            direct.unlock(STARTED_A_GAME);
+            for (int turn = 0; turn < n; turn++) {
+                playTurn(direct, random);
+            }
+
+            // The same match through the queue, with the process restarted halfway through
+            // and one flush when the match ends
+            FakeGamesClient batched = new FakeGamesClient();
+            MemoryStore store = new MemoryStore();
+            AchievementQueue queue = new AchievementQueue(store);
+            random = new Random(n);
+            queue.unlock(STARTED_A_GAME);
+            for (int turn = 0; turn < n; turn++) {
+                if (turn == n / 2) {
+                    queue = new AchievementQueue(store);
+                }
+                playTurn(queue, random);
+            }
+            calls[i] = queue.flush(batched);
+
+            System.out.println(String.format(Locale.US,
+                    "%d turns: %d calls sent directly, %d through the queue, %d bytes saved",
+                    n, direct.calls, batched.calls, store.saved.length()));
+            assertEquals(batched.calls, calls[i]);
+            assertTrue(batched.calls <= 5);
+            assertEquals(direct.unlocked, batched.unlocked);
+            assertEquals(n, batched.getSteps(FIVE_TURNS));
+            assertEquals(n, batched.getSteps(TEN_TURNS));
+            assertFalse(queue.hasPending());
+
+            // Later turns cost only the increments, since the unlocks are remembered
+            for (int turn = 0; turn < n; turn++) {
+                playTurn(queue, random);
+            }
+            assertEquals(2, queue.flush(batched));
+        }
+        assertEquals(calls[0], calls[calls.length - 1]);
+    }
+
+    @Test
+    public void updatesWaitForSignIn() {
+        MemoryStore store = new MemoryStore();
+        AchievementQueue queue = new AchievementQueue(store);
+        queue.reveal(GUESSED_CORRECTLY);
+        queue.increment(FIVE_TURNS, 2);
+
+        // Signed out: nothing is flushed, and the process dies
+        queue = new AchievementQueue(store);
+        assertTrue(queue.hasPending());
+        queue.unlock(GUESSED_CORRECTLY);
+        queue.increment(FIVE_TURNS, 3);
+
+        FakeGamesClient client = new FakeGamesClient();
+        assertEquals(2, queue.flush(client));
+        assertTrue(client.unlocked.contains(GUESSED_CORRECTLY));
+        assertEquals(5, client.getSteps(FIVE_TURNS));
+
+        // A flush with nothing queued costs nothing, even after another restart
+        queue = new AchievementQueue(store);
+        queue.unlock(GUESSED_CORRECTLY);
+        assertFalse(queue.hasPending());
+        assertEquals(0, queue.flush(client));
+        assertEquals(2, client.calls);
+    }
+
+    @Test
+    public void differentPlayerGetsUnlocksAgain() {
+        AchievementQueue queue = new AchievementQueue(new MemoryStore());
+        FakeGamesClient first = new FakeGamesClient();
+        queue.unlock(STARTED_A_GAME);
+        queue.flush(first);
+
+        queue.clearUnlocked();
+        queue.unlock(STARTED_A_GAME);
+        FakeGamesClient second = new FakeGamesClient();
+        assertEquals(1, queue.flush(second));
+        assertTrue(second.unlocked.contains(STARTED_A_GAME));
+    }
+}
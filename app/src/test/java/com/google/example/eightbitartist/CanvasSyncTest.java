@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.CanvasAckMessage;
+import com.google.example.eightbitartist.messages.CanvasDeltaMessage;
+import com.google.example.eightbitartist.messages.EPointMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.MessageAdapter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The deltas CanvasSync builds: bounded by the grid whatever the input rate, and cheaper in
+ * bytes than relaying every draw event when strokes go over the same cells again.
+ */
+public class CanvasSyncTest {
+
+    private static final int NUM_CELLS = DrawView.GRID_SIZE * DrawView.GRID_SIZE;
+
+    // PartyHost sends deltas every 100 ms
+    private static final long TICK_MS = 100;
+
+    // An artist scribbling for 10 s at 120 events per second, seen by 5 guessers
+    private static final int EVENTS_PER_SECOND = 120;
+    private static final int SECONDS = 10;
+    private static final String[] GUESSERS = {"g0", "g1", "g2", "g3", "g4"};
+
+    private final Gson mMapper = new GsonBuilder()
+            .registerTypeAdapter(Message.class, new MessageAdapter())
+            .create();
+
+    private int size(Message msg) {
+        msg.setTurn(1);
+        return mMapper.toJson(msg, Message.class).length();
+    }
+
+    @Test
+    public void deltaNeverExceedsTheGrid() {
+        CanvasSync sync = new CanvasSync();
+        sync.addClient("g0");
+
+        // Far more changes in one tick than there are cells
+        Random random = new Random(27);
+        for (int i = 0; i < 100 * NUM_CELLS; i++) {
+            sync.setCell(random.nextInt(DrawView.GRID_SIZE), random.nextInt(DrawView.GRID_SIZE),
+                    (short) random.nextInt(4));
+        }
+
+        CanvasDeltaMessage delta = sync.createDelta("g0");
+        assertTrue(delta.getCells().length <= NUM_CELLS);
+
+        // Nothing more until the client acknowledges, or the grid changes
+        assertNull(sync.createDelta("g0"));
+        sync.onAck("g0", delta.getVersion());
+        assertNull(sync.createDelta("g0"));
+        sync.setCell(0, 0, (short) 1);
+        sync.setCell(0, 0, (short) 2);
+        assertEquals(1, sync.createDelta("g0").getCells().length);
+    }
+
+    @Test
+    public void benchmarkAgainstRelayingEvents() {
+        CanvasSync sync = new CanvasSync();
+        for (String guesser : GUESSERS) {
+            sync.addClient(guesser);
+        }
+
+        // The artist goes back and forth over one corner of the canvas, changing color now
+        // and then, so many events repaint cells painted a moment before
+        Random random = new Random(27);
+        int x = 0;
+        int y = 0;
+        short color = 1;
+        long relayBytes = 0;
+        long relayMessages = 0;
+        long deltaBytes = 0;
+        long deltaMessages = 0;
+        int largestDelta = 0;
+        int eventsPerTick = (int) (EVENTS_PER_SECOND * TICK_MS / 1000);
+        int ticks = (int) (SECONDS * 1000 / TICK_MS);
+        for (int tick = 0; tick < ticks; tick++) {
+            for (int event = 0; event < eventsPerTick; event++) {
+                x = Math.max(0, Math.min(DrawView.GRID_SIZE / 2 - 1, x + random.nextInt(3) - 1));
+                y = Math.max(0, Math.min(DrawView.GRID_SIZE / 2 - 1, y + random.nextInt(3) - 1));
+                if (random.nextInt(20) == 0) {
+                    color = (short) (1 + random.nextInt(3));
+                }
+                sync.setCell(x, y, color);
+
+                int bytes = size(new EPointMessage(new EPoint(x, y), color));
+                relayMessages += GUESSERS.length;
+                relayBytes += (long) bytes * GUESSERS.length;
+            }
+
+            // Every guesser gets its delta and acknowledges it before the next tick
+            for (String guesser : GUESSERS) {
+                CanvasDeltaMessage delta = sync.createDelta(guesser);
+                if (delta == null) {
+                    continue;
+                }
+                largestDelta = Math.max(largestDelta, delta.getCells().length);
+                deltaMessages += 2;
+                deltaBytes += size(delta) + size(new CanvasAckMessage(delta.getVersion()));
+                sync.onAck(guesser, delta.getVersion());
+            }
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%d events/s for %d s to %d guessers: relay %d msgs %d B, "
+                        + "delta %d msgs (with acks) %d B, largest delta %d cells",
+                EVENTS_PER_SECOND, SECONDS, GUESSERS.length, relayMessages, relayBytes,
+                deltaMessages, deltaBytes, largestDelta));
+        assertTrue(largestDelta <= NUM_CELLS);
+        assertTrue(deltaMessages < relayMessages);
+        assertTrue(deltaBytes < relayBytes);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import android.view.Choreographer;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What DrawView invalidates, with the vsyncs run by the test: only the cells that changed, once
+ * per frame, never the whole view for a single cell, and nothing while the canvas is idle.
+ * Redrawing all cells on every vsync, as the view used to, costs VSYNCS frames of GRID_SIZE^2
+ * cells a minute.
+ */
+public class DrawViewTest {
+
+    // One minute at 60 Hz
+    private static final int VSYNCS = 3600;
+    private static final int NUM_CELLS = DrawView.GRID_SIZE * DrawView.GRID_SIZE;
+
+    /**
+     * A DrawView that runs its frame callback when the test says a vsync happened, and counts
+     * the frames and cells it invalidates.
+     */
+    private static class FrameView extends DrawView {
+        private Choreographer.FrameCallback mCallback;
+        long frames = 0;
+        long cells = 0;
+        long wholeViewInvalidations = 0;
+
+        // The box invalidated last, in cells
+        int left = -1;
+        int top = -1;
+        int right = -1;
+        int bottom = -1;
+
+        FrameView() {
+            super(null, null);
+        }
+
+        void vsync(long frameTimeNanos) {
+            Choreographer.FrameCallback callback = mCallback;
+            mCallback = null;
+            if (callback != null) {
+                callback.doFrame(frameTimeNanos);
+            }
+        }
+
+        @Override
+        void postFrameCallback(Choreographer.FrameCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        void invalidateCells(int left, int top, int right, int bottom) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            frames++;
+            cells += (right - left + 1) * (bottom - top + 1);
+        }
+
+        @Override
+        public void invalidate() {
+            wholeViewInvalidations++;
+        }
+    }
+
+    @Test
+    public void singleCellInvalidatesOnlyThatCell() {
+        FrameView view = new FrameView();
+        view.setMacroPixel(3, 7, (short) 2);
+
+        // Nothing is invalidated before the vsync
+        assertEquals(0, view.frames);
+        view.vsync(0);
+        assertEquals(1, view.frames);
+        assertEquals(1, view.cells);
+        assertEquals(3, view.left);
+        assertEquals(7, view.top);
+        assertEquals(3, view.right);
+        assertEquals(7, view.bottom);
+        assertEquals(0, view.wholeViewInvalidations);
+
+        // Painting the color a cell already has changes nothing
+        view.setMacroPixel(3, 7, (short) 2);
+        view.vsync(16666667L);
+        assertEquals(1, view.frames);
+
+        // Two cells in one frame are drawn together, in the box around them
+        view.setMacroPixel(1, 2, (short) 1);
+        view.setMacroPixel(2, 4, (short) 3);
+        view.vsync(2 * 16666667L);
+        assertEquals(2, view.frames);
+        assertEquals(1, view.left);
+        assertEquals(2, view.top);
+        assertEquals(2, view.right);
+        assertEquals(4, view.bottom);
+        assertEquals(0, view.wholeViewInvalidations);
+    }
+
+    @Test
+    public void idleCanvasIsNotDrawn() {
+        FrameView view = new FrameView();
+        for (int vsync = 0; vsync < VSYNCS; vsync++) {
+            view.vsync(vsync * 16666667L);
+        }
+
+        System.out.println(String.format(Locale.US, "idle minute: %d frames, %d cells",
+                view.frames, view.cells));
+        assertEquals(0, view.frames);
+    }
+
+    @Test
+    public void activeCanvasDrawsOnlyWhatChanged() {
+        // A remote artist paints a cell and moves its cursor on one frame in four
+        FrameView view = new FrameView();
+        Random random = new Random(50);
+        for (int vsync = 0; vsync < VSYNCS; vsync++) {
+            if (random.nextInt(4) == 0) {
+                int cell = random.nextInt(NUM_CELLS);
+                short color = (short) (1 + random.nextInt(3));
+                view.setMacroPixel(cell / DrawView.GRID_SIZE, cell % DrawView.GRID_SIZE, color);
+                view.setCursor(1, cell / DrawView.GRID_SIZE, cell % DrawView.GRID_SIZE, color);
+            }
+            view.vsync(vsync * 16666667L);
+        }
+
+        System.out.println(String.format(Locale.US,
+                "active minute: %d frames, %d cells, against %d frames, %d cells",
+                view.frames, view.cells, VSYNCS, (long) VSYNCS * NUM_CELLS));
+        assertTrue(view.frames <= VSYNCS / 3);
+        assertTrue(view.cells * 10 < (long) VSYNCS * NUM_CELLS);
+    }
+}
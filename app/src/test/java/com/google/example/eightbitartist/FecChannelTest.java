@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.ClearMessage;
+import com.google.example.eightbitartist.messages.DrawingMessage;
+import com.google.example.eightbitartist.messages.EPointMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.MessageAdapter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loss simulations of drawing sent unreliably through a pair of FecChannels: how many lost cells
+ * the parity rebuilds and what it costs in bandwidth, and whether the receiver's canvas ends up
+ * right when points arrive out of order or after a reliable ClearMessage.
+ */
+public class FecChannelTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int NUM_CELLS = DrawView.GRID_SIZE * DrawView.GRID_SIZE;
+
+    private final Gson mMapper = new GsonBuilder()
+            .registerTypeAdapter(Message.class, new MessageAdapter())
+            .create();
+
+    /**
+     * A packet on its way to the receiver.
+     */
+    private static class Delivery {
+        long time;
+        long index;
+        byte[] packet;
+        boolean fec;
+    }
+
+    /**
+     * One-way link from the sending FecChannel to the receiving one, which loses and delays
+     * unreliable packets. Reliable packets, such as loss reports and ClearMessages, arrive after
+     * a fixed latency. Deliveries are simulated in order of arrival time.
+     */
+    private static class Link {
+        private final Random mRandom;
+        private final double mLoss;
+        private final long mMaxJitterMs;
+        private final PriorityQueue<Delivery> mQueue = new PriorityQueue<>(64,
+                new Comparator<Delivery>() {
+                    @Override
+                    public int compare(Delivery a, Delivery b) {
+                        if (a.time != b.time) {
+                            return (a.time < b.time) ? -1 : 1;
+                        }
+                        return (a.index < b.index) ? -1 : 1;
+                    }
+                });
+        private long mNow = 0;
+        private long mIndex = 0;
+        long unreliableSent = 0;
+        long unreliableLost = 0;
+
+        Link(long seed, double loss, long maxJitterMs) {
+            mRandom = new Random(seed);
+            mLoss = loss;
+            mMaxJitterMs = maxJitterMs;
+        }
+
+        void sendUnreliable(byte[] packet) {
+            unreliableSent++;
+            if (mRandom.nextDouble() < mLoss) {
+                unreliableLost++;
+                return;
+            }
+            long jitter = (mMaxJitterMs == 0) ? 0 : mRandom.nextInt((int) mMaxJitterMs + 1);
+            add(packet, mNow + jitter, true);
+        }
+
+        void sendReliable(byte[] packet, boolean fec) {
+            add(packet, mNow + 5, fec);
+        }
+
+        private void add(byte[] packet, long time, boolean fec) {
+            Delivery delivery = new Delivery();
+            delivery.time = time;
+            delivery.index = mIndex++;
+            delivery.packet = packet;
+            delivery.fec = fec;
+            mQueue.add(delivery);
+        }
+
+        /**
+         * Advance the clock, returning every packet that has arrived by then in arrival order.
+         */
+        List<Delivery> advance(long now) {
+            mNow = now;
+            List<Delivery> arrived = new ArrayList<>();
+            while (!mQueue.isEmpty() && mQueue.peek().time <= now) {
+                arrived.add(mQueue.poll());
+            }
+            return arrived;
+        }
+    }
+
+    /**
+     * Connect two FecChannels over a link, with loss reports going straight back to the sender.
+     */
+    private static FecChannel[] connect(final Link link) {
+        final FecChannel[] channels = new FecChannel[2];
+        channels[0] = new FecChannel(new FecChannel.Transport() {
+            @Override
+            public void sendUnreliable(byte[] packet) {
+                link.sendUnreliable(packet);
+            }
+
+            @Override
+            public void sendReliable(byte[] packet) {
+                link.sendReliable(packet, true);
+            }
+        });
+        channels[1] = new FecChannel(new FecChannel.Transport() {
+            @Override
+            public void sendUnreliable(byte[] packet) {
+            }
+
+            @Override
+            public void sendReliable(byte[] packet) {
+                channels[0].onPacket(packet, new ArrayList<byte[]>());
+            }
+        });
+        return channels;
+    }
+
+    @Test
+    public void recoversLostCells() {
+        double[] losses = {0.01, 0.05, 0.10};
+        double[] minDelivered = {0.998, 0.99, 0.97};
+        for (int i = 0; i < losses.length; i++) {
+            Link link = new Link(i, losses[i], 0);
+            FecChannel[] channels = connect(link);
+            int cells = 20000;
+            Set<Long> delivered = new HashSet<>();
+            List<byte[]> out = new ArrayList<>();
+            for (int cell = 0; cell < cells; cell++) {
+                EPointMessage msg = new EPointMessage(
+                        new EPoint(cell % DrawView.GRID_SIZE, cell / DrawView.GRID_SIZE % 10),
+                        cell % DrawView.COLOR_MAP.length);
+                msg.setCaptureTime(cell * 5L);
+                msg.setOrder(cell + 1);
+                channels[0].send(mMapper.toJson(msg, Message.class).getBytes(UTF_8));
+                if (cell == cells - 1) {
+                    channels[0].flush();
+                }
+
+                for (Delivery delivery : link.advance(cell * 5L + 5)) {
+                    channels[1].onPacket(delivery.packet, out);
+                }
+                for (byte[] payload : out) {
+                    delivered.add(parse(payload).getOrder());
+                }
+                out.clear();
+            }
+
+            long recovered = channels[1].getRecoveredCount();
+            long cellsLost = cells - delivered.size() + recovered;
+            double deliveredRate = (double) delivered.size() / cells;
+            System.out.println(String.format(Locale.US,
+                    "loss=%.0f%%: cells lost=%d, recovered=%d (%.0f%%), delivered=%.2f%%, "
+                            + "added bandwidth=%.0f%%, group size=%d",
+                    losses[i] * 100, cellsLost, recovered, 100.0 * recovered / cellsLost,
+                    deliveredRate * 100, (channels[0].getOverhead() - 1) * 100,
+                    channels[0].getGroupSize()));
+            assertTrue("delivered " + deliveredRate + " at loss " + losses[i],
+                    deliveredRate >= minDelivered[i]);
+            assertTrue(channels[1].getRecoveredCount() > 0);
+        }
+    }
+
+    @Test
+    public void stalePointsNeverPaintOverNewerChanges() {
+        // Points go unreliably through FEC with loss and jitter, clears reliably and quickly,
+        // so recovered and delayed points arrive after later points and after later clears
+        Link link = new Link(42, 0.05, 40);
+        FecChannel[] channels = connect(link);
+        Random random = new Random(7);
+
+        SharedCanvas ordered = new SharedCanvas();
+        short[] naive = new short[NUM_CELLS];
+        List<DrawingMessage> delivered = new ArrayList<>();
+        List<byte[]> out = new ArrayList<>();
+
+        int changes = 5000;
+        for (int i = 0; i < changes + 20; i++) {
+            long now = i * 5L;
+            if (i < changes) {
+                DrawingMessage msg;
+                if (random.nextInt(400) == 0) {
+                    msg = new ClearMessage();
+                } else {
+                    msg = new EPointMessage(new EPoint(random.nextInt(DrawView.GRID_SIZE),
+                            random.nextInt(DrawView.GRID_SIZE)),
+                            random.nextInt(DrawView.COLOR_MAP.length));
+                }
+                msg.setCaptureTime(now);
+                msg.setOrder(i + 1);
+                byte[] payload = mMapper.toJson(msg, Message.class).getBytes(UTF_8);
+                if (msg.isReliable()) {
+                    link.sendReliable(payload, false);
+                } else {
+                    channels[0].send(payload);
+                }
+            } else {
+                channels[0].flush();
+            }
+
+            for (Delivery delivery : link.advance(now + 5)) {
+                if (delivery.fec) {
+                    channels[1].onPacket(delivery.packet, out);
+                } else {
+                    out.add(delivery.packet);
+                }
+                for (byte[] payload : out) {
+                    DrawingMessage msg = parse(payload);
+                    delivered.add(msg);
+                    apply(msg, ordered, naive);
+                }
+                out.clear();
+            }
+        }
+
+        // What the receiver should show: every delivered change, in the order it was drawn
+        List<DrawingMessage> inOrder = new ArrayList<>(delivered);
+        Collections.sort(inOrder, new Comparator<DrawingMessage>() {
+            @Override
+            public int compare(DrawingMessage a, DrawingMessage b) {
+                return Long.compare(a.getOrder(), b.getOrder());
+            }
+        });
+        short[] expected = new short[NUM_CELLS];
+        int outOfOrder = 0;
+        long lastOrder = DrawingMessage.NO_ORDER;
+        for (DrawingMessage msg : delivered) {
+            if (msg.getOrder() < lastOrder) {
+                outOfOrder++;
+            }
+            lastOrder = Math.max(lastOrder, msg.getOrder());
+        }
+        for (DrawingMessage msg : inOrder) {
+            apply(msg, new SharedCanvas(), expected);
+        }
+
+        short[] actual = new short[NUM_CELLS];
+        int naiveWrong = 0;
+        for (int cell = 0; cell < NUM_CELLS; cell++) {
+            actual[cell] = ordered.getCell(cell / DrawView.GRID_SIZE, cell % DrawView.GRID_SIZE);
+            if (naive[cell] != expected[cell]) {
+                naiveWrong++;
+            }
+        }
+        System.out.println(String.format(Locale.US,
+                "delivered=%d out of order=%d recovered=%d, wrong cells applied in arrival "
+                        + "order=%d, by order number=0",
+                delivered.size(), outOfOrder, channels[1].getRecoveredCount(), naiveWrong));
+
+        // The simulation must actually reorder, or it proves nothing
+        assertTrue(outOfOrder > 0);
+        assertTrue(naiveWrong > 0);
+        assertArrayEquals(expected, actual);
+    }
+
+    private DrawingMessage parse(byte[] payload) {
+        return (DrawingMessage) mMapper.fromJson(new String(payload, UTF_8), Message.class);
+    }
+
+    /**
+     * Apply a change both by its order number, as DrawingActivity does, and in arrival order.
+     */
+    private static void apply(DrawingMessage msg, SharedCanvas ordered, short[] naive) {
+        if (msg instanceof EPointMessage) {
+            EPoint point = ((EPointMessage) msg).getPoint();
+            short color = (short) ((EPointMessage) msg).getColor();
+            ordered.setCell(point.x, point.y, color, msg.getOrder());
+            naive[point.x * DrawView.GRID_SIZE + point.y] = color;
+        } else if (msg instanceof ClearMessage) {
+            ordered.clear(msg.getOrder());
+            for (int cell = 0; cell < NUM_CELLS; cell++) {
+                naive[cell] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.EPointMessage;
+import com.google.example.eightbitartist.messages.GuessMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.MessageAdapter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Flooding clients against a PartyHost, over a loopback transport that hands serialized
+ * messages straight to the host and keeps the canvas an onlooker gets from what it relays.
+ */
+public class FloodGuardTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int NUM_CELLS = DrawView.GRID_SIZE * DrawView.GRID_SIZE;
+    private static final String ONLOOKER_ID = "onlooker";
+
+    private final Gson mMapper = new GsonBuilder()
+            .registerTypeAdapter(Message.class, new MessageAdapter())
+            .create();
+
+    private ManualScheduler mScheduler;
+    private LoopbackTransport mTransport;
+    private GameEngine mGame;
+    private PartyHost mHost;
+
+    // The canvas the onlooker sees, and how many cells were relayed to it
+    private short[] mOnlookerCanvas = new short[NUM_CELLS];
+    private long mRelayed = 0;
+
+    /**
+     * A client of the party, which knows what its own canvas looks like. Each client draws in
+     * its own columns, so the onlooker's canvas shows what was relayed for each of them.
+     */
+    private class Client {
+        final String endpointId;
+        final DrawingParticipant participant;
+        final short[] canvas = new short[NUM_CELLS];
+        final Random random;
+        final int firstColumn;
+        final int columns;
+        long sent = 0;
+
+        Client(String endpointId, long seed, int firstColumn, int columns) {
+            this.endpointId = endpointId;
+            this.firstColumn = firstColumn;
+            this.columns = columns;
+            random = new Random(seed);
+            participant = connect(endpointId);
+        }
+
+        void drawCell() {
+            int x = firstColumn + random.nextInt(columns);
+            int y = random.nextInt(DrawView.GRID_SIZE);
+            int color = random.nextInt(DrawView.COLOR_MAP.length);
+            canvas[x * DrawView.GRID_SIZE + y] = (short) color;
+            send(new EPointMessage(new EPoint(x, y), color));
+        }
+
+        void guess() {
+            send(new GuessMessage(random.nextInt(GameEngine.WORDS_PER_TURN), 10,
+                    participant.getSessionId(), mScheduler.now()));
+        }
+
+        void send(Message msg) {
+            sendRaw(mMapper.toJson(msg, Message.class));
+        }
+
+        void sendRaw(String json) {
+            sent++;
+            mHost.onMessageReceived(endpointId, json.getBytes(UTF_8));
+            mTransport.drain();
+        }
+
+        boolean isDisconnected() {
+            return mTransport.getDisconnected().contains(endpointId);
+        }
+
+        /**
+         * @return true if the onlooker's canvas matches this client's in its columns.
+         */
+        boolean isRelayed() {
+            for (int x = firstColumn; x < firstColumn + columns; x++) {
+                for (int y = 0; y < DrawView.GRID_SIZE; y++) {
+                    int cell = x * DrawView.GRID_SIZE + y;
+                    if (canvas[cell] != mOnlookerCanvas[cell]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        WordDictionary dictionary = WordMatcherTest.compile("flood",
+                new String[]{"apple", "banana", "cherry", "grape", "lemon", "mango"});
+        mScheduler = new ManualScheduler(0);
+        mTransport = new LoopbackTransport();
+        mGame = new GameEngine(dictionary, new Random(1), new QuietListener() {
+            @Override
+            public void onSendMessage(Message message) {
+                mHost.sendToClients(message, mMapper.toJson(message, Message.class));
+            }
+        });
+        mHost = new PartyHost(mGame, new SharedCanvas(), mMapper, mScheduler);
+        mHost.start(mTransport, "host-id", 1, new short[NUM_CELLS]);
+        mTransport.setParticipantTable(mGame.getParticipantTable());
+
+        mTransport.connect(ONLOOKER_ID, new LoopbackTransport.Receiver() {
+            @Override
+            public void onMessage(String endpointId, String message) {
+                Message msg = mMapper.fromJson(message, Message.class);
+                if (msg instanceof EPointMessage) {
+                    EPoint point = ((EPointMessage) msg).getPoint();
+                    mOnlookerCanvas[point.x * DrawView.GRID_SIZE + point.y] =
+                            (short) ((EPointMessage) msg).getColor();
+                    mRelayed++;
+                }
+            }
+        });
+        assertTrue(mHost.onClientConnected(ONLOOKER_ID, ONLOOKER_ID, false));
+        mTransport.drain();
+    }
+
+    private DrawingParticipant connect(String endpointId) {
+        mTransport.connect(endpointId, new LoopbackTransport.Receiver() {
+            @Override
+            public void onMessage(String endpointId, String message) {
+            }
+        });
+        mHost.onClientConnected(endpointId, endpointId, false);
+        mTransport.drain();
+        return mGame.getParticipantTable().getByMessagingId(endpointId);
+    }
+
+    /**
+     * Run clients for a while, each sending at its own rate, and let the host release what it
+     * coalesced for a few seconds after the clients stop.
+     */
+    private void run(Client[] clients, int[] perSecond, boolean[] guesses, long durationMs) {
+        for (long now = 0; now < durationMs + 5000; now++) {
+            mScheduler.advanceTo(now);
+            mTransport.drain();
+            if (now >= durationMs) {
+                continue;
+            }
+            for (int i = 0; i < clients.length; i++) {
+                if (clients[i].isDisconnected()) {
+                    continue;
+                }
+                // Spread each client's messages evenly over the second
+                long due = (now + 1) * perSecond[i] / 1000 - now * perSecond[i] / 1000;
+                for (long j = 0; j < due; j++) {
+                    if (guesses[i]) {
+                        clients[i].guess();
+                    } else {
+                        clients[i].drawCell();
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void artistAtNormalSpeedIsNeverLimited() {
+        Client artist = new Client("artist", 1, 0, DrawView.GRID_SIZE);
+        run(new Client[]{artist}, new int[]{40}, new boolean[]{false}, 10000);
+
+        assertEquals(artist.sent, mRelayed);
+        assertTrue(mHost.getFloodSummary(), mHost.getFloodSummary().contains("coalesced=0"));
+        assertTrue(artist.isRelayed());
+    }
+
+    @Test
+    public void fastArtistIsCoalescedButKeepsItsCanvas() {
+        Client artist = new Client("artist", 2, 0, DrawView.GRID_SIZE);
+        run(new Client[]{artist}, new int[]{83}, new boolean[]{false}, 10000);
+
+        System.out.println(String.format(Locale.US,
+                "83 cells/s for 10 s: sent=%d relayed=%d %s", artist.sent, mRelayed,
+                mHost.getFloodSummary()));
+        assertFalse(mHost.getFloodSummary().contains("coalesced=0"));
+        assertFalse(artist.isDisconnected());
+        assertTrue(mRelayed < artist.sent);
+
+        // Coalescing only skips colors that were painted over
+        assertTrue(artist.isRelayed());
+    }
+
+    @Test
+    public void drawingFloodIsDisconnected() {
+        Client flooder = new Client("flooder", 3, 0, DrawView.GRID_SIZE / 2);
+        Client artist = new Client("artist", 4, DrawView.GRID_SIZE / 2, DrawView.GRID_SIZE / 2);
+        run(new Client[]{flooder, artist}, new int[]{1000, 40}, new boolean[]{false, false},
+                10000);
+
+        System.out.println(String.format(Locale.US, "1000 cells/s: sent=%d before disconnect, %s",
+                flooder.sent, mHost.getFloodSummary()));
+        assertTrue(flooder.isDisconnected());
+        assertTrue(flooder.sent < 4000);
+
+        // The honest artist next to it is untouched
+        assertFalse(artist.isDisconnected());
+        assertTrue(artist.isRelayed());
+        assertEquals(1, mTransport.getDisconnected().size());
+    }
+
+    @Test
+    public void guessFloodIsDroppedThenDisconnected() {
+        Client flooder = new Client("flooder", 5, 0, DrawView.GRID_SIZE);
+        Client guesser = new Client("guesser", 6, 0, DrawView.GRID_SIZE);
+        run(new Client[]{flooder, guesser}, new int[]{200, 1}, new boolean[]{true, true},
+                10000);
+
+        System.out.println(String.format(Locale.US, "200 guesses/s: sent=%d before disconnect, %s",
+                flooder.sent, mHost.getFloodSummary()));
+        assertTrue(flooder.isDisconnected());
+        assertTrue(flooder.sent < 4 * 200);
+        assertFalse(mHost.getFloodSummary().contains("dropped=0"));
+        assertTrue(mHost.getFloodSummary().contains("coalesced=0"));
+        assertFalse(guesser.isDisconnected());
+        assertEquals(1, mTransport.getDisconnected().size());
+    }
+
+    @Test
+    public void malformedPayloadsAreDroppedThenDisconnected() {
+        Client buggy = new Client("buggy", 7, 0, DrawView.GRID_SIZE / 2);
+        Client artist = new Client("artist", 8, DrawView.GRID_SIZE / 2, DrawView.GRID_SIZE / 2);
+        String[] garbage = {
+                "{not json",
+                "",
+                "[1, 2, 3]",
+                "{\"_classname\": \"java.lang.Thread\", \"_INSTANCE\": {}}",
+                "{\"_classname\": \"" + EPointMessage.class.getName()
+                        + "\", \"_INSTANCE\": {\"point\": \"here\"}}",
+        };
+
+        // One bad message is dropped and forgiven by the clean windows after it
+        mScheduler.advanceTo(100);
+        buggy.sendRaw(garbage[0]);
+        for (long now = 1000; now < 5000; now += 100) {
+            mScheduler.advanceTo(now);
+            buggy.drawCell();
+            artist.drawCell();
+        }
+        assertFalse(buggy.isDisconnected());
+        assertTrue(buggy.isRelayed());
+
+        // Bad messages in window after window are not
+        int windows = 0;
+        for (long now = 5000; !buggy.isDisconnected() && now < 20000; now += 500) {
+            mScheduler.advanceTo(now);
+            buggy.sendRaw(garbage[(int) (now / 500) % garbage.length]);
+            artist.drawCell();
+            windows++;
+        }
+        System.out.println(String.format(Locale.US,
+                "malformed every 500 ms: disconnected after %d messages, %s", windows,
+                mHost.getFloodSummary()));
+        assertTrue(buggy.isDisconnected());
+        assertTrue(windows <= 6);
+        assertFalse(artist.isDisconnected());
+        assertTrue(artist.isRelayed());
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.MessageAdapter;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A soak test of GameEngine on the JVM: a party of engines plays thousands of turns through the
+ * host's PartyHost over a loopback transport, with players leaving and coming back, and every
+ * connected engine must agree with the host on the turn, the artist and the scores after every
+ * step.
+ */
+public class GameEngineTest {
+
+    private static final int PLAYERS = 6;
+    private static final int TURNS = 3000;
+    private static final long TURN_MS = 30 * 1000L;
+
+    // Longer than the host holds roster changes
+    private static final long ROSTER_WAIT_MS = 200L;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Gson mMapper = new GsonBuilder()
+            .registerTypeAdapter(Message.class, new MessageAdapter())
+            .create();
+
+    /**
+     * One device of the party. Player 0 hosts.
+     */
+    private class Player implements GameEngine.Listener {
+        final int index;
+        final String name;
+        GameEngine engine;
+        String endpointId;
+        boolean connected = false;
+        boolean resultsPending = false;
+        int joins = 0;
+
+        Player(int index, WordDictionary dictionary, long seed) {
+            this.index = index;
+            this.name = "Player " + index;
+            this.engine = new GameEngine(dictionary, new Random(seed), this);
+        }
+
+        @Override
+        public void onSendMessage(Message message) {
+            send(this, message);
+        }
+
+        @Override
+        public void onMessage(Message message) {
+        }
+
+        @Override
+        public void onTurnStarted() {
+        }
+
+        @Override
+        public void onRosterChanged() {
+        }
+
+        @Override
+        public void onParticipantLeft(DrawingParticipant participant) {
+        }
+
+        @Override
+        public void onGuessResult(boolean correct, String guessedWord, String correctWord) {
+        }
+
+        @Override
+        public void onGuessResultsPending() {
+            resultsPending = true;
+        }
+
+        @Override
+        public void onGuessJudged(int guesserId, int turn, int points, long elapsedMs) {
+        }
+
+        @Override
+        public void onAllGuessed() {
+        }
+
+        @Override
+        public WordDictionary onLoadDictionary(String pack) {
+            return null;
+        }
+
+        @Override
+        public void onDictionaryMismatch() {
+            fail("Dictionary mismatch on " + name);
+        }
+    }
+
+    private Player[] mPlayers;
+    private ManualScheduler mScheduler;
+    private LoopbackTransport mTransport;
+    private PartyHost mPartyHost;
+
+    // What clients sent the host, not delivered yet
+    private ArrayDeque<Player> mSenders = new ArrayDeque<>();
+    private ArrayDeque<String> mPayloads = new ArrayDeque<>();
+    private long mNow = 1000000L;
+    private long mDelivered = 0;
+
+    private Player host() {
+        return mPlayers[0];
+    }
+
+    /**
+     * Let time pass, running the host's timers.
+     */
+    private void advance(long ms) {
+        mNow += ms;
+        mScheduler.advanceTo(mNow);
+    }
+
+    /**
+     * Send a message from a device, as GameService does: the host sends it to the clients
+     * through its PartyHost, a client to the host.
+     */
+    private void send(Player from, Message msg) {
+        if (msg.isTurnScoped()) {
+            msg.setTurn(from.engine.getTurnNumber());
+        }
+        String json = mMapper.toJson(msg, Message.class);
+        if (from == host()) {
+            mPartyHost.sendToClients(msg, json);
+        } else {
+            mSenders.add(from);
+            mPayloads.add(json);
+        }
+    }
+
+    /**
+     * Deliver everything queued, including what is sent in response. The host's PartyHost
+     * handles what clients send, and what it sends goes through the loopback transport.
+     */
+    private void drain() {
+        do {
+            while (!mSenders.isEmpty()) {
+                Player from = mSenders.poll();
+                String json = mPayloads.poll();
+                if (from.connected) {
+                    mDelivered++;
+                    mPartyHost.onMessageReceived(from.endpointId, json.getBytes(UTF_8));
+                }
+            }
+            mTransport.drain();
+
+            // The referee's result tick
+            for (Player player : mPlayers) {
+                if (player.resultsPending) {
+                    player.resultsPending = false;
+                    player.engine.flushGuessResults();
+                }
+            }
+            mTransport.drain();
+        } while (!mSenders.isEmpty());
+    }
+
+    /**
+     * Connect a client to the host, as GameService does when an endpoint connects. A returning
+     * player gets its old session back if the host still keeps it.
+     */
+    private void join(final Player player) {
+        player.engine.reset();
+        player.engine.setHostName(host().name);
+        player.endpointId = "endpoint-" + player.index + "-" + player.joins++;
+        player.connected = true;
+        mTransport.connect(player.endpointId, new LoopbackTransport.Receiver() {
+            @Override
+            public void onMessage(String endpointId, String message) {
+                mDelivered++;
+                player.engine.onMessageReceived(mMapper.fromJson(message, Message.class), mNow);
+            }
+        });
+        mPartyHost.onClientConnected(player.endpointId, player.name, false);
+        host().connected = true;
+        drain();
+
+        // Roster changes go out once the host has held them for a moment
+        advance(ROSTER_WAIT_MS);
+        drain();
+    }
+
+    private void leave(Player player) {
+        int size = host().engine.getParticipantTable().size();
+        player.connected = false;
+        mTransport.disconnect(player.endpointId);
+        mPartyHost.removeClient(player.endpointId);
+        assertEquals(size - 1, host().engine.getParticipantTable().size());
+        advance(ROSTER_WAIT_MS);
+        drain();
+    }
+
+    /**
+     * Check that every connected client agrees with the host on the state of the match.
+     */
+    private void assertAgree() {
+        GameEngine game = host().engine;
+        for (Player player : mPlayers) {
+            if (player == host() || !player.connected) {
+                continue;
+            }
+            GameEngine engine = player.engine;
+            String where = player.name + " in turn " + game.getTurnNumber();
+            assertEquals(where, game.getTurnNumber(), engine.getTurnNumber());
+            assertEquals(where, game.getMatchSeed(), engine.getMatchSeed());
+            assertEquals(where, game.getWord(), engine.getWord());
+            assertEquals(where, game.getTeamSize(), engine.getTeamSize());
+            assertEquals(where, game.getArtist().getSessionId(),
+                    engine.getArtist().getSessionId());
+            assertEquals(where, game.getParticipantTable().size(),
+                    engine.getParticipantTable().size());
+            for (DrawingParticipant participant : engine.getParticipantTable().getParticipants()) {
+                assertEquals(where, game.getParticipantTable().get(participant.getSessionId())
+                        .getScore(), participant.getScore());
+            }
+        }
+    }
+
+    private Player findArtist() {
+        Player artist = null;
+        for (Player player : mPlayers) {
+            if (player.connected && player.engine.isMyTurn()) {
+                assertTrue("Two artists", artist == null);
+                artist = player;
+            }
+        }
+        assertNotNull(artist);
+        return artist;
+    }
+
+    private void soak(int teamSize, long seed) throws IOException {
+        String[] words = new String[200];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = "word" + i;
+        }
+        WordDictionary dictionary = WordMatcherTest.compile("soak", words);
+        Random random = new Random(seed);
+        mPlayers = new Player[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            mPlayers[i] = new Player(i, dictionary, seed + i);
+        }
+        mScheduler = new ManualScheduler(mNow);
+        mTransport = new LoopbackTransport();
+        mPartyHost = new PartyHost(host().engine, new SharedCanvas(), mMapper, mScheduler);
+        mPartyHost.start(mTransport, "host-id", teamSize,
+                new short[DrawView.GRID_SIZE * DrawView.GRID_SIZE]);
+        mTransport.setParticipantTable(host().engine.getParticipantTable());
+
+        // The points each player should have, by how their guesses were scored
+        int[] expected = new int[PLAYERS];
+        int correctGuesses = 0;
+        int leaves = 0;
+
+        long start = System.nanoTime();
+        join(mPlayers[1]);
+        for (int turn = 0; turn < TURNS; turn++) {
+            assertAgree();
+            assertEquals(turn, host().engine.getTurnNumber());
+
+            // Everyone who does not draw guesses, some of them right
+            long turnStart = host().engine.getTurnStartTime();
+            for (Player player : mPlayers) {
+                GameEngine engine = player.engine;
+                if (!player.connected || engine.isDrawing() || random.nextInt(5) == 0) {
+                    continue;
+                }
+                advance(random.nextInt(3000));
+                boolean correct = random.nextBoolean();
+                int position = correct ? engine.getWordIndex()
+                        : (engine.getWordIndex() + 1) % GameEngine.WORDS_PER_TURN;
+                engine.makeGuess(position, mNow);
+                if (correct) {
+                    expected[player.index] += GameEngine.getGuessPoints(mNow - turnStart);
+                    correctGuesses++;
+                }
+                drain();
+            }
+            assertAgree();
+            for (Player player : mPlayers) {
+                DrawingParticipant participant = host().engine.getParticipantTable()
+                        .getByPersistentId((player == host()) ? "host-id" : player.name);
+                if (player.connected && participant != null) {
+                    assertEquals(player.name, expected[player.index], participant.getScore());
+                }
+            }
+
+            // Players come and go between turns
+            Player player = mPlayers[1 + random.nextInt(PLAYERS - 1)];
+            if (player.connected && host().engine.getParticipantTable().size() > 2
+                    && random.nextInt(4) == 0) {
+                leave(player);
+                leaves++;
+            } else if (!player.connected && random.nextInt(2) == 0) {
+                if (host().engine.getParticipantTable()
+                        .findDeparted(player.name, mNow) == null) {
+                    // Gone for too long, the host starts the player over
+                    expected[player.index] = 0;
+                }
+                join(player);
+            }
+
+            advance(TURN_MS);
+            findArtist().engine.endTurn(mNow);
+            drain();
+        }
+        long elapsedNs = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US,
+                "team size %d: %d turns, %d messages delivered, %d correct guesses, %d leaves, "
+                        + "%.1f us per turn",
+                teamSize, TURNS, mDelivered, correctGuesses, leaves,
+                elapsedNs / 1000.0 / TURNS));
+        assertEquals(0, host().engine.getRejectedGuessCount());
+        assertTrue(leaves > 0);
+    }
+
+    @Test
+    public void soakWithOneArtist() throws IOException {
+        soak(1, 37);
+    }
+
+    @Test
+    public void soakWithTeams() throws IOException {
+        soak(3, 38);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A PartyHost.Transport that hands what the host sends to receivers in the test instead of
+ * Nearby connections. Relayed messages are routed with MessageRouter, as NearbyClient does, and
+ * everything is queued until drain() so that clients answer after the host is done.
+ */
+class LoopbackTransport implements PartyHost.Transport {
+
+    /**
+     * The receiving end of one client's connection.
+     */
+    interface Receiver {
+        void onMessage(String endpointId, String message);
+    }
+
+    private static class Delivery {
+        final String endpointId;
+        final String message;
+
+        Delivery(String endpointId, String message) {
+            this.endpointId = endpointId;
+            this.message = message;
+        }
+    }
+
+    private final LinkedHashMap<String, Receiver> mClients = new LinkedHashMap<>();
+    private final ArrayDeque<Delivery> mQueue = new ArrayDeque<>();
+    private final List<String> mDisconnected = new ArrayList<>();
+    private ParticipantTable mParticipants;
+    private long mSent = 0;
+
+    void connect(String endpointId, Receiver receiver) {
+        mClients.put(endpointId, receiver);
+    }
+
+    /**
+     * Drop a client's connection, with anything still queued for it.
+     */
+    void disconnect(String endpointId) {
+        mClients.remove(endpointId);
+    }
+
+    void setParticipantTable(ParticipantTable participants) {
+        mParticipants = participants;
+    }
+
+    /**
+     * Deliver everything queued, including what is sent while delivering.
+     */
+    void drain() {
+        while (!mQueue.isEmpty()) {
+            Delivery delivery = mQueue.poll();
+            Receiver receiver = mClients.get(delivery.endpointId);
+            if (receiver != null) {
+                receiver.onMessage(delivery.endpointId, delivery.message);
+            }
+        }
+    }
+
+    /**
+     * @return the endpoints the host disconnected, in order.
+     */
+    List<String> getDisconnected() {
+        return mDisconnected;
+    }
+
+    long getSentCount() {
+        return mSent;
+    }
+
+    @Override
+    public void sendMessageTo(String endpointId, String message) {
+        mSent++;
+        mQueue.add(new Delivery(endpointId, message));
+    }
+
+    @Override
+    public void sendMessageToAll(String message, String excludingId) {
+        for (String endpointId : mClients.keySet()) {
+            if (!endpointId.equals(excludingId)) {
+                sendMessageTo(endpointId, message);
+            }
+        }
+    }
+
+    @Override
+    public void relayMessage(String message, Message msg, String artistId, String excludingId) {
+        for (String endpointId : mClients.keySet()) {
+            if (!endpointId.equals(excludingId)
+                    && MessageRouter.isRecipient(endpointId, msg, artistId, mParticipants)) {
+                sendMessageTo(endpointId, message);
+            }
+        }
+    }
+
+    @Override
+    public void disconnectFrom(String endpointId) {
+        mDisconnected.add(endpointId);
+        disconnect(endpointId);
+    }
+
+    @Override
+    public Set<String> getConnectedEndpointIds() {
+        return mClients.keySet();
+    }
+}
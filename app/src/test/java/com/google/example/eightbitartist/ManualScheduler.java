@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A PartyHost.Scheduler on a clock the test moves by hand. Timers run in the order they are due,
+ * when the clock passes them.
+ */
+class ManualScheduler implements PartyHost.Scheduler {
+
+    private static class Timer {
+        final long due;
+        final Runnable runnable;
+
+        Timer(long due, Runnable runnable) {
+            this.due = due;
+            this.runnable = runnable;
+        }
+    }
+
+    private long mNow;
+    private final List<Timer> mTimers = new ArrayList<>();
+
+    ManualScheduler(long now) {
+        mNow = now;
+    }
+
+    @Override
+    public long now() {
+        return mNow;
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMs) {
+        mTimers.add(new Timer(mNow + delayMs, runnable));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+        for (int i = mTimers.size() - 1; i >= 0; i--) {
+            if (mTimers.get(i).runnable == runnable) {
+                mTimers.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Move the clock forward, running every timer that comes due on the way.
+     */
+    void advanceTo(long time) {
+        while (true) {
+            Timer next = null;
+            for (Timer timer : mTimers) {
+                if (timer.due <= time && (next == null || timer.due < next.due)) {
+                    next = timer;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            mTimers.remove(next);
+            mNow = Math.max(mNow, next.due);
+            next.runnable.run();
+        }
+        mNow = Math.max(mNow, time);
+    }
+}
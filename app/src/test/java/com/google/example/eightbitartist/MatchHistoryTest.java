@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MatchHistory kept players by persistent ID, and a benchmark of adding, reloading and querying
+ * 100,000 turns.
+ */
+public class MatchHistoryTest {
+
+    private static final int NUM_CELLS = DrawView.GRID_SIZE * DrawView.GRID_SIZE;
+    private static final long TIMEOUT_MS = 120 * 1000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Open the history in a directory and wait until it is loaded.
+     */
+    private static MatchHistory open(File directory) throws InterruptedException {
+        MatchHistory history = new MatchHistory(directory);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!history.isLoaded()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        return history;
+    }
+
+    /**
+     * Wait until the writer has applied a number of turns and the guesses of a player.
+     */
+    private static void awaitWritten(MatchHistory history, int turns, String playerId,
+                                     int guesses) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            MatchHistory.PlayerStats stats = history.getPlayerStats(playerId);
+            if (history.getTurnCount() == turns && stats != null
+                    && stats.getGuesses() == guesses) {
+                return;
+            }
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void findsPlayersByPersistentId() throws InterruptedException {
+        File directory = mFolder.getRoot();
+        MatchHistory history = open(directory);
+
+        // Every device calls its own player "Me", and names are not unique
+        short[] cells = new short[NUM_CELLS];
+        cells[7] = 3;
+        history.startTurn("Apple", Arrays.asList("host-id", "client-id"),
+                Arrays.asList("Me", "Pixel"), 1000);
+        history.addGuess(0, "other-id", "Me", 20, 4000);
+        history.setDrawing(cells);
+        history.startTurn("Pony", Arrays.asList("other-id"), Arrays.asList("Nexus"), 2000);
+        history.addGuess(0, "host-id", "Me", 0, 9000);
+        history.addGuess(0, "client-id", "Pixel", 15, 3000);
+        awaitWritten(history, 2, "client-id", 1);
+
+        MatchHistory.PlayerStats host = history.getPlayerStats("host-id");
+        assertEquals(1, host.getTurnsDrawn());
+        assertEquals(1, host.getGuesses());
+        assertEquals(0, host.getPoints());
+        MatchHistory.PlayerStats other = history.getPlayerStats("other-id");
+        assertEquals("Nexus", other.getName());
+        assertEquals(20, other.getPoints());
+        assertEquals(1, other.getTurnsDrawn());
+        assertNull(history.getPlayerStats("Me"));
+
+        List<MatchHistory.PlayerStats> top = history.getTopPlayers(3);
+        assertEquals("other-id", top.get(0).getId());
+        assertEquals("client-id", top.get(1).getId());
+        assertEquals("host-id", top.get(2).getId());
+        assertArrayEquals(new int[]{1}, history.getTurnsDrawnBy("other-id", 5));
+        history.close();
+
+        // The same after reloading the file, with artists shown by their latest name
+        history = open(directory);
+        assertEquals(2, history.getTurnCount());
+        assertEquals(15, history.getPlayerStats("client-id").getPoints());
+        assertEquals("Nexus", history.getPlayerStats("other-id").getName());
+        MatchHistory.Turn turn = history.readTurn(0);
+        assertNotNull(turn);
+        assertEquals("Apple", turn.getWord());
+        assertArrayEquals(new String[]{"Me", "Pixel"}, turn.getArtists());
+        assertArrayEquals(cells, turn.getCells());
+        history.close();
+    }
+
+    @Test
+    public void benchmark100kTurns() throws InterruptedException {
+        int turns = 100000;
+        int players = 50;
+        int guessesPerTurn = 4;
+        String[] ids = new String[players];
+        String[] names = new String[players];
+        for (int i = 0; i < players; i++) {
+            ids[i] = "player-id-" + i;
+            names[i] = "Player " + (i % 10);
+        }
+        String[] words = new String[500];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = "word" + i;
+        }
+
+        File directory = mFolder.getRoot();
+        MatchHistory history = open(directory);
+        Random random = new Random(49);
+        short[] cells = new short[NUM_CELLS];
+        int[] guessesBy = new int[players];
+        long addNs = 0;
+        for (int turn = 0; turn < turns; turn++) {
+            int artist = random.nextInt(players);
+            for (int cell = 0; cell < NUM_CELLS; cell++) {
+                cells[cell] = (short) random.nextInt(DrawView.COLOR_MAP.length);
+            }
+
+            long start = System.nanoTime();
+            history.startTurn(words[random.nextInt(words.length)],
+                    Arrays.asList(ids[artist]), Arrays.asList(names[artist]), turn * 60000L);
+            for (int i = 0; i < guessesPerTurn; i++) {
+                int guesser = (artist + 1 + i) % players;
+                guessesBy[guesser]++;
+                history.addGuess(0, ids[guesser], names[guesser],
+                        random.nextBoolean() ? 10 + random.nextInt(20) : 0,
+                        random.nextInt(30000));
+            }
+            history.setDrawing(cells);
+            addNs += System.nanoTime() - start;
+        }
+        int events = turns * (guessesPerTurn + 2);
+        awaitWritten(history, turns, ids[0], guessesBy[0]);
+        awaitWritten(history, turns, ids[players - 1], guessesBy[players - 1]);
+
+        // The drawing of the last turn is the last event, so then nothing is left to write
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (history.readTurn(turns - 1).getCells() == null) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        history.close();
+
+        // Reload, then query
+        long start = System.nanoTime();
+        history = open(directory);
+        long loadMs = (System.nanoTime() - start) / 1000000;
+        assertEquals(turns, history.getTurnCount());
+
+        int queries = 10000;
+        long playerNs = 0;
+        long wordNs = 0;
+        long topNs = 0;
+        long drawnNs = 0;
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up
+            playerNs = 0;
+            wordNs = 0;
+            topNs = 0;
+            drawnNs = 0;
+            for (int i = 0; i < queries; i++) {
+                long before = System.nanoTime();
+                MatchHistory.PlayerStats stats = history.getPlayerStats(ids[i % players]);
+                long afterPlayer = System.nanoTime();
+                history.getWordStats(words[i % words.length]);
+                long afterWord = System.nanoTime();
+                history.getTopPlayers(5);
+                long afterTop = System.nanoTime();
+                history.getTurnsDrawnBy(ids[i % players], 10);
+                long afterDrawn = System.nanoTime();
+
+                playerNs += afterPlayer - before;
+                wordNs += afterWord - afterPlayer;
+                topNs += afterTop - afterWord;
+                drawnNs += afterDrawn - afterTop;
+                assertEquals(guessesBy[i % players], stats.getGuesses());
+            }
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(history.readTurn(random.nextInt(turns)).getCells());
+        }
+        long readNs = (System.nanoTime() - start) / 100;
+        String summary = history.getSummary();
+        history.close();
+
+        System.out.println(String.format(Locale.US,
+                "%d turns (%d events): add %.1f us/event, reload %d ms (%s), "
+                        + "getPlayerStats %.1f us, getWordStats %.1f us, getTopPlayers(5) %.1f us, "
+                        + "getTurnsDrawnBy %.1f us, readTurn %.1f us",
+                turns, events, addNs / 1000.0 / events, loadMs, summary,
+                playerNs / 1000.0 / queries, wordNs / 1000.0 / queries,
+                topNs / 1000.0 / queries, drawnNs / 1000.0 / queries, readNs / 1000.0));
+
+        // Queries answer from the indexes, never from the file
+        assertTrue(playerNs / queries < 50 * 1000);
+        assertTrue(topNs / queries < 50 * 1000);
+        assertTrue(drawnNs / queries < 50 * 1000);
+    }
+}
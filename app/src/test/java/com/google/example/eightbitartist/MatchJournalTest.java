@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.TurnMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A party match saved by MatchJournal over many simulated turns: it must restore exactly and
+ * quickly, and a journal cut at any length, as by the process dying mid-write, must still
+ * restore.
+ */
+public class MatchJournalTest {
+
+    private static final int PLAYERS = 6;
+    private static final int TURNS = 200;
+    private static final int FRAMES_PER_TURN = 300;
+    private static final int RESTORES = 100;
+    private static final long WRITER_TIMEOUT_MS = 10000;
+
+    private static final int NUM_CELLS = DrawView.GRID_SIZE * DrawView.GRID_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * A DrawView whose cells the test sets directly, since the journal only reads them.
+     */
+    private static class PaintedView extends DrawView {
+        final short[] cells = new short[NUM_CELLS];
+
+        PaintedView() {
+            super(null, null);
+        }
+
+        @Override
+        public short getMacroPixel(int gridX, int gridY) {
+            return cells[gridX * GRID_SIZE + gridY];
+        }
+    }
+
+    private static TurnMessage createTurn(int turnNumber) {
+        TurnMessage turn = new TurnMessage();
+        turn.setTurnNumber(turnNumber);
+        turn.setSeed(48);
+        turn.setStartTime(1000L * turnNumber);
+        turn.setTeamSize(1);
+        turn.setPack("classic");
+        turn.setDictionaryHash(0x1234);
+        return turn;
+    }
+
+    /**
+     * Load the match once the writer thread has written what was recorded last, which is
+     * the given canvas.
+     */
+    private static SavedMatch awaitSaved(File directory, short[] cells)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WRITER_TIMEOUT_MS;
+        while (true) {
+            SavedMatch match = MatchJournal.load(directory);
+            if (match != null && sameCells(match, cells)) {
+                return match;
+            }
+            assertTrue("the writer did not finish", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean sameCells(SavedMatch match, short[] cells) {
+        for (int i = 0; i < NUM_CELLS; i++) {
+            if (match.getCell(i / DrawView.GRID_SIZE, i % DrawView.GRID_SIZE) != cells[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void restoresTheMatchAfterManyTurns() throws Exception {
+        File directory = mFolder.newFolder("match");
+        MatchJournal journal = new MatchJournal(directory);
+        journal.begin(true, null);
+
+        ParticipantTable participants = new ParticipantTable();
+        for (int i = 0; i < PLAYERS; i++) {
+            DrawingParticipant participant = new DrawingParticipant("endpoint-" + i, "Player" + i);
+            participant.setSessionId(participants.nextSessionId());
+            participant.setPersistentId("player-" + i);
+            participants.put(participant);
+        }
+        journal.recordRoster(0, participants);
+
+        // Each frame the artist paints a cell, and now and then a guesser scores
+        Random random = new Random(48);
+        PaintedView canvas = new PaintedView();
+        for (int turn = 1; turn <= TURNS; turn++) {
+            journal.recordTurn(createTurn(turn));
+            for (int i = 0; i < NUM_CELLS; i++) {
+                canvas.cells[i] = 0;
+            }
+            for (int frame = 0; frame < FRAMES_PER_TURN; frame++) {
+                canvas.cells[random.nextInt(NUM_CELLS)] = (short) (1 + random.nextInt(3));
+                journal.recordCanvas(canvas);
+                if (random.nextInt(10) == 0) {
+                    DrawingParticipant guesser = participants.get(random.nextInt(PLAYERS));
+                    guesser.setScore(guesser.getScore() + 1 + random.nextInt(10));
+                    journal.recordRoster(0, participants);
+                }
+            }
+        }
+        journal.close();
+
+        SavedMatch match = awaitSaved(directory, canvas.cells);
+        long start = System.nanoTime();
+        for (int i = 0; i < RESTORES; i++) {
+            match = MatchJournal.load(directory);
+        }
+        double restoreMs = (System.nanoTime() - start) / 1e6 / RESTORES;
+        System.out.println(String.format(Locale.US, "%d turns: %s, journal %d bytes, "
+                        + "restore %.2f ms", TURNS, journal.getSummary(),
+                new File(directory, "match.journal").length(), restoreMs));
+
+        assertTrue(match.isHost());
+        assertEquals(0, match.getMySessionId());
+        assertEquals(TURNS, match.getTurn().getTurnNumber());
+        assertTrue(sameCells(match, canvas.cells));
+        List<DrawingParticipant> saved = match.getParticipants();
+        assertEquals(PLAYERS, saved.size());
+        for (DrawingParticipant participant : saved) {
+            DrawingParticipant expected = participants.get(participant.getSessionId());
+            assertEquals(expected.getPersistentId(), participant.getPersistentId());
+            assertEquals(expected.getScore(), participant.getScore());
+        }
+
+        // A restore must not hold up onCreate
+        assertTrue(restoreMs < 20);
+    }
+
+    @Test
+    public void journalCutAnywhereStillRestores() throws Exception {
+        File directory = mFolder.newFolder("match");
+        MatchJournal journal = new MatchJournal(directory);
+        journal.begin(false, "host");
+        journal.recordTurn(createTurn(7));
+
+        // Several frames of a few cells each, written as the writer gets to them
+        PaintedView canvas = new PaintedView();
+        Random random = new Random(48);
+        for (int frame = 0; frame < 20; frame++) {
+            for (int i = 0; i < 3; i++) {
+                canvas.cells[random.nextInt(NUM_CELLS)] = (short) (1 + random.nextInt(3));
+            }
+            journal.recordCanvas(canvas);
+            Thread.sleep(MatchJournal.FLUSH_DELAY_MS / 10);
+        }
+        journal.close();
+        awaitSaved(directory, canvas.cells);
+
+        byte[] snapshot = Files.readAllBytes(new File(directory, "match.snapshot").toPath());
+        byte[] full = Files.readAllBytes(new File(directory, "match.journal").toPath());
+        assertTrue(full.length > 8 + 8);
+        File cutDirectory = mFolder.newFolder("cut");
+        write(new File(cutDirectory, "match.snapshot"), snapshot, snapshot.length);
+        for (int length = 0; length <= full.length; length++) {
+            write(new File(cutDirectory, "match.journal"), full, length);
+            SavedMatch match = MatchJournal.load(cutDirectory);
+            assertNotNull("cut at " + length, match);
+            assertEquals(7, match.getTurn().getTurnNumber());
+            assertEquals("host", match.getHostName());
+        }
+
+        // The whole journal gives back the whole canvas
+        short[] restored = new short[NUM_CELLS];
+        SavedMatch match = MatchJournal.load(cutDirectory);
+        for (int i = 0; i < NUM_CELLS; i++) {
+            restored[i] = match.getCell(i / DrawView.GRID_SIZE, i % DrawView.GRID_SIZE);
+        }
+        assertArrayEquals(canvas.cells, restored);
+    }
+
+    private static void write(File file, byte[] bytes, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.CanvasAckMessage;
+import com.google.example.eightbitartist.messages.ClearMessage;
+import com.google.example.eightbitartist.messages.EPointMessage;
+import com.google.example.eightbitartist.messages.GuessMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.MessageAdapter;
+import com.google.example.eightbitartist.messages.TurnMessage;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Which clients of an 8-player party the host relays each route and topic to, with the
+ * subscriptions MessageRouter gives each role: a message reaches its consumers and no one else.
+ */
+public class MessageRouterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] CLIENTS =
+            {"alice", "bob", "carol", "dave", "erin", "frank", "grace"};
+
+    /**
+     * A message for the artist only. No message of the game uses the route yet.
+     */
+    public static class ArtistNote extends Message {
+        @Override
+        public int getRoute() {
+            return ROUTE_ARTIST;
+        }
+    }
+
+    /**
+     * A message for the subscribers of the guesses.
+     */
+    public static class GuessNote extends Message {
+        @Override
+        public int getRoute() {
+            return ROUTE_SUBSCRIBERS;
+        }
+
+        @Override
+        public int getTopic() {
+            return TOPIC_GUESSES;
+        }
+    }
+
+    private final Gson mMapper = new GsonBuilder()
+            .registerTypeAdapter(Message.class, new MessageAdapter())
+            .create();
+
+    private ManualScheduler mScheduler;
+    private LoopbackTransport mTransport;
+    private GameEngine mGame;
+    private PartyHost mHost;
+
+    // The clients that were sent a message of the type under test
+    private Class<? extends Message> mWatched;
+    private Set<String> mReceivers = new TreeSet<>();
+
+    /**
+     * Start a party of the host and the seven clients, and pass the turn on until only clients
+     * draw, with the subscriptions of the turn set.
+     */
+    private void startParty(int teamSize) throws IOException {
+        WordDictionary dictionary = WordMatcherTest.compile("party",
+                new String[]{"apple", "banana", "cherry", "grape", "lemon", "mango"});
+        mScheduler = new ManualScheduler(1000);
+        mTransport = new LoopbackTransport();
+        mGame = new GameEngine(dictionary, new Random(1), new QuietListener() {
+            @Override
+            public void onSendMessage(Message message) {
+                if (message.isTurnScoped()) {
+                    message.setTurn(mGame.getTurnNumber());
+                }
+                mHost.sendToClients(message, mMapper.toJson(message, Message.class));
+            }
+        });
+        mHost = new PartyHost(mGame, new SharedCanvas(), mMapper, mScheduler);
+        mHost.start(mTransport, "host-id", teamSize,
+                new short[DrawView.GRID_SIZE * DrawView.GRID_SIZE]);
+        mTransport.setParticipantTable(mGame.getParticipantTable());
+
+        for (String endpointId : CLIENTS) {
+            mTransport.connect(endpointId, new LoopbackTransport.Receiver() {
+                @Override
+                public void onMessage(String endpointId, String message) {
+                    if (mWatched != null
+                            && mWatched.isInstance(mMapper.fromJson(message, Message.class))) {
+                        mReceivers.add(endpointId);
+                    }
+                }
+            });
+            mHost.onClientConnected(endpointId, endpointId, false);
+        }
+        mScheduler.advanceTo(2000);
+        while (mGame.isArtist(mGame.getMySessionId())) {
+            mGame.endTurn(mScheduler.now());
+        }
+        mTransport.drain();
+        MessageRouter.updateSubscriptions(mGame);
+        assertEquals(teamSize, getArtists().size());
+    }
+
+    private Set<String> getArtists() {
+        Set<String> artists = new TreeSet<>();
+        for (String endpointId : CLIENTS) {
+            if (mGame.isArtist(get(endpointId).getSessionId())) {
+                artists.add(endpointId);
+            }
+        }
+        return artists;
+    }
+
+    private Set<String> getGuessers() {
+        Set<String> guessers = new TreeSet<>(Arrays.asList(CLIENTS));
+        guessers.removeAll(getArtists());
+        return guessers;
+    }
+
+    private DrawingParticipant get(String endpointId) {
+        return mGame.getParticipantTable().getByMessagingId(endpointId);
+    }
+
+    /**
+     * Send a message from a client through the host, or from the host itself if the sender is
+     * null, and check which clients get it.
+     */
+    private void assertReceivers(Set<String> expected, String sender, Message msg) {
+        mWatched = msg.getClass();
+        mReceivers.clear();
+        if (msg.isTurnScoped()) {
+            msg.setTurn(mGame.getTurnNumber());
+        }
+        String message = mMapper.toJson(msg, Message.class);
+        if (sender == null) {
+            mHost.sendToClients(msg, message);
+        } else {
+            mHost.onMessageReceived(sender, message.getBytes(UTF_8));
+        }
+        mTransport.drain();
+        mWatched = null;
+
+        assertEquals(msg.getClass().getSimpleName(), expected, mReceivers);
+    }
+
+    private static Set<String> none() {
+        return new HashSet<>();
+    }
+
+    @Test
+    public void soloTurnReachesOnlyConsumers() throws IOException {
+        startParty(1);
+        String artist = getArtists().iterator().next();
+        String guesser = getGuessers().iterator().next();
+        Set<String> everyone = new TreeSet<>(Arrays.asList(CLIENTS));
+
+        // TOPIC_DRAWING goes to the guessers, not back to the artist
+        assertReceivers(getGuessers(), artist, new EPointMessage(new EPoint(1, 2), 3));
+        assertReceivers(getGuessers(), artist, new ClearMessage());
+
+        // ROUTE_HOST stays on the host
+        mScheduler.advanceTo(5000);
+        assertReceivers(none(), guesser, new GuessMessage(mGame.getWordIndex(),
+                GameEngine.MAX_GUESS_POINTS, get(guesser).getSessionId(), mScheduler.now()));
+        assertReceivers(none(), guesser, new CanvasAckMessage(1));
+
+        // ROUTE_ARTIST and TOPIC_GUESSES go to the artist only
+        assertReceivers(new TreeSet<>(Arrays.asList(artist)), null, new ArtistNote());
+        assertReceivers(new TreeSet<>(Arrays.asList(artist)), null, new GuessNote());
+
+        // ROUTE_ALL goes to everyone
+        TurnMessage turn = mGame.createTurnMessage();
+        assertReceivers(everyone, null, turn);
+    }
+
+    @Test
+    public void teamTurnReachesOnlyConsumers() throws IOException {
+        startParty(2);
+        Set<String> artists = getArtists();
+        String artist = artists.iterator().next();
+        String guesser = getGuessers().iterator().next();
+        assertFalse(getGuessers().isEmpty());
+
+        // Team drawing goes to the guessers and back to every artist of the team, its sender
+        // included, numbered by the host
+        Set<String> drawing = new TreeSet<>(getGuessers());
+        drawing.addAll(artists);
+        EPointMessage point = new EPointMessage(new EPoint(1, 2), 3);
+        point.setArtist(get(artist).getSessionId());
+        assertReceivers(drawing, artist, point);
+
+        // The guesses go to the artists only, and stay on the host when sent to it
+        assertReceivers(artists, null, new GuessNote());
+        mScheduler.advanceTo(5000);
+        assertReceivers(none(), guesser, new GuessMessage(mGame.getWordIndex(),
+                GameEngine.MAX_GUESS_POINTS, get(guesser).getSessionId(), mScheduler.now()));
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.GuessMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.MessageAdapter;
+import com.google.example.eightbitartist.messages.RosterMessage;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ParticipantTable lookups, and a microbenchmark of joining, leaving and looking up 100
+ * participants against the list that was scanned for every lookup before the table existed.
+ * Also the size of the messages that name participants by session ID rather than by endpoint
+ * ID, and the cost of looking a sender up either way.
+ */
+public class ParticipantTableTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int PARTICIPANTS = 100;
+    private static final int ROUNDS = 2000;
+    private static final int PARTY_SIZE = 6;
+    private static final int LOOKUPS = 1000000;
+
+    // The IDs looked up, built once so the benchmark does not time string building
+    private static final String[] ENDPOINTS = new String[PARTICIPANTS];
+    private static final String[] PLAYERS = new String[PARTICIPANTS];
+
+    static {
+        for (int i = 0; i < PARTICIPANTS; i++) {
+            ENDPOINTS[i] = "endpoint-" + i;
+            PLAYERS[i] = "player-" + i;
+        }
+    }
+
+    /**
+     * The old registry: one list of connected participants and one of departed participants,
+     * both scanned from the start.
+     */
+    private static class ParticipantList {
+        final List<DrawingParticipant> connected = new ArrayList<>();
+        final List<DrawingParticipant> departed = new ArrayList<>();
+
+        void put(DrawingParticipant participant) {
+            connected.add(participant);
+        }
+
+        DrawingParticipant remove(String messagingId) {
+            for (int i = 0; i < connected.size(); i++) {
+                if (connected.get(i).getMessagingId().equals(messagingId)) {
+                    DrawingParticipant participant = connected.remove(i);
+                    departed.add(participant);
+                    return participant;
+                }
+            }
+            return null;
+        }
+
+        DrawingParticipant findDeparted(String persistentId) {
+            for (int i = 0; i < departed.size(); i++) {
+                if (departed.get(i).getPersistentId().equals(persistentId)) {
+                    return departed.remove(i);
+                }
+            }
+            return null;
+        }
+
+        DrawingParticipant getByMessagingId(String messagingId) {
+            for (DrawingParticipant participant : connected) {
+                if (participant.getMessagingId().equals(messagingId)) {
+                    return participant;
+                }
+            }
+            return null;
+        }
+
+        DrawingParticipant getByPersistentId(String persistentId) {
+            for (DrawingParticipant participant : connected) {
+                if (participant.getPersistentId().equals(persistentId)) {
+                    return participant;
+                }
+            }
+            return null;
+        }
+
+        DrawingParticipant get(int sessionId) {
+            for (DrawingParticipant participant : connected) {
+                if (participant.getSessionId() == sessionId) {
+                    return participant;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A party of PARTY_SIZE with Nearby-style endpoint IDs and device names, and some points.
+     */
+    private static DrawingParticipant[] makeParty() {
+        Random random = new Random(6);
+        DrawingParticipant[] party = new DrawingParticipant[PARTY_SIZE];
+        for (int i = 0; i < PARTY_SIZE; i++) {
+            String endpointId = Long.toHexString(random.nextLong() | Long.MIN_VALUE);
+            party[i] = new DrawingParticipant(endpointId, "Pixel 4 of Player" + (i + 1));
+            party[i].setSessionId(i);
+            party[i].setScore(random.nextInt(500));
+        }
+        return party;
+    }
+
+    private static int size(JsonObject json) {
+        return json.toString().getBytes(UTF_8).length;
+    }
+
+    private static DrawingParticipant newParticipant(int i) {
+        DrawingParticipant participant = new DrawingParticipant("endpoint-" + i, "player-" + i);
+        participant.setSessionId(i);
+        return participant;
+    }
+
+    @Test
+    public void findsReturningPlayers() {
+        ParticipantTable table = new ParticipantTable();
+        for (int i = 0; i < PARTICIPANTS; i++) {
+            table.put(newParticipant(table.nextSessionId()));
+        }
+        assertEquals(PARTICIPANTS, table.size());
+        assertEquals(42, table.findSessionId("endpoint-42"));
+        assertSame(table.get(42), table.getByPersistentId("player-42"));
+
+        DrawingParticipant left = table.remove(42, 0);
+        assertNotNull(left);
+        assertNull(table.get(42));
+        assertEquals(ParticipantTable.NO_SESSION, table.findSessionId("endpoint-42"));
+        assertEquals(43, table.getByTurnIndex(42).getSessionId());
+
+        // Back with a new endpoint, in its old slot
+        DrawingParticipant departed = table.findDeparted("player-42", 1000);
+        assertSame(left, departed);
+        departed.setMessagingId("endpoint-42b");
+        table.put(departed);
+        assertEquals(42, table.findSessionId("endpoint-42b"));
+        assertEquals(0, table.getDepartedCount());
+
+        // Departures expire
+        table.remove(7, 0);
+        assertNull(table.findDeparted("player-7", ParticipantTable.DEFAULT_DEPARTED_TTL_MS + 1));
+    }
+
+    @Test
+    public void forgottenSlotsAreReused() {
+        ParticipantTable table = new ParticipantTable();
+        table.setDepartedLimits(2, ParticipantTable.DEFAULT_DEPARTED_TTL_MS);
+        for (int i = 0; i < PARTY_SIZE; i++) {
+            table.put(newParticipant(table.nextSessionId()));
+        }
+
+        // Players keep leaving and new ones joining, with and without persistent IDs
+        Random random = new Random(38);
+        for (int i = PARTY_SIZE; i < PARTICIPANTS * 10; i++) {
+            DrawingParticipant leaver = table.getByTurnIndex(random.nextInt(table.size()));
+            table.remove(leaver.getSessionId(), i);
+            DrawingParticipant joiner = new DrawingParticipant("endpoint-" + i, "Player" + i);
+            joiner.setSessionId(table.nextSessionId());
+            if (i % 2 == 0) {
+                joiner.setPersistentId("player-" + i);
+            }
+            table.put(joiner);
+        }
+
+        // Session IDs, and the scores sent with every turn, only cover the party and the
+        // departures kept
+        assertEquals(PARTY_SIZE, table.size());
+        assertTrue(table.getCapacity() <= PARTY_SIZE + 2 + 1);
+        assertEquals(PARTY_SIZE * 2, table.getScores().length);
+
+        // A departure still kept keeps its session ID
+        DrawingParticipant leaver = table.getByTurnIndex(0);
+        leaver.setPersistentId("leaver");
+        table.put(leaver);
+        table.remove(leaver.getSessionId(), 0);
+        int free = table.nextSessionId();
+        assertTrue(free != leaver.getSessionId());
+        assertSame(leaver, table.findDeparted("leaver", 0));
+    }
+
+    @Test
+    public void benchmarkJoinLeaveLookup() {
+        long[] tableNs = new long[3];
+        long[] listNs = new long[3];
+        long checksum = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            // Only the last half of the rounds count, after the JIT has warmed up
+            boolean measure = round >= ROUNDS / 2;
+            checksum += runTable(measure ? tableNs : new long[3]);
+            checksum -= runList(measure ? listNs : new long[3]);
+        }
+        assertEquals(0, checksum);
+
+        int measured = ROUNDS - ROUNDS / 2;
+        String[] names = {"join", "leave + rejoin", "3 lookups"};
+        for (int i = 0; i < names.length; i++) {
+            System.out.println(String.format(Locale.US,
+                    "%d participants, %s: table %d ns, list %d ns per participant",
+                    PARTICIPANTS, names[i], tableNs[i] / measured / PARTICIPANTS,
+                    listNs[i] / measured / PARTICIPANTS));
+        }
+
+        // Lookups are what the host does for every message it relays
+        assertTrue(tableNs[2] * 4 < listNs[2]);
+    }
+
+    /**
+     * Get the participant that leaves j-th, spread over the list rather than always the one at
+     * its start.
+     */
+    private static int leaver(int j) {
+        return j * 37 % PARTICIPANTS;
+    }
+
+    /**
+     * Join, leave and rejoin, and look up every participant once each way, adding the time of
+     * each phase to elapsedNs.
+     *
+     * @return a sum of the session IDs found, to compare with the list.
+     */
+    private static long runTable(long[] elapsedNs) {
+        ParticipantTable table = new ParticipantTable();
+        DrawingParticipant[] participants = new DrawingParticipant[PARTICIPANTS];
+        for (int i = 0; i < PARTICIPANTS; i++) {
+            participants[i] = newParticipant(i);
+        }
+
+        long start = System.nanoTime();
+        for (DrawingParticipant participant : participants) {
+            table.put(participant);
+        }
+        long joined = System.nanoTime();
+        for (int j = 0; j < PARTICIPANTS; j++) {
+            int i = leaver(j);
+            table.remove(i, 0);
+            table.put(table.findDeparted(PLAYERS[i], 0));
+        }
+        long rejoined = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < PARTICIPANTS; i++) {
+            sum += table.findSessionId(ENDPOINTS[i]);
+            sum += table.getByPersistentId(PLAYERS[i]).getSessionId();
+            sum += table.get(i).getSessionId();
+        }
+        long looked = System.nanoTime();
+
+        elapsedNs[0] += joined - start;
+        elapsedNs[1] += rejoined - joined;
+        elapsedNs[2] += looked - rejoined;
+        return sum;
+    }
+
+    private static long runList(long[] elapsedNs) {
+        ParticipantList list = new ParticipantList();
+        DrawingParticipant[] participants = new DrawingParticipant[PARTICIPANTS];
+        for (int i = 0; i < PARTICIPANTS; i++) {
+            participants[i] = newParticipant(i);
+        }
+
+        long start = System.nanoTime();
+        for (DrawingParticipant participant : participants) {
+            list.put(participant);
+        }
+        long joined = System.nanoTime();
+        for (int j = 0; j < PARTICIPANTS; j++) {
+            int i = leaver(j);
+            list.remove(ENDPOINTS[i]);
+            list.put(list.findDeparted(PLAYERS[i]));
+        }
+        long rejoined = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < PARTICIPANTS; i++) {
+            sum += list.getByMessagingId(ENDPOINTS[i]).getSessionId();
+            sum += list.getByPersistentId(PLAYERS[i]).getSessionId();
+            sum += list.get(i).getSessionId();
+        }
+        long looked = System.nanoTime();
+
+        elapsedNs[0] += joined - start;
+        elapsedNs[1] += rejoined - joined;
+        elapsedNs[2] += looked - rejoined;
+        return sum;
+    }
+
+    @Test
+    public void sessionIdsShrinkMessages() {
+        Gson mapper = new GsonBuilder()
+                .registerTypeAdapter(Message.class, new MessageAdapter())
+                .create();
+        DrawingParticipant[] party = makeParty();
+        DrawingParticipant guesser = party[3];
+
+        // A guess names its guesser, which used to be by endpoint ID
+        JsonObject guess = mapper.toJsonTree(new GuessMessage(4, 280, guesser.getSessionId(),
+                1234567L), Message.class).getAsJsonObject();
+        int guessBytes = size(guess);
+        guess.getAsJsonObject("_INSTANCE").addProperty("guesserId", guesser.getMessagingId());
+        int oldGuessBytes = size(guess);
+
+        // A leave carries the session ID, it used to carry the whole participant
+        int leaveBytes = size(mapper.toJsonTree(new RosterMessage(new DrawingParticipant[0],
+                new int[]{guesser.getSessionId()}, false), Message.class).getAsJsonObject());
+        JsonObject oldLeave = new JsonObject();
+        oldLeave.addProperty("_classname",
+                "com.google.example.eightbitartist.messages.ParticipantMessage");
+        JsonObject instance = new JsonObject();
+        instance.add("drawingParticipant", mapper.toJsonTree(guesser));
+        instance.addProperty("isJoining", false);
+        oldLeave.add("_INSTANCE", instance);
+        int oldLeaveBytes = size(oldLeave);
+
+        // TurnMessage scores are keyed by session ID, they used to be keyed by endpoint ID
+        ParticipantTable table = new ParticipantTable();
+        HashMap<String, Integer> oldScores = new HashMap<>();
+        for (DrawingParticipant participant : party) {
+            table.put(participant);
+            oldScores.put(participant.getMessagingId(), participant.getScore());
+        }
+        int scoresBytes = mapper.toJson(table.getScores()).getBytes(UTF_8).length;
+        int oldScoresBytes = mapper.toJson(oldScores).getBytes(UTF_8).length;
+
+        System.out.println(String.format(Locale.US,
+                "%d players: GuessMessage %d -> %d bytes, leave %d -> %d bytes, "
+                        + "TurnMessage scores %d -> %d bytes",
+                PARTY_SIZE, oldGuessBytes, guessBytes, oldLeaveBytes, leaveBytes,
+                oldScoresBytes, scoresBytes));
+        assertTrue(guessBytes < oldGuessBytes);
+        assertTrue(leaveBytes * 3 / 2 < oldLeaveBytes);
+        assertTrue(scoresBytes * 3 < oldScoresBytes);
+    }
+
+    @Test
+    public void benchmarkSenderLookup() {
+        DrawingParticipant[] party = makeParty();
+        ParticipantTable table = new ParticipantTable();
+        HashMap<String, DrawingParticipant> byEndpoint = new HashMap<>();
+        byte[][] endpointIds = new byte[PARTY_SIZE][];
+        for (DrawingParticipant participant : party) {
+            table.put(participant);
+            byEndpoint.put(participant.getMessagingId(), participant);
+            endpointIds[participant.getSessionId()] =
+                    participant.getMessagingId().getBytes(UTF_8);
+        }
+
+        // The endpoint ID of every message is decoded afresh, so the map hashes a new String
+        // each time, while a session ID is an index. Warm up, then time both.
+        long checksum = 0;
+        long tableNs = 0;
+        long mapNs = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                checksum += table.get(i % PARTY_SIZE).getScore();
+            }
+            tableNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < LOOKUPS; i++) {
+                String endpointId = new String(endpointIds[i % PARTY_SIZE], UTF_8);
+                checksum -= byEndpoint.get(endpointId).getScore();
+            }
+            mapNs = System.nanoTime() - start;
+        }
+        assertEquals(0, checksum);
+
+        System.out.println(String.format(Locale.US,
+                "sender lookup: session ID %.1f ns, decoded endpoint ID %.1f ns",
+                (double) tableNs / LOOKUPS, (double) mapNs / LOOKUPS));
+        assertTrue(tableNs * 2 < mapNs);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.EPointMessage;
+import com.google.example.eightbitartist.messages.GuessMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.MessageAdapter;
+import com.google.example.eightbitartist.messages.RosterMessage;
+import com.google.example.eightbitartist.messages.TurnMessage;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What a PartyHost accepts from its clients, over a loopback transport: a client may only act
+ * for itself. Also how many roster messages a burst of joins costs.
+ */
+public class PartyHostTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] CLIENTS = {"alice", "bob", "carol"};
+
+    // Clients joining one after the other, JOIN_INTERVAL_MS apart
+    private static final int JOINS = 10;
+    private static final long JOIN_INTERVAL_MS = 5;
+
+    private final Gson mMapper = new GsonBuilder()
+            .registerTypeAdapter(Message.class, new MessageAdapter())
+            .create();
+
+    private ManualScheduler mScheduler;
+    private LoopbackTransport mTransport;
+    private GameEngine mGame;
+    private PartyHost mHost;
+
+    // What each client was sent, by endpoint ID
+    private HashMap<String, List<Message>> mReceived = new HashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        WordDictionary dictionary = WordMatcherTest.compile("party",
+                new String[]{"apple", "banana", "cherry", "grape", "lemon", "mango"});
+        mScheduler = new ManualScheduler(1000);
+        mTransport = new LoopbackTransport();
+        mGame = new GameEngine(dictionary, new Random(1), new QuietListener() {
+            @Override
+            public void onSendMessage(Message message) {
+                mHost.sendToClients(message, mMapper.toJson(message, Message.class));
+            }
+        });
+        mHost = new PartyHost(mGame, new SharedCanvas(), mMapper, mScheduler);
+        mHost.start(mTransport, "host-id", 1,
+                new short[DrawView.GRID_SIZE * DrawView.GRID_SIZE]);
+        mTransport.setParticipantTable(mGame.getParticipantTable());
+
+        for (String endpointId : CLIENTS) {
+            mReceived.put(endpointId, new ArrayList<Message>());
+            mTransport.connect(endpointId, new LoopbackTransport.Receiver() {
+                @Override
+                public void onMessage(String endpointId, String message) {
+                    mReceived.get(endpointId).add(mMapper.fromJson(message, Message.class));
+                }
+            });
+            mHost.onClientConnected(endpointId, endpointId, false);
+        }
+        mTransport.drain();
+        for (List<Message> received : mReceived.values()) {
+            received.clear();
+        }
+    }
+
+    private void send(String endpointId, Message msg) {
+        if (msg.isTurnScoped()) {
+            msg.setTurn(mGame.getTurnNumber());
+        }
+        mHost.onMessageReceived(endpointId, mMapper.toJson(msg, Message.class).getBytes(UTF_8));
+        mTransport.drain();
+    }
+
+    private DrawingParticipant get(String endpointId) {
+        return mGame.getParticipantTable().getByMessagingId(endpointId);
+    }
+
+    /**
+     * @return the messages of a type a client was sent since the last call, oldest first.
+     */
+    private <T extends Message> List<T> takeReceived(String endpointId, Class<T> type) {
+        List<T> messages = new ArrayList<>();
+        for (Message message : mReceived.get(endpointId)) {
+            if (type.isInstance(message)) {
+                messages.add(type.cast(message));
+            }
+        }
+        mReceived.get(endpointId).clear();
+        return messages;
+    }
+
+    private TurnMessage createNextTurn() {
+        TurnMessage msg = mGame.createTurnMessage();
+        msg.setTurnNumber(mGame.getTurnNumber() + 1);
+        return msg;
+    }
+
+    /**
+     * @return the clients that guess in the current turn.
+     */
+    private List<DrawingParticipant> getGuessers() {
+        List<DrawingParticipant> guessers = new ArrayList<>();
+        for (String endpointId : CLIENTS) {
+            if (!mGame.isArtist(get(endpointId).getSessionId())) {
+                guessers.add(get(endpointId));
+            }
+        }
+        return guessers;
+    }
+
+    @Test
+    public void spoofedGuessIsDropped() {
+        List<DrawingParticipant> guessers = getGuessers();
+        DrawingParticipant spoofer = guessers.get(0);
+        DrawingParticipant victim = guessers.get(1);
+
+        // A wrong guess in the victim's name would use up its one guess, a right one would
+        // score for it
+        mScheduler.advanceTo(5000);
+        int wrong = (mGame.getWordIndex() + 1) % GameEngine.WORDS_PER_TURN;
+        send(spoofer.getMessagingId(), new GuessMessage(wrong, GameEngine.MAX_GUESS_POINTS,
+                victim.getSessionId(), mScheduler.now()));
+        send(spoofer.getMessagingId(), new GuessMessage(mGame.getWordIndex(),
+                GameEngine.MAX_GUESS_POINTS, victim.getSessionId(), mScheduler.now()));
+        assertEquals(0, victim.getScore());
+        assertEquals(0, spoofer.getScore());
+        assertEquals(0, mGame.getRejectedGuessCount());
+
+        // The victim still has its guess, and the spoofer its own
+        send(victim.getMessagingId(), new GuessMessage(mGame.getWordIndex(),
+                GameEngine.MAX_GUESS_POINTS, victim.getSessionId(), mScheduler.now()));
+        send(spoofer.getMessagingId(), new GuessMessage(mGame.getWordIndex(),
+                GameEngine.MAX_GUESS_POINTS, spoofer.getSessionId(), mScheduler.now()));
+        assertEquals(GameEngine.getGuessPoints(4000), victim.getScore());
+        assertEquals(GameEngine.getGuessPoints(4000), spoofer.getScore());
+    }
+
+    @Test
+    public void onlyTheArtistPassesTheTurnOn() {
+        // Hand the turn to a client
+        while (mGame.isMyTurn()) {
+            mGame.endTurn(mScheduler.now());
+        }
+        mTransport.drain();
+        for (String endpointId : CLIENTS) {
+            takeReceived(endpointId, TurnMessage.class);
+        }
+        int turn = mGame.getTurnNumber();
+        DrawingParticipant artist = mGame.getArtist();
+        DrawingParticipant guesser = getGuessers().get(0);
+        mScheduler.advanceTo(30000);
+
+        send(guesser.getMessagingId(), createNextTurn());
+        assertEquals(turn, mGame.getTurnNumber());
+        for (String endpointId : CLIENTS) {
+            assertEquals(0, takeReceived(endpointId, TurnMessage.class).size());
+        }
+
+        send(artist.getMessagingId(), createNextTurn());
+        assertEquals(turn + 1, mGame.getTurnNumber());
+        for (String endpointId : CLIENTS) {
+            if (!endpointId.equals(artist.getMessagingId())) {
+                List<TurnMessage> turns = takeReceived(endpointId, TurnMessage.class);
+                assertEquals(1, turns.size());
+                assertEquals(mScheduler.now(), turns.get(0).getStartTime());
+            }
+        }
+    }
+
+    @Test
+    public void teamDrawingIsCreditedToItsSender() {
+        DrawingParticipant sender = get(CLIENTS[0]);
+        DrawingParticipant other = get(CLIENTS[1]);
+
+        // A change claiming to come from another artist of the team
+        EPointMessage msg = new EPointMessage(new EPoint(3, 4), 2);
+        msg.setArtist(other.getSessionId());
+        send(sender.getMessagingId(), msg);
+
+        for (String endpointId : CLIENTS) {
+            List<EPointMessage> points = takeReceived(endpointId, EPointMessage.class);
+            assertEquals(endpointId, 1, points.size());
+            assertEquals(sender.getSessionId(), points.get(0).getArtist());
+            assertTrue(points.get(0).getSequence() > 0);
+        }
+    }
+
+    @Test
+    public void quickJoinsShareOneRosterDelta() throws IOException {
+        WordDictionary dictionary = WordMatcherTest.compile("joins",
+                new String[]{"apple", "banana", "cherry"});
+        ManualScheduler scheduler = new ManualScheduler(1000);
+        LoopbackTransport transport = new LoopbackTransport();
+        final PartyHost[] host = new PartyHost[1];
+        GameEngine game = new GameEngine(dictionary, new Random(1), new QuietListener() {
+            @Override
+            public void onSendMessage(Message message) {
+                host[0].sendToClients(message, mMapper.toJson(message, Message.class));
+            }
+        });
+        host[0] = new PartyHost(game, new SharedCanvas(), mMapper, scheduler);
+        host[0].start(transport, "host-id", 1, new short[DrawView.GRID_SIZE * DrawView.GRID_SIZE]);
+        transport.setParticipantTable(game.getParticipantTable());
+
+        // Each client is a GameEngine fed what it is sent, as on a real device
+        final HashMap<String, GameEngine> clients = new HashMap<>();
+        final int[] rosterSends = new int[1];
+        for (int i = 0; i < JOINS; i++) {
+            String endpointId = "client-" + i;
+            clients.put(endpointId, new GameEngine(dictionary, new Random(1), new QuietListener()));
+            transport.connect(endpointId, new LoopbackTransport.Receiver() {
+                @Override
+                public void onMessage(String endpointId, String message) {
+                    Message msg = mMapper.fromJson(message, Message.class);
+                    if (msg instanceof RosterMessage) {
+                        rosterSends[0]++;
+                    }
+                    clients.get(endpointId).onMessageReceived(msg, 0);
+                }
+            });
+            host[0].onClientConnected(endpointId, endpointId, false);
+            transport.drain();
+            scheduler.advanceTo(scheduler.now() + JOIN_INTERVAL_MS);
+        }
+        scheduler.advanceTo(scheduler.now() + 1000);
+        transport.drain();
+
+        // A snapshot for each newcomer, the first join flushed by the TurnMessage that starts
+        // the match, and one delta for everyone else. Sending each participant to each client
+        // on every join took 440.
+        System.out.println(String.format(Locale.US, "%d quick joins: %d roster sends",
+                JOINS, rosterSends[0]));
+        assertEquals(JOINS + 1 + JOINS, rosterSends[0]);
+        for (GameEngine client : clients.values()) {
+            assertEquals(JOINS + 1, client.getParticipantTable().size());
+        }
+    }
+}
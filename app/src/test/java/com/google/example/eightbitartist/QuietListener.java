@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.Message;
+
+/**
+ * A GameEngine.Listener that ignores everything, for tests to override what they need.
+ */
+class QuietListener implements GameEngine.Listener {
+
+    @Override
+    public void onSendMessage(Message message) {
+    }
+
+    @Override
+    public void onMessage(Message message) {
+    }
+
+    @Override
+    public void onTurnStarted() {
+    }
+
+    @Override
+    public void onRosterChanged() {
+    }
+
+    @Override
+    public void onParticipantLeft(DrawingParticipant participant) {
+    }
+
+    @Override
+    public void onGuessResult(boolean correct, String guessedWord, String correctWord) {
+    }
+
+    @Override
+    public void onGuessResultsPending() {
+    }
+
+    @Override
+    public void onGuessJudged(int guesserId, int turn, int points, long elapsedMs) {
+    }
+
+    @Override
+    public void onAllGuessed() {
+    }
+
+    @Override
+    public WordDictionary onLoadDictionary(String pack) {
+        return null;
+    }
+
+    @Override
+    public void onDictionaryMismatch() {
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.ClearMessage;
+import com.google.example.eightbitartist.messages.DrawingMessage;
+import com.google.example.eightbitartist.messages.EPointMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.MessageAdapter;
+import com.google.example.eightbitartist.messages.StrokeMessage;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Four artists drawing at once in a team turn of a party: whatever order the host and the
+ * clients see the changes in, every device ends up with the same canvas, the one the host's
+ * sequence numbers describe. Without the numbers and the echo of each change to its artist, the
+ * same traffic leaves the artists with different drawings.
+ */
+public class SharedCanvasTest {
+
+    private static final int NUM_CELLS = DrawView.GRID_SIZE * DrawView.GRID_SIZE;
+    private static final int ARTISTS = 4;
+    private static final int GUESSERS = 2;
+    private static final int CHANGES = 1000;
+
+    private final Gson mMapper = new GsonBuilder()
+            .registerTypeAdapter(Message.class, new MessageAdapter())
+            .create();
+
+    /**
+     * One device of the party, with what it shows on screen. Device 0 is the host.
+     */
+    private static class Device {
+        final int sessionId;
+        final SharedCanvas canvas = new SharedCanvas();
+        final short[] screen = new short[NUM_CELLS];
+
+        // Messages from the host not received yet, and for a client, messages on their way
+        // to the host
+        final ArrayDeque<String> inbox = new ArrayDeque<>();
+        final ArrayDeque<String> outbox = new ArrayDeque<>();
+
+        Device(int sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        /**
+         * Paint a change as is, as an artist does with its own drawing and as devices do with
+         * changes outside team turns.
+         */
+        void paint(DrawingMessage msg) {
+            if (msg instanceof EPointMessage) {
+                EPoint point = ((EPointMessage) msg).getPoint();
+                screen[point.x * DrawView.GRID_SIZE + point.y] =
+                        (short) ((EPointMessage) msg).getColor();
+            } else if (msg instanceof StrokeMessage) {
+                final StrokeMessage stroke = (StrokeMessage) msg;
+                VectorStroke.rasterize(stroke.getPoints(), DrawView.GRID_SIZE,
+                        new VectorStroke.CellWriter() {
+                            @Override
+                            public void setCell(int gridX, int gridY) {
+                                screen[gridX * DrawView.GRID_SIZE + gridY] =
+                                        (short) stroke.getColor();
+                            }
+                        });
+            } else if (msg instanceof ClearMessage) {
+                Arrays.fill(screen, (short) 0);
+            }
+        }
+
+        /**
+         * Apply a change numbered by the host, as DrawingActivity.applySequencedStroke does:
+         * only the cells it wins are painted, and a clear repaints the whole canvas.
+         */
+        void applySequenced(DrawingMessage msg) {
+            final long sequence = msg.getSequence();
+            if (msg instanceof EPointMessage) {
+                EPoint point = ((EPointMessage) msg).getPoint();
+                setCell(point.x, point.y, (short) ((EPointMessage) msg).getColor(), sequence);
+            } else if (msg instanceof StrokeMessage) {
+                final StrokeMessage stroke = (StrokeMessage) msg;
+                VectorStroke.rasterize(stroke.getPoints(), DrawView.GRID_SIZE,
+                        new VectorStroke.CellWriter() {
+                            @Override
+                            public void setCell(int gridX, int gridY) {
+                                Device.this.setCell(gridX, gridY, (short) stroke.getColor(),
+                                        sequence);
+                            }
+                        });
+            } else if (msg instanceof ClearMessage) {
+                canvas.clear(sequence);
+                for (int x = 0; x < DrawView.GRID_SIZE; x++) {
+                    for (int y = 0; y < DrawView.GRID_SIZE; y++) {
+                        screen[x * DrawView.GRID_SIZE + y] = canvas.getCell(x, y);
+                    }
+                }
+            }
+        }
+
+        void setCell(int gridX, int gridY, short colorIndex, long sequence) {
+            if (canvas.setCell(gridX, gridY, colorIndex, sequence)) {
+                screen[gridX * DrawView.GRID_SIZE + gridY] = colorIndex;
+            }
+        }
+
+        short[] getCanvasCells() {
+            short[] cells = new short[NUM_CELLS];
+            for (int x = 0; x < DrawView.GRID_SIZE; x++) {
+                for (int y = 0; y < DrawView.GRID_SIZE; y++) {
+                    cells[x * DrawView.GRID_SIZE + y] = canvas.getCell(x, y);
+                }
+            }
+            return cells;
+        }
+    }
+
+    /**
+     * A random change: mostly single cells and strokes crossing the grid, now and then a clear.
+     */
+    private static DrawingMessage makeChange(Random random) {
+        int color = random.nextInt(DrawView.COLOR_MAP.length);
+        int kind = random.nextInt(20);
+        if (kind == 0) {
+            return new ClearMessage();
+        } else if (kind < 8) {
+            float[] points = new float[4 + 2 * random.nextInt(3)];
+            for (int i = 0; i < points.length; i++) {
+                points[i] = random.nextFloat() * (DrawView.GRID_SIZE - 0.01f);
+            }
+            return new StrokeMessage(color, VectorStroke.encode(points));
+        } else {
+            EPoint point = new EPoint(random.nextInt(DrawView.GRID_SIZE),
+                    random.nextInt(DrawView.GRID_SIZE));
+            return new EPointMessage(point, color);
+        }
+    }
+
+    private DrawingMessage parse(String json) {
+        return (DrawingMessage) mMapper.fromJson(json, Message.class);
+    }
+
+    /**
+     * Play a team turn. At each step an artist draws or one message moves along one link, in a
+     * random order, so that the artists' changes cross on their way through the host.
+     *
+     * @param sequenced true to number changes on the host and echo them to their artists, as
+     *                  team turns do, false to relay them in arrival order to the others.
+     * @return the devices once all messages are delivered.
+     */
+    private Device[] playTurn(long seed, boolean sequenced, List<String> hostLog) {
+        Random random = new Random(seed);
+        Device[] devices = new Device[ARTISTS + GUESSERS];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = new Device(i);
+        }
+        Device host = devices[0];
+
+        int drawn = 0;
+        while (true) {
+            List<ArrayDeque<String>> links = new ArrayList<>();
+            for (Device device : devices) {
+                if (!device.inbox.isEmpty()) {
+                    links.add(device.inbox);
+                }
+                if (!device.outbox.isEmpty()) {
+                    links.add(device.outbox);
+                }
+            }
+            if (drawn == CHANGES && links.isEmpty()) {
+                break;
+            }
+
+            int pick = random.nextInt(links.size() + ((drawn < CHANGES) ? 2 : 0));
+            if (pick >= links.size()) {
+                // An artist draws
+                Device artist = devices[random.nextInt(ARTISTS)];
+                DrawingMessage msg = makeChange(random);
+                msg.setArtist(artist.sessionId);
+                drawn++;
+                if (artist == host) {
+                    hostRelay(devices, msg, null, sequenced, hostLog);
+                } else {
+                    artist.paint(msg);
+                    artist.outbox.add(mMapper.toJson(msg, Message.class));
+                }
+                continue;
+            }
+
+            ArrayDeque<String> link = links.get(pick);
+            for (Device device : devices) {
+                if (link == device.outbox) {
+                    // The host gets a client's change
+                    hostRelay(devices, parse(link.poll()), device, sequenced, hostLog);
+                } else if (link == device.inbox) {
+                    // A client gets a change from the host
+                    DrawingMessage msg = parse(link.poll());
+                    if (sequenced) {
+                        device.applySequenced(msg);
+                    } else {
+                        device.paint(msg);
+                    }
+                }
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * Handle a change on the host, as PartyHost does: number it, apply it and relay it to every
+     * client, including its artist if the change is numbered.
+     */
+    private void hostRelay(Device[] devices, DrawingMessage msg, Device from, boolean sequenced,
+                           List<String> hostLog) {
+        Device host = devices[0];
+        if (sequenced) {
+            msg.setSequence(host.canvas.nextSequence());
+            host.applySequenced(msg);
+        } else {
+            host.paint(msg);
+        }
+
+        String json = mMapper.toJson(msg, Message.class);
+        hostLog.add(json);
+        for (int i = 1; i < devices.length; i++) {
+            if (sequenced || devices[i] != from) {
+                devices[i].inbox.add(json);
+            }
+        }
+    }
+
+    @Test
+    public void artistsConvergeOnHostOrder() {
+        for (long seed = 0; seed < 10; seed++) {
+            List<String> hostLog = new ArrayList<>();
+            Device[] devices = playTurn(seed, true, hostLog);
+
+            // The canvas is every change painted in the order the host numbered them
+            Device replay = new Device(-1);
+            for (String json : hostLog) {
+                replay.paint(parse(json));
+            }
+            for (Device device : devices) {
+                String where = "seed " + seed + ", device " + device.sessionId;
+                assertArrayEquals(where, replay.screen, device.screen);
+                assertArrayEquals(where, replay.screen, device.getCanvasCells());
+            }
+        }
+    }
+
+    @Test
+    public void artistsDivergeWithoutSequencing() {
+        int diverged = 0;
+        int seeds = 10;
+        for (long seed = 0; seed < seeds; seed++) {
+            Device[] devices = playTurn(seed, false, new ArrayList<String>());
+            for (int i = 1; i < ARTISTS; i++) {
+                if (!Arrays.equals(devices[0].screen, devices[i].screen)) {
+                    diverged++;
+                    break;
+                }
+            }
+
+            // Guessers only ever see the host's order, so they match it either way
+            for (int i = ARTISTS; i < devices.length; i++) {
+                assertArrayEquals(devices[0].screen, devices[i].screen);
+            }
+        }
+        System.out.println(String.format(Locale.US,
+                "%d artists, %d changes: artists diverged from the host in %d of %d turns "
+                        + "without sequencing", ARTISTS, CHANGES, diverged, seeds));
+        assertTrue(diverged > 0);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the Host's tick batches keep every message in order and stay within the
+ * transport's packet limit.
+ */
+public class TickAggregatorTest {
+
+    // Connections.MAX_RELIABLE_MESSAGE_LEN
+    private static final int MAX_PACKET_BYTES = 4096;
+
+    // An 8-player party: the host relays the artist's strokes to the other six clients. The
+    // host itself is the eighth player.
+    private static final int GUESSERS = 6;
+    private static final int STROKES_PER_SECOND = 60;
+    private static final long STREAM_MS = 10000;
+
+    private List<byte[]> mPackets = new ArrayList<>();
+    private TickAggregator mAggregator;
+
+    @Before
+    public void setUp() {
+        mAggregator = new TickAggregator(new TickAggregator.Transport() {
+            @Override
+            public void send(String endpointId, byte[] packet) {
+                mPackets.add(packet);
+            }
+        }, NearbyClient.DEFAULT_AGGREGATION_TICK_MS, MAX_PACKET_BYTES);
+    }
+
+    @Test
+    public void splitsLargeTicksAtThePacketLimit() {
+        // A flood of single cells, as FloodGuard lets through in one burst
+        List<byte[]> sent = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            sent.add(message(150, i));
+        }
+        // A canvas snapshot bigger than the rest put together
+        sent.add(message(3000, 100));
+        for (byte[] message : sent) {
+            assertTrue(mAggregator.send("client", message, 0));
+        }
+        mAggregator.flush("client", 20);
+
+        assertTrue(mPackets.size() > 1);
+        for (byte[] packet : mPackets) {
+            assertTrue("packet of " + packet.length + " bytes",
+                    packet.length <= MAX_PACKET_BYTES);
+        }
+        assertReceived(sent);
+        assertEquals(sent.size(), mAggregator.getMessagesSent());
+        assertFalse(mAggregator.hasPending());
+    }
+
+    @Test
+    public void sendsOversizedMessageOnItsOwn() {
+        List<byte[]> sent = new ArrayList<>();
+        sent.add(message(100, 0));
+        sent.add(message(MAX_PACKET_BYTES + 10, 1));
+        sent.add(message(100, 2));
+        for (byte[] message : sent) {
+            mAggregator.send("client", message, 0);
+        }
+        mAggregator.flushAll(20);
+
+        assertEquals(3, mPackets.size());
+        assertArrayEquals(sent.get(1), mPackets.get(1));
+        assertReceived(sent);
+    }
+
+    @Test
+    public void sendsSingleMessageAsItIs() {
+        byte[] message = message(200, 0);
+        mAggregator.send("client", message, 0);
+        mAggregator.flushAll(20);
+
+        assertEquals(1, mPackets.size());
+        assertFalse(TickAggregator.isBatch(mPackets.get(0)));
+        assertArrayEquals(message, mPackets.get(0));
+    }
+
+    @Test
+    public void sendsImmediatelyWithoutTick() {
+        mAggregator.setTickMs(0);
+        assertFalse(mAggregator.send("client", message(50, 0), 0));
+        assertEquals(1, mPackets.size());
+        assertFalse(mAggregator.hasPending());
+    }
+
+    @Test
+    public void strokeStreamIsBatchedWithinTheTick() {
+        long tick = NearbyClient.DEFAULT_AGGREGATION_TICK_MS;
+        relayStrokeStream();
+
+        // Each guesser gets at most one packet per tick, and no message waits longer than one
+        double maxSendsPerSecond = GUESSERS * 1000.0 / tick;
+        assertTrue(mAggregator.getSummary(), mAggregator.getSendsPerSecond() <= maxSendsPerSecond);
+        assertTrue(mAggregator.getSummary(),
+                mAggregator.getPacketsSent() < mAggregator.getMessagesSent() * 2 / 3);
+        assertTrue(mAggregator.getSummary(), mAggregator.getAverageDelayMs() > 0);
+        assertTrue(mAggregator.getSummary(), mAggregator.getAverageDelayMs() <= tick);
+        assertEquals(mPackets.size(), mAggregator.getPacketsSent());
+    }
+
+    @Test
+    public void strokeStreamIsSentAsItComesWithoutTick() {
+        mAggregator.setTickMs(0);
+        relayStrokeStream();
+
+        // One packet per message per guesser, at no added delay
+        assertEquals(mAggregator.getMessagesSent(), mAggregator.getPacketsSent());
+        assertTrue(mAggregator.getSummary(),
+                mAggregator.getSendsPerSecond() > GUESSERS * STROKES_PER_SECOND * 0.8);
+        assertEquals(0, mAggregator.getAverageDelayMs(), 0);
+    }
+
+    @Test
+    public void summaryIgnoresTheDefaultLocale() {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(Locale.GERMANY);
+        try {
+            relayStrokeStream();
+            assertTrue(mAggregator.getSummary(),
+                    mAggregator.getSummary().matches(".*sends/s=\\d+\\.\\d delay=\\d+\\.\\dms"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    /**
+     * Relay a synthetic stroke stream to the guessers: strokes arrive at random, at
+     * STROKES_PER_SECOND on average, and the tick is flushed TickMs after the first message
+     * queued in it, as NearbyClient does.
+     */
+    private void relayStrokeStream() {
+        Random random = new Random(31);
+        long flushAt = -1;
+        double now = 0;
+        int index = 0;
+        while (now < STREAM_MS) {
+            now += -Math.log(1 - random.nextDouble()) * 1000 / STROKES_PER_SECOND;
+            long arrival = (long) now;
+            if (flushAt >= 0 && flushAt <= arrival) {
+                mAggregator.flushAll(flushAt);
+                flushAt = -1;
+            }
+
+            byte[] stroke = message(60, index++);
+            for (int guesser = 0; guesser < GUESSERS; guesser++) {
+                if (mAggregator.send("guesser" + guesser, stroke, arrival) && flushAt < 0) {
+                    flushAt = arrival + mAggregator.getTickMs();
+                }
+            }
+        }
+        if (flushAt >= 0) {
+            mAggregator.flushAll(flushAt);
+        }
+    }
+
+    /**
+     * A JSON-like message that starts with '{', like every real message, tagged with its index.
+     */
+    private static byte[] message(int length, int index) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) ('a' + (index + i) % 26);
+        }
+        message[0] = '{';
+        return message;
+    }
+
+    private void assertReceived(List<byte[]> sent) {
+        List<byte[]> received = new ArrayList<>();
+        for (byte[] packet : mPackets) {
+            if (TickAggregator.isBatch(packet)) {
+                TickAggregator.unpack(packet, received);
+            } else {
+                received.add(packet);
+            }
+        }
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertArrayEquals(sent.get(i), received.get(i));
+        }
+    }
+}
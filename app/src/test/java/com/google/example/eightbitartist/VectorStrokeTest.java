@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.EPointMessage;
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.MessageAdapter;
+import com.google.example.eightbitartist.messages.StrokeMessage;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * VectorStroke simplification and encoding of touch paths, and a microbenchmark of both against
+ * sending one message per touch point. Also a comparison of vector strokes with one message per
+ * cell at several grid sizes, in messages, bytes and how much of the finger's path each covers.
+ */
+public class VectorStrokeTest {
+
+    private static final int POINTS = 200;
+    private static final int STROKES = 20000;
+
+    // Swipes of one second, with touch points at 120 Hz, handed over in 50 ms pieces as DrawView
+    // does in vector mode
+    private static final int SWIPES = 1000;
+    private static final int SWIPE_POINTS = 120;
+    private static final int CHUNK_POINTS = 6;
+    private static final int[] GRID_SIZES = {10, 64, 256};
+
+    private final Gson mMapper = new GsonBuilder()
+            .registerTypeAdapter(Message.class, new MessageAdapter())
+            .create();
+
+    /**
+     * A wobbly touch path across the grid, as x, y pairs in grid units, with a little noise on
+     * every point like a real finger.
+     */
+    private static float[] touchPath(Random random, int count) {
+        float[] points = new float[count * 2];
+        float cx = random.nextFloat() * DrawView.GRID_SIZE;
+        float cy = random.nextFloat() * DrawView.GRID_SIZE;
+        float radius = 1 + random.nextFloat() * (DrawView.GRID_SIZE / 2 - 1);
+        float phase = random.nextFloat() * 6.28f;
+        for (int i = 0; i < count; i++) {
+            double angle = phase + 4.0 * i / count;
+            points[i * 2] = clamp(cx + radius * (float) Math.cos(angle)
+                    + 0.05f * random.nextFloat());
+            points[i * 2 + 1] = clamp(cy + radius * (float) Math.sin(2 * angle)
+                    + 0.05f * random.nextFloat());
+        }
+        return points;
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0, Math.min(DrawView.GRID_SIZE - 0.01f, value));
+    }
+
+    @Test
+    public void simplifiedStrokeStaysWithinTolerance() {
+        Random random = new Random(1);
+        for (int stroke = 0; stroke < 100; stroke++) {
+            float[] points = touchPath(random, POINTS);
+            float[] simplified = VectorStroke.simplify(points, POINTS,
+                    VectorStroke.DEFAULT_TOLERANCE);
+
+            assertEquals(points[0], simplified[0], 0);
+            assertEquals(points[POINTS * 2 - 1], simplified[simplified.length - 1], 0);
+            for (int i = 0; i < POINTS; i++) {
+                assertTrue(distanceToPolyline(points[i * 2], points[i * 2 + 1], simplified)
+                        <= VectorStroke.DEFAULT_TOLERANCE + 1e-4);
+            }
+
+            // Decoding the differences gives back every kept point to within half a step
+            int[] encoded = VectorStroke.encode(simplified);
+            int x = 0;
+            int y = 0;
+            for (int i = 0; i < encoded.length; i += 2) {
+                x += encoded[i];
+                y += encoded[i + 1];
+                float step = 0.5f / VectorStroke.STEPS_PER_CELL + 1e-4f;
+                assertEquals(simplified[i], (float) x / VectorStroke.STEPS_PER_CELL, step);
+                assertEquals(simplified[i + 1], (float) y / VectorStroke.STEPS_PER_CELL, step);
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkSimplifyAndEncode() {
+        Random random = new Random(2);
+        float[][] paths = new float[64][];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = touchPath(random, POINTS);
+        }
+
+        // Warm up, then time simplification and encoding separately
+        long keptPoints = 0;
+        long simplifyNs = 0;
+        long encodeNs = 0;
+        for (int round = 0; round < 2; round++) {
+            keptPoints = 0;
+            simplifyNs = 0;
+            encodeNs = 0;
+            for (int stroke = 0; stroke < STROKES; stroke++) {
+                float[] points = paths[stroke % paths.length];
+                long start = System.nanoTime();
+                float[] simplified = VectorStroke.simplify(points, POINTS,
+                        VectorStroke.DEFAULT_TOLERANCE);
+                long simplifiedAt = System.nanoTime();
+                int[] encoded = VectorStroke.encode(simplified);
+                long encodedAt = System.nanoTime();
+
+                simplifyNs += simplifiedAt - start;
+                encodeNs += encodedAt - simplifiedAt;
+                keptPoints += encoded.length / 2;
+            }
+        }
+
+        // Bytes on the wire for one stroke, against one EPointMessage per cell it crosses
+        int[] encoded = VectorStroke.encode(VectorStroke.simplify(paths[0], POINTS,
+                VectorStroke.DEFAULT_TOLERANCE));
+        int cells = VectorStroke.rasterize(encoded, DrawView.GRID_SIZE,
+                new VectorStroke.CellWriter() {
+                    @Override
+                    public void setCell(int gridX, int gridY) {
+                    }
+                });
+        int strokeBytes = mMapper.toJson(new StrokeMessage(1, encoded), Message.class).length();
+        int pointBytes = mMapper.toJson(new EPointMessage(new EPoint(5, 5), 1),
+                Message.class).length() * cells;
+
+        System.out.println(String.format(Locale.US,
+                "%d point stroke: simplify %.1f us, encode %.2f us, %.1f points kept, "
+                        + "%d bytes against %d bytes as %d points",
+                POINTS, simplifyNs / 1000.0 / STROKES, encodeNs / 1000.0 / STROKES,
+                (double) keptPoints / STROKES, strokeBytes, pointBytes, cells));
+
+        // Well within one 16 ms frame, since it runs on the UI thread when the finger lifts
+        assertTrue((simplifyNs + encodeNs) / STROKES < 1000 * 1000);
+        assertTrue(keptPoints < (long) STROKES * POINTS / 4);
+    }
+
+    private static float distanceToPolyline(float x, float y, float[] line) {
+        float best = Float.MAX_VALUE;
+        for (int i = 0; i + 3 < line.length; i += 2) {
+            float x1 = line[i];
+            float y1 = line[i + 1];
+            float dx = line[i + 2] - x1;
+            float dy = line[i + 3] - y1;
+            float lengthSquared = dx * dx + dy * dy;
+            float t = 0;
+            if (lengthSquared > 0) {
+                t = Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / lengthSquared));
+            }
+            float ex = x - (x1 + t * dx);
+            float ey = y - (y1 + t * dy);
+            best = Math.min(best, (float) Math.sqrt(ex * ex + ey * ey));
+        }
+        return best;
+    }
+
+    /**
+     * A swipe back and forth across the screen along a cubic curve through random control
+     * points, as x, y pairs in the units of a grid of gridSize cells, so the same motion on
+     * every grid.
+     */
+    private static float[] swipe(Random random, int gridSize) {
+        float[] control = new float[8];
+        for (int i = 0; i < control.length; i++) {
+            control[i] = random.nextFloat() * 1.6f - 0.3f;
+        }
+        float[] points = new float[SWIPE_POINTS * 2];
+        for (int i = 0; i < SWIPE_POINTS; i++) {
+            float t = (float) i / (SWIPE_POINTS - 1);
+            float u = 1 - t;
+            for (int axis = 0; axis < 2; axis++) {
+                float value = u * u * u * control[axis] + 3 * u * u * t * control[2 + axis]
+                        + 3 * u * t * t * control[4 + axis] + t * t * t * control[6 + axis];
+                points[i * 2 + axis] = Math.max(0, Math.min(gridSize - 0.01f, value * gridSize));
+            }
+        }
+        return points;
+    }
+
+    /**
+     * @return the cells the straight lines between the touch points cross, sampled finely.
+     */
+    private static Set<Integer> pathCells(float[] points, int gridSize) {
+        Set<Integer> cells = new HashSet<>();
+        for (int i = 0; i + 3 < points.length; i += 2) {
+            float dx = points[i + 2] - points[i];
+            float dy = points[i + 3] - points[i + 1];
+            int steps = 1 + (int) (Math.sqrt(dx * dx + dy * dy) * 20);
+            for (int step = 0; step <= steps; step++) {
+                float x = points[i] + dx * step / steps;
+                float y = points[i + 1] + dy * step / steps;
+                cells.add((int) x * gridSize + (int) y);
+            }
+        }
+        return cells;
+    }
+
+    @Test
+    public void compareWithCellMessagesAcrossGridSizes() {
+        for (final int gridSize : GRID_SIZES) {
+            Random random = new Random(36);
+            long cellMessages = 0;
+            long cellBytes = 0;
+            long vectorMessages = 0;
+            long vectorBytes = 0;
+            long pathCells = 0;
+            long cellCovered = 0;
+            long vectorCovered = 0;
+            for (int swipe = 0; swipe < SWIPES; swipe++) {
+                float[] points = swipe(random, gridSize);
+                Set<Integer> path = pathCells(points, gridSize);
+
+                // One EPointMessage each time the finger is seen in a new cell
+                Set<Integer> painted = new HashSet<>();
+                int last = -1;
+                for (int i = 0; i < SWIPE_POINTS; i++) {
+                    int x = (int) points[i * 2];
+                    int y = (int) points[i * 2 + 1];
+                    int cell = x * gridSize + y;
+                    if (cell != last) {
+                        cellMessages++;
+                        cellBytes += mMapper.toJson(new EPointMessage(new EPoint(x, y), 1),
+                                Message.class).length();
+                        painted.add(cell);
+                        last = cell;
+                    }
+                }
+
+                // One StrokeMessage per piece, each starting where the one before ended. Like
+                // DrawView, a piece is only cut once it has left its first cell.
+                final Set<Integer> rasterized = new HashSet<>();
+                int start = 0;
+                for (int end = 1; end < SWIPE_POINTS; end++) {
+                    boolean lastPoint = end == SWIPE_POINTS - 1;
+                    boolean leftFirstCell = (int) points[start * 2] != (int) points[end * 2]
+                            || (int) points[start * 2 + 1] != (int) points[end * 2 + 1];
+                    if (!lastPoint && (end - start < CHUNK_POINTS || !leftFirstCell)) {
+                        continue;
+                    }
+                    int count = end - start + 1;
+                    float[] piece = new float[count * 2];
+                    System.arraycopy(points, start * 2, piece, 0, count * 2);
+                    start = end;
+                    int[] encoded = VectorStroke.encode(VectorStroke.simplify(piece, count,
+                            VectorStroke.DEFAULT_TOLERANCE));
+                    vectorMessages++;
+                    vectorBytes += mMapper.toJson(new StrokeMessage(1, encoded),
+                            Message.class).length();
+                    VectorStroke.rasterize(encoded, gridSize, new VectorStroke.CellWriter() {
+                        @Override
+                        public void setCell(int gridX, int gridY) {
+                            rasterized.add(gridX * gridSize + gridY);
+                        }
+                    });
+                }
+
+                pathCells += path.size();
+                painted.retainAll(path);
+                rasterized.retainAll(path);
+                cellCovered += painted.size();
+                vectorCovered += rasterized.size();
+            }
+
+            double cellCoverage = (double) cellCovered / pathCells;
+            double vectorCoverage = (double) vectorCovered / pathCells;
+            System.out.println(String.format(Locale.US,
+                    "%dx%d, per swipe: cells %.0f msgs %.0f B %.0f%% covered, "
+                            + "vector %.0f msgs %.0f B %.0f%% covered",
+                    gridSize, gridSize, (double) cellMessages / SWIPES,
+                    (double) cellBytes / SWIPES, 100 * cellCoverage,
+                    (double) vectorMessages / SWIPES, (double) vectorBytes / SWIPES,
+                    100 * vectorCoverage));
+
+            // Vectors follow the path at any size; single cells fall behind a fast finger
+            assertTrue(vectorCoverage > 0.85);
+            if (gridSize > DrawView.GRID_SIZE) {
+                assertTrue(vectorMessages < cellMessages);
+                assertTrue(vectorBytes < cellBytes);
+                assertTrue(vectorCoverage > cellCoverage);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Word packs read in place from a mapped file, against the comma-separated string resource
+ * split into a String[] that they replaced: the words must read back the same, and opening a
+ * pack must cost the same and keep nothing on the heap whatever its size.
+ */
+public class WordDictionaryTest {
+
+    private static final int LARGE_DICTIONARY = 50000;
+    private static final int OPENS = 20;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File writePack(String name, String[] words) throws IOException {
+        File file = mFolder.newFile(name + ".dict");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(WordMatcherTest.pack(words));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Open a pack the way GameService.openWordPack opens an asset.
+     */
+    private static WordDictionary map(String name, File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return new WordDictionary(name, channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String join(String[] words) {
+        StringBuilder joined = new StringBuilder();
+        for (String word : words) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(word);
+        }
+        return joined.toString();
+    }
+
+    private static String[] makeWords(int count) {
+        String[] words = new String[count];
+        for (int i = 0; i < count; i++) {
+            words[i] = "word" + i;
+        }
+        return words;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void readsWordsBack() throws IOException {
+        String[] words = WordSamplerTest.loadClassicWords();
+        WordDictionary dictionary = map("classic", writePack("classic", words));
+
+        assertEquals("classic", dictionary.getName());
+        assertEquals(words.length, dictionary.size());
+        assertEquals(Arrays.hashCode(words), dictionary.getHash());
+        for (int i = 0; i < words.length; i++) {
+            assertEquals(words[i], dictionary.get(i));
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedPack() throws IOException {
+        byte[] pack = WordMatcherTest.pack(makeWords(100));
+        try {
+            new WordDictionary("truncated", ByteBuffer.wrap(pack, 0, pack.length - 10));
+            fail();
+        } catch (IOException expected) {
+            // Nothing to read words from
+        }
+    }
+
+    @Test
+    public void benchmarkAgainstSplitString() throws IOException {
+        String[][] dictionaries = {WordSamplerTest.loadClassicWords(),
+                makeWords(LARGE_DICTIONARY)};
+        for (String[] words : dictionaries) {
+            String resource = join(words);
+            File file = writePack("pack" + words.length, words);
+
+            // Warm up, then time opening each way. Each open keeps what it built, like the
+            // game does, to weigh it.
+            map("warm", file);
+            resource.split(",");
+            Object[] kept = new Object[OPENS];
+            long before = usedHeap();
+            long start = System.nanoTime();
+            for (int i = 0; i < OPENS; i++) {
+                kept[i] = resource.split(",");
+            }
+            double splitUs = (System.nanoTime() - start) / 1000.0 / OPENS;
+            long splitBytes = (usedHeap() - before) / OPENS;
+            assertEquals(words.length, ((String[]) kept[0]).length);
+            Arrays.fill(kept, null);
+
+            before = usedHeap();
+            start = System.nanoTime();
+            for (int i = 0; i < OPENS; i++) {
+                kept[i] = map("pack", file);
+            }
+            double mapUs = (System.nanoTime() - start) / 1000.0 / OPENS;
+            long mapBytes = (usedHeap() - before) / OPENS;
+            assertEquals(words.length, ((WordDictionary) kept[0]).size());
+
+            System.out.println(String.format(Locale.US,
+                    "%d words: split %.1f us / %d KB, mapped %.1f us / %d KB",
+                    words.length, splitUs, splitBytes / 1024, mapUs, mapBytes / 1024));
+            if (words.length == LARGE_DICTIONARY) {
+                assertTrue(mapUs < splitUs);
+                assertTrue(mapBytes * 10 < splitBytes);
+            }
+        }
+    }
+}
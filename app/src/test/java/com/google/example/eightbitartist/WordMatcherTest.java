@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * WordMatcher against a linear scan that computes the edit distance to every word, on a
+ * dictionary of 50,000 words: both must find equally close words, and the trie must stay well
+ * under a millisecond per guess.
+ */
+public class WordMatcherTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int WORDS = 50000;
+    private static final int QUERIES = 2000;
+
+    /**
+     * Compile words into a pack, as the compileWordPacks task in build.gradle does.
+     */
+    static WordDictionary compile(String name, String[] words) throws IOException {
+        return new WordDictionary(name, ByteBuffer.wrap(pack(words)));
+    }
+
+    /**
+     * @return the bytes of the pack compileWordPacks builds from words.
+     */
+    static byte[] pack(String[] words) {
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        int[] offsets = new int[words.length + 1];
+        for (int i = 0; i < words.length; i++) {
+            byte[] bytes = words[i].getBytes(UTF_8);
+            blob.write(bytes, 0, bytes.length);
+            offsets[i + 1] = blob.size();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(16 + offsets.length * 4 + blob.size());
+        buffer.putInt(WordDictionary.MAGIC);
+        buffer.putInt(WordDictionary.VERSION);
+        buffer.putInt(words.length);
+        buffer.putInt(Arrays.hashCode(words));
+        for (int offset : offsets) {
+            buffer.putInt(offset);
+        }
+        buffer.put(blob.toByteArray());
+        return buffer.array();
+    }
+
+    /**
+     * Made up words of 3 to 12 letters, built from syllables so typos of them look like typos
+     * of real words.
+     */
+    private static String[] makeWords(Random random, int count) {
+        String[] syllables = {"ba", "ca", "de", "fi", "go", "hu", "ja", "ke", "li", "mo", "nu",
+                "pa", "qui", "re", "si", "to", "vu", "wa", "xe", "yo", "za", "str", "an", "el",
+                "on", "ight", "er", "ing"};
+        Set<String> words = new LinkedHashSet<>();
+        while (words.size() < count) {
+            StringBuilder word = new StringBuilder();
+            int parts = 1 + random.nextInt(4);
+            for (int i = 0; i < parts; i++) {
+                word.append(syllables[random.nextInt(syllables.length)]);
+            }
+            if (word.length() >= 3 && word.length() <= 12) {
+                words.add((random.nextInt(10) == 0) ? "The " + word : word.toString());
+            }
+        }
+        return words.toArray(new String[count]);
+    }
+
+    /**
+     * A guess at a word: the word itself, its plural, or the word with one or two typos.
+     */
+    private static String makeGuess(Random random, String word) {
+        StringBuilder guess = new StringBuilder(WordMatcher.normalize(word));
+        switch (random.nextInt(5)) {
+            case 0:
+                break;
+            case 1:
+                guess.append('s');
+                break;
+            case 2:
+                typo(random, guess);
+                break;
+            case 3:
+                typo(random, guess);
+                typo(random, guess);
+                break;
+            default:
+                // Nothing like any word
+                guess.setLength(0);
+                for (int i = 0; i < 8; i++) {
+                    guess.append((char) ('a' + random.nextInt(26)));
+                }
+                break;
+        }
+        return guess.toString();
+    }
+
+    private static void typo(Random random, StringBuilder guess) {
+        int at = random.nextInt(guess.length());
+        char letter = (char) ('a' + random.nextInt(26));
+        switch (random.nextInt(4)) {
+            case 0:
+                guess.setCharAt(at, letter);
+                break;
+            case 1:
+                guess.insert(at, letter);
+                break;
+            case 2:
+                if (guess.length() > 1) {
+                    guess.deleteCharAt(at);
+                }
+                break;
+            default:
+                if (at + 1 < guess.length()) {
+                    char swapped = guess.charAt(at);
+                    guess.setCharAt(at, guess.charAt(at + 1));
+                    guess.setCharAt(at + 1, swapped);
+                }
+                break;
+        }
+    }
+
+    /**
+     * The obvious matcher: exact word, then singular, then the closest word by edit distance,
+     * trying every word in turn.
+     */
+    private static class LinearMatcher {
+        final String[] keys;
+
+        LinearMatcher(WordDictionary dictionary) {
+            keys = new String[dictionary.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = WordMatcher.normalize(dictionary.get(i));
+            }
+        }
+
+        int match(String input) {
+            String key = WordMatcher.normalize(input);
+            if (key.isEmpty()) {
+                return WordMatcher.NO_MATCH;
+            }
+            String[] exact = {key,
+                    key.endsWith("ies") ? key.substring(0, key.length() - 3) + "y" : null,
+                    key.endsWith("es") ? key.substring(0, key.length() - 2) : null,
+                    key.endsWith("s") ? key.substring(0, key.length() - 1) : null};
+            for (String candidate : exact) {
+                for (int i = 0; candidate != null && i < keys.length; i++) {
+                    if (keys[i].equals(candidate)) {
+                        return i;
+                    }
+                }
+            }
+
+            int maxEdits = (key.length() <= 3) ? 0 : (key.length() <= 7) ? 1 : 2;
+            int best = WordMatcher.NO_MATCH;
+            int bestDistance = maxEdits + 1;
+            for (int i = 0; i < keys.length; i++) {
+                int distance = distance(key, keys[i]);
+                if (distance < bestDistance) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Edit distance counting insertions, deletions, substitutions and swaps of adjacent letters.
+     */
+    private static int distance(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            d[i][0] = i;
+        }
+        for (int j = 0; j <= b.length(); j++) {
+            d[0][j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = (a.charAt(i - 1) == b.charAt(j - 1)) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1),
+                        d[i - 1][j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2)
+                        && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+                }
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
+    @Test
+    public void findsTypedWords() throws IOException {
+        WordMatcher matcher = new WordMatcher(compile("test", new String[]{"Apple", "Butterfly",
+                "Candy", "Ice Cream", "Pony", "Sun"}));
+        WordDictionary dictionary = matcher.getDictionary();
+
+        assertEquals("Apple", dictionary.get(matcher.match("apple")));
+        assertEquals("Butterfly", dictionary.get(matcher.match("Butterflies")));
+        assertEquals("Candy", dictionary.get(matcher.match("candies")));
+        assertEquals("Ice Cream", dictionary.get(matcher.match("icecream")));
+        assertEquals("Pony", dictionary.get(matcher.match("pnoy")));
+        assertEquals("Butterfly", dictionary.get(matcher.match("buterfyl")));
+        assertEquals(WordMatcher.NO_MATCH, matcher.match("sum"));
+        assertEquals(WordMatcher.NO_MATCH, matcher.match("keyboard"));
+
+        int[] suggestions = new int[4];
+        assertEquals(1, matcher.suggest("Ic", suggestions));
+        assertEquals("Ice Cream", dictionary.get(suggestions[0]));
+    }
+
+    @Test
+    public void benchmarkAgainstLinearScan() throws IOException {
+        Random random = new Random(45);
+        String[] words = makeWords(random, WORDS);
+
+        long start = System.nanoTime();
+        WordMatcher matcher = new WordMatcher(compile("benchmark", words));
+        long buildNs = System.nanoTime() - start;
+        LinearMatcher linear = new LinearMatcher(matcher.getDictionary());
+
+        String[] guesses = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            guesses[i] = makeGuess(random, words[random.nextInt(WORDS)]);
+        }
+
+        // Warm up, then time each guess. The scan is slow, so it only checks every tenth.
+        for (int i = 0; i < QUERIES; i++) {
+            matcher.match(guesses[i]);
+        }
+        long[] trieNs = new long[QUERIES];
+        long[] linearNs = new long[QUERIES / 10];
+        int matched = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            long before = System.nanoTime();
+            int word = matcher.match(guesses[i]);
+            trieNs[i] = System.nanoTime() - before;
+            if (word != WordMatcher.NO_MATCH) {
+                matched++;
+            }
+            if (i % 10 != 0) {
+                continue;
+            }
+
+            before = System.nanoTime();
+            int expected = linear.match(guesses[i]);
+            linearNs[i / 10] = System.nanoTime() - before;
+
+            // Ties may be broken differently, but the match must be as close
+            String key = WordMatcher.normalize(guesses[i]);
+            assertEquals(guesses[i], expected == WordMatcher.NO_MATCH,
+                    word == WordMatcher.NO_MATCH);
+            if (word != WordMatcher.NO_MATCH) {
+                assertEquals(guesses[i],
+                        distance(key, linear.keys[expected]), distance(key, linear.keys[word]));
+            }
+        }
+
+        Arrays.sort(trieNs);
+        Arrays.sort(linearNs);
+        System.out.println(String.format(Locale.US,
+                "%d words, %d guesses (%d matched): trie p50 %.1f us, p99 %.1f us, "
+                        + "linear scan p50 %.1f us, p99 %.1f us, build %d ms",
+                WORDS, QUERIES, matched, trieNs[QUERIES / 2] / 1000.0,
+                trieNs[QUERIES * 99 / 100] / 1000.0, linearNs[linearNs.length / 2] / 1000.0,
+                linearNs[linearNs.length * 99 / 100] / 1000.0, buildNs / 1000000));
+
+        assertTrue(trieNs[QUERIES / 2] < 100 * 1000);
+        assertTrue(trieNs[QUERIES * 99 / 100] < 1000 * 1000);
+        assertTrue(trieNs[QUERIES / 2] * 10 < linearNs[linearNs.length / 2]);
+    }
+}
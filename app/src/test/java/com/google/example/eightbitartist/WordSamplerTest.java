@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.example.eightbitartist;
+
+import com.google.example.eightbitartist.messages.Message;
+import com.google.example.eightbitartist.messages.MessageAdapter;
+import com.google.example.eightbitartist.messages.TurnMessage;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * WordSampler against the shuffle of the whole dictionary it replaced: every device must derive
+ * the same words from a seed, a turn must cost a few steps whatever the dictionary size, and
+ * a TurnMessage carrying the seed must be smaller than one carrying the words.
+ */
+public class WordSamplerTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int LARGE_DICTIONARY = 50000;
+    private static final int TURNS = 2000;
+
+    /**
+     * The bundled word list, as compileWordPacks reads it.
+     */
+    static String[] loadClassicWords() throws IOException {
+        List<String> words = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream("src/main/words/classic.txt"), UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    words.add(line.trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    private static String[] makeWords(int count) {
+        String[] words = new String[count];
+        for (int i = 0; i < count; i++) {
+            words[i] = "word" + i;
+        }
+        return words;
+    }
+
+    /**
+     * How the words of a turn were chosen before: shuffle a copy of the dictionary, keep the
+     * first WORDS_PER_TURN and pick the correct one among them.
+     */
+    private static int shuffleTurn(String[] dictionary, Random random, List<String> words) {
+        words.clear();
+        Collections.addAll(words, dictionary);
+        Collections.shuffle(words, random);
+        return random.nextInt(words.subList(0, GameEngine.WORDS_PER_TURN).size());
+    }
+
+    @Test
+    public void samplersWithTheSameSeedAgree() throws IOException {
+        String[] words = loadClassicWords();
+        WordSampler first = new WordSampler(words.length, GameEngine.WORDS_PER_TURN);
+        WordSampler second = new WordSampler(words.length, GameEngine.WORDS_PER_TURN);
+        first.reset(42);
+        second.reset(42);
+
+        for (int turn = 0; turn < 500; turn++) {
+            first.select(turn);
+            // The second device misses most turns, and derives the ones in between when it
+            // gets the next
+            if (turn % 7 != 0) {
+                continue;
+            }
+            second.select(turn);
+            for (int i = 0; i < first.getWordsPerTurn(); i++) {
+                assertEquals(first.getWord(i), second.getWord(i));
+            }
+            assertEquals(first.getCorrectWord(), second.getCorrectWord());
+        }
+
+        // Going back starts over from the seed
+        int[] turn3 = new int[first.getWordsPerTurn()];
+        first.reset(42);
+        first.select(3);
+        for (int i = 0; i < turn3.length; i++) {
+            turn3[i] = first.getWord(i);
+        }
+        second.select(3);
+        for (int i = 0; i < turn3.length; i++) {
+            assertEquals(turn3[i], second.getWord(i));
+        }
+    }
+
+    @Test
+    public void wordsDoNotRepeatUntilTheDictionaryRunsOut() throws IOException {
+        String[] words = loadClassicWords();
+        WordSampler sampler = new WordSampler(words.length, GameEngine.WORDS_PER_TURN);
+        sampler.reset(7);
+
+        Set<Integer> seen = new HashSet<>();
+        int turns = words.length / GameEngine.WORDS_PER_TURN;
+        for (int turn = 0; turn < turns; turn++) {
+            sampler.select(turn);
+            for (int i = 0; i < sampler.getWordsPerTurn(); i++) {
+                assertTrue("turn " + turn, seen.add(sampler.getWord(i)));
+            }
+        }
+        assertEquals(turns * GameEngine.WORDS_PER_TURN, seen.size());
+    }
+
+    @Test
+    public void benchmarkAgainstShuffle() throws IOException {
+        String[][] dictionaries = {loadClassicWords(), makeWords(LARGE_DICTIONARY)};
+        for (String[] dictionary : dictionaries) {
+            List<String> words = new ArrayList<>(dictionary.length);
+            Random random = new Random(3);
+            int turns = Math.max(20, TURNS * 348 / dictionary.length);
+
+            // Warm up, then time both
+            for (int turn = 0; turn < turns; turn++) {
+                shuffleTurn(dictionary, random, words);
+            }
+            long start = System.nanoTime();
+            for (int turn = 0; turn < turns; turn++) {
+                shuffleTurn(dictionary, random, words);
+            }
+            double shuffleUs = (System.nanoTime() - start) / 1000.0 / turns;
+
+            WordSampler sampler = new WordSampler(dictionary.length, GameEngine.WORDS_PER_TURN);
+            sampler.reset(3);
+            for (int turn = 0; turn < TURNS; turn++) {
+                sampler.select(turn);
+            }
+            sampler.reset(3);
+            start = System.nanoTime();
+            for (int turn = 0; turn < TURNS; turn++) {
+                sampler.select(turn);
+            }
+            double samplerUs = (System.nanoTime() - start) / 1000.0 / TURNS;
+
+            System.out.println(String.format(Locale.US,
+                    "%d words: shuffle %.2f us per turn, sampler %.2f us per turn",
+                    dictionary.length, shuffleUs, samplerUs));
+            assertTrue(samplerUs < 10);
+            if (dictionary.length == LARGE_DICTIONARY) {
+                assertTrue(samplerUs * 100 < shuffleUs);
+            }
+        }
+    }
+
+    @Test
+    public void turnMessageIsSmallerThanTheWords() throws IOException {
+        String[] dictionary = loadClassicWords();
+        Gson mapper = new GsonBuilder()
+                .registerTypeAdapter(Message.class, new MessageAdapter())
+                .create();
+        WordSampler sampler = new WordSampler(dictionary.length, GameEngine.WORDS_PER_TURN);
+        sampler.reset(new Random(5).nextLong());
+        sampler.select(12);
+
+        // A 4-player turn, as sent now
+        TurnMessage msg = new TurnMessage(12, sampler.getSeed(), "classic",
+                Arrays.hashCode(dictionary));
+        msg.setScores(new int[]{0, 240, 1, 95, 2, 180, 3, 0});
+        msg.setStartTime(1234567L);
+        JsonObject json = mapper.toJsonTree(msg, Message.class).getAsJsonObject();
+        int seedBytes = json.toString().getBytes(UTF_8).length;
+
+        // The same turn with the words and the correct one, as sent before
+        JsonArray words = new JsonArray();
+        for (int i = 0; i < sampler.getWordsPerTurn(); i++) {
+            words.add(dictionary[sampler.getWord(i)]);
+        }
+        JsonObject instance = json.getAsJsonObject("_INSTANCE");
+        instance.add("words", words);
+        instance.addProperty("correctWord", sampler.getCorrectWord());
+        int wordBytes = json.toString().getBytes(UTF_8).length;
+
+        System.out.println(String.format(Locale.US,
+                "4-player TurnMessage: %d bytes with the words, %d with the seed",
+                wordBytes, seedBytes));
+        assertTrue(seedBytes + 40 < wordBytes);
+    }
+}